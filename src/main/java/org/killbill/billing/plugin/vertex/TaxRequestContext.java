@@ -0,0 +1,161 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.plugin.api.PluginProperties;
+import org.killbill.billing.plugin.vertex.cache.TaxCodeMapping;
+import org.killbill.billing.plugin.vertex.cache.TaxCodeMappings;
+
+import com.google.common.collect.ImmutableMap;
+
+import static org.killbill.billing.plugin.vertex.VertexTaxCalculator.PRODUCT_VALUE;
+import static org.killbill.billing.plugin.vertex.VertexTaxCalculator.TAX_CODE;
+import static org.killbill.billing.plugin.vertex.VertexTaxCalculator.USAGE_CLASS;
+
+/**
+ * Plugin properties indexed once per tax calculation: lookups are O(1), instead of a scan of all properties, and
+ * per-item properties (e.g. taxCode_&lt;invoiceItemId&gt;) are looked up by item id, without building the key.
+ * <p>
+ * Lookups behave like {@link PluginProperties#findPluginPropertyValue(String, Iterable)}: the first property
+ * with a given key wins, and empty values are returned as null.
+ */
+public class TaxRequestContext {
+
+    private static final String TAX_CODE_PREFIX = TAX_CODE + "_";
+    private static final String PRODUCT_VALUE_PREFIX = PRODUCT_VALUE + "_";
+    private static final String USAGE_CLASS_PREFIX = USAGE_CLASS + "_";
+
+    private final Map<String, String> propertyValues;
+    private final Map<UUID, String> taxCodes;
+    private final Map<UUID, String> productValues;
+    private final Map<UUID, String> usageClasses;
+    private final TaxCodeMappings taxCodeMappings;
+
+    public TaxRequestContext(@Nullable final Iterable<PluginProperty> pluginProperties) {
+        this(pluginProperties, TaxCodeMappings.EMPTY);
+    }
+
+    public TaxRequestContext(@Nullable final Iterable<PluginProperty> pluginProperties, final TaxCodeMappings taxCodeMappings) {
+        this.taxCodeMappings = taxCodeMappings;
+        if (pluginProperties == null) {
+            this.propertyValues = ImmutableMap.of();
+            this.taxCodes = ImmutableMap.of();
+            this.productValues = ImmutableMap.of();
+            this.usageClasses = ImmutableMap.of();
+            return;
+        }
+
+        this.propertyValues = new HashMap<>();
+        this.taxCodes = new HashMap<>();
+        this.productValues = new HashMap<>();
+        this.usageClasses = new HashMap<>();
+        for (final PluginProperty pluginProperty : pluginProperties) {
+            if (pluginProperty == null || pluginProperty.getKey() == null || propertyValues.containsKey(pluginProperty.getKey())) {
+                continue;
+            }
+
+            final String key = pluginProperty.getKey();
+            final String value = toValue(pluginProperty.getValue());
+            propertyValues.put(key, value);
+
+            if (key.startsWith(TAX_CODE_PREFIX)) {
+                indexItemValue(taxCodes, key.substring(TAX_CODE_PREFIX.length()), value);
+            } else if (key.startsWith(PRODUCT_VALUE_PREFIX)) {
+                indexItemValue(productValues, key.substring(PRODUCT_VALUE_PREFIX.length()), value);
+            } else if (key.startsWith(USAGE_CLASS_PREFIX)) {
+                indexItemValue(usageClasses, key.substring(USAGE_CLASS_PREFIX.length()), value);
+            }
+        }
+    }
+
+    @Nullable
+    public String getPropertyValue(final String key) {
+        return propertyValues.get(key);
+    }
+
+    @Nullable
+    public String getTaxCode(final UUID invoiceItemId) {
+        return taxCodes.get(invoiceItemId);
+    }
+
+    @Nullable
+    public String getProductValue(final UUID invoiceItemId) {
+        return productValues.get(invoiceItemId);
+    }
+
+    /**
+     * @return the tax code of this item (taxCode_&lt;invoiceItemId&gt; property), or else the one mapped to its catalog entry
+     */
+    @Nullable
+    public String getTaxCode(final InvoiceItem invoiceItem) {
+        final String taxCode = taxCodes.get(invoiceItem.getId());
+        if (taxCode != null) {
+            return taxCode;
+        }
+        final TaxCodeMapping taxCodeMapping = taxCodeMappings.resolve(invoiceItem);
+        return taxCodeMapping == null ? null : taxCodeMapping.getProductClass();
+    }
+
+    /**
+     * @return the product value of this item (productValue_&lt;invoiceItemId&gt; property), or else the one mapped to its catalog entry
+     */
+    @Nullable
+    public String getProductValue(final InvoiceItem invoiceItem) {
+        final String productValue = productValues.get(invoiceItem.getId());
+        if (productValue != null) {
+            return productValue;
+        }
+        final TaxCodeMapping taxCodeMapping = taxCodeMappings.resolve(invoiceItem);
+        return taxCodeMapping == null ? null : taxCodeMapping.getProductValue();
+    }
+
+    @Nullable
+    public String getUsageClass(final UUID invoiceItemId) {
+        return usageClasses.get(invoiceItemId);
+    }
+
+    private static void indexItemValue(final Map<UUID, String> itemValues, final String invoiceItemId, @Nullable final String value) {
+        final UUID itemId;
+        try {
+            itemId = UUID.fromString(invoiceItemId);
+        } catch (final IllegalArgumentException e) {
+            return;
+        }
+        // UUID#fromString is lenient: only keep keys which would have matched String.format("%s_%s", prefix, itemId)
+        if (itemId.toString().equals(invoiceItemId)) {
+            itemValues.put(itemId, value);
+        }
+    }
+
+    @Nullable
+    private static String toValue(@Nullable final Object value) {
+        if (value == null) {
+            return null;
+        }
+        final String valueAsString = String.valueOf(value);
+        return valueAsString.isEmpty() ? null : valueAsString;
+    }
+}
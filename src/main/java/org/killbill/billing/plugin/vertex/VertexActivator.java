@@ -29,9 +29,23 @@ import org.killbill.billing.osgi.libs.killbill.KillbillActivatorBase;
 import org.killbill.billing.plugin.api.notification.PluginConfigurationEventHandler;
 import org.killbill.billing.plugin.core.resources.jooby.PluginApp;
 import org.killbill.billing.plugin.core.resources.jooby.PluginAppBuilder;
+import org.killbill.billing.plugin.vertex.cache.AccountEventHandler;
+import org.killbill.billing.plugin.vertex.cache.AccountTaxContextCache;
+import org.killbill.billing.plugin.vertex.cache.CustomFieldEventHandler;
+import org.killbill.billing.plugin.vertex.cache.QuoteCache;
+import org.killbill.billing.plugin.vertex.cache.QuoteCacheServlet;
+import org.killbill.billing.plugin.vertex.cache.TaxAreaCache;
+import org.killbill.billing.plugin.vertex.cache.TaxAreaChangesChecker;
+import org.killbill.billing.plugin.vertex.cache.TaxCodeCache;
+import org.killbill.billing.plugin.vertex.cache.TaxCodeMappingCache;
+import org.killbill.billing.plugin.vertex.cache.TaxCodeMappingServlet;
+import org.killbill.billing.plugin.vertex.cluster.VertexClusterLimits;
 import org.killbill.billing.plugin.vertex.dao.VertexDao;
 import org.killbill.billing.plugin.vertex.health.VertexHealthcheck;
 import org.killbill.billing.plugin.vertex.health.VertexHealthcheckServlet;
+import org.killbill.billing.plugin.vertex.http.VertexHttpTransport;
+import org.killbill.billing.plugin.vertex.outbox.VertexOutbox;
+import org.killbill.billing.plugin.vertex.outbox.VertexOutboxServlet;
 import org.osgi.framework.BundleContext;
 
 public class VertexActivator extends KillbillActivatorBase {
@@ -39,6 +53,12 @@ public class VertexActivator extends KillbillActivatorBase {
     public static final String PLUGIN_NAME = "killbill-vertex";
 
     private VertexApiConfigurationHandler vertexApiConfigurationHandler;
+    private VertexHttpTransport vertexHttpTransport;
+    private VertexClusterLimits vertexClusterLimits;
+    private AccountTaxContextCache accountTaxContextCache;
+    private TaxCodeCache taxCodeCache;
+    private TaxAreaChangesChecker taxAreaChangesChecker;
+    private VertexOutbox vertexOutbox;
 
     @Override
     public void start(final BundleContext context) throws Exception {
@@ -46,7 +66,12 @@ public class VertexActivator extends KillbillActivatorBase {
 
         final VertexDao dao = new VertexDao(dataSource.getDataSource());
 
-        vertexApiConfigurationHandler = new VertexApiConfigurationHandler(PLUGIN_NAME, killbillAPI);
+        // Connection pool shared by all tenants
+        vertexHttpTransport = new VertexHttpTransport(configProperties.getProperties());
+        // Share of the cluster-wide limits of this node, sized from the live nodes
+        vertexClusterLimits = new VertexClusterLimits(configProperties.getProperties(), vertexHttpTransport, dao, clock.getClock());
+        vertexClusterLimits.start();
+        vertexApiConfigurationHandler = new VertexApiConfigurationHandler(PLUGIN_NAME, killbillAPI, vertexHttpTransport);
 
         final VertexApiClient vertexApiClient = vertexApiConfigurationHandler.createConfigurable(configProperties.getProperties());
         vertexApiConfigurationHandler.setDefaultConfigurable(vertexApiClient);
@@ -55,14 +80,43 @@ public class VertexActivator extends KillbillActivatorBase {
         final VertexHealthcheck vertexHealthcheck = new VertexHealthcheck(vertexApiConfigurationHandler);
         registerHealthcheck(context, vertexHealthcheck);
 
+        // Dry-run results, shared by all tenants
+        final QuoteCache quoteCache = new QuoteCache(configProperties.getProperties());
+        // Resolved tax area ids, persisted and shared by all tenants
+        final TaxAreaCache taxAreaCache = new TaxAreaCache(configProperties.getProperties(), dao, clock.getClock(), vertexHttpTransport.getBackgroundExecutor());
+        taxAreaChangesChecker = new TaxAreaChangesChecker(configProperties.getProperties(), vertexApiConfigurationHandler, dao, taxAreaCache, clock.getClock());
+        taxAreaChangesChecker.start();
+
+        // Vertex operations run after the invoice operations, drained by all nodes
+        vertexOutbox = new VertexOutbox(configProperties.getProperties(), vertexApiConfigurationHandler, dao, clock.getClock());
+        vertexOutbox.start();
+
+        // Tax codes of the catalog entries, per tenant
+        final TaxCodeMappingCache taxCodeMappingCache = new TaxCodeMappingCache(configProperties.getProperties(), dao, clock.getClock());
+
         final VertexTaxCalculator vertexTaxCalculator = new VertexTaxCalculator(vertexApiConfigurationHandler,
                                                                                 dao,
+                                                                                quoteCache,
+                                                                                taxAreaCache,
+                                                                                taxCodeMappingCache,
+                                                                                vertexOutbox,
                                                                                 clock.getClock(),
                                                                                 killbillAPI);
+        // Account tax contexts, warmed up by the account events
+        accountTaxContextCache = new AccountTaxContextCache(configProperties.getProperties(),
+                                                            killbillAPI,
+                                                            vertexApiConfigurationHandler,
+                                                            taxAreaCache,
+                                                            vertexHttpTransport.getBackgroundExecutor());
+        // Tax codes of the invoice items, evicted by the custom field events
+        taxCodeCache = new TaxCodeCache(configProperties.getProperties(), killbillAPI);
         final VertexInvoicePluginApi pluginApi = new VertexInvoicePluginApi(vertexApiConfigurationHandler,
                                                                             killbillAPI,
                                                                             configProperties,
                                                                             vertexTaxCalculator,
+                                                                            accountTaxContextCache,
+                                                                            taxCodeCache,
+                                                                            vertexOutbox,
                                                                             dao,
                                                                             clock.getClock());
         // Register the invoice plugin
@@ -74,7 +128,13 @@ public class VertexActivator extends KillbillActivatorBase {
                                                          dataSource,
                                                          super.clock,
                                                          configProperties).withRouteClass(VertexHealthcheckServlet.class)
+                                                                          .withRouteClass(QuoteCacheServlet.class)
+                                                                          .withRouteClass(TaxCodeMappingServlet.class)
+                                                                          .withRouteClass(VertexOutboxServlet.class)
                                                                           .withService(vertexHealthcheck)
+                                                                          .withService(quoteCache)
+                                                                          .withService(taxCodeMappingCache)
+                                                                          .withService(vertexOutbox)
                                                                           .withService(dao)
                                                                           .build();
 
@@ -84,9 +144,28 @@ public class VertexActivator extends KillbillActivatorBase {
         registerHandlers();
     }
 
+    @Override
+    public void stop(final BundleContext context) throws Exception {
+        if (taxAreaChangesChecker != null) {
+            taxAreaChangesChecker.close();
+        }
+        if (vertexOutbox != null) {
+            vertexOutbox.close();
+        }
+        if (vertexClusterLimits != null) {
+            vertexClusterLimits.close();
+        }
+        if (vertexHttpTransport != null) {
+            vertexHttpTransport.close();
+        }
+        super.stop(context);
+    }
+
     public void registerHandlers() {
         final PluginConfigurationEventHandler handler = new PluginConfigurationEventHandler(vertexApiConfigurationHandler);
-        dispatcher.registerEventHandlers(handler);
+        final AccountEventHandler accountEventHandler = new AccountEventHandler(accountTaxContextCache);
+        final CustomFieldEventHandler customFieldEventHandler = new CustomFieldEventHandler(taxCodeCache);
+        dispatcher.registerEventHandlers(handler, accountEventHandler, customFieldEventHandler);
     }
 
     private void registerServlet(final BundleContext context, final HttpServlet servlet) {
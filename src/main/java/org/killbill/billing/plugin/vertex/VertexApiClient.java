@@ -17,44 +17,146 @@
 
 package org.killbill.billing.plugin.vertex;
 
+import java.time.LocalDate;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+import javax.annotation.Nullable;
+
+import org.apache.hc.core5.http.Method;
 import org.jooq.tools.StringUtils;
-import org.killbill.billing.plugin.vertex.gen.ApiClient;
 import org.killbill.billing.plugin.vertex.gen.ApiException;
-import org.killbill.billing.plugin.vertex.gen.client.CalculateTaxApi;
-import org.killbill.billing.plugin.vertex.gen.client.TaxAreaLookupApi;
-import org.killbill.billing.plugin.vertex.gen.client.TransactionApi;
 import org.killbill.billing.plugin.vertex.gen.client.model.AddressLookupRequestType;
+import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessChangedTaxAreasResponseType;
 import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessRemoveTransactionResponseType;
 import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessResponseTaxAreaLookupResponseType;
 import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessResponseTransactionResponseType;
+import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessTransactionExistResponseType;
+import org.killbill.billing.plugin.vertex.gen.client.model.SaleMessageTypeEnum;
 import org.killbill.billing.plugin.vertex.gen.client.model.SaleRequestType;
+import org.killbill.billing.plugin.vertex.http.AdaptiveConcurrencyLimiter;
+import org.killbill.billing.plugin.vertex.http.AdaptiveConcurrencyLimiter.Lane;
+import org.killbill.billing.plugin.vertex.http.AsyncApiInvoker;
+import org.killbill.billing.plugin.vertex.http.AsyncRequestLimiter;
+import org.killbill.billing.plugin.vertex.http.CircuitBreaker;
+import org.killbill.billing.plugin.vertex.http.CircuitBreakerOpenException;
+import org.killbill.billing.plugin.vertex.http.RetryPolicy;
+import org.killbill.billing.plugin.vertex.http.TokenBucket;
+import org.killbill.billing.plugin.vertex.http.VertexHttpTransport;
 import org.killbill.billing.plugin.vertex.oauth.OAuthClient;
+import org.killbill.billing.plugin.vertex.oauth.OAuthTokenManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableMap;
+
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_PROBES;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_MS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_DURATION_MS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_CONCURRENCY_DRY_RUN_SHARE;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_CONCURRENCY_INITIAL_LIMIT;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_CONCURRENCY_LATENCY_TOLERANCE;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_CONCURRENCY_MAX_LIMIT;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_CONCURRENCY_MAX_QUEUE_WAIT_MS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_CONCURRENCY_MIN_LIMIT;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_MAX_CONCURRENT_DOCUMENTS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_MAX_LINES_PER_DOCUMENT;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_RATE_LIMIT_MAX_WAIT_MS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_RATE_LIMIT_REQUESTS_PER_SECOND;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_RETRY_DEADLINE_MS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_RETRY_INITIAL_BACKOFF_MS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_RETRY_MAX_ATTEMPTS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_RETRY_MAX_BACKOFF_MS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_SCHEDULING_WEIGHT;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_TAX_CALCULATION_TIMEOUT_MS;
 import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_ADJUSTMENTS_LENIENT_MODE_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CHECK_TRANSACTION_EXISTS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CIRCUIT_BREAKER_HALF_OPEN_PROBES_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CIRCUIT_BREAKER_MINIMUM_CALLS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CIRCUIT_BREAKER_OPEN_DURATION_MS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CIRCUIT_BREAKER_SLOW_CALL_DURATION_MS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CIRCUIT_BREAKER_WINDOW_SIZE_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CONCURRENCY_DRY_RUN_SHARE_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CONCURRENCY_INITIAL_LIMIT_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CONCURRENCY_LATENCY_TOLERANCE_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CONCURRENCY_MAX_LIMIT_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CONCURRENCY_MAX_QUEUE_WAIT_MS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CONCURRENCY_MIN_LIMIT_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_MAX_CONCURRENT_DOCUMENTS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_MAX_LINES_PER_DOCUMENT_PROPERTY;
 import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_OSERIES_CLIENT_ID_PROPERTY;
 import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_OSERIES_CLIENT_SECRET_PROPERTY;
 import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_OSERIES_COMPANY_DIVISION_PROPERTY;
 import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_OSERIES_COMPANY_NAME_PROPERTY;
 import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_OSERIES_URL_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_QUOTE_THEN_POST_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_RATE_LIMIT_BURST_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_RATE_LIMIT_MAX_WAIT_MS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_RATE_LIMIT_REQUESTS_PER_SECOND_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_RETRY_DEADLINE_MS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_RETRY_INITIAL_BACKOFF_MS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_RETRY_MAX_ATTEMPTS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_RETRY_MAX_BACKOFF_MS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_SCHEDULING_WEIGHT_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_TAX_CALCULATION_TIMEOUT_MS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.getIntProperty;
 
 public class VertexApiClient {
 
     public static final String NOT_CONFIGURED_MSG = "VertexApiClient is not configured: url, clientId and clientSecret are required";
     private static final Logger logger = LoggerFactory.getLogger(VertexApiClient.class);
 
-    private final CalculateTaxApi calculateTaxApi;
-    private final TransactionApi transactionApi;
-    private final TaxAreaLookupApi taxAreaLookupApi;
+    private static final TypeReference<ApiSuccessResponseTransactionResponseType> TRANSACTION_RESPONSE_TYPE = new TypeReference<>() {};
+    private static final TypeReference<ApiSuccessRemoveTransactionResponseType> REMOVE_TRANSACTION_RESPONSE_TYPE = new TypeReference<>() {};
+    private static final TypeReference<ApiSuccessTransactionExistResponseType> TRANSACTION_EXISTS_RESPONSE_TYPE = new TypeReference<>() {};
+    private static final TypeReference<ApiSuccessResponseTaxAreaLookupResponseType> TAX_AREA_LOOKUP_RESPONSE_TYPE = new TypeReference<>() {};
+    private static final TypeReference<ApiSuccessChangedTaxAreasResponseType> CHANGED_TAX_AREAS_RESPONSE_TYPE = new TypeReference<>() {};
+
+    // Endpoints, each with its own circuit breaker and retry counters
+    public static final String CALCULATE_TAXES = "calculateTaxes";
+    public static final String DELETE_TRANSACTION = "deleteTransaction";
+    public static final String TRANSACTION_EXISTS = "transactionExists";
+    public static final String LOOK_UP_TAX_AREA = "lookUpTaxArea";
+    public static final String CHANGED_TAX_AREAS = "changedTaxAreas";
+    private static final String[] ENDPOINTS = {CALCULATE_TAXES, DELETE_TRANSACTION, TRANSACTION_EXISTS, LOOK_UP_TAX_AREA, CHANGED_TAX_AREAS};
+
+    private final AsyncApiInvoker invoker;
+    private final OAuthTokenManager tokenManager;
+    // Token refreshes after a 401 may block: keep them (and retries) off the I/O reactor threads
+    private final Executor retryExecutor;
 
     private final String companyName;
     private final String companyDivision;
     private final boolean skipAnomalousAdjustments;
+    private final int maxConcurrentDocuments;
+    private final int taxCalculationTimeoutMs;
+    private final int maxLinesPerDocument;
+    private final int schedulingWeight;
+    private final boolean quoteThenPost;
+    private final boolean checkTransactionExists;
+    // Empty when disabled
+    private final Map<String, CircuitBreaker> circuitBreakers;
+    private final Map<String, RetryPolicy> retryPolicies;
+    // Shared by all endpoints (null when disabled)
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+    private final TokenBucket rateLimiter;
 
-    public VertexApiClient(final Properties properties) {
+    public VertexApiClient(final Properties properties, final VertexHttpTransport httpTransport) {
         final String url = properties.getProperty(VERTEX_OSERIES_URL_PROPERTY);
         final String clientId = properties.getProperty(VERTEX_OSERIES_CLIENT_ID_PROPERTY);
         final String clientSecret = properties.getProperty(VERTEX_OSERIES_CLIENT_SECRET_PROPERTY);
@@ -62,11 +164,20 @@ public class VertexApiClient {
         this.companyName = properties.getProperty(VERTEX_OSERIES_COMPANY_NAME_PROPERTY);
         this.companyDivision = properties.getProperty(VERTEX_OSERIES_COMPANY_DIVISION_PROPERTY);
         this.skipAnomalousAdjustments = Boolean.parseBoolean(properties.getProperty(VERTEX_ADJUSTMENTS_LENIENT_MODE_PROPERTY));
+        this.maxConcurrentDocuments = Math.max(1, getIntProperty(properties, VERTEX_MAX_CONCURRENT_DOCUMENTS_PROPERTY, DEFAULT_MAX_CONCURRENT_DOCUMENTS));
+        this.taxCalculationTimeoutMs = getIntProperty(properties, VERTEX_TAX_CALCULATION_TIMEOUT_MS_PROPERTY, DEFAULT_TAX_CALCULATION_TIMEOUT_MS);
+        this.maxLinesPerDocument = getIntProperty(properties, VERTEX_MAX_LINES_PER_DOCUMENT_PROPERTY, DEFAULT_MAX_LINES_PER_DOCUMENT);
+        this.schedulingWeight = Math.max(1, getIntProperty(properties, VERTEX_SCHEDULING_WEIGHT_PROPERTY, DEFAULT_SCHEDULING_WEIGHT));
+        this.quoteThenPost = Boolean.parseBoolean(properties.getProperty(VERTEX_QUOTE_THEN_POST_PROPERTY));
+        this.checkTransactionExists = Boolean.parseBoolean(properties.getProperty(VERTEX_CHECK_TRANSACTION_EXISTS_PROPERTY));
+        this.circuitBreakers = initCircuitBreakers(properties, Ticker.systemTicker());
+        this.concurrencyLimiter = initConcurrencyLimiter(properties, Ticker.systemTicker());
 
-        final ApiClient apiClient = initApiClient(url, clientId, clientSecret);
-        this.calculateTaxApi = apiClient != null ? new CalculateTaxApi(apiClient) : null;
-        this.transactionApi = apiClient != null ? new TransactionApi(apiClient) : null;
-        this.taxAreaLookupApi = apiClient != null ? new TaxAreaLookupApi(apiClient) : null;
+        this.invoker = initInvoker(url, clientId, clientSecret, httpTransport);
+        this.tokenManager = invoker != null ? initTokenManager(url, clientId, clientSecret, httpTransport) : null;
+        this.retryExecutor = invoker != null ? httpTransport.getBackgroundExecutor() : null;
+        this.retryPolicies = initRetryPolicies(properties, retryExecutor, Ticker.systemTicker());
+        this.rateLimiter = invoker != null ? initRateLimiter(properties, retryExecutor, Ticker.systemTicker()) : null;
     }
 
     public String getCompanyName() {
@@ -81,41 +192,357 @@ public class VertexApiClient {
         return this.skipAnomalousAdjustments;
     }
 
+    /**
+     * @return maximum number of documents (sale and returns) of an invoice sent concurrently to Vertex
+     */
+    public int getMaxConcurrentDocuments() {
+        return maxConcurrentDocuments;
+    }
+
+    /**
+     * @return deadline for all the documents of an invoice
+     */
+    public int getTaxCalculationTimeoutMs() {
+        return taxCalculationTimeoutMs;
+    }
+
+    /**
+     * @return maximum number of lines per document, larger invoices are split into several documents (0 for no limit)
+     */
+    public int getMaxLinesPerDocument() {
+        return maxLinesPerDocument;
+    }
+
+    /**
+     * @return true if invoices are quoted (QUOTATION documents) during their generation, and posted (INVOICE documents) once committed
+     */
+    public boolean isQuoteThenPost() {
+        return quoteThenPost;
+    }
+
+    /**
+     * @return the state of the circuit breaker of each endpoint (empty if circuit breakers are disabled)
+     */
+    public Map<String, CircuitBreaker.State> getCircuitBreakerStates() {
+        final ImmutableMap.Builder<String, CircuitBreaker.State> states = ImmutableMap.builder();
+        for (final CircuitBreaker circuitBreaker : circuitBreakers.values()) {
+            states.put(circuitBreaker.getName(), circuitBreaker.getState());
+        }
+        return states.build();
+    }
+
+    /**
+     * @return the retry counters of each endpoint: number of retries (e.g. calculateTaxes.retries), calls which succeeded
+     * after a retry (calculateTaxes.recovered), and calls which failed after exhausting their retries (calculateTaxes.exhausted)
+     */
+    public Map<String, Long> getRetryCounters() {
+        final ImmutableMap.Builder<String, Long> counters = ImmutableMap.builder();
+        for (final RetryPolicy retryPolicy : retryPolicies.values()) {
+            counters.put(retryPolicy.getName() + ".retries", retryPolicy.getRetries());
+            counters.put(retryPolicy.getName() + ".recovered", retryPolicy.getRecovered());
+            counters.put(retryPolicy.getName() + ".exhausted", retryPolicy.getExhausted());
+        }
+        return counters.build();
+    }
+
+    /**
+     * @return the current limit of the concurrency limiter, with its number of in-flight and queued requests, and the
+     * number of dry runs shed so far (empty if disabled)
+     */
+    public Map<String, Long> getConcurrencyLimiterStats() {
+        if (concurrencyLimiter == null) {
+            return ImmutableMap.of();
+        }
+        return ImmutableMap.of("limit", (long) concurrencyLimiter.getLimit(),
+                               "inFlight", (long) concurrencyLimiter.getInFlightRequests(),
+                               "queued", (long) concurrencyLimiter.getQueuedRequests(),
+                               "shedDryRuns", concurrencyLimiter.getShedDryRuns());
+    }
+
+    /**
+     * @return the weight of this tenant when the HTTP connections are shared with other tenants, with its number of queued requests
+     */
+    public Map<String, Integer> getSchedulingStats() {
+        if (invoker == null) {
+            return ImmutableMap.of();
+        }
+        return ImmutableMap.of("weight", schedulingWeight,
+                               "queued", invoker.getFlow().getQueuedRequests());
+    }
+
+    /**
+     * @return the capacity of the token bucket, with its number of available tokens, and the number of requests rejected
+     * as no token was available in time (empty if disabled)
+     */
+    public Map<String, Long> getRateLimiterStats() {
+        if (rateLimiter == null) {
+            return ImmutableMap.of();
+        }
+        return ImmutableMap.of("capacity", (long) rateLimiter.getCapacity(),
+                               "availableTokens", (long) rateLimiter.getAvailableTokens(),
+                               "rejected", rateLimiter.getRejectedRequests());
+    }
+
     public ApiSuccessResponseTransactionResponseType calculateTaxes(SaleRequestType taxRequest) throws ApiException {
-        if (calculateTaxApi == null) {
-            throw new IllegalStateException(NOT_CONFIGURED_MSG);
+        return await(calculateTaxesAsync(taxRequest));
+    }
+
+    public CompletableFuture<ApiSuccessResponseTransactionResponseType> calculateTaxesAsync(final SaleRequestType taxRequest) {
+        return calculateTaxesAsync(taxRequest, Lane.COMMIT);
+    }
+
+    /**
+     * @param lane DRY_RUN for previews, which are shed first when Vertex can't keep up
+     */
+    public CompletableFuture<ApiSuccessResponseTransactionResponseType> calculateTaxesAsync(final SaleRequestType taxRequest, final Lane lane) {
+        checkConfigured();
+        if (taxRequest.getSaleMessageType() != SaleMessageTypeEnum.INVOICE) {
+            // Quotations don't change anything on the Vertex side
+            return invoke(CALCULATE_TAXES, lane, true, accessToken -> invoker.invoke(Method.POST, "/v2/supplies", taxRequest, accessToken, TRANSACTION_RESPONSE_TYPE));
         }
-        return calculateTaxApi.salePost(taxRequest);
+        if (taxRequest.getTransactionId() == null) {
+            return invoke(CALCULATE_TAXES, lane, false, accessToken -> invoker.invoke(Method.POST, "/v2/supplies", taxRequest, accessToken, TRANSACTION_RESPONSE_TYPE));
+        }
+
+        // A previous attempt may have been posted (e.g. timed out after Vertex processed it): check before each retry, and
+        // before the first attempt too if checkTransactionExists (e.g. invoice generation attempted again by Kill Bill)
+        final AtomicBoolean uncheckedAttempt = new AtomicBoolean(!checkTransactionExists);
+        return invoke(CALCULATE_TAXES, lane, true, accessToken -> {
+            if (uncheckedAttempt.getAndSet(false)) {
+                return invoker.invoke(Method.POST, "/v2/supplies", taxRequest, accessToken, TRANSACTION_RESPONSE_TYPE);
+            }
+            return unlessPosted(taxRequest, accessToken).thenCompose(request -> invoker.invoke(Method.POST, "/v2/supplies", request, accessToken, TRANSACTION_RESPONSE_TYPE));
+        });
+    }
+
+    /**
+     * Invoices already posted under this transaction id are only quoted, so that they aren't posted twice (a failed check
+     * fails the attempt, which is retried if transient). The quotation is a copy: the request of the caller isn't changed.
+     */
+    private CompletableFuture<SaleRequestType> unlessPosted(final SaleRequestType taxRequest, final String accessToken) {
+        final String path = "/v2/transaction-exists/" + AsyncApiInvoker.escapePathSegment(taxRequest.getTransactionId());
+        return invoker.invoke(Method.GET, path, null, accessToken, TRANSACTION_EXISTS_RESPONSE_TYPE)
+                      .thenApply(response -> {
+                          if (response != null && Boolean.parseBoolean(response.getTransactionExistsIndicator())) {
+                              logger.info("TransactionId='{}' already exists, quoting it instead", taxRequest.getTransactionId());
+                              final SaleRequestType quotation = AsyncApiInvoker.copy(taxRequest, SaleRequestType.class);
+                              quotation.setSaleMessageType(SaleMessageTypeEnum.QUOTATION);
+                              return quotation;
+                          }
+                          return taxRequest;
+                      });
     }
 
     public ApiSuccessRemoveTransactionResponseType deleteTransaction(final String id) throws ApiException {
-        if (transactionApi == null) {
-            throw new IllegalStateException(NOT_CONFIGURED_MSG);
-        }
-        return transactionApi.deleteTransaction(id);
+        return await(deleteTransactionAsync(id));
+    }
+
+    public CompletableFuture<ApiSuccessRemoveTransactionResponseType> deleteTransactionAsync(final String id) {
+        checkConfigured();
+        final String path = "/v2/transactions/" + AsyncApiInvoker.escapePathSegment(id);
+        return invoke(DELETE_TRANSACTION, Lane.COMMIT, true, accessToken -> invoker.invoke(Method.DELETE, path, null, accessToken, REMOVE_TRANSACTION_RESPONSE_TYPE));
+    }
+
+    public ApiSuccessTransactionExistResponseType transactionExists(final String id) throws ApiException {
+        return await(transactionExistsAsync(id));
+    }
+
+    public CompletableFuture<ApiSuccessTransactionExistResponseType> transactionExistsAsync(final String id) {
+        checkConfigured();
+        final String path = "/v2/transaction-exists/" + AsyncApiInvoker.escapePathSegment(id);
+        return invoke(TRANSACTION_EXISTS, Lane.COMMIT, true, accessToken -> invoker.invoke(Method.GET, path, null, accessToken, TRANSACTION_EXISTS_RESPONSE_TYPE));
     }
 
     public ApiSuccessResponseTaxAreaLookupResponseType lookUpTaxAreaByAddress(AddressLookupRequestType addressLookupRequest) throws ApiException {
-        if (transactionApi == null) {
+        return await(lookUpTaxAreaByAddressAsync(addressLookupRequest));
+    }
+
+    public CompletableFuture<ApiSuccessResponseTaxAreaLookupResponseType> lookUpTaxAreaByAddressAsync(final AddressLookupRequestType addressLookupRequest) {
+        checkConfigured();
+        return invoke(LOOK_UP_TAX_AREA, Lane.COMMIT, true, accessToken -> invoker.invoke(Method.POST, "/v2/address-lookup", addressLookupRequest, accessToken, TAX_AREA_LOOKUP_RESPONSE_TYPE));
+    }
+
+    /**
+     * @return whether any tax area changed since beginDate
+     */
+    public ApiSuccessChangedTaxAreasResponseType getChangedTaxAreas(final LocalDate beginDate) throws ApiException {
+        return await(getChangedTaxAreasAsync(beginDate));
+    }
+
+    public CompletableFuture<ApiSuccessChangedTaxAreasResponseType> getChangedTaxAreasAsync(final LocalDate beginDate) {
+        checkConfigured();
+        final String path = "/v2/changed-taxareas?beginDate=" + beginDate;
+        return invoke(CHANGED_TAX_AREAS, Lane.COMMIT, true, accessToken -> invoker.invoke(Method.GET, path, null, accessToken, CHANGED_TAX_AREAS_RESPONSE_TYPE));
+    }
+
+    /**
+     * @return whether this tax area changed since beginDate
+     */
+    public ApiSuccessChangedTaxAreasResponseType getChangedTaxArea(final String taxAreaId, final LocalDate beginDate) throws ApiException {
+        return await(getChangedTaxAreaAsync(taxAreaId, beginDate));
+    }
+
+    public CompletableFuture<ApiSuccessChangedTaxAreasResponseType> getChangedTaxAreaAsync(final String taxAreaId, final LocalDate beginDate) {
+        checkConfigured();
+        final String path = "/v2/changed-taxareas/" + AsyncApiInvoker.escapePathSegment(taxAreaId) + "?beginDate=" + beginDate;
+        return invoke(CHANGED_TAX_AREAS, Lane.COMMIT, true, accessToken -> invoker.invoke(Method.GET, path, null, accessToken, CHANGED_TAX_AREAS_RESPONSE_TYPE));
+    }
+
+    private void checkConfigured() {
+        if (invoker == null) {
             throw new IllegalStateException(NOT_CONFIGURED_MSG);
         }
-        return this.taxAreaLookupApi.addressLookupPost(addressLookupRequest);
     }
 
-    private ApiClient initApiClient(final String url, final String clientId, final String clientSecret) {
-        if (StringUtils.isBlank(url) || StringUtils.isBlank(clientId) || StringUtils.isBlank(clientSecret)) {
-            logger.warn(NOT_CONFIGURED_MSG);
+    private <T> CompletableFuture<T> invoke(final String endpoint, final Lane lane, final boolean retrySafe, final Function<String, CompletableFuture<T>> call) {
+        final CircuitBreaker circuitBreaker = circuitBreakers.get(endpoint);
+        // Each attempt fails fast while Vertex is unavailable: no token refresh, no connection lease
+        final Supplier<CompletableFuture<T>> breakerCall = circuitBreaker == null ? () -> invokeWithToken(call) : () -> circuitBreaker.execute(() -> invokeWithToken(call));
+        // Wait for a token rather than exceeding the Vertex quota (outside of the breaker: local rejections aren't Vertex failures),
+        // unless the breaker opened in the meantime (no token is consumed by calls it rejects)
+        final Supplier<CompletableFuture<T>> protectedCall = rateLimiter == null ? breakerCall : unlessOpen(circuitBreaker, () -> rateLimiter.execute(breakerCall));
+        // Each attempt waits for its turn, but no permit is held during the backoff between attempts (attempts rejected by
+        // the breaker don't wait for a permit, nor take the place of another call)
+        final Supplier<CompletableFuture<T>> attempt = concurrencyLimiter == null ? protectedCall : unlessOpen(circuitBreaker, () -> concurrencyLimiter.submit(lane, protectedCall));
+        return retryPolicies.get(endpoint).execute(retrySafe, attempt);
+    }
+
+    private static <T> Supplier<CompletableFuture<T>> unlessOpen(@Nullable final CircuitBreaker circuitBreaker, final Supplier<CompletableFuture<T>> call) {
+        if (circuitBreaker == null) {
+            return call;
+        }
+        return () -> circuitBreaker.isCallPermitted() ? call.get() : CompletableFuture.failedFuture(new CircuitBreakerOpenException(circuitBreaker.getName()));
+    }
+
+    private <T> CompletableFuture<T> invokeWithToken(final Function<String, CompletableFuture<T>> call) {
+        final String accessToken;
+        try {
+            accessToken = tokenManager.getAccessToken();
+        } catch (final RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return call.apply(accessToken)
+                   .handle((response, throwable) -> {
+                       final Throwable cause = unwrap(throwable);
+                       if (cause instanceof ApiException && ((ApiException) cause).getCode() == 401) {
+                           // Token revoked or expired early: retry exactly once with a fresh one
+                           logger.info("Vertex rejected the OAuth token, retrying with a new token");
+                           return CompletableFuture.supplyAsync(() -> tokenManager.refreshAfterUnauthorized(accessToken), retryExecutor)
+                                                   .thenCompose(call);
+                       }
+                       return throwable == null ? CompletableFuture.completedFuture(response) : CompletableFuture.<T>failedFuture(cause);
+                   })
+                   .thenCompose(Function.identity());
+    }
+
+    private static <T> T await(final CompletableFuture<T> future) throws ApiException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApiException(e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = unwrap(e.getCause());
+            if (cause instanceof ApiException) {
+                throw (ApiException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ApiException(cause);
+        }
+    }
+
+    private static Throwable unwrap(final Throwable throwable) {
+        Throwable cause = throwable;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    private static Map<String, CircuitBreaker> initCircuitBreakers(final Properties properties, final Ticker ticker) {
+        final int windowSize = getIntProperty(properties, VERTEX_CIRCUIT_BREAKER_WINDOW_SIZE_PROPERTY, DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE);
+        if (windowSize <= 0) {
+            return ImmutableMap.of();
+        }
+
+        final ImmutableMap.Builder<String, CircuitBreaker> circuitBreakers = ImmutableMap.builder();
+        for (final String endpoint : ENDPOINTS) {
+            circuitBreakers.put(endpoint, new CircuitBreaker(endpoint,
+                                                             windowSize,
+                                                             getIntProperty(properties, VERTEX_CIRCUIT_BREAKER_MINIMUM_CALLS_PROPERTY, DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS),
+                                                             getIntProperty(properties, VERTEX_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD_PROPERTY, DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD),
+                                                             getIntProperty(properties, VERTEX_CIRCUIT_BREAKER_SLOW_CALL_DURATION_MS_PROPERTY, DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_DURATION_MS),
+                                                             getIntProperty(properties, VERTEX_CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD_PROPERTY, DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD),
+                                                             getIntProperty(properties, VERTEX_CIRCUIT_BREAKER_OPEN_DURATION_MS_PROPERTY, DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_MS),
+                                                             getIntProperty(properties, VERTEX_CIRCUIT_BREAKER_HALF_OPEN_PROBES_PROPERTY, DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_PROBES),
+                                                             ticker));
+        }
+        return circuitBreakers.build();
+    }
+
+    private static AdaptiveConcurrencyLimiter initConcurrencyLimiter(final Properties properties, final Ticker ticker) {
+        final int maxLimit = getIntProperty(properties, VERTEX_CONCURRENCY_MAX_LIMIT_PROPERTY, DEFAULT_CONCURRENCY_MAX_LIMIT);
+        if (maxLimit <= 0) {
             return null;
         }
 
-        ApiClient apiClient = new ApiClient();
-        apiClient.setBasePath(url + "/vertex-ws");
+        return new AdaptiveConcurrencyLimiter("vertex",
+                                              getIntProperty(properties, VERTEX_CONCURRENCY_INITIAL_LIMIT_PROPERTY, DEFAULT_CONCURRENCY_INITIAL_LIMIT),
+                                              getIntProperty(properties, VERTEX_CONCURRENCY_MIN_LIMIT_PROPERTY, DEFAULT_CONCURRENCY_MIN_LIMIT),
+                                              maxLimit,
+                                              getIntProperty(properties, VERTEX_CONCURRENCY_LATENCY_TOLERANCE_PROPERTY, DEFAULT_CONCURRENCY_LATENCY_TOLERANCE),
+                                              getIntProperty(properties, VERTEX_CONCURRENCY_MAX_QUEUE_WAIT_MS_PROPERTY, DEFAULT_CONCURRENCY_MAX_QUEUE_WAIT_MS),
+                                              getIntProperty(properties, VERTEX_CONCURRENCY_DRY_RUN_SHARE_PROPERTY, DEFAULT_CONCURRENCY_DRY_RUN_SHARE),
+                                              ticker);
+    }
 
-        OAuthClient oAuthClient = new OAuthClient();
-        final String token = oAuthClient.getToken(url, clientId, clientSecret).getAccessToken();
+    private static TokenBucket initRateLimiter(final Properties properties, final Executor executor, final Ticker ticker) {
+        final int requestsPerSecond = getIntProperty(properties, VERTEX_RATE_LIMIT_REQUESTS_PER_SECOND_PROPERTY, DEFAULT_RATE_LIMIT_REQUESTS_PER_SECOND);
+        if (requestsPerSecond <= 0) {
+            return null;
+        }
 
-        apiClient.setAccessToken(token);
+        return new TokenBucket("vertex",
+                               requestsPerSecond,
+                               getIntProperty(properties, VERTEX_RATE_LIMIT_BURST_PROPERTY, requestsPerSecond),
+                               getIntProperty(properties, VERTEX_RATE_LIMIT_MAX_WAIT_MS_PROPERTY, DEFAULT_RATE_LIMIT_MAX_WAIT_MS),
+                               executor,
+                               ticker);
+    }
+
+    private static Map<String, RetryPolicy> initRetryPolicies(final Properties properties, final Executor executor, final Ticker ticker) {
+        final ImmutableMap.Builder<String, RetryPolicy> retryPolicies = ImmutableMap.builder();
+        for (final String endpoint : ENDPOINTS) {
+            retryPolicies.put(endpoint, new RetryPolicy(endpoint,
+                                                        getIntProperty(properties, VERTEX_RETRY_MAX_ATTEMPTS_PROPERTY, DEFAULT_RETRY_MAX_ATTEMPTS),
+                                                        getIntProperty(properties, VERTEX_RETRY_INITIAL_BACKOFF_MS_PROPERTY, DEFAULT_RETRY_INITIAL_BACKOFF_MS),
+                                                        getIntProperty(properties, VERTEX_RETRY_MAX_BACKOFF_MS_PROPERTY, DEFAULT_RETRY_MAX_BACKOFF_MS),
+                                                        getIntProperty(properties, VERTEX_RETRY_DEADLINE_MS_PROPERTY, DEFAULT_RETRY_DEADLINE_MS),
+                                                        executor,
+                                                        ticker));
+        }
+        return retryPolicies.build();
+    }
+
+    private AsyncApiInvoker initInvoker(final String url, final String clientId, final String clientSecret, final VertexHttpTransport httpTransport) {
+        if (StringUtils.isBlank(url) || StringUtils.isBlank(clientId) || StringUtils.isBlank(clientSecret)) {
+            logger.warn(NOT_CONFIGURED_MSG);
+            return null;
+        }
+
+        // Each tenant gets its own queue when all connections are busy
+        final AsyncRequestLimiter asyncRequestLimiter = httpTransport.getAsyncRequestLimiter();
+        return new AsyncApiInvoker(httpTransport.getAsyncHttpClient(), asyncRequestLimiter, asyncRequestLimiter.newFlow(schedulingWeight), httpTransport.getClusterRateLimiter(), url + "/vertex-ws");
+    }
 
-        return apiClient;
+    private OAuthTokenManager initTokenManager(final String url, final String clientId, final String clientSecret, final VertexHttpTransport httpTransport) {
+        final OAuthClient oAuthClient = new OAuthClient(httpTransport.getHttpClient());
+        final OAuthTokenManager oAuthTokenManager = new OAuthTokenManager(oAuthClient, url, clientId, clientSecret, httpTransport.getBackgroundExecutor());
+        // Warm-up, so the first invoice doesn't pay for the token request
+        oAuthTokenManager.prefetch();
+        return oAuthTokenManager;
     }
 }
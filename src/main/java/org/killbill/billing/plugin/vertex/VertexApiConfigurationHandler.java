@@ -21,15 +21,21 @@ import java.util.Properties;
 
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.plugin.api.notification.PluginTenantConfigurableConfigurationHandler;
+import org.killbill.billing.plugin.vertex.http.VertexHttpTransport;
 
 public class VertexApiConfigurationHandler extends PluginTenantConfigurableConfigurationHandler<VertexApiClient> {
 
-    public VertexApiConfigurationHandler(final String pluginName, final OSGIKillbillAPI osgiKillbillAPI) {
+    private final VertexHttpTransport httpTransport;
+
+    public VertexApiConfigurationHandler(final String pluginName,
+                                         final OSGIKillbillAPI osgiKillbillAPI,
+                                         final VertexHttpTransport httpTransport) {
         super(pluginName, osgiKillbillAPI);
+        this.httpTransport = httpTransport;
     }
 
     @Override
     protected VertexApiClient createConfigurable(final Properties properties) {
-        return new VertexApiClient(properties);
+        return new VertexApiClient(properties, httpTransport);
     }
 }
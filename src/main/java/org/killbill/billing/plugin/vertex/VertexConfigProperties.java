@@ -17,6 +17,10 @@
 
 package org.killbill.billing.plugin.vertex;
 
+import java.util.Properties;
+
+import org.jooq.tools.StringUtils;
+
 public class VertexConfigProperties {
 
     public static final String PROPERTY_PREFIX = "org.killbill.billing.plugin.vertex.";
@@ -28,4 +32,149 @@ public class VertexConfigProperties {
     public static final String VERTEX_OSERIES_COMPANY_NAME_PROPERTY = PROPERTY_PREFIX + "companyName";
     public static final String VERTEX_OSERIES_COMPANY_DIVISION_PROPERTY = PROPERTY_PREFIX + "companyDivision";
     public static final String VERTEX_ADJUSTMENTS_LENIENT_MODE_PROPERTY = PROPERTY_PREFIX + "adjustments.lenientMode";
+    public static final String VERTEX_MAX_CONCURRENT_DOCUMENTS_PROPERTY = PROPERTY_PREFIX + "maxConcurrentDocuments";
+    public static final String VERTEX_TAX_CALCULATION_TIMEOUT_MS_PROPERTY = PROPERTY_PREFIX + "taxCalculationTimeoutMs";
+    public static final String VERTEX_MAX_LINES_PER_DOCUMENT_PROPERTY = PROPERTY_PREFIX + "maxLinesPerDocument";
+    public static final String VERTEX_QUOTE_THEN_POST_PROPERTY = PROPERTY_PREFIX + "quoteThenPost";
+    public static final String VERTEX_CHECK_TRANSACTION_EXISTS_PROPERTY = PROPERTY_PREFIX + "checkTransactionExists";
+    public static final String VERTEX_CIRCUIT_BREAKER_WINDOW_SIZE_PROPERTY = PROPERTY_PREFIX + "circuitBreaker.windowSize";
+    public static final String VERTEX_CIRCUIT_BREAKER_MINIMUM_CALLS_PROPERTY = PROPERTY_PREFIX + "circuitBreaker.minimumCalls";
+    public static final String VERTEX_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD_PROPERTY = PROPERTY_PREFIX + "circuitBreaker.failureRateThreshold";
+    public static final String VERTEX_CIRCUIT_BREAKER_SLOW_CALL_DURATION_MS_PROPERTY = PROPERTY_PREFIX + "circuitBreaker.slowCallDurationMs";
+    public static final String VERTEX_CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD_PROPERTY = PROPERTY_PREFIX + "circuitBreaker.slowCallRateThreshold";
+    public static final String VERTEX_CIRCUIT_BREAKER_OPEN_DURATION_MS_PROPERTY = PROPERTY_PREFIX + "circuitBreaker.openDurationMs";
+    public static final String VERTEX_CIRCUIT_BREAKER_HALF_OPEN_PROBES_PROPERTY = PROPERTY_PREFIX + "circuitBreaker.halfOpenProbes";
+    public static final String VERTEX_RETRY_MAX_ATTEMPTS_PROPERTY = PROPERTY_PREFIX + "retry.maxAttempts";
+    public static final String VERTEX_RETRY_INITIAL_BACKOFF_MS_PROPERTY = PROPERTY_PREFIX + "retry.initialBackoffMs";
+    public static final String VERTEX_RETRY_MAX_BACKOFF_MS_PROPERTY = PROPERTY_PREFIX + "retry.maxBackoffMs";
+    public static final String VERTEX_RETRY_DEADLINE_MS_PROPERTY = PROPERTY_PREFIX + "retry.deadlineMs";
+    public static final String VERTEX_CONCURRENCY_INITIAL_LIMIT_PROPERTY = PROPERTY_PREFIX + "concurrency.initialLimit";
+    public static final String VERTEX_CONCURRENCY_MIN_LIMIT_PROPERTY = PROPERTY_PREFIX + "concurrency.minLimit";
+    public static final String VERTEX_CONCURRENCY_MAX_LIMIT_PROPERTY = PROPERTY_PREFIX + "concurrency.maxLimit";
+    public static final String VERTEX_CONCURRENCY_LATENCY_TOLERANCE_PROPERTY = PROPERTY_PREFIX + "concurrency.latencyTolerance";
+    public static final String VERTEX_CONCURRENCY_MAX_QUEUE_WAIT_MS_PROPERTY = PROPERTY_PREFIX + "concurrency.maxQueueWaitMs";
+    public static final String VERTEX_CONCURRENCY_DRY_RUN_SHARE_PROPERTY = PROPERTY_PREFIX + "concurrency.dryRunShare";
+    public static final String VERTEX_SCHEDULING_WEIGHT_PROPERTY = PROPERTY_PREFIX + "scheduling.weight";
+    public static final String VERTEX_RATE_LIMIT_REQUESTS_PER_SECOND_PROPERTY = PROPERTY_PREFIX + "rateLimit.requestsPerSecond";
+    public static final String VERTEX_RATE_LIMIT_BURST_PROPERTY = PROPERTY_PREFIX + "rateLimit.burst";
+    public static final String VERTEX_RATE_LIMIT_MAX_WAIT_MS_PROPERTY = PROPERTY_PREFIX + "rateLimit.maxWaitMs";
+
+    public static final int DEFAULT_MAX_CONCURRENT_DOCUMENTS = 4;
+    public static final int DEFAULT_TAX_CALCULATION_TIMEOUT_MS = 120000;
+    // No limit
+    public static final int DEFAULT_MAX_LINES_PER_DOCUMENT = 0;
+    // Disabled, so that upgrading doesn't change how Vertex failures are handled
+    public static final int DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE = 0;
+    public static final int DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS = 10;
+    public static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD = 50;
+    public static final int DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_DURATION_MS = 30000;
+    public static final int DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD = 80;
+    public static final int DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_MS = 30000;
+    public static final int DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_PROBES = 3;
+    // No retry, so that upgrading doesn't change how Vertex failures are handled
+    public static final int DEFAULT_RETRY_MAX_ATTEMPTS = 1;
+    public static final int DEFAULT_RETRY_INITIAL_BACKOFF_MS = 200;
+    public static final int DEFAULT_RETRY_MAX_BACKOFF_MS = 5000;
+    public static final int DEFAULT_RETRY_DEADLINE_MS = 30000;
+    public static final int DEFAULT_CONCURRENCY_INITIAL_LIMIT = 20;
+    public static final int DEFAULT_CONCURRENCY_MIN_LIMIT = 2;
+    // Disabled, so that upgrading doesn't queue or shed requests
+    public static final int DEFAULT_CONCURRENCY_MAX_LIMIT = 0;
+    public static final int DEFAULT_CONCURRENCY_LATENCY_TOLERANCE = 200;
+    public static final int DEFAULT_CONCURRENCY_MAX_QUEUE_WAIT_MS = 30000;
+    public static final int DEFAULT_CONCURRENCY_DRY_RUN_SHARE = 50;
+    public static final int DEFAULT_SCHEDULING_WEIGHT = 1;
+    public static final int DEFAULT_RATE_LIMIT_REQUESTS_PER_SECOND = 0;
+    public static final int DEFAULT_RATE_LIMIT_MAX_WAIT_MS = 2000;
+
+    // Global only: the HTTP connection pool is shared by all tenants
+    public static final String VERTEX_HTTP_MAX_CONNECTIONS_PROPERTY = PROPERTY_PREFIX + "http.maxConnections";
+    public static final String VERTEX_HTTP_MAX_CONNECTIONS_PER_ROUTE_PROPERTY = PROPERTY_PREFIX + "http.maxConnectionsPerRoute";
+    public static final String VERTEX_HTTP_IDLE_EVICTION_SECONDS_PROPERTY = PROPERTY_PREFIX + "http.idleConnectionEvictionSeconds";
+    public static final String VERTEX_HTTP_KEEP_ALIVE_SECONDS_PROPERTY = PROPERTY_PREFIX + "http.keepAliveSeconds";
+    public static final String VERTEX_HTTP_CONNECTION_TTL_SECONDS_PROPERTY = PROPERTY_PREFIX + "http.connectionTimeToLiveSeconds";
+    public static final String VERTEX_HTTP_CONNECT_TIMEOUT_MS_PROPERTY = PROPERTY_PREFIX + "http.connectTimeoutMs";
+    public static final String VERTEX_HTTP_SOCKET_TIMEOUT_MS_PROPERTY = PROPERTY_PREFIX + "http.socketTimeoutMs";
+    public static final String VERTEX_HTTP_MAX_IN_FLIGHT_REQUESTS_PROPERTY = PROPERTY_PREFIX + "http.maxInFlightRequests";
+
+    public static final int DEFAULT_HTTP_MAX_CONNECTIONS = 100;
+    public static final int DEFAULT_HTTP_MAX_CONNECTIONS_PER_ROUTE = 50;
+    public static final int DEFAULT_HTTP_IDLE_EVICTION_SECONDS = 30;
+    public static final int DEFAULT_HTTP_KEEP_ALIVE_SECONDS = 60;
+    public static final int DEFAULT_HTTP_CONNECTION_TTL_SECONDS = 300;
+    public static final int DEFAULT_HTTP_CONNECT_TIMEOUT_MS = 10000;
+    public static final int DEFAULT_HTTP_SOCKET_TIMEOUT_MS = 60000;
+
+    // Global only: the quote cache is shared by all tenants
+    public static final String VERTEX_QUOTE_CACHE_MAX_SIZE_PROPERTY = PROPERTY_PREFIX + "quoteCache.maxSize";
+    public static final String VERTEX_QUOTE_CACHE_TTL_SECONDS_PROPERTY = PROPERTY_PREFIX + "quoteCache.ttlSeconds";
+    public static final String VERTEX_QUOTE_CACHE_STORED_RESPONSES_MAX_AGE_SECONDS_PROPERTY = PROPERTY_PREFIX + "quoteCache.storedResponsesMaxAgeSeconds";
+
+    public static final int DEFAULT_QUOTE_CACHE_MAX_SIZE = 10000;
+    public static final int DEFAULT_QUOTE_CACHE_TTL_SECONDS = 60;
+    public static final int DEFAULT_QUOTE_CACHE_STORED_RESPONSES_MAX_AGE_SECONDS = 900;
+
+    // Global only: resolved tax area ids are persisted in the vertex_tax_areas table, and cached in memory
+    public static final String VERTEX_TAX_AREA_CACHE_MAX_SIZE_PROPERTY = PROPERTY_PREFIX + "taxAreaCache.maxSize";
+    public static final String VERTEX_TAX_AREA_CACHE_TTL_SECONDS_PROPERTY = PROPERTY_PREFIX + "taxAreaCache.ttlSeconds";
+    public static final String VERTEX_TAX_AREA_CHANGES_CHECK_INTERVAL_SECONDS_PROPERTY = PROPERTY_PREFIX + "taxAreaCache.changesCheckIntervalSeconds";
+
+    public static final int DEFAULT_TAX_AREA_CACHE_MAX_SIZE = 10000;
+    public static final int DEFAULT_TAX_AREA_CACHE_TTL_SECONDS = 300;
+    public static final int DEFAULT_TAX_AREA_CHANGES_CHECK_INTERVAL_SECONDS = 86400;
+
+    // Global only: account tax contexts are refreshed on account events, the TTL only bounds the staleness of missed events
+    public static final String VERTEX_ACCOUNT_TAX_CONTEXT_CACHE_MAX_SIZE_PROPERTY = PROPERTY_PREFIX + "accountTaxContextCache.maxSize";
+    public static final String VERTEX_ACCOUNT_TAX_CONTEXT_CACHE_TTL_SECONDS_PROPERTY = PROPERTY_PREFIX + "accountTaxContextCache.ttlSeconds";
+
+    public static final int DEFAULT_ACCOUNT_TAX_CONTEXT_CACHE_MAX_SIZE = 10000;
+    public static final int DEFAULT_ACCOUNT_TAX_CONTEXT_CACHE_TTL_SECONDS = 3600;
+
+    // Global only: tax codes are evicted on custom field events, the TTL only bounds the staleness of missed events
+    public static final String VERTEX_TAX_CODE_CACHE_MAX_ENTRIES_PROPERTY = PROPERTY_PREFIX + "taxCodeCache.maxEntries";
+    public static final String VERTEX_TAX_CODE_CACHE_TTL_SECONDS_PROPERTY = PROPERTY_PREFIX + "taxCodeCache.ttlSeconds";
+
+    public static final int DEFAULT_TAX_CODE_CACHE_MAX_ENTRIES = 100000;
+    public static final int DEFAULT_TAX_CODE_CACHE_TTL_SECONDS = 3600;
+
+    // Global only: tax code mappings are reloaded on change, the TTL only bounds the staleness of changes made on other nodes
+    public static final String VERTEX_TAX_CODE_MAPPINGS_TTL_SECONDS_PROPERTY = PROPERTY_PREFIX + "taxCodeMappings.ttlSeconds";
+
+    public static final int DEFAULT_TAX_CODE_MAPPINGS_TTL_SECONDS = 300;
+
+    // Global only: the vertex_outbox table is drained by all nodes, for all tenants
+    public static final String VERTEX_OUTBOX_WORKERS_PROPERTY = PROPERTY_PREFIX + "outbox.workers";
+    public static final String VERTEX_OUTBOX_POLL_INTERVAL_SECONDS_PROPERTY = PROPERTY_PREFIX + "outbox.pollIntervalSeconds";
+    public static final String VERTEX_OUTBOX_MAX_ATTEMPTS_PROPERTY = PROPERTY_PREFIX + "outbox.maxAttempts";
+    public static final String VERTEX_OUTBOX_INITIAL_BACKOFF_SECONDS_PROPERTY = PROPERTY_PREFIX + "outbox.initialBackoffSeconds";
+    public static final String VERTEX_OUTBOX_MAX_BACKOFF_SECONDS_PROPERTY = PROPERTY_PREFIX + "outbox.maxBackoffSeconds";
+
+    public static final int DEFAULT_OUTBOX_WORKERS = 4;
+    public static final int DEFAULT_OUTBOX_POLL_INTERVAL_SECONDS = 10;
+    public static final int DEFAULT_OUTBOX_MAX_ATTEMPTS = 20;
+    public static final int DEFAULT_OUTBOX_INITIAL_BACKOFF_SECONDS = 10;
+    public static final int DEFAULT_OUTBOX_MAX_BACKOFF_SECONDS = 3600;
+
+    // Global only: the Vertex limits of the cluster are split between the nodes with a live lease in the vertex_nodes table
+    public static final String VERTEX_CLUSTER_MAX_IN_FLIGHT_REQUESTS_PROPERTY = PROPERTY_PREFIX + "cluster.maxInFlightRequests";
+    public static final String VERTEX_CLUSTER_REQUESTS_PER_SECOND_PROPERTY = PROPERTY_PREFIX + "cluster.requestsPerSecond";
+    public static final String VERTEX_CLUSTER_HEARTBEAT_INTERVAL_SECONDS_PROPERTY = PROPERTY_PREFIX + "cluster.heartbeatIntervalSeconds";
+    public static final String VERTEX_CLUSTER_DB_TIMEOUT_SECONDS_PROPERTY = PROPERTY_PREFIX + "cluster.dbTimeoutSeconds";
+
+    public static final int DEFAULT_CLUSTER_MAX_IN_FLIGHT_REQUESTS = 0;
+    public static final int DEFAULT_CLUSTER_REQUESTS_PER_SECOND = 0;
+    public static final int DEFAULT_CLUSTER_HEARTBEAT_INTERVAL_SECONDS = 10;
+    public static final int DEFAULT_CLUSTER_DB_TIMEOUT_SECONDS = 2;
+
+    public static int getIntProperty(final Properties properties, final String key, final int defaultValue) {
+        final String value = properties.getProperty(key);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Invalid value %s for property %s", value, key), e);
+        }
+    }
 }
@@ -21,15 +21,15 @@ import java.sql.SQLException;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.UUID;
-import java.util.stream.Collectors;
 
-import org.killbill.billing.ObjectType;
-import org.killbill.billing.account.api.Account;
 import org.killbill.billing.invoice.api.Invoice;
 import org.killbill.billing.invoice.api.InvoiceItem;
 import org.killbill.billing.invoice.plugin.api.AdditionalItemsResult;
 import org.killbill.billing.invoice.plugin.api.InvoiceContext;
+import org.killbill.billing.invoice.plugin.api.OnFailureInvoiceResult;
 import org.killbill.billing.invoice.plugin.api.OnSuccessInvoiceResult;
 import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
@@ -37,19 +37,24 @@ import org.killbill.billing.payment.api.PluginProperty;
 import org.killbill.billing.plugin.api.PluginProperties;
 import org.killbill.billing.plugin.api.invoice.PluginAdditionalItemsResult;
 import org.killbill.billing.plugin.api.invoice.PluginInvoicePluginApi;
+import org.killbill.billing.plugin.vertex.cache.AccountTaxContext;
+import org.killbill.billing.plugin.vertex.cache.AccountTaxContextCache;
+import org.killbill.billing.plugin.vertex.cache.TaxAreaCache;
+import org.killbill.billing.plugin.vertex.cache.TaxCodeCache;
 import org.killbill.billing.plugin.vertex.dao.VertexDao;
-import org.killbill.billing.plugin.vertex.gen.ApiException;
 import org.killbill.billing.plugin.vertex.gen.dao.model.tables.records.VertexResponsesRecord;
+import org.killbill.billing.plugin.vertex.outbox.VertexOutbox;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.callcontext.TenantContext;
-import org.killbill.billing.util.customfield.CustomField;
 import org.killbill.clock.Clock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
 
 public class VertexInvoicePluginApi extends PluginInvoicePluginApi {
 
@@ -59,6 +64,9 @@ public class VertexInvoicePluginApi extends PluginInvoicePluginApi {
 
     private final VertexTaxCalculator calculator;
     private final VertexApiConfigurationHandler vertexApiConfigurationHandler;
+    private final AccountTaxContextCache accountTaxContextCache;
+    private final TaxCodeCache taxCodeCache;
+    private final VertexOutbox vertexOutbox;
     private final VertexDao dao;
 
     public VertexInvoicePluginApi(final VertexApiConfigurationHandler vertexApiConfigurationHandler,
@@ -66,9 +74,39 @@ public class VertexInvoicePluginApi extends PluginInvoicePluginApi {
                                   final OSGIConfigPropertiesService configProperties,
                                   final VertexTaxCalculator vertexTaxCalculator,
                                   final VertexDao dao, final Clock clock) {
+        // No account tax context nor tax code cache: the account and its custom fields are retrieved for each invoice
+        this(vertexApiConfigurationHandler,
+             killbillApi,
+             configProperties,
+             vertexTaxCalculator,
+             new AccountTaxContextCache(0,
+                                        0,
+                                        killbillApi,
+                                        vertexApiConfigurationHandler,
+                                        new TaxAreaCache(0, 0, null, clock, MoreExecutors.directExecutor(), Ticker.systemTicker()),
+                                        MoreExecutors.directExecutor(),
+                                        Ticker.systemTicker()),
+             new TaxCodeCache(0, 0, killbillApi, Ticker.systemTicker()),
+             // Not started (no thread): operations are only run inline, right after being added or released, without retries
+             new VertexOutbox(new Properties(), vertexApiConfigurationHandler, dao, clock),
+             dao,
+             clock);
+    }
+
+    public VertexInvoicePluginApi(final VertexApiConfigurationHandler vertexApiConfigurationHandler,
+                                  final OSGIKillbillAPI killbillApi,
+                                  final OSGIConfigPropertiesService configProperties,
+                                  final VertexTaxCalculator vertexTaxCalculator,
+                                  final AccountTaxContextCache accountTaxContextCache,
+                                  final TaxCodeCache taxCodeCache,
+                                  final VertexOutbox vertexOutbox,
+                                  final VertexDao dao, final Clock clock) {
         super(killbillApi, configProperties, clock);
         this.calculator = vertexTaxCalculator;
         this.vertexApiConfigurationHandler = vertexApiConfigurationHandler;
+        this.accountTaxContextCache = accountTaxContextCache;
+        this.taxCodeCache = taxCodeCache;
+        this.vertexOutbox = vertexOutbox;
         this.dao = dao;
     }
 
@@ -83,12 +121,13 @@ public class VertexInvoicePluginApi extends PluginInvoicePluginApi {
 
         final Collection<PluginProperty> pluginProperties = Lists.newArrayList(properties);
 
-        final Account account = getAccount(invoice.getAccountId(), context);
+        // Usually warmed up by the account events
+        final AccountTaxContext accountTaxContext = accountTaxContextCache.getAccountTaxContext(invoice.getAccountId(), context);
 
         checkForTaxCodes(invoice, pluginProperties, context);
 
         try {
-            List<InvoiceItem> invoiceItems = calculator.compute(account, invoice, dryRun, pluginProperties, context);
+            List<InvoiceItem> invoiceItems = calculator.compute(accountTaxContext, invoice, dryRun, pluginProperties, context);
             final AdditionalItemsResult additionalItemsResult = new PluginAdditionalItemsResult(invoiceItems, null);
             return additionalItemsResult;
         } catch (final Exception e) {
@@ -101,6 +140,14 @@ public class VertexInvoicePluginApi extends PluginInvoicePluginApi {
     public OnSuccessInvoiceResult onSuccessCall(final InvoiceContext context, final Iterable<PluginProperty> properties) {
         final String invoiceOperation = PluginProperties.findPluginPropertyValue(INVOICE_OPERATION, properties);
         if (invoiceOperation == null) {
+            if (isQuoteThenPost(context)) {
+                try {
+                    // Invoice committed: post the transactions quoted during its generation
+                    vertexOutbox.postTransactions(context.getInvoice().getId(), context.getTenantId());
+                } catch (final SQLException e) {
+                    logger.warn("Unable to post transactions in Vertex for invoiceId='{}'", context.getInvoice().getId(), e);
+                }
+            }
             return super.onSuccessCall(context, properties);
         }
 
@@ -116,13 +163,11 @@ public class VertexInvoicePluginApi extends PluginInvoicePluginApi {
             // Don't fail the whole operation though
         }
 
-        final VertexApiClient vertexApiClient = vertexApiConfigurationHandler.getConfigurable(context.getTenantId());
-        for (final String docCode : docCodes) {
+        if ("void".equals(invoiceOperation)) {
             try {
-                if ("void".equals(invoiceOperation)) {
-                    vertexApiClient.deleteTransaction(docCode);
-                }
-            } catch (final ApiException e) {
+                // Deleted in the background, with retries
+                vertexOutbox.deleteTransactions(context.getInvoice().getId(), docCodes, context.getTenantId());
+            } catch (final SQLException e) {
                 logger.warn("Unable to {} transaction in Vertex", invoiceOperation, e);
                 // Don't fail the whole operation though
             }
@@ -131,29 +176,41 @@ public class VertexInvoicePluginApi extends PluginInvoicePluginApi {
         return super.onSuccessCall(context, properties);
     }
 
+    @Override
+    public OnFailureInvoiceResult onFailureCall(final InvoiceContext context, final Iterable<PluginProperty> properties) {
+        if (isQuoteThenPost(context)) {
+            try {
+                // Invoice not committed: its quotes must not be posted
+                vertexOutbox.discardTransactions(context.getInvoice().getId(), context.getTenantId());
+            } catch (final SQLException e) {
+                logger.warn("Unable to discard transactions for invoiceId='{}'", context.getInvoice().getId(), e);
+            }
+        }
+        return super.onFailureCall(context, properties);
+    }
+
+    private boolean isQuoteThenPost(final InvoiceContext context) {
+        return !context.isDryRun() &&
+               context.getInvoice() != null &&
+               vertexApiConfigurationHandler.getConfigurable(context.getTenantId()).isQuoteThenPost();
+    }
+
     private void checkForTaxCodes(final Invoice invoice, final Collection<PluginProperty> properties, final TenantContext context) {
         checkForTaxCodesInCustomFields(invoice, properties, context);
     }
 
     private void checkForTaxCodesInCustomFields(final Invoice invoice, final Collection<PluginProperty> properties, final TenantContext context) {
-        final List<CustomField> customFields = killbillAPI.getCustomFieldUserApi().getCustomFieldsForAccountType(invoice.getAccountId(), ObjectType.INVOICE_ITEM, context);
-        if (customFields.isEmpty()) {
+        // Indexed by invoice item id
+        final Map<UUID, String> taxCodes = taxCodeCache.getTaxCodes(invoice.getAccountId(), context);
+        if (taxCodes.isEmpty()) {
             return;
         }
 
-        final Collection<UUID> invoiceItemIds = new HashSet<>();
         for (final InvoiceItem invoiceItem : invoice.getInvoiceItems()) {
-            invoiceItemIds.add(invoiceItem.getId());
-        }
-
-        final Iterable<CustomField> taxCodeCustomFieldsForInvoiceItems = customFields
-                .stream().filter(customField -> customField != null &&
-                                                VertexTaxCalculator.TAX_CODE.equals(customField.getFieldName()) &&
-                                                invoiceItemIds.contains(customField.getObjectId())).collect(Collectors.toList());
-        for (final CustomField customField : taxCodeCustomFieldsForInvoiceItems) {
-            final UUID invoiceItemId = customField.getObjectId();
-            final String taxCode = customField.getFieldValue();
-            addTaxCodeToInvoiceItem(invoiceItemId, taxCode, properties);
+            final String taxCode = taxCodes.get(invoiceItem.getId());
+            if (taxCode != null) {
+                addTaxCodeToInvoiceItem(invoiceItem.getId(), taxCode, properties);
+            }
         }
     }
 
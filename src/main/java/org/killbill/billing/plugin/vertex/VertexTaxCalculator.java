@@ -17,41 +17,63 @@
 
 package org.killbill.billing.plugin.vertex;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import org.joda.time.LocalDate;
+import org.killbill.billing.ErrorCode;
 import org.killbill.billing.account.api.Account;
 import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceApiException;
 import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceItemType;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.payment.api.PluginProperty;
-import org.killbill.billing.plugin.api.PluginProperties;
-import org.killbill.billing.plugin.api.invoice.PluginInvoiceItem;
 import org.killbill.billing.plugin.api.invoice.PluginInvoiceItem.Builder;
 import org.killbill.billing.plugin.api.invoice.PluginTaxCalculator;
+import org.killbill.billing.plugin.vertex.cache.AccountTaxContext;
+import org.killbill.billing.plugin.vertex.cache.QuoteCache;
+import org.killbill.billing.plugin.vertex.cache.TaxAreaCache;
+import org.killbill.billing.plugin.vertex.cache.TaxCodeMappingCache;
 import org.killbill.billing.plugin.vertex.dao.VertexDao;
 import org.killbill.billing.plugin.vertex.gen.ApiException;
 import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessResponseTransactionResponseType;
+import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessResponseTransactionResponseTypeData;
 import org.killbill.billing.plugin.vertex.gen.client.model.CurrencyType;
 import org.killbill.billing.plugin.vertex.gen.client.model.CustomerCodeType;
 import org.killbill.billing.plugin.vertex.gen.client.model.CustomerType;
 import org.killbill.billing.plugin.vertex.gen.client.model.FlexibleCodeField;
 import org.killbill.billing.plugin.vertex.gen.client.model.FlexibleFields;
 import org.killbill.billing.plugin.vertex.gen.client.model.Jurisdiction;
+import org.killbill.billing.plugin.vertex.gen.client.model.JurisdictionTypeEnum;
 import org.killbill.billing.plugin.vertex.gen.client.model.LocationType;
 import org.killbill.billing.plugin.vertex.gen.client.model.OwnerResponseLineItemType;
 import org.killbill.billing.plugin.vertex.gen.client.model.Product;
@@ -63,21 +85,28 @@ import org.killbill.billing.plugin.vertex.gen.client.model.SellerType;
 import org.killbill.billing.plugin.vertex.gen.client.model.TaxRegistrationType;
 import org.killbill.billing.plugin.vertex.gen.client.model.TaxesType;
 import org.killbill.billing.plugin.vertex.gen.dao.model.tables.records.VertexResponsesRecord;
+import org.killbill.billing.plugin.vertex.http.AdaptiveConcurrencyLimiter.Lane;
+import org.killbill.billing.plugin.vertex.http.AsyncRequestLimiter;
+import org.killbill.billing.plugin.vertex.outbox.VertexOutbox;
 import org.killbill.billing.util.callcontext.TenantContext;
 import org.killbill.clock.Clock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.HashMultimap;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.MoreExecutors;
 
 public class VertexTaxCalculator extends PluginTaxCalculator {
 
@@ -106,18 +135,60 @@ public class VertexTaxCalculator extends PluginTaxCalculator {
     private static final Logger logger = LoggerFactory.getLogger(VertexTaxCalculator.class);
     private static final ObjectMapper objectMapper =  new ObjectMapper();
 
+    private static final String TAX_RATE_DETAIL = "taxRate";
+    private static final String PARENT_ITEM_ID_DETAIL = "parentItemId";
+
+    // See inContentOrder()
+    private static final Comparator<InvoiceItem> TAXABLE_ITEMS_ORDERING = nullsFirst(InvoiceItem::getInvoiceItemType)
+            .thenComparing(nullsFirst(InvoiceItem::getSubscriptionId))
+            .thenComparing(nullsFirst(InvoiceItem::getStartDate))
+            .thenComparing(nullsFirst(InvoiceItem::getEndDate))
+            .thenComparing(nullsFirst(InvoiceItem::getPlanName))
+            .thenComparing(nullsFirst(InvoiceItem::getPhaseName))
+            .thenComparing(nullsFirst(InvoiceItem::getUsageName))
+            .thenComparing(nullsFirst(InvoiceItem::getDescription))
+            .thenComparing(nullsFirst(InvoiceItem::getAmount));
+
     private final VertexApiConfigurationHandler vertexApiConfigurationHandler;
     private final VertexDao dao;
+    private final QuoteCache quoteCache;
+    private final TaxAreaCache taxAreaCache;
+    private final TaxCodeMappingCache taxCodeMappingCache;
+    private final VertexOutbox vertexOutbox;
     private final Clock clock;
 
     public VertexTaxCalculator(final VertexApiConfigurationHandler vertexApiConfigurationHandler,
                                final VertexDao dao,
                                final Clock clock,
                                final OSGIKillbillAPI osgiKillbillAPI) {
+        // No quote nor tax area cache, nor tax code mappings
+        this(vertexApiConfigurationHandler,
+             dao,
+             new QuoteCache(0, 0, Ticker.systemTicker()),
+             new TaxAreaCache(0, 0, null, clock, MoreExecutors.directExecutor(), Ticker.systemTicker()),
+             new TaxCodeMappingCache(0, null, clock, Ticker.systemTicker()),
+             // Not started (no thread), see VertexInvoicePluginApi
+             new VertexOutbox(new Properties(), vertexApiConfigurationHandler, dao, clock),
+             clock,
+             osgiKillbillAPI);
+    }
+
+    public VertexTaxCalculator(final VertexApiConfigurationHandler vertexApiConfigurationHandler,
+                               final VertexDao dao,
+                               final QuoteCache quoteCache,
+                               final TaxAreaCache taxAreaCache,
+                               final TaxCodeMappingCache taxCodeMappingCache,
+                               final VertexOutbox vertexOutbox,
+                               final Clock clock,
+                               final OSGIKillbillAPI osgiKillbillAPI) {
         super(osgiKillbillAPI);
         this.vertexApiConfigurationHandler = vertexApiConfigurationHandler;
         this.clock = clock;
         this.dao = dao;
+        this.quoteCache = quoteCache;
+        this.taxAreaCache = taxAreaCache;
+        this.taxCodeMappingCache = taxCodeMappingCache;
+        this.vertexOutbox = vertexOutbox;
     }
 
     public List<InvoiceItem> compute(final Account account,
@@ -125,75 +196,157 @@ public class VertexTaxCalculator extends PluginTaxCalculator {
                                      final boolean dryRun,
                                      final Iterable<PluginProperty> pluginProperties,
                                      final TenantContext tenantContext) throws Exception {
+        return compute(AccountTaxContext.of(account), newInvoice, dryRun, pluginProperties, tenantContext);
+    }
+
+    public List<InvoiceItem> compute(final AccountTaxContext accountTaxContext,
+                                     final Invoice newInvoice,
+                                     final boolean dryRun,
+                                     final Iterable<PluginProperty> pluginProperties,
+                                     final TenantContext tenantContext) throws Exception {
         // Retrieve what we've already taxed
-        final List<VertexResponsesRecord> responses = dao.getSuccessfulResponses(newInvoice.getId(), tenantContext.getTenantId());
+        final List<VertexResponsesRecord> responses = dao.getSuccessfulResponseSummaries(ImmutableList.of(newInvoice.getId()), tenantContext.getTenantId())
+                                                         .getOrDefault(newInvoice.getId(), ImmutableList.of());
         final Map<UUID, Set<UUID>> alreadyTaxedItemsWithAdjustments = dao.getTaxedItemsWithAdjustments(responses);
 
         final List<NewItemToTax> newItemsToTax = computeTaxItems(newInvoice, alreadyTaxedItemsWithAdjustments, tenantContext);
-        final Map<UUID, InvoiceItem> salesTaxItems = new HashMap<>();
+        final List<InvoiceItem> salesTaxableItems = new ArrayList<>();
         for (final NewItemToTax newItemToTax : newItemsToTax) {
             if (!newItemToTax.isReturnOnly()) {
-                salesTaxItems.put(newItemToTax.getTaxableItem().getId(), newItemToTax.getTaxableItem());
+                salesTaxableItems.add(newItemToTax.getTaxableItem());
             }
         }
+        final Map<UUID, InvoiceItem> salesTaxItems = inContentOrder(salesTaxableItems);
 
-        final ImmutableList.Builder<InvoiceItem> newInvoiceItemsBuilder = ImmutableList.builder();
+        final VertexApiClient vertexApiClient = vertexApiConfigurationHandler.getConfigurable(tenantContext.getTenantId());
+        final TaxRequestContext taxRequestContext = new TaxRequestContext(pluginProperties, taxCodeMappingCache.getTaxCodeMappings(tenantContext.getTenantId()));
+        // Quote-then-post mode: QUOTATION documents now, the INVOICE documents are posted once the invoice is committed
+        final boolean quoteThenPost = !dryRun && vertexApiClient.isQuoteThenPost();
+
+        // The sale document first, then one return document for each original invoice
+        final List<TaxDocument> documents = new LinkedList<>();
         if (!salesTaxItems.isEmpty()) {
-            newInvoiceItemsBuilder.addAll(getTax(account,
-                                                 newInvoice,
-                                                 newInvoice,
-                                                 salesTaxItems,
-                                                 null,
-                                                 null,
-                                                 dryRun,
-                                                 pluginProperties,
-                                                 tenantContext.getTenantId()));
+            addDocuments(documents,
+                         accountTaxContext,
+                         newInvoice,
+                         newInvoice,
+                         salesTaxItems,
+                         null,
+                         null,
+                         dryRun || quoteThenPost,
+                         taxRequestContext,
+                         vertexApiClient,
+                         tenantContext.getTenantId());
         }
 
         // Handle returns by original invoice (1 return call for each original invoice)
-        final Multimap<UUID, NewItemToTax> itemsToReturnByInvoiceId = HashMultimap.create();
+        final Multimap<UUID, NewItemToTax> itemsToReturnByInvoiceId = LinkedHashMultimap.create();
         for (final NewItemToTax newItemToTax : newItemsToTax) {
             if (newItemToTax.getAdjustmentItems() == null) {
                 continue;
             }
             itemsToReturnByInvoiceId.put(newItemToTax.getInvoice().getId(), newItemToTax);
         }
+        // Single query for all original invoices
+        final Map<UUID, List<VertexResponsesRecord>> responsesByOriginalInvoiceId = dao.getSuccessfulResponseSummaries(itemsToReturnByInvoiceId.keySet(), tenantContext.getTenantId());
         for (final UUID invoiceId : itemsToReturnByInvoiceId.keySet()) {
             final Collection<NewItemToTax> itemsToReturn = itemsToReturnByInvoiceId.get(invoiceId);
 
             final Invoice invoice = itemsToReturn.iterator().next().getInvoice();
-            final Map<UUID, InvoiceItem> taxableItemsToReturn = new HashMap<>();
+            final List<InvoiceItem> returnedTaxableItems = new ArrayList<>(itemsToReturn.size());
             final Map<UUID, List<InvoiceItem>> adjustmentItems = new HashMap<>();
             for (final NewItemToTax itemToReturn : itemsToReturn) {
-                taxableItemsToReturn.put(itemToReturn.getTaxableItem().getId(), itemToReturn.getTaxableItem());
+                returnedTaxableItems.add(itemToReturn.getTaxableItem());
                 adjustmentItems.put(itemToReturn.getTaxableItem().getId(), itemToReturn.getAdjustmentItems());
             }
+            final Map<UUID, InvoiceItem> taxableItemsToReturn = inContentOrder(returnedTaxableItems);
+
+            final List<VertexResponsesRecord> responsesForInvoice = responsesByOriginalInvoiceId.get(invoice.getId());
+            final String originalInvoiceReferenceCode = responsesForInvoice == null || responsesForInvoice.isEmpty() ? null : responsesForInvoice.get(0).getKbInvoiceId();
+
+            addDocuments(documents,
+                         accountTaxContext,
+                         newInvoice,
+                         invoice,
+                         taxableItemsToReturn,
+                         adjustmentItems,
+                         originalInvoiceReferenceCode,
+                         dryRun || quoteThenPost,
+                         taxRequestContext,
+                         vertexApiClient,
+                         tenantContext.getTenantId());
+        }
 
-            final List<VertexResponsesRecord> responsesForInvoice = dao.getSuccessfulResponses(invoice.getId(), tenantContext.getTenantId());
-            final String originalInvoiceReferenceCode = responsesForInvoice.isEmpty() ? null : responsesForInvoice.get(0).getKbInvoiceId();
+        return calculateTaxes(accountTaxContext, newInvoice, documents, dryRun, quoteThenPost, vertexApiClient, tenantContext);
+    }
 
-            newInvoiceItemsBuilder.addAll(getTax(account,
-                                                 newInvoice,
-                                                 invoice,
-                                                 taxableItemsToReturn,
-                                                 adjustmentItems,
-                                                 originalInvoiceReferenceCode,
-                                                 dryRun,
-                                                 pluginProperties,
-                                                 tenantContext.getTenantId()));
+    /**
+     * The line numbers of the taxable items only depend on their content (not on their ids, which Kill Bill generates again
+     * for each preview): identical requests are built for the same items, and tax lines are mapped back by line number.
+     */
+    private static Map<UUID, InvoiceItem> inContentOrder(final Collection<InvoiceItem> taxableItems) {
+        final List<InvoiceItem> sortedTaxableItems = new ArrayList<>(taxableItems);
+        sortedTaxableItems.sort(TAXABLE_ITEMS_ORDERING);
+        final Map<UUID, InvoiceItem> result = new LinkedHashMap<>();
+        for (final InvoiceItem taxableItem : sortedTaxableItems) {
+            result.put(taxableItem.getId(), taxableItem);
         }
-        return newInvoiceItemsBuilder.build();
+        return result;
     }
 
-    private Iterable<InvoiceItem> getTax(final Account account,
-                                         final Invoice newInvoice,
-                                         final Invoice invoice,
-                                         final Map<UUID, InvoiceItem> taxableItems,
-                                         @Nullable final Map<UUID, List<InvoiceItem>> adjustmentItems,
-                                         @Nullable final String originalInvoiceReferenceCode,
-                                         final boolean dryRun,
-                                         final Iterable<PluginProperty> pluginProperties,
-                                         final UUID kbTenantId) throws Exception {
+    private static <T extends Comparable<? super T>> Comparator<InvoiceItem> nullsFirst(final Function<InvoiceItem, T> field) {
+        return Comparator.comparing(field, Comparator.nullsFirst(Comparator.naturalOrder()));
+    }
+
+    /**
+     * Add the document(s) for these taxable items: above maxLinesPerDocument, the items are split across several documents
+     * (separate Vertex transactions, sent concurrently). Each document response is persisted on its own, with its own items.
+     */
+    private void addDocuments(final Collection<TaxDocument> documents,
+                              final AccountTaxContext accountTaxContext,
+                              final Invoice newInvoice,
+                              final Invoice invoice,
+                              final Map<UUID, InvoiceItem> taxableItems,
+                              @Nullable final Map<UUID, List<InvoiceItem>> adjustmentItems,
+                              @Nullable final String originalInvoiceReferenceCode,
+                              final boolean quotation,
+                              final TaxRequestContext taxRequestContext,
+                              final VertexApiClient vertexApiClient,
+                              final UUID kbTenantId) {
+        final int maxLinesPerDocument = vertexApiClient.getMaxLinesPerDocument();
+        if (maxLinesPerDocument <= 0 || taxableItems.size() <= maxLinesPerDocument) {
+            addDocument(documents, accountTaxContext, newInvoice, invoice, taxableItems, adjustmentItems, originalInvoiceReferenceCode, quotation, taxRequestContext, vertexApiClient, kbTenantId, 1);
+            return;
+        }
+
+        logger.info("Splitting {} taxable items of invoiceId='{}' into documents of {} lines", taxableItems.size(), invoice.getId(), maxLinesPerDocument);
+        long firstLineNumber = 1;
+        for (final List<InvoiceItem> chunk : Iterables.partition(taxableItems.values(), maxLinesPerDocument)) {
+            final Map<UUID, InvoiceItem> chunkTaxableItems = new LinkedHashMap<>();
+            final Map<UUID, List<InvoiceItem>> chunkAdjustmentItems = adjustmentItems == null ? null : new HashMap<>();
+            for (final InvoiceItem taxableItem : chunk) {
+                chunkTaxableItems.put(taxableItem.getId(), taxableItem);
+                if (adjustmentItems != null && adjustmentItems.containsKey(taxableItem.getId())) {
+                    chunkAdjustmentItems.put(taxableItem.getId(), adjustmentItems.get(taxableItem.getId()));
+                }
+            }
+            addDocument(documents, accountTaxContext, newInvoice, invoice, chunkTaxableItems, chunkAdjustmentItems, originalInvoiceReferenceCode, quotation, taxRequestContext, vertexApiClient, kbTenantId, firstLineNumber);
+            firstLineNumber += chunk.size();
+        }
+    }
+
+    private void addDocument(final Collection<TaxDocument> documents,
+                             final AccountTaxContext accountTaxContext,
+                             final Invoice newInvoice,
+                             final Invoice invoice,
+                             final Map<UUID, InvoiceItem> taxableItems,
+                             @Nullable final Map<UUID, List<InvoiceItem>> adjustmentItems,
+                             @Nullable final String originalInvoiceReferenceCode,
+                             final boolean quotation,
+                             final TaxRequestContext taxRequestContext,
+                             final VertexApiClient vertexApiClient,
+                             final UUID kbTenantId,
+                             final long firstLineNumber) {
         // Keep track of the invoice items and adjustments we've already taxed
         final Map<UUID, Iterable<InvoiceItem>> kbInvoiceItems = new HashMap<>();
         if (adjustmentItems != null) {
@@ -205,94 +358,375 @@ public class VertexTaxCalculator extends PluginTaxCalculator {
         // Don't use clock.getUTCToday(), see https://github.com/killbill/killbill-platform/issues/4
         final LocalDate taxItemsDate = newInvoice.getInvoiceDate();
 
-        return buildInvoiceItems(account,
-                                 newInvoice,
-                                 invoice,
-                                 taxableItems,
-                                 adjustmentItems,
-                                 originalInvoiceReferenceCode,
-                                 dryRun,
-                                 pluginProperties,
-                                 kbTenantId,
-                                 kbInvoiceItems,
-                                 taxItemsDate);
-    }
-
-    private Collection<InvoiceItem> buildInvoiceItems(final Account account,
-                                                      final Invoice newInvoice,
-                                                      final Invoice invoice,
-                                                      final Map<UUID, InvoiceItem> taxableItems,
-                                                      @Nullable final Map<UUID, List<InvoiceItem>> adjustmentItems,
-                                                      @Nullable final String originalInvoiceReferenceCode,
-                                                      final boolean dryRun,
-                                                      final Iterable<PluginProperty> pluginProperties,
-                                                      final UUID kbTenantId,
-                                                      final Map<UUID, Iterable<InvoiceItem>> kbInvoiceItems,
-                                                      final LocalDate taxItemsDate) throws ApiException, SQLException {
-        final VertexApiClient vertexApiClient = vertexApiConfigurationHandler.getConfigurable(kbTenantId);
-
-        final SaleRequestType taxRequest = toTaxRequest(account,
+        final SaleRequestType taxRequest = toTaxRequest(accountTaxContext,
                                                         invoice,
                                                         taxableItems.values(),
                                                         adjustmentItems,
                                                         originalInvoiceReferenceCode,
-                                                        dryRun,
-                                                        pluginProperties,
+                                                        quotation,
+                                                        taxRequestContext,
                                                         taxItemsDate,
-                                                        vertexApiClient.getCompanyName(),
-                                                        vertexApiClient.shouldSkipAnomalousAdjustments());
+                                                        firstLineNumber,
+                                                        vertexApiClient,
+                                                        kbTenantId);
+        if (taxRequest != null) {
+            final String requestFingerprint = QuoteCache.computeFingerprint(taxRequest);
+            setDocumentIds(taxRequest, newInvoice.getId(), adjustmentItems, requestFingerprint);
+            documents.add(new TaxDocument(invoice, taxableItems, adjustmentItems, kbInvoiceItems, taxRequest, requestFingerprint));
+        }
+    }
 
-        if (taxRequest == null) {
+    /**
+     * The transaction id and document number are derived from the new invoice and the content of the document (items, amounts,
+     * dates, addresses), and from the adjustment items for return documents (identical refunds of the same original invoice
+     * are distinct documents): a retry of the same document reuses them, instead of creating a new Vertex transaction.
+     */
+    private static void setDocumentIds(final SaleRequestType taxRequest,
+                                       final UUID kbInvoiceId,
+                                       @Nullable final Map<UUID, List<InvoiceItem>> adjustmentItems,
+                                       @Nullable final String requestFingerprint) {
+        final String documentHash;
+        if (requestFingerprint == null) {
+            // Not expected: fall back to random ids
+            documentHash = UUID.randomUUID().toString().replace("-", "");
+        } else {
+            final StringBuilder documentKey = new StringBuilder().append(kbInvoiceId).append(":").append(requestFingerprint);
+            if (adjustmentItems != null) {
+                final List<String> adjustmentItemIds = new ArrayList<>();
+                for (final List<InvoiceItem> items : adjustmentItems.values()) {
+                    for (final InvoiceItem item : items) {
+                        adjustmentItemIds.add(item.getId().toString());
+                    }
+                }
+                Collections.sort(adjustmentItemIds);
+                documentKey.append(":").append(String.join(",", adjustmentItemIds));
+            }
+            documentHash = Hashing.sha256().hashString(documentKey, StandardCharsets.UTF_8).toString();
+        }
+
+        // We overload this field to keep a mapping with the Kill Bill invoice
+        taxRequest.setTransactionId(KB_TRANSACTION_PREFIX + documentHash.substring(0, 32));
+        // Considering there could be multiple documents for same invoice, using the document hash in addition to invoice_id
+        taxRequest.setDocumentNumber(String.format("%s_%s", kbInvoiceId, documentHash.substring(0, 12)));
+    }
+
+    /**
+     * Send all documents concurrently (up to maxConcurrentDocuments at a time), within a single deadline.
+     * Responses are processed in document order, so the tax items returned don't depend on Vertex response times.
+     */
+    private List<InvoiceItem> calculateTaxes(final AccountTaxContext accountTaxContext,
+                                             final Invoice newInvoice,
+                                             final List<TaxDocument> documents,
+                                             final boolean dryRun,
+                                             final boolean quoteThenPost,
+                                             final VertexApiClient vertexApiClient,
+                                             final TenantContext tenantContext) throws Exception {
+        if (documents.isEmpty()) {
             return ImmutableList.of();
         }
 
-        logger.info("CreateTransaction req: {}", taxRequest);
+        final UUID kbTenantId = tenantContext.getTenantId();
+        final AsyncRequestLimiter documentsLimiter = new AsyncRequestLimiter(vertexApiClient.getMaxConcurrentDocuments());
+        // Set when giving up on the invoice, so queued documents aren't sent anymore
+        final AtomicBoolean aborted = new AtomicBoolean(false);
+        final CompletableFuture<Void> firstFailure = new CompletableFuture<>();
+        final List<CompletableFuture<ApiSuccessResponseTransactionResponseType>> taxResults = new ArrayList<>(documents.size());
+        // Stored responses are matched on their request
+        final Map<String, List<VertexResponsesRecord>> storedResponses = getStoredResponses(accountTaxContext, documents, dryRun, kbTenantId);
+        // Whether the invoices of the stored responses were committed, by invoice id
+        final Map<String, Boolean> committedInvoices = new HashMap<>();
+        // Documents whose response is already stored, with that response
+        final Map<TaxDocument, VertexResponsesRecord> replayedDocuments = new HashMap<>();
+        // Documents answered from the quote cache
+        final Set<TaxDocument> cachedDocuments = new HashSet<>();
+        for (final TaxDocument document : documents) {
+            final String requestFingerprint = document.getRequestFingerprint();
+            // Identical previews (and quotes, in quote-then-post mode) are answered from the quote cache
+            final String quoteFingerprint = (dryRun || quoteThenPost) && quoteCache.isEnabled() ? requestFingerprint : null;
+            final ApiSuccessResponseTransactionResponseType cachedQuote = quoteFingerprint == null ? null : quoteCache.get(kbTenantId, quoteFingerprint);
+            if (cachedQuote != null) {
+                logger.info("CreateTransaction req (cached quote): {}", document.getTaxRequest());
+                cachedDocuments.add(document);
+                taxResults.add(CompletableFuture.completedFuture(cachedQuote));
+                continue;
+            }
+
+            // Previews of requests already answered, and documents already sent (e.g. by an attempt whose invoice wasn't
+            // committed), are rebuilt from the stored tax lines
+            final VertexResponsesRecord storedResponse = requestFingerprint == null ? null : findStoredResponse(storedResponses.get(requestFingerprint), newInvoice.getId(), document, committedInvoices, tenantContext);
+            final ApiSuccessResponseTransactionResponseType storedQuote = toStoredQuote(storedResponse);
+            if (storedQuote != null) {
+                logger.info("CreateTransaction req (stored response): {}", document.getTaxRequest());
+                if (quoteFingerprint != null) {
+                    quoteCache.put(kbTenantId, quoteFingerprint, storedQuote);
+                }
+                replayedDocuments.put(document, storedResponse);
+                taxResults.add(CompletableFuture.completedFuture(storedQuote));
+                continue;
+            }
 
+            logger.info("CreateTransaction req: {}", document.getTaxRequest());
+            final CompletableFuture<ApiSuccessResponseTransactionResponseType> taxResult = documentsLimiter.submit(() -> {
+                if (aborted.get()) {
+                    return CompletableFuture.failedFuture(new CancellationException("Tax calculation aborted for invoice " + newInvoice.getId()));
+                }
+                // Previews are shed first under overload, so they don't delay invoice generation
+                return vertexApiClient.calculateTaxesAsync(document.getTaxRequest(), dryRun ? Lane.DRY_RUN : Lane.COMMIT);
+            });
+            if (quoteFingerprint != null) {
+                taxResult.thenAccept(response -> quoteCache.put(kbTenantId, quoteFingerprint, response));
+            }
+            // Fail fast: don't wait for the other documents if one of them fails
+            taxResult.whenComplete((response, throwable) -> {
+                if (throwable != null) {
+                    firstFailure.completeExceptionally(throwable);
+                }
+            });
+            taxResults.add(taxResult);
+        }
+
+        final long timeoutMs = vertexApiClient.getTaxCalculationTimeoutMs();
+        boolean timedOut = false;
         try {
-            final ApiSuccessResponseTransactionResponseType taxResult = vertexApiClient.calculateTaxes(taxRequest);
-            logger.info("CreateTransaction res: {}", taxResult);
-            if (!dryRun) {
-                dao.addResponse(account.getId(), newInvoice.getId(), kbInvoiceItems, taxResult, clock.getUTCNow(), kbTenantId);
+            CompletableFuture.anyOf(CompletableFuture.allOf(taxResults.toArray(new CompletableFuture[0])), firstFailure)
+                             .get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (final ExecutionException ignored) {
+            // Reported below, for the failed document
+        } catch (final TimeoutException e) {
+            timedOut = true;
+        } finally {
+            aborted.set(true);
+        }
+
+        final ImmutableList.Builder<InvoiceItem> newInvoiceItemsBuilder = ImmutableList.builder();
+        final TaxDescriptions taxDescriptions = new TaxDescriptions();
+        Exception failure = null;
+        for (int i = 0; i < documents.size(); i++) {
+            final TaxDocument document = documents.get(i);
+            final CompletableFuture<ApiSuccessResponseTransactionResponseType> taxResult = taxResults.get(i);
+            if (!taxResult.isDone()) {
+                // Timed out, or another document failed
+                taxResult.cancel(false);
+                continue;
             }
 
-            if (taxResult.getData() == null || taxResult.getData().getLineItems() == null ||
-                taxResult.getData().getLineItems().isEmpty()) {
-                logger.info("Nothing to tax for taxable items: {}", kbInvoiceItems.keySet());
-                return ImmutableList.of();
+            try {
+                final Collection<InvoiceItem> invoiceItems = processTaxResult(accountTaxContext, newInvoice, document, dryRun, quoteThenPost, replayedDocuments.get(document), cachedDocuments.contains(document), kbTenantId, taxResult, taxDescriptions);
+                if (failure == null) {
+                    newInvoiceItemsBuilder.addAll(invoiceItems);
+                }
+            } catch (final Exception e) {
+                if (failure == null) {
+                    failure = e;
+                }
             }
+        }
 
-            final Collection<InvoiceItem> invoiceItems = new LinkedList<>();
-            for (final OwnerResponseLineItemType ownerResponseLineItem : taxResult.getData().getLineItems()) {
-                // See convention in toLine() below
-                final UUID invoiceItemId = ownerResponseLineItem.getLineItemId() != null ? UUID.fromString(ownerResponseLineItem.getLineItemId()) : null;
-                final InvoiceItem adjustmentItem;
-                if (adjustmentItems != null &&
-                    invoiceItemId != null &&
-                    adjustmentItems.get(invoiceItemId) != null &&
-                    adjustmentItems.get(invoiceItemId).size() == 1) {
-                    // Could be a repair or an item adjustment: in either case, we use it to compute the service period
-                    adjustmentItem = adjustmentItems.get(invoiceItemId).get(0);
-                } else {
-                    // No repair or multiple adjustments: use the original service period
-                    adjustmentItem = null;
+        if (failure == null && timedOut) {
+            failure = new TimeoutException(String.format("Vertex didn't answer within %sms for invoiceId='%s'", timeoutMs, newInvoice.getId()));
+        }
+        if (failure != null) {
+            throw failure;
+        }
+
+        if (quoteThenPost) {
+            final List<SaleRequestType> quotes = new ArrayList<>(documents.size());
+            for (final TaxDocument document : documents) {
+                quotes.add(document.getTaxRequest());
+            }
+            // Posted by onSuccessCall, once the invoice is committed
+            vertexOutbox.holdTransactions(newInvoice.getId(), quotes, kbTenantId);
+        }
+        return newInvoiceItemsBuilder.build();
+    }
+
+    private Map<String, List<VertexResponsesRecord>> getStoredResponses(final AccountTaxContext accountTaxContext,
+                                                                        final Collection<TaxDocument> documents,
+                                                                        final boolean dryRun,
+                                                                        final UUID kbTenantId) {
+        // Previews are only rebuilt from recent responses, documents are replayed whatever their age
+        final int maxAgeSeconds = dryRun ? quoteCache.getStoredResponsesMaxAgeSeconds() : 0;
+        final Set<String> fingerprints = new HashSet<>();
+        for (final TaxDocument document : documents) {
+            if (document.getRequestFingerprint() != null) {
+                fingerprints.add(document.getRequestFingerprint());
+            }
+        }
+        if ((dryRun && maxAgeSeconds <= 0) || fingerprints.isEmpty()) {
+            return ImmutableMap.of();
+        }
+
+        try {
+            return dao.getSuccessfulResponsesByFingerprint(accountTaxContext.getKbAccountId(),
+                                                           fingerprints,
+                                                           dryRun ? clock.getUTCNow().minusSeconds(maxAgeSeconds) : null,
+                                                           dryRun,
+                                                           kbTenantId);
+        } catch (final SQLException e) {
+            // Vertex is called instead
+            logger.warn("Unable to retrieve the stored responses for kbAccountId='{}'", accountTaxContext.getKbAccountId(), e);
+            return ImmutableMap.of();
+        }
+    }
+
+    /**
+     * @return the most recent of these responses answered for the same items: either for this invoice (and all of the taxable
+     * items of the document), for a preview (only returned for previews), or for an invoice which was never committed (Kill
+     * Bill generates new ids when it tries again). Identical documents of another (committed) invoice of the account are not
+     * matched, nor the responses of uncommitted invoices whose document was replayed since for a committed one.
+     */
+    @Nullable
+    private VertexResponsesRecord findStoredResponse(@Nullable final Iterable<VertexResponsesRecord> storedResponses,
+                                                     final UUID kbInvoiceId,
+                                                     final TaxDocument document,
+                                                     final Map<String, Boolean> committedInvoices,
+                                                     final TenantContext tenantContext) {
+        if (storedResponses == null) {
+            return null;
+        }
+        // Documents of the responses already considered (most recent first), which belong to another invoice
+        final Set<String> claimedDocCodes = new HashSet<>();
+        for (final VertexResponsesRecord storedResponse : storedResponses) {
+            if (kbInvoiceId.toString().equals(storedResponse.getKbInvoiceId())) {
+                if (dao.getTaxedItemsWithAdjustments(ImmutableList.of(storedResponse)).keySet().containsAll(document.getTaxableItems().keySet())) {
+                    return storedResponse;
                 }
-                invoiceItems.addAll(toInvoiceItems(newInvoice.getId(), taxableItems.get(invoiceItemId), ownerResponseLineItem, adjustmentItem));
+            } else if (VertexDao.isPreviewResponse(storedResponse)) {
+                return storedResponse;
+            } else if (isCommitted(storedResponse.getKbInvoiceId(), committedInvoices, tenantContext)) {
+                claimedDocCodes.add(storedResponse.getDocCode());
+            } else if (!claimedDocCodes.contains(storedResponse.getDocCode())) {
+                return storedResponse;
             }
+        }
+        return null;
+    }
 
-            return invoiceItems;
-        } catch (final ApiException e) {
-            if (e.getResponseBody() != null) {
-                dao.addResponse(account.getId(), invoice.getId(), kbInvoiceItems, e.getResponseBody(), clock.getUTCNow(), kbTenantId);
-                logger.warn("CreateTransaction res: {}", e.getResponseBody());
+    private boolean isCommitted(@Nullable final String kbInvoiceId, final Map<String, Boolean> committedInvoices, final TenantContext tenantContext) {
+        if (kbInvoiceId == null) {
+            // Not expected: don't reuse it
+            return true;
+        }
+        return committedInvoices.computeIfAbsent(kbInvoiceId, k -> {
+            try {
+                return osgiKillbillAPI.getInvoiceUserApi().getInvoice(UUID.fromString(kbInvoiceId), tenantContext) != null;
+            } catch (final InvoiceApiException e) {
+                if (e.getCode() == ErrorCode.INVOICE_NOT_FOUND.getCode()) {
+                    return false;
+                }
+                logger.warn("Unable to retrieve invoiceId='{}', not reusing its responses", kbInvoiceId, e);
+                return true;
+            }
+        });
+    }
+
+    @Nullable
+    private ApiSuccessResponseTransactionResponseType toStoredQuote(@Nullable final VertexResponsesRecord storedResponse) {
+        if (storedResponse == null) {
+            return null;
+        }
+        final List<OwnerResponseLineItemType> taxLines = dao.getTaxLines(storedResponse);
+        if (taxLines == null) {
+            return null;
+        }
+
+        final ApiSuccessResponseTransactionResponseTypeData data = new ApiSuccessResponseTransactionResponseTypeData();
+        data.setLineItems(taxLines);
+        final ApiSuccessResponseTransactionResponseType storedQuote = new ApiSuccessResponseTransactionResponseType();
+        storedQuote.setData(data);
+        return storedQuote;
+    }
+
+    private Collection<InvoiceItem> processTaxResult(final AccountTaxContext accountTaxContext,
+                                                     final Invoice newInvoice,
+                                                     final TaxDocument document,
+                                                     final boolean dryRun,
+                                                     final boolean quoteThenPost,
+                                                     @Nullable final VertexResponsesRecord replayedResponse,
+                                                     final boolean cachedQuote,
+                                                     final UUID kbTenantId,
+                                                     final CompletableFuture<ApiSuccessResponseTransactionResponseType> futureTaxResult,
+                                                     final TaxDescriptions taxDescriptions) throws Exception {
+        final ApiSuccessResponseTransactionResponseType taxResult;
+        try {
+            taxResult = futureTaxResult.join();
+        } catch (final CompletionException | CancellationException e) {
+            final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof ApiException && ((ApiException) cause).getResponseBody() != null) {
+                dao.addResponse(accountTaxContext.getKbAccountId(), document.getInvoice().getId(), document.getKbInvoiceItems(), ((ApiException) cause).getResponseBody(), clock.getUTCNow(), kbTenantId);
+                logger.warn("CreateTransaction res: {}", ((ApiException) cause).getResponseBody());
+            }
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
             }
             throw e;
         }
+
+        logger.info("CreateTransaction res: {}", taxResult);
+        if (replayedResponse != null) {
+            logger.info("Replayed stored response for document {}", document.getTaxRequest().getDocumentNumber());
+            if (!dryRun) {
+                // Stored again for this invoice and its items: the document is either the one already sent, or posted once the invoice is committed
+                dao.addReplayedResponse(newInvoice.getId(), document.getKbInvoiceItems(), replayedResponse.getRecordId(), quoteThenPost ? document.getTaxRequest().getDocumentNumber() : null, clock.getUTCNow(), kbTenantId);
+            }
+        } else if (quoteThenPost) {
+            // The quote may come from the cache: use the document number the transaction will be posted with
+            dao.addResponse(accountTaxContext.getKbAccountId(), newInvoice.getId(), document.getKbInvoiceItems(), taxResult, document.getTaxRequest().getDocumentNumber(), document.getRequestFingerprint(), clock.getUTCNow(), kbTenantId);
+        } else if (!dryRun) {
+            dao.addResponse(accountTaxContext.getKbAccountId(), newInvoice.getId(), document.getKbInvoiceItems(), taxResult, null, document.getRequestFingerprint(), clock.getUTCNow(), kbTenantId);
+        } else if (!cachedQuote && document.getRequestFingerprint() != null && quoteCache.getStoredResponsesMaxAgeSeconds() > 0) {
+            // For identical previews (e.g. on another node) to be rebuilt from it
+            try {
+                dao.addPreviewResponse(accountTaxContext.getKbAccountId(), newInvoice.getId(), document.getKbInvoiceItems(), taxResult, document.getRequestFingerprint(), clock.getUTCNow(), kbTenantId);
+            } catch (final SQLException e) {
+                logger.warn("Unable to store the preview response for invoiceId='{}'", newInvoice.getId(), e);
+            }
+        }
+
+        if (taxResult.getData() == null || taxResult.getData().getLineItems() == null ||
+            taxResult.getData().getLineItems().isEmpty()) {
+            logger.info("Nothing to tax for taxable items: {}", document.getKbInvoiceItems().keySet());
+            return ImmutableList.of();
+        }
+
+        // Cached and stored responses may have been answered for other (identical) items: lines are matched on their number
+        final Map<Long, UUID> invoiceItemIdsByLineNumber = new HashMap<>();
+        for (final SaleRequestLineItemType requestLineItem : document.getTaxRequest().getLineItems()) {
+            invoiceItemIdsByLineNumber.put(requestLineItem.getLineItemNumber(), UUID.fromString(requestLineItem.getLineItemId()));
+        }
+
+        final Map<UUID, List<InvoiceItem>> adjustmentItems = document.getAdjustmentItems();
+        final Collection<InvoiceItem> invoiceItems = new LinkedList<>();
+        for (final OwnerResponseLineItemType ownerResponseLineItem : taxResult.getData().getLineItems()) {
+            // See convention in toLine() below
+            final UUID invoiceItemId;
+            if (invoiceItemIdsByLineNumber.containsKey(ownerResponseLineItem.getLineItemNumber())) {
+                invoiceItemId = invoiceItemIdsByLineNumber.get(ownerResponseLineItem.getLineItemNumber());
+            } else {
+                invoiceItemId = ownerResponseLineItem.getLineItemId() != null ? UUID.fromString(ownerResponseLineItem.getLineItemId()) : null;
+            }
+            final InvoiceItem adjustmentItem;
+            if (adjustmentItems != null &&
+                invoiceItemId != null &&
+                adjustmentItems.get(invoiceItemId) != null &&
+                adjustmentItems.get(invoiceItemId).size() == 1) {
+                // Could be a repair or an item adjustment: in either case, we use it to compute the service period
+                adjustmentItem = adjustmentItems.get(invoiceItemId).get(0);
+            } else {
+                // No repair or multiple adjustments: use the original service period
+                adjustmentItem = null;
+            }
+            invoiceItems.addAll(toInvoiceItems(newInvoice.getId(), document.getTaxableItems().get(invoiceItemId), ownerResponseLineItem, adjustmentItem, taxDescriptions));
+        }
+
+        return invoiceItems;
     }
 
     private Collection<InvoiceItem> toInvoiceItems(final UUID invoiceId,
                                                    final InvoiceItem taxableItem,
                                                    final OwnerResponseLineItemType transactionLineModel,
-                                                   @Nullable final InvoiceItem adjustmentItem) {
+                                                   @Nullable final InvoiceItem adjustmentItem,
+                                                   final TaxDescriptions taxDescriptions) {
         if (transactionLineModel.getTaxes() == null || transactionLineModel.getTaxes().isEmpty()) {
             final BigDecimal totalTax = transactionLineModel.getTotalTax() != null ? BigDecimal.valueOf(transactionLineModel.getTotalTax()) : null;
             final InvoiceItem taxItem = buildTaxItem(taxableItem, invoiceId, adjustmentItem, totalTax, "Tax");
@@ -302,9 +736,9 @@ public class VertexTaxCalculator extends PluginTaxCalculator {
                 return ImmutableList.of(taxItem);
             }
         } else {
-            final Collection<InvoiceItem> invoiceItems = new LinkedList<>();
+            final Collection<InvoiceItem> invoiceItems = new ArrayList<>(transactionLineModel.getTaxes().size());
             for (final TaxesType transactionLineDetailModel : transactionLineModel.getTaxes()) {
-                final String description = getTaxDescription(transactionLineDetailModel);
+                final String description = taxDescriptions.get(transactionLineDetailModel);
                 final BigDecimal calculatedTax = transactionLineDetailModel.getCalculatedTax() != null ? BigDecimal.valueOf(transactionLineDetailModel.getCalculatedTax()) : null;
                 final InvoiceItem taxItem = createTaxInvoiceItem(taxableItem, invoiceId, adjustmentItem, calculatedTax, description, transactionLineDetailModel.getEffectiveRate());
                 if (taxItem != null) {
@@ -315,110 +749,125 @@ public class VertexTaxCalculator extends PluginTaxCalculator {
         }
     }
 
+    // Same as buildTaxItem, with the taxRate and parentItemId item details: the tax item is built in one go
     private InvoiceItem createTaxInvoiceItem(final InvoiceItem taxableItem, final UUID invoiceId, @Nullable final InvoiceItem adjustmentItem, final BigDecimal calculatedTax, @Nullable final String description, @Nullable Double taxRate) {
-        final InvoiceItem taxItem = buildTaxItem(taxableItem, invoiceId, adjustmentItem, calculatedTax, description);
-        if (taxItem == null) {
+        if (calculatedTax == null || BigDecimal.ZERO.compareTo(calculatedTax) == 0) {
             return null;
         }
 
+        final UUID taxItemId = UUID.randomUUID();
         if (taxRate == null) {
-            logger.warn("The tax rate is not provided in the Vertex response for the tax item with ID: {} and calculated tax: {}", taxItem.getId(), calculatedTax);
+            logger.warn("The tax rate is not provided in the Vertex response for the tax item with ID: {} and calculated tax: {}", taxItemId, calculatedTax);
             taxRate = calculatedTax.divide(taxableItem.getAmount(), 5, RoundingMode.FLOOR).doubleValue();
         }
 
         final String parentItemID = adjustmentItem == null ? taxableItem.getId().toString() : adjustmentItem.getId().toString();
-        final Map<String, Object> additionalDetails = ImmutableMap.of("taxRate", taxRate, "parentItemId", parentItemID);
-        final String taxItemDetails = appendItemDetails(taxItem.getItemDetails(), additionalDetails);
-
-        return new PluginInvoiceItem(new Builder<>()
-                                             .withId(taxItem.getId())
-                                             .withInvoiceItemType(taxItem.getInvoiceItemType())
-                                             .withInvoiceId(taxItem.getInvoiceId())
-                                             .withAccountId(taxItem.getAccountId())
-                                             .withChildAccountId(taxItem.getChildAccountId())
-                                             .withStartDate(taxItem.getStartDate())
-                                             .withEndDate(taxItem.getEndDate())
-                                             .withAmount(taxItem.getAmount())
-                                             .withCurrency(taxItem.getCurrency())
-                                             .withDescription(taxItem.getDescription())
-                                             .withSubscriptionId(taxItem.getSubscriptionId())
-                                             .withBundleId(taxItem.getBundleId())
-                                             .withCatalogEffectiveDate(taxItem.getCatalogEffectiveDate())
-                                             .withProductName(taxItem.getProductName())
-                                             .withPrettyProductName(taxItem.getPrettyProductName())
-                                             .withPlanName(taxItem.getPlanName())
-                                             .withPrettyPlanName(taxItem.getPrettyPlanName())
-                                             .withPhaseName(taxItem.getPhaseName())
-                                             .withPrettyPhaseName(taxItem.getPrettyPhaseName())
-                                             .withRate(taxItem.getRate())
-                                             .withLinkedItemId(taxItem.getLinkedItemId())
-                                             .withUsageName(taxItem.getUsageName())
-                                             .withPrettyUsageName(taxItem.getPrettyUsageName())
-                                             .withQuantity(taxItem.getQuantity())
-                                             .withItemDetails(taxItemDetails)
-                                             .withCreatedDate(taxItem.getCreatedDate())
-                                             .withUpdatedDate(taxItem.getUpdatedDate())
-                                             .validate().build());
+        final String taxItemDetails = appendItemDetails(taxableItem.getItemDetails(), taxRate, parentItemID);
+
+        return new Builder<>()
+                .withId(taxItemId)
+                .withInvoiceItemType(InvoiceItemType.TAX)
+                .withInvoiceId(invoiceId)
+                .withAccountId(taxableItem.getAccountId())
+                .withChildAccountId(taxableItem.getChildAccountId())
+                .withStartDate(adjustmentItem == null ? taxableItem.getStartDate() : adjustmentItem.getStartDate())
+                .withEndDate(adjustmentItem == null ? taxableItem.getEndDate() : adjustmentItem.getEndDate())
+                .withAmount(calculatedTax)
+                .withCurrency(taxableItem.getCurrency())
+                .withDescription(MoreObjects.firstNonNull(description, "Tax"))
+                .withSubscriptionId(taxableItem.getSubscriptionId())
+                .withBundleId(taxableItem.getBundleId())
+                .withCatalogEffectiveDate(taxableItem.getCatalogEffectiveDate())
+                .withProductName(taxableItem.getProductName())
+                .withPrettyProductName(taxableItem.getPrettyProductName())
+                .withPlanName(taxableItem.getPlanName())
+                .withPrettyPlanName(taxableItem.getPrettyPlanName())
+                .withPhaseName(taxableItem.getPhaseName())
+                .withPrettyPhaseName(taxableItem.getPrettyPhaseName())
+                .withRate(taxableItem.getRate())
+                .withLinkedItemId(taxableItem.getId())
+                .withUsageName(taxableItem.getUsageName())
+                .withPrettyUsageName(taxableItem.getPrettyUsageName())
+                .withQuantity(taxableItem.getQuantity())
+                .withItemDetails(taxItemDetails)
+                .withCreatedDate(taxableItem.getCreatedDate())
+                .withUpdatedDate(taxableItem.getUpdatedDate())
+                .validate().build();
     }
 
-    private String appendItemDetails(@Nullable final String itemDetails, @Nonnull final Map<String, Object> additionalDetails) {
-        ObjectNode existingItemsDetailsJson = null;
-
-        if (itemDetails != null && !itemDetails.isEmpty()) {
-            try {
-                final JsonNode jsonNode = objectMapper.readTree(itemDetails);
-                if (!jsonNode.isObject()) {
-                    return itemDetails;
+    /**
+     * Add (or replace) the taxRate and parentItemId fields to the item details of the taxable item.
+     * The existing details are streamed through, without building a JSON tree.
+     */
+    private String appendItemDetails(@Nullable final String itemDetails, final double taxRate, final String parentItemId) {
+        final StringWriter writer = new StringWriter(itemDetails == null ? 64 : itemDetails.length() + 64);
+        try (final JsonGenerator generator = objectMapper.getFactory().createGenerator(writer)) {
+            generator.writeStartObject();
+            boolean hasTaxRate = false;
+            boolean hasParentItemId = false;
+            if (itemDetails != null && !itemDetails.isEmpty()) {
+                try (final JsonParser parser = objectMapper.getFactory().createParser(itemDetails)) {
+                    if (parser.nextToken() != JsonToken.START_OBJECT) {
+                        return itemDetails;
+                    }
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        final String fieldName = parser.getCurrentName();
+                        parser.nextToken();
+                        // Replaced values keep their position, as with ObjectNode#put
+                        if (TAX_RATE_DETAIL.equals(fieldName)) {
+                            generator.writeNumberField(TAX_RATE_DETAIL, taxRate);
+                            hasTaxRate = true;
+                            parser.skipChildren();
+                        } else if (PARENT_ITEM_ID_DETAIL.equals(fieldName)) {
+                            generator.writeStringField(PARENT_ITEM_ID_DETAIL, parentItemId);
+                            hasParentItemId = true;
+                            parser.skipChildren();
+                        } else {
+                            generator.writeFieldName(fieldName);
+                            generator.copyCurrentStructure(parser);
+                        }
+                    }
                 }
-                existingItemsDetailsJson =  (ObjectNode) jsonNode;
-            } catch (JsonProcessingException e) {
-                logger.error("Couldn't deserialize the item details: {}", itemDetails, e);
-                return itemDetails;
             }
-        }
-
-        final Object itemDetailsWithAdditionalInfo;
-        if (existingItemsDetailsJson != null) {
-            for(Map.Entry<String, Object> detail : additionalDetails.entrySet()) {
-                existingItemsDetailsJson.putPOJO(detail.getKey(), detail.getValue());
+            if (!hasTaxRate) {
+                generator.writeNumberField(TAX_RATE_DETAIL, taxRate);
             }
-            itemDetailsWithAdditionalInfo = existingItemsDetailsJson;
-        } else {
-            itemDetailsWithAdditionalInfo = additionalDetails;
-        }
-
-        try {
-            return objectMapper.writeValueAsString(itemDetailsWithAdditionalInfo);
-        } catch (JsonProcessingException exception) {
-            logger.error("Couldn't serialize the tax item_details {} with additional info: {}", itemDetailsWithAdditionalInfo, additionalDetails, exception);
+            if (!hasParentItemId) {
+                generator.writeStringField(PARENT_ITEM_ID_DETAIL, parentItemId);
+            }
+            generator.writeEndObject();
+        } catch (final IOException e) {
+            logger.error("Couldn't add taxRate={} and parentItemId={} to the item details: {}", taxRate, parentItemId, itemDetails, e);
             return itemDetails;
         }
+        return writer.toString();
     }
 
-    private String getTaxDescription(final TaxesType transactionLineDetailModel) {
+    private static String getTaxDescription(final TaxesType transactionLineDetailModel) {
         final Jurisdiction jurisdiction = transactionLineDetailModel.getJurisdiction();
         return jurisdiction != null
                ? String.format("%s %s TAX", jurisdiction.getValue(), jurisdiction.getJurisdictionType())
                : MoreObjects.firstNonNull(transactionLineDetailModel.getTaxCode(), MoreObjects.firstNonNull(transactionLineDetailModel.getVertexTaxCode(), "Tax"));
     }
 
-    private SaleRequestType toTaxRequest(final Account account,
+    private SaleRequestType toTaxRequest(final AccountTaxContext accountTaxContext,
                                          final Invoice invoice,
                                          final Collection<InvoiceItem> taxableItems,
                                          @Nullable final Map<UUID, List<InvoiceItem>> adjustmentItems,
                                          @Nullable final String originalInvoiceReferenceCode,
-                                         final boolean dryRun,
-                                         final Iterable<PluginProperty> pluginProperties,
+                                         final boolean quotation,
+                                         final TaxRequestContext taxRequestContext,
                                          final LocalDate taxItemsDate,
-                                         final String companyName,
-                                         final boolean skipAnomalousAdjustments) {
+                                         final long firstLineNumber,
+                                         final VertexApiClient vertexApiClient,
+                                         final UUID kbTenantId) {
 
         try {
             Preconditions.checkState((originalInvoiceReferenceCode == null && (adjustmentItems == null || adjustmentItems.isEmpty())) ||
                                      (originalInvoiceReferenceCode != null && (adjustmentItems != null && !adjustmentItems.isEmpty())),
                                      "Invalid combination of originalInvoiceReferenceCode %s and adjustments %s", originalInvoiceReferenceCode, adjustmentItems);
         } catch (IllegalStateException e) {
-            if (skipAnomalousAdjustments) {
+            if (vertexApiClient.shouldSkipAnomalousAdjustments()) {
                 logger.warn("Ignoring tax request due to inconsistent adjustments: originalInvoiceReferenceCode={}, adjustmentItems={}", originalInvoiceReferenceCode, adjustmentItems);
                 return null;
             } else {
@@ -431,7 +880,7 @@ public class VertexTaxCalculator extends PluginTaxCalculator {
 
         final SaleRequestType taxRequest = new SaleRequestType();
 
-        if (dryRun) {
+        if (quotation) {
             taxRequest.setSaleMessageType(SaleMessageTypeEnum.QUOTATION);
         } else {
             taxRequest.setSaleMessageType(SaleMessageTypeEnum.INVOICE);
@@ -439,12 +888,7 @@ public class VertexTaxCalculator extends PluginTaxCalculator {
 
         taxRequest.setTransactionType(SaleTransactionTypeEnum.SALE);
 
-        // We overload this field to keep a mapping with the Kill Bill invoice
-        taxRequest.setTransactionId(KB_TRANSACTION_PREFIX + UUID.randomUUID());
-
-        // Considering there could be multiple documents for same invoice, using random string in addition to invoice_id
-        String docNumber = String.format("%s_%s", invoice.getId().toString(), UUID.randomUUID().toString().substring(0, 12));
-        taxRequest.setDocumentNumber(docNumber);
+        // The transaction id and document number are set once the document is built, see setDocumentIds()
 
         taxRequest.setDocumentDate(java.time.LocalDate.of(invoice.getInvoiceDate().getYear(), invoice.getInvoiceDate().getMonthOfYear(), invoice.getInvoiceDate().getDayOfMonth()));
         taxRequest.setPostingDate(java.time.LocalDate.of(taxItemsDate.getYear(), taxItemsDate.getMonthOfYear(), taxItemsDate.getDayOfMonth()));
@@ -453,17 +897,17 @@ public class VertexTaxCalculator extends PluginTaxCalculator {
         currencyType.setIsoCurrencyCodeAlpha(invoice.getCurrency().name());
         taxRequest.setCurrency(currencyType);
 
-        taxRequest.setCustomer(buildCustomer(account, pluginProperties));
-        taxRequest.setSeller(buildSeller(pluginProperties, companyName));
+        taxRequest.setCustomer(buildCustomer(accountTaxContext, taxRequestContext, vertexApiClient, kbTenantId));
+        taxRequest.setSeller(buildSeller(taxRequestContext, vertexApiClient.getCompanyName()));
 
         List<SaleRequestLineItemType> lineItemList = new ArrayList<>();
 
-        long lineNumber = 1;
+        long lineNumber = firstLineNumber;
         for (InvoiceItem invoiceItem : taxableItems) {
             lineItemList.add(toLine(invoiceItem,
                                     adjustmentItems == null ? null : adjustmentItems.get(invoiceItem.getId()),
                                     invoice.getInvoiceDate(),
-                                    pluginProperties, lineNumber));
+                                    taxRequestContext, lineNumber));
             lineNumber++;
         }
 
@@ -472,54 +916,56 @@ public class VertexTaxCalculator extends PluginTaxCalculator {
         return taxRequest;
     }
 
-    private SellerType buildSeller(final Iterable<PluginProperty> pluginProperties, final String companyName) {
+    private SellerType buildSeller(final TaxRequestContext taxRequestContext, final String companyName) {
         final SellerType sellerType = new SellerType();
 
         sellerType.setCompany(companyName);
-        sellerType.setDivision(PluginProperties.findPluginPropertyValue(SELLER_DIVISION, pluginProperties));
+        sellerType.setDivision(taxRequestContext.getPropertyValue(SELLER_DIVISION));
 
-        final String sellerCountry = PluginProperties.findPluginPropertyValue(SELLER_COUNTRY, pluginProperties);
+        final String sellerCountry = taxRequestContext.getPropertyValue(SELLER_COUNTRY);
         if (sellerCountry != null) { //country is required field
-            sellerType.setPhysicalOrigin(buildSellerAddress(pluginProperties));
+            sellerType.setPhysicalOrigin(buildSellerAddress(taxRequestContext));
         }
 
         return sellerType;
     }
 
-    private LocationType buildSellerAddress(final Iterable<PluginProperty> pluginProperties) {
+    private LocationType buildSellerAddress(final TaxRequestContext taxRequestContext) {
         final LocationType sellerAddress = new LocationType();
 
-        sellerAddress.setStreetAddress1(PluginProperties.findPluginPropertyValue(SELLER_ADDRESS1, pluginProperties));
-        sellerAddress.setStreetAddress2(PluginProperties.findPluginPropertyValue(SELLER_ADDRESS2, pluginProperties));
-        sellerAddress.setCity(PluginProperties.findPluginPropertyValue(SELLER_CITY, pluginProperties));
-        sellerAddress.setMainDivision(PluginProperties.findPluginPropertyValue(SELLER_REGION, pluginProperties));
-        sellerAddress.setPostalCode(PluginProperties.findPluginPropertyValue(SELLER_POSTAL_CODE, pluginProperties));
-        sellerAddress.setCountry(PluginProperties.findPluginPropertyValue(SELLER_COUNTRY, pluginProperties));
+        sellerAddress.setStreetAddress1(taxRequestContext.getPropertyValue(SELLER_ADDRESS1));
+        sellerAddress.setStreetAddress2(taxRequestContext.getPropertyValue(SELLER_ADDRESS2));
+        sellerAddress.setCity(taxRequestContext.getPropertyValue(SELLER_CITY));
+        sellerAddress.setMainDivision(taxRequestContext.getPropertyValue(SELLER_REGION));
+        sellerAddress.setPostalCode(taxRequestContext.getPropertyValue(SELLER_POSTAL_CODE));
+        sellerAddress.setCountry(taxRequestContext.getPropertyValue(SELLER_COUNTRY));
 
         return sellerAddress;
     }
 
-    private CustomerType buildCustomer(final Account account, final Iterable<PluginProperty> pluginProperties) {
+    private CustomerType buildCustomer(final AccountTaxContext accountTaxContext, final TaxRequestContext taxRequestContext, final VertexApiClient vertexApiClient, final UUID kbTenantId) {
         final CustomerType customerType = new CustomerType();
 
-        final LocationType customerDestination = toAddress(account, pluginProperties);
+        final LocationType customerDestination = toAddress(accountTaxContext, taxRequestContext);
+        // Vertex doesn't need to geocode addresses already resolved
+        customerDestination.setTaxAreaId(taxAreaCache.getTaxAreaId(kbTenantId, customerDestination, vertexApiClient));
         customerType.setDestination(customerDestination);
 
         final CustomerCodeType code = new CustomerCodeType();
-        code.setValue(MoreObjects.firstNonNull(account.getExternalKey(), account.getId()).toString());
+        code.setValue(accountTaxContext.getCustomerCode());
         customerType.setCustomerCode(code);
 
-        customerType.setTaxRegistrations(buildCustomerTaxRegistrations(pluginProperties));
+        customerType.setTaxRegistrations(buildCustomerTaxRegistrations(taxRequestContext));
 
         return customerType;
     }
 
-    private List<TaxRegistrationType> buildCustomerTaxRegistrations(final Iterable<PluginProperty> pluginProperties) {
+    private List<TaxRegistrationType> buildCustomerTaxRegistrations(final TaxRequestContext taxRequestContext) {
         final TaxRegistrationType taxRegistration = new TaxRegistrationType();
 
         taxRegistration.setHasPhysicalPresenceIndicator(true);
-        taxRegistration.setIsoCountryCode(PluginProperties.findPluginPropertyValue(LOCATION_COUNTRY, pluginProperties));
-        taxRegistration.setTaxRegistrationNumber(PluginProperties.findPluginPropertyValue(TAX_REGISTRATION_NUMBER, pluginProperties));
+        taxRegistration.setIsoCountryCode(taxRequestContext.getPropertyValue(LOCATION_COUNTRY));
+        taxRegistration.setTaxRegistrationNumber(taxRequestContext.getPropertyValue(TAX_REGISTRATION_NUMBER));
 
         return Collections.singletonList(taxRegistration);
     }
@@ -527,18 +973,18 @@ public class VertexTaxCalculator extends PluginTaxCalculator {
     private SaleRequestLineItemType toLine(final InvoiceItem taxableItem,
                                            @Nullable final Iterable<InvoiceItem> adjustmentItems,
                                            @Nullable final LocalDate originalInvoiceDate,
-                                           final Iterable<PluginProperty> pluginProperties,
+                                           final TaxRequestContext taxRequestContext,
                                            long lineNumber) {
         final SaleRequestLineItemType lineItemModel = new SaleRequestLineItemType();
         lineItemModel.setLineItemId(taxableItem.getId().toString());
         lineItemModel.setLineItemNumber(lineNumber);
-        lineItemModel.setUsageClass(PluginProperties.findPluginPropertyValue(String.format("%s_%s", USAGE_CLASS, taxableItem.getId()), pluginProperties));
+        lineItemModel.setUsageClass(taxRequestContext.getUsageClass(taxableItem.getId()));
         // lineItemModel.setTaxDate(); //set to taxItemsDate if needed
 
         // SKU
         Product product = new Product();
-        product.setProductClass(PluginProperties.findPluginPropertyValue(String.format("%s_%s", TAX_CODE, taxableItem.getId()), pluginProperties));
-        product.setValue(PluginProperties.findPluginPropertyValue(String.format("%s_%s", PRODUCT_VALUE, taxableItem.getId()), pluginProperties));
+        product.setProductClass(taxRequestContext.getTaxCode(taxableItem));
+        product.setValue(taxRequestContext.getProductValue(taxableItem));
         lineItemModel.setProduct(product);
 
         // Compute the amount to tax or the amount to adjust
@@ -573,26 +1019,90 @@ public class VertexTaxCalculator extends PluginTaxCalculator {
         return lineItemModel;
     }
 
-    private LocationType toAddress(final Account account, final Iterable<PluginProperty> pluginProperties) {
+    private LocationType toAddress(final AccountTaxContext accountTaxContext, final TaxRequestContext taxRequestContext) {
+        final String line1 = taxRequestContext.getPropertyValue(LOCATION_ADDRESS1);
+        if (line1 == null) {
+            return accountTaxContext.buildDestination();
+        }
+
         final LocationType addressLocationInfo = new LocationType();
+        addressLocationInfo.setStreetAddress1(line1);
+        addressLocationInfo.setStreetAddress2(taxRequestContext.getPropertyValue(LOCATION_ADDRESS2));
+        addressLocationInfo.setCity(taxRequestContext.getPropertyValue(LOCATION_CITY));
+        addressLocationInfo.setMainDivision(taxRequestContext.getPropertyValue(LOCATION_REGION));
+        addressLocationInfo.setPostalCode(taxRequestContext.getPropertyValue(LOCATION_POSTAL_CODE));
+        addressLocationInfo.setCountry(taxRequestContext.getPropertyValue(LOCATION_COUNTRY));
 
-        final String line1 = PluginProperties.findPluginPropertyValue(LOCATION_ADDRESS1, pluginProperties);
-        if (line1 != null) {
-            addressLocationInfo.setStreetAddress1(line1);
-            addressLocationInfo.setStreetAddress2(PluginProperties.findPluginPropertyValue(LOCATION_ADDRESS2, pluginProperties));
-            addressLocationInfo.setCity(PluginProperties.findPluginPropertyValue(LOCATION_CITY, pluginProperties));
-            addressLocationInfo.setMainDivision(PluginProperties.findPluginPropertyValue(LOCATION_REGION, pluginProperties));
-            addressLocationInfo.setPostalCode(PluginProperties.findPluginPropertyValue(LOCATION_POSTAL_CODE, pluginProperties));
-            addressLocationInfo.setCountry(PluginProperties.findPluginPropertyValue(LOCATION_COUNTRY, pluginProperties));
-        } else {
-            addressLocationInfo.setStreetAddress1(account.getAddress1());
-            addressLocationInfo.setStreetAddress2(account.getAddress2());
-            addressLocationInfo.setCity(account.getCity());
-            addressLocationInfo.setMainDivision(account.getStateOrProvince());
-            addressLocationInfo.setPostalCode(account.getPostalCode());
-            addressLocationInfo.setCountry(account.getCountry());
+        return addressLocationInfo;
+    }
+
+    private static final class TaxDocument {
+
+        // Invoice of the taxable items (the original invoice for a return document)
+        private final Invoice invoice;
+        private final Map<UUID, InvoiceItem> taxableItems;
+        private final Map<UUID, List<InvoiceItem>> adjustmentItems;
+        private final Map<UUID, Iterable<InvoiceItem>> kbInvoiceItems;
+        private final SaleRequestType taxRequest;
+        // Persisted with the response, so that identical previews can be rebuilt from it later on
+        private final String requestFingerprint;
+
+        private TaxDocument(final Invoice invoice,
+                            final Map<UUID, InvoiceItem> taxableItems,
+                            @Nullable final Map<UUID, List<InvoiceItem>> adjustmentItems,
+                            final Map<UUID, Iterable<InvoiceItem>> kbInvoiceItems,
+                            final SaleRequestType taxRequest,
+                            @Nullable final String requestFingerprint) {
+            this.invoice = invoice;
+            this.taxableItems = taxableItems;
+            this.adjustmentItems = adjustmentItems;
+            this.kbInvoiceItems = kbInvoiceItems;
+            this.taxRequest = taxRequest;
+            this.requestFingerprint = requestFingerprint;
         }
 
-        return addressLocationInfo;
+        Invoice getInvoice() {
+            return invoice;
+        }
+
+        Map<UUID, InvoiceItem> getTaxableItems() {
+            return taxableItems;
+        }
+
+        @Nullable
+        Map<UUID, List<InvoiceItem>> getAdjustmentItems() {
+            return adjustmentItems;
+        }
+
+        Map<UUID, Iterable<InvoiceItem>> getKbInvoiceItems() {
+            return kbInvoiceItems;
+        }
+
+        SaleRequestType getTaxRequest() {
+            return taxRequest;
+        }
+
+        @Nullable
+        String getRequestFingerprint() {
+            return requestFingerprint;
+        }
+    }
+
+    /**
+     * Tax descriptions, per jurisdiction: large invoices typically have many lines taxed by the same few jurisdictions.
+     * Only used by the thread processing the tax results.
+     */
+    private static final class TaxDescriptions {
+
+        private final Map<JurisdictionTypeEnum, Map<String, String>> descriptionsByJurisdiction = new HashMap<>();
+
+        String get(final TaxesType transactionLineDetailModel) {
+            final Jurisdiction jurisdiction = transactionLineDetailModel.getJurisdiction();
+            if (jurisdiction == null) {
+                return getTaxDescription(transactionLineDetailModel);
+            }
+            return descriptionsByJurisdiction.computeIfAbsent(jurisdiction.getJurisdictionType(), k -> new HashMap<>())
+                                             .computeIfAbsent(jurisdiction.getValue(), k -> getTaxDescription(transactionLineDetailModel));
+        }
     }
 }
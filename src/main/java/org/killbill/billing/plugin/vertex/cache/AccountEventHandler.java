@@ -0,0 +1,50 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.cache;
+
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillEventDispatcher.OSGIKillbillEventHandler;
+
+/**
+ * Warms up the tax context of the accounts created or changed
+ */
+public class AccountEventHandler implements OSGIKillbillEventHandler {
+
+    private final AccountTaxContextCache accountTaxContextCache;
+
+    public AccountEventHandler(final AccountTaxContextCache accountTaxContextCache) {
+        this.accountTaxContextCache = accountTaxContextCache;
+    }
+
+    @Override
+    public void handleKillbillEvent(final ExtBusEvent killbillEvent) {
+        if (killbillEvent.getAccountId() == null || killbillEvent.getTenantId() == null) {
+            return;
+        }
+
+        switch (killbillEvent.getEventType()) {
+            case ACCOUNT_CREATION:
+            case ACCOUNT_CHANGE:
+                // Off the bus thread
+                accountTaxContextCache.warmUp(killbillEvent.getAccountId(), killbillEvent.getTenantId());
+                break;
+            default:
+                break;
+        }
+    }
+}
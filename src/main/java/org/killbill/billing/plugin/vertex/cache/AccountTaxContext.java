@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.cache;
+
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.plugin.vertex.gen.client.model.LocationType;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Account data of the customer section of the tax requests: the customer code and the account address.
+ */
+public class AccountTaxContext {
+
+    private final UUID kbAccountId;
+    private final String customerCode;
+    private final String address1;
+    private final String address2;
+    private final String city;
+    private final String stateOrProvince;
+    private final String postalCode;
+    private final String country;
+
+    public AccountTaxContext(final UUID kbAccountId,
+                             final String customerCode,
+                             @Nullable final String address1,
+                             @Nullable final String address2,
+                             @Nullable final String city,
+                             @Nullable final String stateOrProvince,
+                             @Nullable final String postalCode,
+                             @Nullable final String country) {
+        this.kbAccountId = kbAccountId;
+        this.customerCode = customerCode;
+        this.address1 = address1;
+        this.address2 = address2;
+        this.city = city;
+        this.stateOrProvince = stateOrProvince;
+        this.postalCode = postalCode;
+        this.country = country;
+    }
+
+    public static AccountTaxContext of(final Account account) {
+        return new AccountTaxContext(account.getId(),
+                                     MoreObjects.firstNonNull(account.getExternalKey(), account.getId()).toString(),
+                                     account.getAddress1(),
+                                     account.getAddress2(),
+                                     account.getCity(),
+                                     account.getStateOrProvince(),
+                                     account.getPostalCode(),
+                                     account.getCountry());
+    }
+
+    public UUID getKbAccountId() {
+        return kbAccountId;
+    }
+
+    public String getCustomerCode() {
+        return customerCode;
+    }
+
+    /**
+     * @return a new destination for each tax request, as the tax area id is set on it
+     */
+    public LocationType buildDestination() {
+        final LocationType destination = new LocationType();
+        destination.setStreetAddress1(address1);
+        destination.setStreetAddress2(address2);
+        destination.setCity(city);
+        destination.setMainDivision(stateOrProvince);
+        destination.setPostalCode(postalCode);
+        destination.setCountry(country);
+        return destination;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.cache;
+
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountApiException;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.plugin.api.PluginTenantContext;
+import org.killbill.billing.plugin.vertex.VertexApiConfigurationHandler;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_ACCOUNT_TAX_CONTEXT_CACHE_MAX_SIZE;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_ACCOUNT_TAX_CONTEXT_CACHE_TTL_SECONDS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_ACCOUNT_TAX_CONTEXT_CACHE_MAX_SIZE_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_ACCOUNT_TAX_CONTEXT_CACHE_TTL_SECONDS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.getIntProperty;
+
+/**
+ * Tax contexts of the accounts, keyed by account id (unique across tenants) and bounded in size and time.
+ * <p>
+ * Contexts are built in the background when an account is created or changed (see {@link AccountEventHandler}),
+ * which also resolves the tax area of its address: invoicing doesn't need to retrieve the account, nor to wait
+ * for the address lookup. Contexts not warmed up yet are built on first use.
+ */
+public class AccountTaxContextCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccountTaxContextCache.class);
+
+    private final OSGIKillbillAPI killbillAPI;
+    private final VertexApiConfigurationHandler vertexApiConfigurationHandler;
+    private final TaxAreaCache taxAreaCache;
+    private final Executor backgroundExecutor;
+    // Null when disabled
+    private final Cache<UUID, AccountTaxContext> accountTaxContexts;
+
+    public AccountTaxContextCache(final Properties properties,
+                                  final OSGIKillbillAPI killbillAPI,
+                                  final VertexApiConfigurationHandler vertexApiConfigurationHandler,
+                                  final TaxAreaCache taxAreaCache,
+                                  final Executor backgroundExecutor) {
+        this(getIntProperty(properties, VERTEX_ACCOUNT_TAX_CONTEXT_CACHE_MAX_SIZE_PROPERTY, DEFAULT_ACCOUNT_TAX_CONTEXT_CACHE_MAX_SIZE),
+             getIntProperty(properties, VERTEX_ACCOUNT_TAX_CONTEXT_CACHE_TTL_SECONDS_PROPERTY, DEFAULT_ACCOUNT_TAX_CONTEXT_CACHE_TTL_SECONDS),
+             killbillAPI,
+             vertexApiConfigurationHandler,
+             taxAreaCache,
+             backgroundExecutor,
+             Ticker.systemTicker());
+    }
+
+    public AccountTaxContextCache(final int maxSize,
+                                  final int ttlSeconds,
+                                  final OSGIKillbillAPI killbillAPI,
+                                  final VertexApiConfigurationHandler vertexApiConfigurationHandler,
+                                  final TaxAreaCache taxAreaCache,
+                                  final Executor backgroundExecutor,
+                                  final Ticker ticker) {
+        this.killbillAPI = killbillAPI;
+        this.vertexApiConfigurationHandler = vertexApiConfigurationHandler;
+        this.taxAreaCache = taxAreaCache;
+        this.backgroundExecutor = backgroundExecutor;
+        if (maxSize <= 0 || ttlSeconds <= 0) {
+            this.accountTaxContexts = null;
+            logger.info("Vertex account tax context cache disabled");
+        } else {
+            this.accountTaxContexts = CacheBuilder.newBuilder()
+                                                  .maximumSize(maxSize)
+                                                  .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                                                  .ticker(ticker)
+                                                  .build();
+            logger.info("Vertex account tax context cache initialized: maxSize={}, ttlSeconds={}", maxSize, ttlSeconds);
+        }
+    }
+
+    public boolean isEnabled() {
+        return accountTaxContexts != null;
+    }
+
+    /**
+     * @return the tax context of this account, retrieving the account if it isn't cached
+     */
+    public AccountTaxContext getAccountTaxContext(final UUID kbAccountId, final TenantContext context) {
+        if (accountTaxContexts != null) {
+            final AccountTaxContext accountTaxContext = accountTaxContexts.getIfPresent(kbAccountId);
+            if (accountTaxContext != null) {
+                return accountTaxContext;
+            }
+        }
+
+        final Account account;
+        try {
+            account = killbillAPI.getAccountUserApi().getAccountById(kbAccountId, context);
+        } catch (final AccountApiException e) {
+            // Prevent invoice generation
+            throw new RuntimeException(e);
+        }
+        return refresh(account, context.getTenantId());
+    }
+
+    /**
+     * Rebuild the tax context of this account in the background
+     */
+    public void warmUp(final UUID kbAccountId, final UUID kbTenantId) {
+        if (accountTaxContexts == null) {
+            return;
+        }
+        // The previous context may be stale until the new one is built
+        accountTaxContexts.invalidate(kbAccountId);
+        try {
+            backgroundExecutor.execute(() -> {
+                try {
+                    final Account account = killbillAPI.getAccountUserApi().getAccountById(kbAccountId, new PluginTenantContext(kbAccountId, kbTenantId));
+                    refresh(account, kbTenantId);
+                } catch (final AccountApiException | RuntimeException e) {
+                    // Built on first use instead
+                    logger.warn("Unable to warm up the tax context of kbAccountId='{}'", kbAccountId, e);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            logger.warn("Unable to warm up the tax context of kbAccountId='{}'", kbAccountId, e);
+        }
+    }
+
+    public void invalidate(final UUID kbAccountId) {
+        if (accountTaxContexts != null) {
+            accountTaxContexts.invalidate(kbAccountId);
+        }
+    }
+
+    public long size() {
+        return accountTaxContexts == null ? 0 : accountTaxContexts.size();
+    }
+
+    private AccountTaxContext refresh(final Account account, final UUID kbTenantId) {
+        final AccountTaxContext accountTaxContext = AccountTaxContext.of(account);
+        if (accountTaxContexts != null) {
+            accountTaxContexts.put(account.getId(), accountTaxContext);
+        }
+        // Resolve the tax area of the address ahead of invoicing (no-op if already known)
+        taxAreaCache.getTaxAreaId(kbTenantId, accountTaxContext.buildDestination(), vertexApiConfigurationHandler.getConfigurable(kbTenantId));
+        return accountTaxContext;
+    }
+}
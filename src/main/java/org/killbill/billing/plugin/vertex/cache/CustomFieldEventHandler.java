@@ -0,0 +1,50 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.cache;
+
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillEventDispatcher.OSGIKillbillEventHandler;
+
+/**
+ * Evicts the tax codes of the accounts whose custom fields are created or removed
+ */
+public class CustomFieldEventHandler implements OSGIKillbillEventHandler {
+
+    private final TaxCodeCache taxCodeCache;
+
+    public CustomFieldEventHandler(final TaxCodeCache taxCodeCache) {
+        this.taxCodeCache = taxCodeCache;
+    }
+
+    @Override
+    public void handleKillbillEvent(final ExtBusEvent killbillEvent) {
+        switch (killbillEvent.getEventType()) {
+            case CUSTOM_FIELD_CREATION:
+            case CUSTOM_FIELD_DELETION:
+                if (killbillEvent.getAccountId() == null) {
+                    // Unknown account
+                    taxCodeCache.invalidateAll();
+                } else {
+                    taxCodeCache.invalidate(killbillEvent.getAccountId());
+                }
+                break;
+            default:
+                break;
+        }
+    }
+}
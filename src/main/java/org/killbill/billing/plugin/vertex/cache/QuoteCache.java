@@ -0,0 +1,254 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.cache;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.vertex.gen.ApiClient;
+import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessResponseTransactionResponseType;
+import org.killbill.billing.plugin.vertex.gen.client.model.LocationType;
+import org.killbill.billing.plugin.vertex.gen.client.model.SaleRequestLineItemType;
+import org.killbill.billing.plugin.vertex.gen.client.model.SaleRequestType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_QUOTE_CACHE_MAX_SIZE;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_QUOTE_CACHE_STORED_RESPONSES_MAX_AGE_SECONDS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_QUOTE_CACHE_TTL_SECONDS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_QUOTE_CACHE_MAX_SIZE_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_QUOTE_CACHE_STORED_RESPONSES_MAX_AGE_SECONDS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_QUOTE_CACHE_TTL_SECONDS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.getIntProperty;
+
+/**
+ * Results of dry-run (QUOTATION) documents, shared by all tenants and bounded in size and time.
+ * <p>
+ * Entries are keyed by tenant and by a fingerprint of the request, which ignores the transactionId, the documentNumber
+ * and the line item ids (Kill Bill generates new item ids for each preview): identical previews sent within the TTL
+ * are answered without calling Vertex. The tax lines are mapped back to the taxable items through their line number.
+ * The tax area ids are ignored too: they are resolved in the background, and only spare Vertex the geocoding of the
+ * address, which is part of the fingerprint.
+ * <p>
+ * The fingerprint also ignores the saleMessageType, and is persisted with the successful responses: previews
+ * identical to a request already answered (within storedResponsesMaxAgeSeconds) are rebuilt from its tax lines.
+ */
+public class QuoteCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(QuoteCache.class);
+
+    // Same serialization as the requests sent to Vertex, without the fields generated for each request
+    private static final ObjectMapper fingerprintMapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .enable(SerializationFeature.WRITE_ENUMS_USING_TO_STRING)
+            .enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS)
+            .registerModule(new JavaTimeModule())
+            .setDateFormat(ApiClient.buildDefaultDateFormat())
+            .addMixIn(SaleRequestType.class, FingerprintMixIn.class)
+            .addMixIn(SaleRequestLineItemType.class, LineItemFingerprintMixIn.class)
+            .addMixIn(LocationType.class, LocationFingerprintMixIn.class);
+
+    // Null when disabled
+    private final Cache<QuoteKey, ApiSuccessResponseTransactionResponseType> quotes;
+    private final int storedResponsesMaxAgeSeconds;
+    private final Map<UUID, TenantStats> statsByTenant = new ConcurrentHashMap<>();
+
+    public QuoteCache(final Properties properties) {
+        this(getIntProperty(properties, VERTEX_QUOTE_CACHE_MAX_SIZE_PROPERTY, DEFAULT_QUOTE_CACHE_MAX_SIZE),
+             getIntProperty(properties, VERTEX_QUOTE_CACHE_TTL_SECONDS_PROPERTY, DEFAULT_QUOTE_CACHE_TTL_SECONDS),
+             getIntProperty(properties, VERTEX_QUOTE_CACHE_STORED_RESPONSES_MAX_AGE_SECONDS_PROPERTY, DEFAULT_QUOTE_CACHE_STORED_RESPONSES_MAX_AGE_SECONDS),
+             Ticker.systemTicker());
+    }
+
+    public QuoteCache(final int maxSize, final int ttlSeconds, final Ticker ticker) {
+        this(maxSize, ttlSeconds, 0, ticker);
+    }
+
+    public QuoteCache(final int maxSize, final int ttlSeconds, final int storedResponsesMaxAgeSeconds, final Ticker ticker) {
+        this.storedResponsesMaxAgeSeconds = Math.max(storedResponsesMaxAgeSeconds, 0);
+        if (maxSize <= 0 || ttlSeconds <= 0) {
+            this.quotes = null;
+            logger.info("Vertex quote cache disabled");
+        } else {
+            this.quotes = CacheBuilder.newBuilder()
+                                      .maximumSize(maxSize)
+                                      .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                                      .ticker(ticker)
+                                      .build();
+            logger.info("Vertex quote cache initialized: maxSize={}, ttlSeconds={}", maxSize, ttlSeconds);
+        }
+    }
+
+    public boolean isEnabled() {
+        return quotes != null;
+    }
+
+    /**
+     * @return maximum age of the stored responses previews can be rebuilt from, 0 if disabled
+     */
+    public int getStoredResponsesMaxAgeSeconds() {
+        return storedResponsesMaxAgeSeconds;
+    }
+
+    /**
+     * @return the fingerprint of the request, or null if the request cannot be cached
+     */
+    @Nullable
+    public String fingerprint(final SaleRequestType taxRequest) {
+        if (quotes == null) {
+            return null;
+        }
+        return computeFingerprint(taxRequest);
+    }
+
+    /**
+     * @return the fingerprint of the request, regardless of the cache configuration (null if it cannot be computed)
+     */
+    @Nullable
+    public static String computeFingerprint(final SaleRequestType taxRequest) {
+        try {
+            return Hashing.sha256().hashBytes(fingerprintMapper.writeValueAsBytes(taxRequest)).toString();
+        } catch (final JsonProcessingException e) {
+            logger.warn("Unable to compute the fingerprint of the tax request {}", taxRequest, e);
+            return null;
+        }
+    }
+
+    @Nullable
+    public ApiSuccessResponseTransactionResponseType get(final UUID kbTenantId, final String fingerprint) {
+        if (quotes == null) {
+            return null;
+        }
+        final ApiSuccessResponseTransactionResponseType quote = quotes.getIfPresent(new QuoteKey(kbTenantId, fingerprint));
+        final TenantStats tenantStats = statsByTenant.computeIfAbsent(kbTenantId, k -> new TenantStats());
+        if (quote == null) {
+            tenantStats.misses.increment();
+        } else {
+            tenantStats.hits.increment();
+        }
+        return quote;
+    }
+
+    public void put(final UUID kbTenantId, final String fingerprint, @Nullable final ApiSuccessResponseTransactionResponseType quote) {
+        if (quotes == null || quote == null) {
+            return;
+        }
+        quotes.put(new QuoteKey(kbTenantId, fingerprint), quote);
+    }
+
+    public void invalidate(final UUID kbTenantId) {
+        if (quotes == null) {
+            return;
+        }
+        quotes.asMap().keySet().removeIf(quoteKey -> quoteKey.kbTenantId.equals(kbTenantId));
+        logger.info("Vertex quote cache invalidated for kbTenantId='{}'", kbTenantId);
+    }
+
+    public void invalidateAll() {
+        if (quotes == null) {
+            return;
+        }
+        quotes.invalidateAll();
+        logger.info("Vertex quote cache invalidated");
+    }
+
+    public Map<String, Object> getStats(final UUID kbTenantId) {
+        final TenantStats tenantStats = statsByTenant.get(kbTenantId);
+        final long hits = tenantStats == null ? 0 : tenantStats.hits.sum();
+        final long misses = tenantStats == null ? 0 : tenantStats.misses.sum();
+        final long size = quotes == null ? 0 : quotes.asMap().keySet().stream().filter(quoteKey -> quoteKey.kbTenantId.equals(kbTenantId)).count();
+        return ImmutableMap.of("enabled", isEnabled(), "hits", hits, "misses", misses, "size", size);
+    }
+
+    public Map<String, Object> getStats() {
+        long hits = 0;
+        long misses = 0;
+        for (final TenantStats tenantStats : statsByTenant.values()) {
+            hits += tenantStats.hits.sum();
+            misses += tenantStats.misses.sum();
+        }
+        final long size = quotes == null ? 0 : quotes.size();
+        return ImmutableMap.of("enabled", isEnabled(), "hits", hits, "misses", misses, "size", size);
+    }
+
+    // Previews (QUOTATION) match the INVOICE requests with the same content
+    @JsonIgnoreProperties({SaleRequestType.JSON_PROPERTY_TRANSACTION_ID, SaleRequestType.JSON_PROPERTY_DOCUMENT_NUMBER, SaleRequestType.JSON_PROPERTY_SALE_MESSAGE_TYPE})
+    private abstract static class FingerprintMixIn {}
+
+    // Previews of the same items match, whatever their ids
+    @JsonIgnoreProperties({SaleRequestLineItemType.JSON_PROPERTY_LINE_ITEM_ID})
+    private abstract static class LineItemFingerprintMixIn {}
+
+    // Requests sent before and after the tax area of the address is resolved match
+    @JsonIgnoreProperties({LocationType.JSON_PROPERTY_TAX_AREA_ID})
+    private abstract static class LocationFingerprintMixIn {}
+
+    private static final class TenantStats {
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+    }
+
+    private static final class QuoteKey {
+
+        private final UUID kbTenantId;
+        private final String fingerprint;
+
+        private QuoteKey(final UUID kbTenantId, final String fingerprint) {
+            this.kbTenantId = kbTenantId;
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final QuoteKey quoteKey = (QuoteKey) o;
+            return kbTenantId.equals(quoteKey.kbTenantId) && fingerprint.equals(quoteKey.fingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kbTenantId, fingerprint);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.cache;
+
+import java.util.Optional;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jooby.MediaType;
+import org.jooby.Result;
+import org.jooby.Results;
+import org.jooby.Status;
+import org.jooby.mvc.DELETE;
+import org.jooby.mvc.GET;
+import org.jooby.mvc.Local;
+import org.jooby.mvc.Path;
+import org.killbill.billing.tenant.api.Tenant;
+
+import com.google.inject.Inject;
+
+/**
+ * Quote cache statistics and invalidation, for the tenant of the request (or all tenants, without tenant headers)
+ */
+@Singleton
+@Path("/quoteCache")
+public class QuoteCacheServlet {
+
+    private final QuoteCache quoteCache;
+
+    @Inject
+    public QuoteCacheServlet(final QuoteCache quoteCache) {
+        this.quoteCache = quoteCache;
+    }
+
+    @GET
+    public Result getStats(@Local @Named("killbill_tenant") final Optional<Tenant> tenant) {
+        return Results.with(tenant.isPresent() ? quoteCache.getStats(tenant.get().getId()) : quoteCache.getStats(), Status.OK)
+                      .type(MediaType.json);
+    }
+
+    @DELETE
+    public Result invalidate(@Local @Named("killbill_tenant") final Optional<Tenant> tenant) {
+        if (tenant.isPresent()) {
+            quoteCache.invalidate(tenant.get().getId());
+        } else {
+            quoteCache.invalidateAll();
+        }
+        return Results.with(Status.NO_CONTENT);
+    }
+}
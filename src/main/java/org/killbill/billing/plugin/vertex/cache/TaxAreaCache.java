@@ -0,0 +1,316 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.vertex.VertexApiClient;
+import org.killbill.billing.plugin.vertex.dao.VertexDao;
+import org.killbill.billing.plugin.vertex.gen.client.model.AddressLookupRequestType;
+import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessResponseTaxAreaLookupResponseType;
+import org.killbill.billing.plugin.vertex.gen.client.model.LocationType;
+import org.killbill.billing.plugin.vertex.gen.client.model.PostalAddressType;
+import org.killbill.billing.plugin.vertex.gen.client.model.TaxAreaLookupResultType;
+import org.killbill.billing.plugin.vertex.gen.dao.model.tables.records.VertexTaxAreasRecord;
+import org.killbill.clock.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_TAX_AREA_CACHE_MAX_SIZE;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_TAX_AREA_CACHE_TTL_SECONDS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_TAX_AREA_CACHE_MAX_SIZE_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_TAX_AREA_CACHE_TTL_SECONDS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.getIntProperty;
+
+/**
+ * Tax area ids of customer addresses, keyed by tenant and normalized address.
+ * <p>
+ * Resolved tax area ids are persisted in the vertex_tax_areas table (so they survive restarts and are shared by all
+ * nodes), and cached in memory, bounded in size and time. On a miss, the address is resolved in the background via
+ * /v2/address-lookup and the request is sent with the raw address: subsequent requests for the same address are
+ * sent with the tax area id, and Vertex doesn't geocode it again. Ambiguous addresses (zero or several tax areas)
+ * are only cached in memory, and keep being sent as raw addresses.
+ * <p>
+ * Persisted entries don't expire: they are invalidated when their tax area changes, see {@link TaxAreaChangesChecker}.
+ * The database is the reference: in-memory entries are only kept for a short time, so that the invalidations made by
+ * another node are picked up within ttlSeconds.
+ */
+public class TaxAreaCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(TaxAreaCache.class);
+
+    @Nullable
+    private final VertexDao dao;
+    private final Clock clock;
+    // Persistence of the lookup results: keep it off the I/O reactor threads
+    private final Executor backgroundExecutor;
+    // Null when disabled
+    private final Cache<TaxAreaKey, Optional<String>> taxAreaIds;
+    // Concurrent misses for the same address trigger a single lookup
+    private final Set<TaxAreaKey> pendingLookups = ConcurrentHashMap.newKeySet();
+
+    public TaxAreaCache(final Properties properties,
+                        @Nullable final VertexDao dao,
+                        final Clock clock,
+                        final Executor backgroundExecutor) {
+        this(getIntProperty(properties, VERTEX_TAX_AREA_CACHE_MAX_SIZE_PROPERTY, DEFAULT_TAX_AREA_CACHE_MAX_SIZE),
+             getIntProperty(properties, VERTEX_TAX_AREA_CACHE_TTL_SECONDS_PROPERTY, DEFAULT_TAX_AREA_CACHE_TTL_SECONDS),
+             dao,
+             clock,
+             backgroundExecutor,
+             Ticker.systemTicker());
+    }
+
+    public TaxAreaCache(final int maxSize,
+                        final int ttlSeconds,
+                        @Nullable final VertexDao dao,
+                        final Clock clock,
+                        final Executor backgroundExecutor,
+                        final Ticker ticker) {
+        this.dao = dao;
+        this.clock = clock;
+        this.backgroundExecutor = backgroundExecutor;
+        if (maxSize <= 0 || ttlSeconds <= 0) {
+            this.taxAreaIds = null;
+            logger.info("Vertex tax area cache disabled");
+        } else {
+            this.taxAreaIds = CacheBuilder.newBuilder()
+                                          .maximumSize(maxSize)
+                                          .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                                          .ticker(ticker)
+                                          .build();
+            logger.info("Vertex tax area cache initialized: maxSize={}, ttlSeconds={}", maxSize, ttlSeconds);
+        }
+    }
+
+    public boolean isEnabled() {
+        return taxAreaIds != null;
+    }
+
+    /**
+     * @return the tax area id of this address, or null if it isn't known (yet)
+     */
+    @Nullable
+    public String getTaxAreaId(final UUID kbTenantId, final LocationType address, final VertexApiClient vertexApiClient) {
+        if (taxAreaIds == null) {
+            return null;
+        }
+
+        final String normalizedAddress = normalize(address);
+        if (normalizedAddress == null) {
+            return null;
+        }
+
+        final TaxAreaKey key = new TaxAreaKey(kbTenantId, normalizedAddress);
+        final Optional<String> taxAreaId = taxAreaIds.getIfPresent(key);
+        if (taxAreaId != null) {
+            return taxAreaId.orElse(null);
+        }
+
+        // Resolved by another node, or before a restart
+        final String persistedTaxAreaId = getPersistedTaxAreaId(key);
+        if (persistedTaxAreaId != null) {
+            taxAreaIds.put(key, Optional.of(persistedTaxAreaId));
+            return persistedTaxAreaId;
+        }
+
+        if (pendingLookups.add(key)) {
+            resolve(key, address, vertexApiClient);
+        }
+        return null;
+    }
+
+    /**
+     * Evict the addresses of a tax area which changed
+     */
+    public void invalidate(final UUID kbTenantId, final String taxAreaId) {
+        if (taxAreaIds == null) {
+            return;
+        }
+        taxAreaIds.asMap().entrySet().removeIf(entry -> entry.getKey().kbTenantId.equals(kbTenantId) && entry.getValue().isPresent() && taxAreaId.equals(entry.getValue().get()));
+    }
+
+    public void invalidateAll() {
+        if (taxAreaIds != null) {
+            taxAreaIds.invalidateAll();
+        }
+    }
+
+    public long size() {
+        return taxAreaIds == null ? 0 : taxAreaIds.size();
+    }
+
+    @Nullable
+    private String getPersistedTaxAreaId(final TaxAreaKey key) {
+        if (dao == null) {
+            return null;
+        }
+        try {
+            final VertexTaxAreasRecord record = dao.getTaxArea(key.getAddressHash(), key.kbTenantId);
+            return record == null ? null : record.getTaxAreaId();
+        } catch (final SQLException e) {
+            logger.warn("Unable to retrieve the tax area of address {}", key.normalizedAddress, e);
+            return null;
+        }
+    }
+
+    private void resolve(final TaxAreaKey key, final LocationType address, final VertexApiClient vertexApiClient) {
+        final CompletableFuture<ApiSuccessResponseTaxAreaLookupResponseType> lookupResult;
+        try {
+            lookupResult = vertexApiClient.lookUpTaxAreaByAddressAsync(toLookupRequest(address));
+        } catch (final RuntimeException e) {
+            pendingLookups.remove(key);
+            logger.warn("Unable to look up the tax area of address {}", key.normalizedAddress, e);
+            return;
+        }
+
+        lookupResult.whenCompleteAsync((response, throwable) -> {
+            try {
+                if (throwable != null) {
+                    // Not cached: the next request will try again
+                    logger.warn("Unable to look up the tax area of address {}", key.normalizedAddress, throwable);
+                    return;
+                }
+
+                final String taxAreaId = toTaxAreaId(response);
+                taxAreaIds.put(key, Optional.ofNullable(taxAreaId));
+                if (taxAreaId != null && dao != null) {
+                    dao.addTaxArea(key.getAddressHash(), key.normalizedAddress, taxAreaId, clock.getUTCNow(), key.kbTenantId);
+                }
+            } catch (final SQLException e) {
+                logger.warn("Unable to persist the tax area of address {}", key.normalizedAddress, e);
+            } finally {
+                pendingLookups.remove(key);
+            }
+        }, backgroundExecutor);
+    }
+
+    /**
+     * @return the normalized address (case and whitespace insensitive), or null if there is no address
+     */
+    @Nullable
+    public static String normalize(final LocationType address) {
+        final String[] fields = {address.getStreetAddress1(),
+                                 address.getStreetAddress2(),
+                                 address.getCity(),
+                                 address.getSubDivision(),
+                                 address.getMainDivision(),
+                                 address.getPostalCode(),
+                                 address.getCountry()};
+        final StringBuilder key = new StringBuilder();
+        boolean isEmpty = true;
+        for (final String field : fields) {
+            final String normalizedField = normalizeField(field);
+            isEmpty = isEmpty && normalizedField.isEmpty();
+            key.append(normalizedField).append('|');
+        }
+        return isEmpty ? null : key.toString();
+    }
+
+    private static String normalizeField(@Nullable final String field) {
+        if (field == null) {
+            return "";
+        }
+        return field.trim().replaceAll("\\s+", " ").toUpperCase(Locale.ROOT);
+    }
+
+    private static AddressLookupRequestType toLookupRequest(final LocationType address) {
+        final PostalAddressType postalAddress = new PostalAddressType();
+        postalAddress.setStreetAddress1(address.getStreetAddress1());
+        postalAddress.setStreetAddress2(address.getStreetAddress2());
+        postalAddress.setCity(address.getCity());
+        postalAddress.setSubDivision(address.getSubDivision());
+        postalAddress.setMainDivision(address.getMainDivision());
+        postalAddress.setPostalCode(address.getPostalCode());
+        postalAddress.setCountry(address.getCountry());
+
+        final AddressLookupRequestType addressLookupRequest = new AddressLookupRequestType();
+        addressLookupRequest.setPostalAddress(postalAddress);
+        return addressLookupRequest;
+    }
+
+    @Nullable
+    private static String toTaxAreaId(@Nullable final ApiSuccessResponseTaxAreaLookupResponseType response) {
+        if (response == null || response.getData() == null || response.getData().getLookupResults() == null) {
+            return null;
+        }
+        String taxAreaId = null;
+        for (final TaxAreaLookupResultType lookupResult : response.getData().getLookupResults()) {
+            if (lookupResult.getTaxAreaId() == null) {
+                continue;
+            }
+            if (taxAreaId != null && !taxAreaId.equals(lookupResult.getTaxAreaId())) {
+                // Ambiguous address
+                return null;
+            }
+            taxAreaId = lookupResult.getTaxAreaId();
+        }
+        return taxAreaId;
+    }
+
+    private static final class TaxAreaKey {
+
+        private final UUID kbTenantId;
+        private final String normalizedAddress;
+
+        private TaxAreaKey(final UUID kbTenantId, final String normalizedAddress) {
+            this.kbTenantId = kbTenantId;
+            this.normalizedAddress = normalizedAddress;
+        }
+
+        // Fixed-size key for the vertex_tax_areas table
+        String getAddressHash() {
+            return Hashing.sha256().hashString(normalizedAddress, StandardCharsets.UTF_8).toString();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final TaxAreaKey taxAreaKey = (TaxAreaKey) o;
+            return kbTenantId.equals(taxAreaKey.kbTenantId) && normalizedAddress.equals(taxAreaKey.normalizedAddress);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kbTenantId, normalizedAddress);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.cache;
+
+import java.io.Closeable;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.vertex.VertexApiClient;
+import org.killbill.billing.plugin.vertex.VertexApiConfigurationHandler;
+import org.killbill.billing.plugin.vertex.dao.VertexDao;
+import org.killbill.billing.plugin.vertex.gen.ApiException;
+import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessChangedTaxAreasResponseType;
+import org.killbill.clock.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_TAX_AREA_CHANGES_CHECK_INTERVAL_SECONDS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_TAX_AREA_CHANGES_CHECK_INTERVAL_SECONDS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.getIntProperty;
+
+/**
+ * Periodically invalidates the persisted tax area ids whose tax area changed in Vertex.
+ * <p>
+ * /v2/changed-taxareas only tells whether any tax area changed: only then is each persisted tax area checked
+ * via /v2/changed-taxareas/{taxAreaId}, and only the entries of the changed ones are deleted. Unchanged entries
+ * are marked as checked, so the next run only looks at the changes since then.
+ * <p>
+ * The entries are deleted for all nodes, but each node only evicts its own memory: the other nodes pick up the
+ * change once their in-memory entries expire (after a short TTL), see {@link TaxAreaCache}.
+ */
+public class TaxAreaChangesChecker implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TaxAreaChangesChecker.class);
+
+    private final VertexApiConfigurationHandler vertexApiConfigurationHandler;
+    private final VertexDao dao;
+    private final TaxAreaCache taxAreaCache;
+    private final Clock clock;
+    private final int checkIntervalSeconds;
+    private final ScheduledExecutorService scheduler;
+
+    public TaxAreaChangesChecker(final Properties properties,
+                                 final VertexApiConfigurationHandler vertexApiConfigurationHandler,
+                                 final VertexDao dao,
+                                 final TaxAreaCache taxAreaCache,
+                                 final Clock clock) {
+        this.vertexApiConfigurationHandler = vertexApiConfigurationHandler;
+        this.dao = dao;
+        this.taxAreaCache = taxAreaCache;
+        this.clock = clock;
+        this.checkIntervalSeconds = getIntProperty(properties, VERTEX_TAX_AREA_CHANGES_CHECK_INTERVAL_SECONDS_PROPERTY, DEFAULT_TAX_AREA_CHANGES_CHECK_INTERVAL_SECONDS);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("vertex-tax-area-changes-%d")
+                                                                                             .setDaemon(true)
+                                                                                             .build());
+    }
+
+    public void start() {
+        if (checkIntervalSeconds <= 0) {
+            logger.info("Vertex tax area changes check disabled");
+            return;
+        }
+        scheduler.scheduleWithFixedDelay(this::checkForChanges, checkIntervalSeconds, checkIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @VisibleForTesting
+    void checkForChanges() {
+        final Iterable<UUID> kbTenantIds;
+        try {
+            kbTenantIds = dao.getTaxAreaTenants();
+        } catch (final SQLException e) {
+            logger.warn("Unable to retrieve the tenants with tax areas", e);
+            return;
+        }
+
+        for (final UUID kbTenantId : kbTenantIds) {
+            try {
+                checkForChanges(kbTenantId);
+            } catch (final ApiException | SQLException | RuntimeException e) {
+                // Checked again at the next run
+                logger.warn("Unable to check the tax area changes for kbTenantId='{}'", kbTenantId, e);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    void checkForChanges(final UUID kbTenantId) throws ApiException, SQLException {
+        final Map<String, LocalDateTime> taxAreaIds = dao.getTaxAreaIds(kbTenantId);
+        if (taxAreaIds.isEmpty()) {
+            return;
+        }
+
+        final DateTime checkDate = clock.getUTCNow();
+        final LocalDateTime lastCheckDate = Collections.min(taxAreaIds.values());
+        // All nodes run this check: the first one to run it after the interval marks the entries as checked for the others
+        if (lastCheckDate.isAfter(LocalDateTime.ofInstant(Instant.ofEpochMilli(checkDate.minusSeconds(checkIntervalSeconds).getMillis()), ZoneOffset.UTC))) {
+            logger.debug("Tax area changes already checked at {} for kbTenantId='{}'", lastCheckDate, kbTenantId);
+            return;
+        }
+
+        final VertexApiClient vertexApiClient = vertexApiConfigurationHandler.getConfigurable(kbTenantId);
+        // Dates are inclusive: at worst, changes of the last check day are checked again
+        final LocalDate beginDate = lastCheckDate.toLocalDate();
+        if (!isChanged(vertexApiClient.getChangedTaxAreas(beginDate))) {
+            dao.touchTaxAreas(null, checkDate, kbTenantId);
+            return;
+        }
+
+        int changedTaxAreas = 0;
+        for (final Entry<String, LocalDateTime> taxAreaId : taxAreaIds.entrySet()) {
+            if (isChanged(vertexApiClient.getChangedTaxArea(taxAreaId.getKey(), taxAreaId.getValue().toLocalDate()))) {
+                dao.deleteTaxAreas(taxAreaId.getKey(), kbTenantId);
+                taxAreaCache.invalidate(kbTenantId, taxAreaId.getKey());
+                changedTaxAreas++;
+            } else {
+                dao.touchTaxAreas(taxAreaId.getKey(), checkDate, kbTenantId);
+            }
+        }
+        logger.info("Invalidated {} changed tax areas (out of {}) for kbTenantId='{}'", changedTaxAreas, taxAreaIds.size(), kbTenantId);
+    }
+
+    private static boolean isChanged(final ApiSuccessChangedTaxAreasResponseType response) {
+        // Unknown: assume it changed
+        return response == null || response.getData() == null || !Boolean.FALSE.equals(response.getData().getChanged());
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
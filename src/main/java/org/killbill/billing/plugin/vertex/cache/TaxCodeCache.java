@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.cache;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.plugin.vertex.VertexTaxCalculator;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.customfield.CustomField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_TAX_CODE_CACHE_MAX_ENTRIES;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_TAX_CODE_CACHE_TTL_SECONDS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_TAX_CODE_CACHE_MAX_ENTRIES_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_TAX_CODE_CACHE_TTL_SECONDS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.getIntProperty;
+
+/**
+ * Tax codes of the invoice items of each account (taxCode custom fields), indexed by invoice item id.
+ * <p>
+ * The custom fields of an account are only retrieved on the first invoice, and again after a custom field of the
+ * account is created or removed (see {@link CustomFieldEventHandler}). The cache is bounded by the total number of
+ * tax codes, not by the number of accounts, since long-lived accounts can have many.
+ */
+public class TaxCodeCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(TaxCodeCache.class);
+
+    private final OSGIKillbillAPI killbillAPI;
+    // Null when disabled
+    private final Cache<UUID, Map<UUID, String>> taxCodesByAccount;
+
+    public TaxCodeCache(final Properties properties, final OSGIKillbillAPI killbillAPI) {
+        this(getIntProperty(properties, VERTEX_TAX_CODE_CACHE_MAX_ENTRIES_PROPERTY, DEFAULT_TAX_CODE_CACHE_MAX_ENTRIES),
+             getIntProperty(properties, VERTEX_TAX_CODE_CACHE_TTL_SECONDS_PROPERTY, DEFAULT_TAX_CODE_CACHE_TTL_SECONDS),
+             killbillAPI,
+             Ticker.systemTicker());
+    }
+
+    public TaxCodeCache(final int maxEntries, final int ttlSeconds, final OSGIKillbillAPI killbillAPI, final Ticker ticker) {
+        this.killbillAPI = killbillAPI;
+        if (maxEntries <= 0 || ttlSeconds <= 0) {
+            this.taxCodesByAccount = null;
+            logger.info("Vertex tax code cache disabled");
+        } else {
+            this.taxCodesByAccount = CacheBuilder.newBuilder()
+                                                 .maximumWeight(maxEntries)
+                                                 // Accounts without tax codes still take an entry
+                                                 .<UUID, Map<UUID, String>>weigher((kbAccountId, taxCodes) -> 1 + taxCodes.size())
+                                                 .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                                                 .ticker(ticker)
+                                                 .build();
+            logger.info("Vertex tax code cache initialized: maxEntries={}, ttlSeconds={}", maxEntries, ttlSeconds);
+        }
+    }
+
+    public boolean isEnabled() {
+        return taxCodesByAccount != null;
+    }
+
+    /**
+     * @return the tax codes of the invoice items of this account, by invoice item id
+     */
+    public Map<UUID, String> getTaxCodes(final UUID kbAccountId, final TenantContext context) {
+        if (taxCodesByAccount == null) {
+            return loadTaxCodes(kbAccountId, context);
+        }
+        try {
+            return taxCodesByAccount.get(kbAccountId, () -> loadTaxCodes(kbAccountId, context));
+        } catch (final ExecutionException | UncheckedExecutionException e) {
+            // Prevent invoice generation
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public void invalidate(final UUID kbAccountId) {
+        if (taxCodesByAccount != null) {
+            taxCodesByAccount.invalidate(kbAccountId);
+        }
+    }
+
+    public void invalidateAll() {
+        if (taxCodesByAccount != null) {
+            taxCodesByAccount.invalidateAll();
+        }
+    }
+
+    public long size() {
+        return taxCodesByAccount == null ? 0 : taxCodesByAccount.size();
+    }
+
+    private Map<UUID, String> loadTaxCodes(final UUID kbAccountId, final TenantContext context) {
+        final List<CustomField> customFields = killbillAPI.getCustomFieldUserApi().getCustomFieldsForAccountType(kbAccountId, ObjectType.INVOICE_ITEM, context);
+        final Map<UUID, String> taxCodes = new HashMap<>();
+        for (final CustomField customField : customFields) {
+            if (customField != null && VertexTaxCalculator.TAX_CODE.equals(customField.getFieldName()) && customField.getFieldValue() != null) {
+                // First custom field wins
+                taxCodes.putIfAbsent(customField.getObjectId(), customField.getFieldValue());
+            }
+        }
+        return ImmutableMap.copyOf(taxCodes);
+    }
+}
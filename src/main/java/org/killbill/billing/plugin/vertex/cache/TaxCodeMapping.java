@@ -0,0 +1,71 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.cache;
+
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Vertex product (class and value) of the invoice items of a catalog entry
+ */
+public class TaxCodeMapping {
+
+    public enum CatalogType {
+        // Most specific first
+        USAGE,
+        PHASE,
+        PLAN,
+        PRODUCT
+    }
+
+    private final CatalogType catalogType;
+    private final String catalogName;
+    private final String productClass;
+    private final String productValue;
+
+    @JsonCreator
+    public TaxCodeMapping(@JsonProperty("catalogType") final CatalogType catalogType,
+                          @JsonProperty("catalogName") final String catalogName,
+                          @JsonProperty("productClass") @Nullable final String productClass,
+                          @JsonProperty("productValue") @Nullable final String productValue) {
+        this.catalogType = catalogType;
+        this.catalogName = catalogName;
+        this.productClass = productClass;
+        this.productValue = productValue;
+    }
+
+    public CatalogType getCatalogType() {
+        return catalogType;
+    }
+
+    public String getCatalogName() {
+        return catalogName;
+    }
+
+    @Nullable
+    public String getProductClass() {
+        return productClass;
+    }
+
+    @Nullable
+    public String getProductValue() {
+        return productValue;
+    }
+}
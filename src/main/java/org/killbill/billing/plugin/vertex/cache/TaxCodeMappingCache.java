@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.cache;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.vertex.cache.TaxCodeMapping.CatalogType;
+import org.killbill.billing.plugin.vertex.dao.VertexDao;
+import org.killbill.billing.plugin.vertex.gen.dao.model.tables.records.VertexTaxCodeMappingsRecord;
+import org.killbill.clock.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_TAX_CODE_MAPPINGS_TTL_SECONDS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_TAX_CODE_MAPPINGS_TTL_SECONDS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.getIntProperty;
+
+/**
+ * Tax code mappings of each tenant (vertex_tax_code_mappings table), loaded into an immutable index.
+ * <p>
+ * Changes made through this node replace the index of the tenant at once: invoices see either the old or the new
+ * mappings, never a mix. Changes made through other nodes are picked up when the index expires.
+ */
+public class TaxCodeMappingCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(TaxCodeMappingCache.class);
+
+    @Nullable
+    private final VertexDao dao;
+    private final Clock clock;
+    private final Cache<UUID, TaxCodeMappings> mappingsByTenant;
+
+    public TaxCodeMappingCache(final Properties properties, @Nullable final VertexDao dao, final Clock clock) {
+        this(getIntProperty(properties, VERTEX_TAX_CODE_MAPPINGS_TTL_SECONDS_PROPERTY, DEFAULT_TAX_CODE_MAPPINGS_TTL_SECONDS),
+             dao,
+             clock,
+             Ticker.systemTicker());
+    }
+
+    public TaxCodeMappingCache(final int ttlSeconds, @Nullable final VertexDao dao, final Clock clock, final Ticker ticker) {
+        this.dao = dao;
+        this.clock = clock;
+        // One (small) entry per tenant
+        this.mappingsByTenant = CacheBuilder.newBuilder()
+                                            .expireAfterWrite(Math.max(ttlSeconds, 0), TimeUnit.SECONDS)
+                                            .ticker(ticker)
+                                            .build();
+    }
+
+    public TaxCodeMappings getTaxCodeMappings(final UUID kbTenantId) {
+        final TaxCodeMappings taxCodeMappings = mappingsByTenant.getIfPresent(kbTenantId);
+        if (taxCodeMappings != null) {
+            return taxCodeMappings;
+        }
+        return reload(kbTenantId);
+    }
+
+    public void addTaxCodeMapping(final TaxCodeMapping taxCodeMapping, final UUID kbTenantId) throws SQLException {
+        if (dao == null) {
+            return;
+        }
+        dao.addTaxCodeMapping(taxCodeMapping.getCatalogType().name(),
+                              taxCodeMapping.getCatalogName(),
+                              taxCodeMapping.getProductClass(),
+                              taxCodeMapping.getProductValue(),
+                              clock.getUTCNow(),
+                              kbTenantId);
+        reload(kbTenantId);
+    }
+
+    public boolean deleteTaxCodeMapping(final CatalogType catalogType, final String catalogName, final UUID kbTenantId) throws SQLException {
+        if (dao == null) {
+            return false;
+        }
+        final boolean deleted = dao.deleteTaxCodeMapping(catalogType.name(), catalogName, kbTenantId) > 0;
+        reload(kbTenantId);
+        return deleted;
+    }
+
+    // Serialized, so that an older index never replaces a newer one
+    private synchronized TaxCodeMappings reload(final UUID kbTenantId) {
+        if (dao == null) {
+            return TaxCodeMappings.EMPTY;
+        }
+
+        final List<VertexTaxCodeMappingsRecord> records;
+        try {
+            records = dao.getTaxCodeMappings(kbTenantId);
+        } catch (final SQLException e) {
+            // Not cached: the next invoice will try again
+            logger.warn("Unable to load the tax code mappings for kbTenantId='{}'", kbTenantId, e);
+            return TaxCodeMappings.EMPTY;
+        }
+
+        final List<TaxCodeMapping> mappings = new ArrayList<>(records.size());
+        for (final VertexTaxCodeMappingsRecord record : records) {
+            final CatalogType catalogType;
+            try {
+                catalogType = CatalogType.valueOf(record.getCatalogType());
+            } catch (final IllegalArgumentException e) {
+                logger.warn("Ignoring tax code mapping with invalid catalog type, record_id {}: {}", record.getRecordId(), record.getCatalogType());
+                continue;
+            }
+            mappings.add(new TaxCodeMapping(catalogType, record.getCatalogName(), record.getProductClass(), record.getProductValue()));
+        }
+
+        final TaxCodeMappings taxCodeMappings = new TaxCodeMappings(mappings);
+        mappingsByTenant.put(kbTenantId, taxCodeMappings);
+        return taxCodeMappings;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.cache;
+
+import java.sql.SQLException;
+import java.util.Optional;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jooby.MediaType;
+import org.jooby.Result;
+import org.jooby.Results;
+import org.jooby.Status;
+import org.jooby.mvc.Body;
+import org.jooby.mvc.DELETE;
+import org.jooby.mvc.GET;
+import org.jooby.mvc.Local;
+import org.jooby.mvc.POST;
+import org.jooby.mvc.Path;
+import org.killbill.billing.plugin.vertex.cache.TaxCodeMapping.CatalogType;
+import org.killbill.billing.tenant.api.Tenant;
+
+import com.google.inject.Inject;
+
+/**
+ * Tax code mappings of the tenant of the request
+ */
+@Singleton
+@Path("/taxCodeMappings")
+public class TaxCodeMappingServlet {
+
+    private final TaxCodeMappingCache taxCodeMappingCache;
+
+    @Inject
+    public TaxCodeMappingServlet(final TaxCodeMappingCache taxCodeMappingCache) {
+        this.taxCodeMappingCache = taxCodeMappingCache;
+    }
+
+    @GET
+    public Result getTaxCodeMappings(@Local @Named("killbill_tenant") final Optional<Tenant> tenant) {
+        if (!tenant.isPresent()) {
+            return Results.with(Status.UNAUTHORIZED);
+        }
+        return Results.with(taxCodeMappingCache.getTaxCodeMappings(tenant.get().getId()).getMappings(), Status.OK)
+                      .type(MediaType.json);
+    }
+
+    @POST
+    public Result addTaxCodeMapping(@Body final TaxCodeMapping taxCodeMapping,
+                                    @Local @Named("killbill_tenant") final Optional<Tenant> tenant) throws SQLException {
+        if (!tenant.isPresent()) {
+            return Results.with(Status.UNAUTHORIZED);
+        }
+        if (taxCodeMapping.getCatalogType() == null || taxCodeMapping.getCatalogName() == null) {
+            return Results.with(Status.BAD_REQUEST);
+        }
+        taxCodeMappingCache.addTaxCodeMapping(taxCodeMapping, tenant.get().getId());
+        return Results.with(Status.CREATED);
+    }
+
+    @DELETE
+    public Result deleteTaxCodeMapping(@Named("catalogType") final CatalogType catalogType,
+                                       @Named("catalogName") final String catalogName,
+                                       @Local @Named("killbill_tenant") final Optional<Tenant> tenant) throws SQLException {
+        if (!tenant.isPresent()) {
+            return Results.with(Status.UNAUTHORIZED);
+        }
+        return Results.with(taxCodeMappingCache.deleteTaxCodeMapping(catalogType, catalogName, tenant.get().getId()) ? Status.NO_CONTENT : Status.NOT_FOUND);
+    }
+}
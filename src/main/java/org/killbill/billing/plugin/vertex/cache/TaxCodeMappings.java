@@ -0,0 +1,98 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.cache;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.plugin.vertex.cache.TaxCodeMapping.CatalogType;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Immutable index of the tax code mappings of a tenant, by catalog type and name
+ */
+public class TaxCodeMappings {
+
+    public static final TaxCodeMappings EMPTY = new TaxCodeMappings(ImmutableList.of());
+
+    private final List<TaxCodeMapping> mappings;
+    private final Map<CatalogType, Map<String, TaxCodeMapping>> mappingsByCatalogName;
+
+    public TaxCodeMappings(final Iterable<TaxCodeMapping> mappings) {
+        this.mappings = ImmutableList.copyOf(mappings);
+
+        final Map<CatalogType, Map<String, TaxCodeMapping>> index = new EnumMap<>(CatalogType.class);
+        for (final TaxCodeMapping mapping : this.mappings) {
+            index.computeIfAbsent(mapping.getCatalogType(), k -> new HashMap<>()).put(mapping.getCatalogName(), mapping);
+        }
+        final ImmutableMap.Builder<CatalogType, Map<String, TaxCodeMapping>> builder = ImmutableMap.builder();
+        for (final Map.Entry<CatalogType, Map<String, TaxCodeMapping>> entry : index.entrySet()) {
+            builder.put(entry.getKey(), ImmutableMap.copyOf(entry.getValue()));
+        }
+        this.mappingsByCatalogName = builder.build();
+    }
+
+    public List<TaxCodeMapping> getMappings() {
+        return mappings;
+    }
+
+    public boolean isEmpty() {
+        return mappings.isEmpty();
+    }
+
+    /**
+     * @return the mapping of the most specific catalog entry of this item (usage, then phase, plan and product), if any
+     */
+    @Nullable
+    public TaxCodeMapping resolve(final InvoiceItem invoiceItem) {
+        if (mappings.isEmpty()) {
+            return null;
+        }
+        for (final CatalogType catalogType : CatalogType.values()) {
+            final String catalogName = getCatalogName(invoiceItem, catalogType);
+            final Map<String, TaxCodeMapping> mappingsForType = mappingsByCatalogName.get(catalogType);
+            if (catalogName != null && mappingsForType != null && mappingsForType.containsKey(catalogName)) {
+                return mappingsForType.get(catalogName);
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private static String getCatalogName(final InvoiceItem invoiceItem, final CatalogType catalogType) {
+        switch (catalogType) {
+            case USAGE:
+                return invoiceItem.getUsageName();
+            case PHASE:
+                return invoiceItem.getPhaseName();
+            case PLAN:
+                return invoiceItem.getPlanName();
+            case PRODUCT:
+                return invoiceItem.getProductName();
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.vertex.cluster;
+
+import java.io.Closeable;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.vertex.dao.VertexDao;
+import org.killbill.billing.plugin.vertex.http.AsyncRequestLimiter;
+import org.killbill.billing.plugin.vertex.http.TokenBucket;
+import org.killbill.billing.plugin.vertex.http.VertexHttpTransport;
+import org.killbill.clock.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_CLUSTER_DB_TIMEOUT_SECONDS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_CLUSTER_HEARTBEAT_INTERVAL_SECONDS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_CLUSTER_MAX_IN_FLIGHT_REQUESTS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_CLUSTER_REQUESTS_PER_SECOND;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CLUSTER_DB_TIMEOUT_SECONDS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CLUSTER_HEARTBEAT_INTERVAL_SECONDS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CLUSTER_MAX_IN_FLIGHT_REQUESTS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CLUSTER_REQUESTS_PER_SECOND_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.getIntProperty;
+
+/**
+ * Caps the Vertex concurrency and request rate of the whole cluster, by splitting them evenly between the live nodes.
+ * <p>
+ * Each node holds a lease in the vertex_nodes table, renewed every heartbeatIntervalSeconds (and expiring after
+ * LEASE_HEARTBEATS missed heartbeats), and sizes its own limits from the number of live leases: its in-flight request
+ * limit and its request rate are then enforced locally, so that the database is never on the request path.
+ * <p>
+ * If the database is slow or unavailable (queries time out after dbTimeoutSeconds), the node keeps its last known
+ * share: until the first heartbeat, the share of a node alone in the cluster, bounded by its local limits.
+ */
+public class VertexClusterLimits implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(VertexClusterLimits.class);
+
+    // Leases outlive a couple of missed heartbeats (e.g. a long GC pause)
+    private static final int LEASE_HEARTBEATS = 3;
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final int maxInFlightRequests;
+    private final int requestsPerSecond;
+    private final int heartbeatIntervalSeconds;
+    private final int dbTimeoutSeconds;
+    private final AsyncRequestLimiter asyncRequestLimiter;
+    private final TokenBucket rateLimiter;
+    private final int localMaxInFlightRequests;
+    private final VertexDao dao;
+    private final Clock clock;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile int liveNodes = 1;
+
+    public VertexClusterLimits(final Properties properties,
+                               final VertexHttpTransport httpTransport,
+                               final VertexDao dao,
+                               final Clock clock) {
+        this(getIntProperty(properties, VERTEX_CLUSTER_MAX_IN_FLIGHT_REQUESTS_PROPERTY, DEFAULT_CLUSTER_MAX_IN_FLIGHT_REQUESTS),
+             getIntProperty(properties, VERTEX_CLUSTER_REQUESTS_PER_SECOND_PROPERTY, DEFAULT_CLUSTER_REQUESTS_PER_SECOND),
+             getIntProperty(properties, VERTEX_CLUSTER_HEARTBEAT_INTERVAL_SECONDS_PROPERTY, DEFAULT_CLUSTER_HEARTBEAT_INTERVAL_SECONDS),
+             getIntProperty(properties, VERTEX_CLUSTER_DB_TIMEOUT_SECONDS_PROPERTY, DEFAULT_CLUSTER_DB_TIMEOUT_SECONDS),
+             httpTransport.getAsyncRequestLimiter(),
+             httpTransport.getClusterRateLimiter(),
+             dao,
+             clock);
+    }
+
+    public VertexClusterLimits(final int maxInFlightRequests,
+                               final int requestsPerSecond,
+                               final int heartbeatIntervalSeconds,
+                               final int dbTimeoutSeconds,
+                               final AsyncRequestLimiter asyncRequestLimiter,
+                               @Nullable final TokenBucket rateLimiter,
+                               final VertexDao dao,
+                               final Clock clock) {
+        this.maxInFlightRequests = maxInFlightRequests;
+        this.requestsPerSecond = requestsPerSecond;
+        this.heartbeatIntervalSeconds = heartbeatIntervalSeconds;
+        this.dbTimeoutSeconds = Math.max(dbTimeoutSeconds, 1);
+        this.asyncRequestLimiter = asyncRequestLimiter;
+        this.rateLimiter = requestsPerSecond > 0 ? rateLimiter : null;
+        // The share of this node never exceeds its own configuration (e.g. its connection pool)
+        this.localMaxInFlightRequests = asyncRequestLimiter.getMaxInFlightRequests();
+        this.dao = dao;
+        this.clock = clock;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("vertex-cluster-heartbeat-%d")
+                                                                                             .setDaemon(true)
+                                                                                             .build());
+        applyShare(1);
+    }
+
+    public void start() {
+        if (maxInFlightRequests <= 0 && rateLimiter == null) {
+            logger.info("Vertex cluster limits disabled, limits are enforced per node");
+            return;
+        }
+        if (heartbeatIntervalSeconds <= 0) {
+            logger.warn("Vertex cluster limits without heartbeat, each node assumes it is alone: nodeId={}", nodeId);
+            return;
+        }
+        logger.info("Vertex cluster limits enabled: nodeId={}, maxInFlightRequests={}, requestsPerSecond={}",
+                    nodeId, maxInFlightRequests, requestsPerSecond);
+        scheduler.scheduleWithFixedDelay(this::heartbeat, 0, heartbeatIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public int getLiveNodes() {
+        return liveNodes;
+    }
+
+    @VisibleForTesting
+    void heartbeat() {
+        final DateTime utcNow = clock.getUTCNow();
+        final int nbNodes;
+        try {
+            nbNodes = dao.renewNodeLease(nodeId, utcNow.plusSeconds(LEASE_HEARTBEATS * heartbeatIntervalSeconds), utcNow, dbTimeoutSeconds);
+        } catch (final SQLException | RuntimeException e) {
+            // Timeouts included: the next heartbeat will try again
+            logger.warn("Unable to renew the lease of node {}, keeping the limits of {} node(s): {}", nodeId, liveNodes, e.toString());
+            return;
+        }
+
+        // At least this node
+        final int newLiveNodes = Math.max(nbNodes, 1);
+        if (newLiveNodes != liveNodes) {
+            logger.info("Vertex cluster now has {} node(s), was {}", newLiveNodes, liveNodes);
+        }
+        applyShare(newLiveNodes);
+    }
+
+    private void applyShare(final int nbNodes) {
+        liveNodes = nbNodes;
+        if (maxInFlightRequests > 0) {
+            asyncRequestLimiter.setMaxInFlightRequests(Math.min(localMaxInFlightRequests, Math.max(maxInFlightRequests / nbNodes, 1)));
+        }
+        if (rateLimiter != null) {
+            // Bursts of up to one second of the share
+            final int share = Math.max(requestsPerSecond / nbNodes, 1);
+            rateLimiter.setRate(share, share);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        if (maxInFlightRequests <= 0 && rateLimiter == null) {
+            return;
+        }
+        try {
+            // Don't let a heartbeat in progress renew the lease after its release
+            scheduler.awaitTermination(dbTimeoutSeconds, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        // Let the other nodes take over the share of this one right away, instead of after the lease expiration
+        try {
+            dao.deleteNodeLease(nodeId);
+        } catch (final SQLException | RuntimeException e) {
+            logger.warn("Unable to release the lease of node {}: {}", nodeId, e.toString());
+        }
+    }
+}
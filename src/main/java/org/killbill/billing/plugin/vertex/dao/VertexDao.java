@@ -19,8 +19,12 @@ package org.killbill.billing.plugin.vertex.dao;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -32,26 +36,43 @@ import javax.annotation.Nullable;
 import javax.sql.DataSource;
 
 import org.joda.time.DateTime;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.exception.DataAccessException;
+import org.jooq.exception.SQLStateClass;
 import org.jooq.impl.DSL;
 import org.killbill.billing.invoice.api.InvoiceItem;
 import org.killbill.billing.plugin.dao.PluginDao;
 import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessResponseTransactionResponseType;
+import org.killbill.billing.plugin.vertex.gen.client.model.OwnerResponseLineItemType;
+import org.killbill.billing.plugin.vertex.gen.dao.model.tables.records.VertexOutboxRecord;
 import org.killbill.billing.plugin.vertex.gen.dao.model.tables.records.VertexResponsesRecord;
+import org.killbill.billing.plugin.vertex.gen.dao.model.tables.records.VertexTaxAreasRecord;
+import org.killbill.billing.plugin.vertex.gen.dao.model.tables.records.VertexTaxCodeMappingsRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 
+import static org.killbill.billing.plugin.vertex.gen.dao.model.Tables.VERTEX_NODES;
+import static org.killbill.billing.plugin.vertex.gen.dao.model.Tables.VERTEX_OUTBOX;
 import static org.killbill.billing.plugin.vertex.gen.dao.model.Tables.VERTEX_RESPONSES;
+import static org.killbill.billing.plugin.vertex.gen.dao.model.Tables.VERTEX_TAX_AREAS;
+import static org.killbill.billing.plugin.vertex.gen.dao.model.Tables.VERTEX_TAX_CODE_MAPPINGS;
 
 public class VertexDao extends PluginDao {
 
     private static final Logger logger = LoggerFactory.getLogger(VertexDao.class);
     private static final String SUCCESS = "SUCCESS";
     private static final String ERROR = "ERROR";
+    private static final String PREVIEW = "PREVIEW";
+    private static final String HELD = "HELD";
+    private static final String PENDING = "PENDING";
+    private static final String FAILED = "FAILED";
 
     static {
         objectMapper.registerModule(new JavaTimeModule());
@@ -68,7 +89,51 @@ public class VertexDao extends PluginDao {
                             final ApiSuccessResponseTransactionResponseType taxResult,
                             final DateTime utcNow,
                             final UUID kbTenantId) throws SQLException {
+        addResponse(kbAccountId, kbInvoiceId, kbInvoiceItems, taxResult, null, null, utcNow, kbTenantId);
+    }
+
+    /**
+     * @param docCode            code of the Vertex document, if not the one of the response (e.g. quote posted later, under another document number)
+     * @param requestFingerprint fingerprint of the request (see QuoteCache), for previews of identical requests to be rebuilt from this response
+     */
+    public void addResponse(final UUID kbAccountId,
+                            final UUID kbInvoiceId,
+                            final Map<UUID, Iterable<InvoiceItem>> kbInvoiceItems,
+                            final ApiSuccessResponseTransactionResponseType taxResult,
+                            @Nullable final String docCode,
+                            @Nullable final String requestFingerprint,
+                            final DateTime utcNow,
+                            final UUID kbTenantId) throws SQLException {
+        addResponse(kbAccountId, kbInvoiceId, kbInvoiceItems, taxResult, docCode, requestFingerprint, SUCCESS, utcNow, kbTenantId);
+    }
+
+    /**
+     * Store the response of a preview (dry-run invoice), for identical previews to be rebuilt from it. These responses are
+     * only returned by {@link #getSuccessfulResponsesByFingerprint} when previews are included, never for real invoices.
+     */
+    public void addPreviewResponse(final UUID kbAccountId,
+                                   final UUID kbInvoiceId,
+                                   final Map<UUID, Iterable<InvoiceItem>> kbInvoiceItems,
+                                   final ApiSuccessResponseTransactionResponseType taxResult,
+                                   final String requestFingerprint,
+                                   final DateTime utcNow,
+                                   final UUID kbTenantId) throws SQLException {
+        addResponse(kbAccountId, kbInvoiceId, kbInvoiceItems, taxResult, null, requestFingerprint, PREVIEW, utcNow, kbTenantId);
+    }
 
+    public static boolean isPreviewResponse(final VertexResponsesRecord response) {
+        return PREVIEW.equals(response.getResultCode());
+    }
+
+    private void addResponse(final UUID kbAccountId,
+                             final UUID kbInvoiceId,
+                             final Map<UUID, Iterable<InvoiceItem>> kbInvoiceItems,
+                             final ApiSuccessResponseTransactionResponseType taxResult,
+                             @Nullable final String docCode,
+                             @Nullable final String requestFingerprint,
+                             final String resultCode,
+                             final DateTime utcNow,
+                             final UUID kbTenantId) throws SQLException {
         if (Objects.isNull(taxResult.getData())) {
             return;
         }
@@ -98,12 +163,13 @@ public class VertexDao extends PluginDao {
                                    VERTEX_RESPONSES.RESULT_CODE,
                                    VERTEX_RESPONSES.MESSAGES,
                                    VERTEX_RESPONSES.ADDITIONAL_DATA,
+                                   VERTEX_RESPONSES.REQUEST_FINGERPRINT,
                                    VERTEX_RESPONSES.CREATED_DATE,
                                    VERTEX_RESPONSES.KB_TENANT_ID)
                        .values(kbAccountId.toString(),
                                kbInvoiceId.toString(),
                                kbInvoiceItemsIdsAsString(kbInvoiceItems),
-                               vertexResponseDataExtractor.getDocumentCode(),
+                               docCode == null ? vertexResponseDataExtractor.getDocumentCode() : docCode,
                                vertexResponseDataExtractor.getDocumentDate(),
                                null,
                                vertexResponseDataExtractor.getTotalAmount(),
@@ -116,9 +182,10 @@ public class VertexDao extends PluginDao {
                                asString(vertexResponseDataExtractor.getTaxLines()),
                                asString(vertexResponseDataExtractor.getTaxSummary()),
                                asString(vertexResponseDataExtractor.getAddresses()),
-                               SUCCESS,
+                               resultCode,
                                null,
                                null,
+                               requestFingerprint,
                                toLocalDateTime(utcNow),
                                kbTenantId.toString())
                        .execute();
@@ -127,6 +194,74 @@ public class VertexDao extends PluginDao {
     }
 
     // !Success
+    /**
+     * Store a copy of a response for another invoice (e.g. answered for an attempt whose invoice wasn't committed), so that
+     * its items are known to be taxed and its document is found when the invoice is voided
+     *
+     * @param docCode code of the Vertex document, if not the one of the stored response
+     */
+    public void addReplayedResponse(final UUID kbInvoiceId,
+                                    final Map<UUID, Iterable<InvoiceItem>> kbInvoiceItems,
+                                    final Integer storedResponseRecordId,
+                                    @Nullable final String docCode,
+                                    final DateTime utcNow,
+                                    final UUID kbTenantId) throws SQLException {
+        execute(dataSource.getConnection(),
+                (WithConnectionCallback<Void>) conn -> {
+                    DSL.using(conn, dialect, settings)
+                       .insertInto(VERTEX_RESPONSES,
+                                   VERTEX_RESPONSES.KB_ACCOUNT_ID,
+                                   VERTEX_RESPONSES.KB_INVOICE_ID,
+                                   VERTEX_RESPONSES.KB_INVOICE_ITEM_IDS,
+                                   VERTEX_RESPONSES.DOC_CODE,
+                                   VERTEX_RESPONSES.DOC_DATE,
+                                   VERTEX_RESPONSES.TIMESTAMP,
+                                   VERTEX_RESPONSES.TOTAL_AMOUNT,
+                                   VERTEX_RESPONSES.TOTAL_DISCOUNT,
+                                   VERTEX_RESPONSES.TOTAL_EXEMPTION,
+                                   VERTEX_RESPONSES.TOTAL_TAXABLE,
+                                   VERTEX_RESPONSES.TOTAL_TAX,
+                                   VERTEX_RESPONSES.TOTAL_TAX_CALCULATED,
+                                   VERTEX_RESPONSES.TAX_DATE,
+                                   VERTEX_RESPONSES.TAX_LINES,
+                                   VERTEX_RESPONSES.TAX_SUMMARY,
+                                   VERTEX_RESPONSES.TAX_ADDRESSES,
+                                   VERTEX_RESPONSES.RESULT_CODE,
+                                   VERTEX_RESPONSES.MESSAGES,
+                                   VERTEX_RESPONSES.ADDITIONAL_DATA,
+                                   VERTEX_RESPONSES.REQUEST_FINGERPRINT,
+                                   VERTEX_RESPONSES.CREATED_DATE,
+                                   VERTEX_RESPONSES.KB_TENANT_ID)
+                       .select(DSL.select(VERTEX_RESPONSES.KB_ACCOUNT_ID,
+                                          DSL.val(kbInvoiceId.toString()),
+                                          DSL.val(kbInvoiceItemsIdsAsString(kbInvoiceItems)),
+                                          docCode == null ? VERTEX_RESPONSES.DOC_CODE : DSL.val(docCode),
+                                          VERTEX_RESPONSES.DOC_DATE,
+                                          VERTEX_RESPONSES.TIMESTAMP,
+                                          VERTEX_RESPONSES.TOTAL_AMOUNT,
+                                          VERTEX_RESPONSES.TOTAL_DISCOUNT,
+                                          VERTEX_RESPONSES.TOTAL_EXEMPTION,
+                                          VERTEX_RESPONSES.TOTAL_TAXABLE,
+                                          VERTEX_RESPONSES.TOTAL_TAX,
+                                          VERTEX_RESPONSES.TOTAL_TAX_CALCULATED,
+                                          VERTEX_RESPONSES.TAX_DATE,
+                                          VERTEX_RESPONSES.TAX_LINES,
+                                          VERTEX_RESPONSES.TAX_SUMMARY,
+                                          VERTEX_RESPONSES.TAX_ADDRESSES,
+                                          VERTEX_RESPONSES.RESULT_CODE,
+                                          VERTEX_RESPONSES.MESSAGES,
+                                          VERTEX_RESPONSES.ADDITIONAL_DATA,
+                                          VERTEX_RESPONSES.REQUEST_FINGERPRINT,
+                                          DSL.val(toLocalDateTime(utcNow)),
+                                          VERTEX_RESPONSES.KB_TENANT_ID)
+                                  .from(VERTEX_RESPONSES)
+                                  .where(VERTEX_RESPONSES.RECORD_ID.equal(storedResponseRecordId))
+                                  .and(VERTEX_RESPONSES.KB_TENANT_ID.equal(kbTenantId.toString())))
+                       .execute();
+                    return null;
+                });
+    }
+
     public void addResponse(final UUID kbAccountId,
                             final UUID kbInvoiceId,
                             final Map<UUID, Iterable<InvoiceItem>> kbInvoiceItems,
@@ -168,6 +303,105 @@ public class VertexDao extends PluginDao {
                                   .fetch());
     }
 
+    /**
+     * @return the successful responses of each invoice (invoices without any response are omitted), in a single query
+     */
+    public Map<UUID, List<VertexResponsesRecord>> getSuccessfulResponses(final Collection<UUID> invoiceIds, final UUID kbTenantId) throws SQLException {
+        return getSuccessfulResponses(invoiceIds, kbTenantId, VERTEX_RESPONSES.fields());
+    }
+
+    /**
+     * Lightweight version of {@link #getSuccessfulResponses(Collection, UUID)}: only the record_id, kb_invoice_id and
+     * kb_invoice_item_ids columns are populated, which is all the tax calculation needs.
+     */
+    public Map<UUID, List<VertexResponsesRecord>> getSuccessfulResponseSummaries(final Collection<UUID> invoiceIds, final UUID kbTenantId) throws SQLException {
+        return getSuccessfulResponses(invoiceIds, kbTenantId, VERTEX_RESPONSES.RECORD_ID, VERTEX_RESPONSES.KB_INVOICE_ID, VERTEX_RESPONSES.KB_INVOICE_ITEM_IDS);
+    }
+
+    private Map<UUID, List<VertexResponsesRecord>> getSuccessfulResponses(final Collection<UUID> invoiceIds, final UUID kbTenantId, final Field<?>... fields) throws SQLException {
+        if (invoiceIds.isEmpty()) {
+            return ImmutableMap.of();
+        }
+
+        final Set<String> kbInvoiceIds = new HashSet<>();
+        for (final UUID invoiceId : invoiceIds) {
+            kbInvoiceIds.add(invoiceId.toString());
+        }
+
+        final List<VertexResponsesRecord> responses = execute(dataSource.getConnection(),
+                                                              (WithConnectionCallback<List<VertexResponsesRecord>>) conn ->
+                                                                      DSL.using(conn, dialect, settings)
+                                                                         .select(fields)
+                                                                         .from(VERTEX_RESPONSES)
+                                                                         .where(VERTEX_RESPONSES.KB_INVOICE_ID.in(kbInvoiceIds))
+                                                                         .and(VERTEX_RESPONSES.RESULT_CODE.equal(SUCCESS))
+                                                                         .and(VERTEX_RESPONSES.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                                                         .orderBy(VERTEX_RESPONSES.RECORD_ID.asc())
+                                                                         .fetchInto(VERTEX_RESPONSES));
+
+        final Map<UUID, List<VertexResponsesRecord>> responsesByInvoiceId = new LinkedHashMap<>();
+        for (final VertexResponsesRecord response : responses) {
+            responsesByInvoiceId.computeIfAbsent(UUID.fromString(response.getKbInvoiceId()), k -> new ArrayList<>()).add(response);
+        }
+        return responsesByInvoiceId;
+    }
+
+    /**
+     * @return the successful responses of the account for each of these request fingerprints, most recent first (only the
+     * record_id, kb_invoice_id, kb_invoice_item_ids, doc_code, request_fingerprint, tax_lines and result_code columns are
+     * populated), if created after createdAfter (when specified), including the responses of previews if includePreviews
+     */
+    public Map<String, List<VertexResponsesRecord>> getSuccessfulResponsesByFingerprint(final UUID kbAccountId,
+                                                                                        final Collection<String> requestFingerprints,
+                                                                                        @Nullable final DateTime createdAfter,
+                                                                                        final boolean includePreviews,
+                                                                                        final UUID kbTenantId) throws SQLException {
+        if (requestFingerprints.isEmpty()) {
+            return ImmutableMap.of();
+        }
+
+        final List<VertexResponsesRecord> responses = execute(dataSource.getConnection(),
+                                                              (WithConnectionCallback<List<VertexResponsesRecord>>) conn ->
+                                                                      DSL.using(conn, dialect, settings)
+                                                                         .select(VERTEX_RESPONSES.RECORD_ID,
+                                                                                 VERTEX_RESPONSES.KB_INVOICE_ID,
+                                                                                 VERTEX_RESPONSES.KB_INVOICE_ITEM_IDS,
+                                                                                 VERTEX_RESPONSES.DOC_CODE,
+                                                                                 VERTEX_RESPONSES.REQUEST_FINGERPRINT,
+                                                                                 VERTEX_RESPONSES.TAX_LINES,
+                                                                                 VERTEX_RESPONSES.RESULT_CODE)
+                                                                         .from(VERTEX_RESPONSES)
+                                                                         .where(VERTEX_RESPONSES.KB_ACCOUNT_ID.equal(kbAccountId.toString()))
+                                                                         .and(VERTEX_RESPONSES.REQUEST_FINGERPRINT.in(requestFingerprints))
+                                                                         .and(includePreviews ? VERTEX_RESPONSES.RESULT_CODE.in(SUCCESS, PREVIEW) : VERTEX_RESPONSES.RESULT_CODE.equal(SUCCESS))
+                                                                         .and(createdAfter == null ? DSL.noCondition() : VERTEX_RESPONSES.CREATED_DATE.greaterOrEqual(toLocalDateTime(createdAfter)))
+                                                                         .and(VERTEX_RESPONSES.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                                                         .orderBy(VERTEX_RESPONSES.RECORD_ID.desc())
+                                                                         .fetchInto(VERTEX_RESPONSES));
+
+        final Map<String, List<VertexResponsesRecord>> responsesByFingerprint = new HashMap<>();
+        for (final VertexResponsesRecord response : responses) {
+            responsesByFingerprint.computeIfAbsent(response.getRequestFingerprint(), k -> new ArrayList<>()).add(response);
+        }
+        return responsesByFingerprint;
+    }
+
+    /**
+     * @return the tax lines of this response, or null if they cannot be read
+     */
+    @Nullable
+    public List<OwnerResponseLineItemType> getTaxLines(final VertexResponsesRecord response) {
+        if (Strings.isNullOrEmpty(response.getTaxLines())) {
+            return null;
+        }
+        try {
+            return objectMapper.readValue(response.getTaxLines(), new TypeReference<List<OwnerResponseLineItemType>>() {});
+        } catch (final IOException e) {
+            logger.warn("Corrupted tax lines for response record_id {}", response.getRecordId(), e);
+            return null;
+        }
+    }
+
     public Map<UUID, Set<UUID>> getTaxedItemsWithAdjustments(final Iterable<VertexResponsesRecord> responses) {
         final Map<UUID, Set<UUID>> kbInvoiceItemsIds = new HashMap<>();
         for (final VertexResponsesRecord response : responses) {
@@ -181,6 +415,454 @@ public class VertexDao extends PluginDao {
         return kbInvoiceItemsIds;
     }
 
+    @Nullable
+    public VertexTaxAreasRecord getTaxArea(final String addressHash, final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       (WithConnectionCallback<VertexTaxAreasRecord>) conn ->
+                               DSL.using(conn, dialect, settings)
+                                  .selectFrom(VERTEX_TAX_AREAS)
+                                  .where(VERTEX_TAX_AREAS.ADDRESS_HASH.equal(addressHash))
+                                  .and(VERTEX_TAX_AREAS.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                  .fetchOne());
+    }
+
+    /**
+     * Insert or update the tax area id of an address
+     */
+    public void addTaxArea(final String addressHash,
+                           final String address,
+                           final String taxAreaId,
+                           final DateTime utcNow,
+                           final UUID kbTenantId) throws SQLException {
+        execute(dataSource.getConnection(),
+                (WithConnectionCallback<Void>) conn -> {
+                    final DSLContext dslContext = DSL.using(conn, dialect, settings);
+                    if (updateTaxArea(dslContext, addressHash, taxAreaId, utcNow, kbTenantId) > 0) {
+                        return null;
+                    }
+                    try {
+                        dslContext.insertInto(VERTEX_TAX_AREAS,
+                                              VERTEX_TAX_AREAS.ADDRESS_HASH,
+                                              VERTEX_TAX_AREAS.ADDRESS,
+                                              VERTEX_TAX_AREAS.TAX_AREA_ID,
+                                              VERTEX_TAX_AREAS.CREATED_DATE,
+                                              VERTEX_TAX_AREAS.UPDATED_DATE,
+                                              VERTEX_TAX_AREAS.KB_TENANT_ID)
+                                  .values(addressHash,
+                                          address,
+                                          taxAreaId,
+                                          toLocalDateTime(utcNow),
+                                          toLocalDateTime(utcNow),
+                                          kbTenantId.toString())
+                                  .execute();
+                    } catch (final DataAccessException e) {
+                        if (e.sqlStateClass() != SQLStateClass.C23_INTEGRITY_CONSTRAINT_VIOLATION) {
+                            throw e;
+                        }
+                        // Inserted concurrently (e.g. same address resolved on another node): the unique index keeps a single row
+                        updateTaxArea(dslContext, addressHash, taxAreaId, utcNow, kbTenantId);
+                    }
+                    return null;
+                });
+    }
+
+    private int updateTaxArea(final DSLContext dslContext,
+                              final String addressHash,
+                              final String taxAreaId,
+                              final DateTime utcNow,
+                              final UUID kbTenantId) {
+        return dslContext.update(VERTEX_TAX_AREAS)
+                         .set(VERTEX_TAX_AREAS.TAX_AREA_ID, taxAreaId)
+                         .set(VERTEX_TAX_AREAS.UPDATED_DATE, toLocalDateTime(utcNow))
+                         .where(VERTEX_TAX_AREAS.ADDRESS_HASH.equal(addressHash))
+                         .and(VERTEX_TAX_AREAS.KB_TENANT_ID.equal(kbTenantId.toString()))
+                         .execute();
+    }
+
+    public List<UUID> getTaxAreaTenants() throws SQLException {
+        final List<String> kbTenantIds = execute(dataSource.getConnection(),
+                                                 (WithConnectionCallback<List<String>>) conn ->
+                                                         DSL.using(conn, dialect, settings)
+                                                            .selectDistinct(VERTEX_TAX_AREAS.KB_TENANT_ID)
+                                                            .from(VERTEX_TAX_AREAS)
+                                                            .fetch(VERTEX_TAX_AREAS.KB_TENANT_ID));
+        final List<UUID> tenantIds = new ArrayList<>(kbTenantIds.size());
+        for (final String kbTenantId : kbTenantIds) {
+            tenantIds.add(UUID.fromString(kbTenantId));
+        }
+        return tenantIds;
+    }
+
+    /**
+     * @return the tax area ids of the tenant, with the date they were last resolved or checked for changes (oldest entry)
+     */
+    public Map<String, LocalDateTime> getTaxAreaIds(final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       (WithConnectionCallback<Map<String, LocalDateTime>>) conn ->
+                               DSL.using(conn, dialect, settings)
+                                  .select(VERTEX_TAX_AREAS.TAX_AREA_ID, DSL.min(VERTEX_TAX_AREAS.UPDATED_DATE))
+                                  .from(VERTEX_TAX_AREAS)
+                                  .where(VERTEX_TAX_AREAS.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                  .groupBy(VERTEX_TAX_AREAS.TAX_AREA_ID)
+                                  .fetchMap(VERTEX_TAX_AREAS.TAX_AREA_ID, DSL.min(VERTEX_TAX_AREAS.UPDATED_DATE)));
+    }
+
+    /**
+     * Mark the entries of a tax area (or of all tax areas, if null) as up-to-date
+     */
+    public void touchTaxAreas(@Nullable final String taxAreaId, final DateTime utcNow, final UUID kbTenantId) throws SQLException {
+        execute(dataSource.getConnection(),
+                (WithConnectionCallback<Void>) conn -> {
+                    DSL.using(conn, dialect, settings)
+                       .update(VERTEX_TAX_AREAS)
+                       .set(VERTEX_TAX_AREAS.UPDATED_DATE, toLocalDateTime(utcNow))
+                       .where(VERTEX_TAX_AREAS.KB_TENANT_ID.equal(kbTenantId.toString()))
+                       .and(taxAreaId == null ? DSL.noCondition() : VERTEX_TAX_AREAS.TAX_AREA_ID.equal(taxAreaId))
+                       .execute();
+                    return null;
+                });
+    }
+
+    public int deleteTaxAreas(final String taxAreaId, final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       (WithConnectionCallback<Integer>) conn ->
+                               DSL.using(conn, dialect, settings)
+                                  .deleteFrom(VERTEX_TAX_AREAS)
+                                  .where(VERTEX_TAX_AREAS.TAX_AREA_ID.equal(taxAreaId))
+                                  .and(VERTEX_TAX_AREAS.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                  .execute());
+    }
+
+    public List<VertexTaxCodeMappingsRecord> getTaxCodeMappings(final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       (WithConnectionCallback<List<VertexTaxCodeMappingsRecord>>) conn ->
+                               DSL.using(conn, dialect, settings)
+                                  .selectFrom(VERTEX_TAX_CODE_MAPPINGS)
+                                  .where(VERTEX_TAX_CODE_MAPPINGS.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                  .orderBy(VERTEX_TAX_CODE_MAPPINGS.RECORD_ID.asc())
+                                  .fetch());
+    }
+
+    /**
+     * Insert or update the Vertex product of a catalog entry (product, plan, phase or usage name)
+     */
+    public void addTaxCodeMapping(final String catalogType,
+                                  final String catalogName,
+                                  @Nullable final String productClass,
+                                  @Nullable final String productValue,
+                                  final DateTime utcNow,
+                                  final UUID kbTenantId) throws SQLException {
+        execute(dataSource.getConnection(),
+                (WithConnectionCallback<Void>) conn -> {
+                    final DSLContext dslContext = DSL.using(conn, dialect, settings);
+                    if (updateTaxCodeMapping(dslContext, catalogType, catalogName, productClass, productValue, utcNow, kbTenantId) > 0) {
+                        return null;
+                    }
+                    try {
+                        dslContext.insertInto(VERTEX_TAX_CODE_MAPPINGS,
+                                              VERTEX_TAX_CODE_MAPPINGS.CATALOG_TYPE,
+                                              VERTEX_TAX_CODE_MAPPINGS.CATALOG_NAME,
+                                              VERTEX_TAX_CODE_MAPPINGS.PRODUCT_CLASS,
+                                              VERTEX_TAX_CODE_MAPPINGS.PRODUCT_VALUE,
+                                              VERTEX_TAX_CODE_MAPPINGS.CREATED_DATE,
+                                              VERTEX_TAX_CODE_MAPPINGS.UPDATED_DATE,
+                                              VERTEX_TAX_CODE_MAPPINGS.KB_TENANT_ID)
+                                  .values(catalogType,
+                                          catalogName,
+                                          productClass,
+                                          productValue,
+                                          toLocalDateTime(utcNow),
+                                          toLocalDateTime(utcNow),
+                                          kbTenantId.toString())
+                                  .execute();
+                    } catch (final DataAccessException e) {
+                        if (e.sqlStateClass() != SQLStateClass.C23_INTEGRITY_CONSTRAINT_VIOLATION) {
+                            throw e;
+                        }
+                        // Inserted concurrently (e.g. same mapping added on another node): the unique index keeps a single row
+                        updateTaxCodeMapping(dslContext, catalogType, catalogName, productClass, productValue, utcNow, kbTenantId);
+                    }
+                    return null;
+                });
+    }
+
+    private int updateTaxCodeMapping(final DSLContext dslContext,
+                                     final String catalogType,
+                                     final String catalogName,
+                                     @Nullable final String productClass,
+                                     @Nullable final String productValue,
+                                     final DateTime utcNow,
+                                     final UUID kbTenantId) {
+        return dslContext.update(VERTEX_TAX_CODE_MAPPINGS)
+                         .set(VERTEX_TAX_CODE_MAPPINGS.PRODUCT_CLASS, productClass)
+                         .set(VERTEX_TAX_CODE_MAPPINGS.PRODUCT_VALUE, productValue)
+                         .set(VERTEX_TAX_CODE_MAPPINGS.UPDATED_DATE, toLocalDateTime(utcNow))
+                         .where(VERTEX_TAX_CODE_MAPPINGS.CATALOG_TYPE.equal(catalogType))
+                         .and(VERTEX_TAX_CODE_MAPPINGS.CATALOG_NAME.equal(catalogName))
+                         .and(VERTEX_TAX_CODE_MAPPINGS.KB_TENANT_ID.equal(kbTenantId.toString()))
+                         .execute();
+    }
+
+    public int deleteTaxCodeMapping(final String catalogType, final String catalogName, final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       (WithConnectionCallback<Integer>) conn ->
+                               DSL.using(conn, dialect, settings)
+                                  .deleteFrom(VERTEX_TAX_CODE_MAPPINGS)
+                                  .where(VERTEX_TAX_CODE_MAPPINGS.CATALOG_TYPE.equal(catalogType))
+                                  .and(VERTEX_TAX_CODE_MAPPINGS.CATALOG_NAME.equal(catalogName))
+                                  .and(VERTEX_TAX_CODE_MAPPINGS.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                  .execute());
+    }
+
+    /**
+     * Insert the operations to run on these Vertex documents (or schedule them again, if already present)
+     *
+     * @param payloads        optional payload of the operation, by document code
+     * @param nextAttemptDate when to run the operations, null to hold them until released
+     */
+    public void addOutboxEntries(final UUID kbInvoiceId,
+                                 final String operation,
+                                 final Map<String, String> payloads,
+                                 @Nullable final DateTime nextAttemptDate,
+                                 final DateTime utcNow,
+                                 final UUID kbTenantId) throws SQLException {
+        final String status = nextAttemptDate == null ? HELD : PENDING;
+        final LocalDateTime nextAttempt = toLocalDateTime(nextAttemptDate == null ? utcNow : nextAttemptDate);
+        execute(dataSource.getConnection(),
+                (WithConnectionCallback<Void>) conn -> {
+                    DSL.using(conn, dialect, settings).transaction(configuration -> {
+                        for (final Entry<String, String> payload : payloads.entrySet()) {
+                            final int updated = DSL.using(configuration)
+                                                   .update(VERTEX_OUTBOX)
+                                                   .set(VERTEX_OUTBOX.PAYLOAD, payload.getValue())
+                                                   .set(VERTEX_OUTBOX.STATUS, status)
+                                                   .set(VERTEX_OUTBOX.ATTEMPTS, 0)
+                                                   .set(VERTEX_OUTBOX.NEXT_ATTEMPT_DATE, nextAttempt)
+                                                   .set(VERTEX_OUTBOX.UPDATED_DATE, toLocalDateTime(utcNow))
+                                                   .where(VERTEX_OUTBOX.OPERATION.equal(operation))
+                                                   .and(VERTEX_OUTBOX.DOC_CODE.equal(payload.getKey()))
+                                                   .and(VERTEX_OUTBOX.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                                   .execute();
+                            if (updated == 0) {
+                                DSL.using(configuration)
+                                   .insertInto(VERTEX_OUTBOX,
+                                               VERTEX_OUTBOX.KB_INVOICE_ID,
+                                               VERTEX_OUTBOX.OPERATION,
+                                               VERTEX_OUTBOX.DOC_CODE,
+                                               VERTEX_OUTBOX.PAYLOAD,
+                                               VERTEX_OUTBOX.STATUS,
+                                               VERTEX_OUTBOX.ATTEMPTS,
+                                               VERTEX_OUTBOX.NEXT_ATTEMPT_DATE,
+                                               VERTEX_OUTBOX.CREATED_DATE,
+                                               VERTEX_OUTBOX.UPDATED_DATE,
+                                               VERTEX_OUTBOX.KB_TENANT_ID)
+                                   .values(kbInvoiceId.toString(),
+                                           operation,
+                                           payload.getKey(),
+                                           payload.getValue(),
+                                           status,
+                                           0,
+                                           nextAttempt,
+                                           toLocalDateTime(utcNow),
+                                           toLocalDateTime(utcNow),
+                                           kbTenantId.toString())
+                                   .execute();
+                            }
+                        }
+                    });
+                    return null;
+                });
+    }
+
+    /**
+     * Schedule the held operations of an invoice right away
+     *
+     * @return the number of operations released
+     */
+    public int releaseOutboxEntries(final UUID kbInvoiceId, final String operation, final DateTime utcNow, final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       (WithConnectionCallback<Integer>) conn ->
+                               DSL.using(conn, dialect, settings)
+                                  .update(VERTEX_OUTBOX)
+                                  .set(VERTEX_OUTBOX.STATUS, PENDING)
+                                  .set(VERTEX_OUTBOX.NEXT_ATTEMPT_DATE, toLocalDateTime(utcNow))
+                                  .set(VERTEX_OUTBOX.UPDATED_DATE, toLocalDateTime(utcNow))
+                                  .where(VERTEX_OUTBOX.KB_INVOICE_ID.equal(kbInvoiceId.toString()))
+                                  .and(VERTEX_OUTBOX.OPERATION.equal(operation))
+                                  .and(VERTEX_OUTBOX.STATUS.equal(HELD))
+                                  .and(VERTEX_OUTBOX.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                  .execute());
+    }
+
+    /**
+     * Remove the operations of an invoice (whatever their status)
+     *
+     * @return the operations removed
+     */
+    public List<VertexOutboxRecord> deleteOutboxEntries(final UUID kbInvoiceId, final String operation, final UUID kbTenantId) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       (WithConnectionCallback<List<VertexOutboxRecord>>) conn ->
+                               DSL.using(conn, dialect, settings).transactionResult(configuration -> {
+                                   final List<VertexOutboxRecord> entries = DSL.using(configuration)
+                                                                               .selectFrom(VERTEX_OUTBOX)
+                                                                               .where(VERTEX_OUTBOX.KB_INVOICE_ID.equal(kbInvoiceId.toString()))
+                                                                               .and(VERTEX_OUTBOX.OPERATION.equal(operation))
+                                                                               .and(VERTEX_OUTBOX.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                                                               .forUpdate()
+                                                                               .fetch();
+                                   for (final VertexOutboxRecord entry : entries) {
+                                       DSL.using(configuration)
+                                          .deleteFrom(VERTEX_OUTBOX)
+                                          .where(VERTEX_OUTBOX.RECORD_ID.equal(entry.getRecordId()))
+                                          .execute();
+                                   }
+                                   return entries;
+                               }));
+    }
+
+    /**
+     * @return the pending operations (all tenants) due at utcNow, oldest first
+     */
+    public List<VertexOutboxRecord> getDueOutboxEntries(final DateTime utcNow, final int limit) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       (WithConnectionCallback<List<VertexOutboxRecord>>) conn ->
+                               DSL.using(conn, dialect, settings)
+                                  .selectFrom(VERTEX_OUTBOX)
+                                  .where(VERTEX_OUTBOX.STATUS.equal(PENDING))
+                                  .and(VERTEX_OUTBOX.NEXT_ATTEMPT_DATE.lessOrEqual(toLocalDateTime(utcNow)))
+                                  .orderBy(VERTEX_OUTBOX.NEXT_ATTEMPT_DATE.asc(), VERTEX_OUTBOX.RECORD_ID.asc())
+                                  .limit(limit)
+                                  .fetch());
+    }
+
+    /**
+     * Claim a pending operation until leaseDate, unless another worker (or node) already did
+     *
+     * @return true if claimed
+     */
+    public boolean claimOutboxEntry(final Integer recordId, final int attempts, final DateTime leaseDate, final DateTime utcNow) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       (WithConnectionCallback<Boolean>) conn ->
+                               DSL.using(conn, dialect, settings)
+                                  .update(VERTEX_OUTBOX)
+                                  .set(VERTEX_OUTBOX.ATTEMPTS, attempts + 1)
+                                  .set(VERTEX_OUTBOX.NEXT_ATTEMPT_DATE, toLocalDateTime(leaseDate))
+                                  .set(VERTEX_OUTBOX.UPDATED_DATE, toLocalDateTime(utcNow))
+                                  .where(VERTEX_OUTBOX.RECORD_ID.equal(recordId))
+                                  .and(VERTEX_OUTBOX.STATUS.equal(PENDING))
+                                  .and(VERTEX_OUTBOX.ATTEMPTS.equal(attempts))
+                                  .execute() == 1);
+    }
+
+    /**
+     * Schedule a failed operation again, or give up on it (FAILED status) if nextAttemptDate is null
+     */
+    public void rescheduleOutboxEntry(final Integer recordId,
+                                      @Nullable final DateTime nextAttemptDate,
+                                      final String lastError,
+                                      final DateTime utcNow) throws SQLException {
+        execute(dataSource.getConnection(),
+                (WithConnectionCallback<Void>) conn -> {
+                    DSL.using(conn, dialect, settings)
+                       .update(VERTEX_OUTBOX)
+                       .set(VERTEX_OUTBOX.STATUS, nextAttemptDate == null ? FAILED : PENDING)
+                       .set(VERTEX_OUTBOX.NEXT_ATTEMPT_DATE, toLocalDateTime(nextAttemptDate == null ? utcNow : nextAttemptDate))
+                       .set(VERTEX_OUTBOX.LAST_ERROR, lastError)
+                       .set(VERTEX_OUTBOX.UPDATED_DATE, toLocalDateTime(utcNow))
+                       .where(VERTEX_OUTBOX.RECORD_ID.equal(recordId))
+                       .execute();
+                    return null;
+                });
+    }
+
+    public void deleteOutboxEntry(final Integer recordId) throws SQLException {
+        execute(dataSource.getConnection(),
+                (WithConnectionCallback<Void>) conn -> {
+                    DSL.using(conn, dialect, settings)
+                       .deleteFrom(VERTEX_OUTBOX)
+                       .where(VERTEX_OUTBOX.RECORD_ID.equal(recordId))
+                       .execute();
+                    return null;
+                });
+    }
+
+    /**
+     * @return the number of operations of the tenant, by status (HELD, PENDING or FAILED)
+     */
+    public Map<String, Integer> getOutboxBacklog(final UUID kbTenantId) throws SQLException {
+        final Map<String, Integer> counts = execute(dataSource.getConnection(),
+                                                    (WithConnectionCallback<Map<String, Integer>>) conn ->
+                                                            DSL.using(conn, dialect, settings)
+                                                               .select(VERTEX_OUTBOX.STATUS, DSL.count())
+                                                               .from(VERTEX_OUTBOX)
+                                                               .where(VERTEX_OUTBOX.KB_TENANT_ID.equal(kbTenantId.toString()))
+                                                               .groupBy(VERTEX_OUTBOX.STATUS)
+                                                               .fetchMap(VERTEX_OUTBOX.STATUS, DSL.count()));
+        final Map<String, Integer> backlog = new LinkedHashMap<>();
+        backlog.put(HELD, 0);
+        backlog.put(PENDING, 0);
+        backlog.put(FAILED, 0);
+        backlog.putAll(counts);
+        return backlog;
+    }
+
+    /**
+     * Renew (or take) the lease of this node, and expire the leases of the nodes which stopped renewing theirs
+     *
+     * @return the number of live nodes, this one included
+     */
+    public int renewNodeLease(final String nodeId,
+                              final DateTime leaseExpirationDate,
+                              final DateTime utcNow,
+                              final int timeoutSeconds) throws SQLException {
+        return execute(dataSource.getConnection(),
+                       (WithConnectionCallback<Integer>) conn ->
+                               DSL.using(conn, dialect, settings).transactionResult(configuration -> {
+                                   final DSLContext dslContext = DSL.using(configuration);
+                                   final int renewed = dslContext.update(VERTEX_NODES)
+                                                                 .set(VERTEX_NODES.LEASE_EXPIRATION_DATE, toLocalDateTime(leaseExpirationDate))
+                                                                 .set(VERTEX_NODES.UPDATED_DATE, toLocalDateTime(utcNow))
+                                                                 .where(VERTEX_NODES.NODE_ID.equal(nodeId))
+                                                                 .queryTimeout(timeoutSeconds)
+                                                                 .execute();
+                                   // Unlike the tax code mappings, no concurrent insert to worry about: node ids are random UUIDs,
+                                   // and only this node renews its own lease (from a single heartbeat thread)
+                                   if (renewed == 0) {
+                                       dslContext.insertInto(VERTEX_NODES,
+                                                             VERTEX_NODES.NODE_ID,
+                                                             VERTEX_NODES.LEASE_EXPIRATION_DATE,
+                                                             VERTEX_NODES.CREATED_DATE,
+                                                             VERTEX_NODES.UPDATED_DATE)
+                                                 .values(nodeId,
+                                                         toLocalDateTime(leaseExpirationDate),
+                                                         toLocalDateTime(utcNow),
+                                                         toLocalDateTime(utcNow))
+                                                 .queryTimeout(timeoutSeconds)
+                                                 .execute();
+                                   }
+
+                                   dslContext.deleteFrom(VERTEX_NODES)
+                                             .where(VERTEX_NODES.LEASE_EXPIRATION_DATE.lessThan(toLocalDateTime(utcNow)))
+                                             .queryTimeout(timeoutSeconds)
+                                             .execute();
+                                   return dslContext.selectCount()
+                                                    .from(VERTEX_NODES)
+                                                    .queryTimeout(timeoutSeconds)
+                                                    .fetchOne(0, int.class);
+                               }));
+    }
+
+    public void deleteNodeLease(final String nodeId) throws SQLException {
+        execute(dataSource.getConnection(),
+                (WithConnectionCallback<Void>) conn -> {
+                    DSL.using(conn, dialect, settings)
+                       .deleteFrom(VERTEX_NODES)
+                       .where(VERTEX_NODES.NODE_ID.equal(nodeId))
+                       .execute();
+                    return null;
+                });
+    }
+
     private void kbInvoiceItemsIdsFromString(@Nullable final String kbInvoiceItemsIdsAsString, final Map<UUID, Set<UUID>> kbInvoiceItemsIds) throws IOException {
         if (Strings.emptyToNull(kbInvoiceItemsIdsAsString) != null) {
             final Map<UUID, Set<UUID>> kbInvoiceItemsIdsAsMap = objectMapper.readValue(kbInvoiceItemsIdsAsString, new TypeReference<Map<UUID, Set<UUID>>>() {});
@@ -17,6 +17,7 @@
 
 package org.killbill.billing.plugin.vertex.health;
 
+import java.util.HashMap;
 import java.util.Map;
 
 import javax.annotation.Nullable;
@@ -26,6 +27,7 @@ import org.killbill.billing.plugin.vertex.VertexApiClient;
 import org.killbill.billing.plugin.vertex.VertexApiConfigurationHandler;
 import org.killbill.billing.plugin.vertex.gen.client.model.AddressLookupRequestType;
 import org.killbill.billing.plugin.vertex.gen.client.model.PostalAddressType;
+import org.killbill.billing.plugin.vertex.http.CircuitBreaker;
 import org.killbill.billing.tenant.api.Tenant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,6 +56,13 @@ public class VertexHealthcheck implements Healthcheck {
                 return HealthStatus.unHealthy(NOT_CONFIGURED_MSG);
             }
 
+            final Map<String, CircuitBreaker.State> circuitBreakerStates = vertexClient.getCircuitBreakerStates();
+            if (circuitBreakerStates.containsValue(CircuitBreaker.State.OPEN)) {
+                // Vertex isn't called while the breaker is open
+                logger.warn("health-check failed, circuit breakers open: {}", circuitBreakerStates);
+                return withClientDetails(false, "circuit breaker open", circuitBreakerStates, vertexClient);
+            }
+
             PostalAddressType address = new PostalAddressType();
             address.setCity("Redwood City");
             address.setCountry("USA");
@@ -66,9 +75,35 @@ public class VertexHealthcheck implements Healthcheck {
                 vertexClient.lookUpTaxAreaByAddress(addressLookupRequest);
             } catch (Exception e) {
                 logger.error("health-check via TaxAreaLookup API failed - " + e.getMessage());
-                return HealthStatus.unHealthy("health check failed");
+                return withClientDetails(false, "health check failed", circuitBreakerStates, vertexClient);
             }
-            return HealthStatus.healthy();
+            return withClientDetails(true, null, circuitBreakerStates, vertexClient);
+        }
+    }
+
+    private static HealthStatus withClientDetails(final boolean healthy,
+                                                  @Nullable final String message,
+                                                  final Map<String, CircuitBreaker.State> circuitBreakerStates,
+                                                  final VertexApiClient vertexClient) {
+        final Map<String, Object> details = new HashMap<>();
+        if (message != null) {
+            details.put("message", message);
+        }
+        for (final Map.Entry<String, CircuitBreaker.State> entry : circuitBreakerStates.entrySet()) {
+            details.put("circuitBreaker." + entry.getKey(), entry.getValue().name());
+        }
+        for (final Map.Entry<String, Long> entry : vertexClient.getRetryCounters().entrySet()) {
+            details.put("retry." + entry.getKey(), entry.getValue());
+        }
+        for (final Map.Entry<String, Long> entry : vertexClient.getConcurrencyLimiterStats().entrySet()) {
+            details.put("concurrency." + entry.getKey(), entry.getValue());
+        }
+        for (final Map.Entry<String, Long> entry : vertexClient.getRateLimiterStats().entrySet()) {
+            details.put("rateLimit." + entry.getKey(), entry.getValue());
+        }
+        for (final Map.Entry<String, Integer> entry : vertexClient.getSchedulingStats().entrySet()) {
+            details.put("scheduling." + entry.getKey(), entry.getValue());
         }
+        return new HealthStatus(healthy, details);
     }
 }
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.http;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+import org.killbill.billing.plugin.vertex.gen.ApiException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+/**
+ * Bounds the number of in-flight requests with a limit discovered from the observed latency (AIMD): the limit grows by
+ * about one every limit calls while at least half of it is used, and shrinks by 10% when Vertex shows signs of overload, i.e. timeouts,
+ * throttling (429, 503 and 504 responses), or when the recent latency exceeds latencyTolerance percent of the
+ * long-term latency. The limit is decreased at most once per round trip: calls started before the last decrease
+ * don't decrease it again.
+ * <p>
+ * Requests above the limit are queued (FIFO) without blocking the caller, and rejected
+ * (ConcurrencyLimitExceededException) if they can't be started within maxQueueWaitMs.
+ * <p>
+ * Requests go through one of two lanes. Commits may use the whole limit, and are always started before queued dry
+ * runs. Dry runs may only use dryRunShare percent of the limit, and are shed (rejected right away) as soon as commits
+ * have to wait: previews are dropped before invoice generation is slowed down.
+ * <p>
+ * A queued request started by the completion of another one on the same thread (e.g. a request rejected right away by
+ * the circuit breaker) is only started once that completion returns: requests are started one after the other, not
+ * nested in each other.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    public enum Lane {
+        // Invoice generation and commits
+        COMMIT,
+        // Previews (dryRun=true)
+        DRY_RUN
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+
+    // Requests to start once the request being started on this thread returns (null when none is being started)
+    private static final ThreadLocal<Deque<Runnable>> deferredStarts = new ThreadLocal<>();
+
+    private static final double DECREASE_RATIO = 0.9;
+    // Smoothing of the recent and long-term latencies
+    private static final double RECENT_LATENCY_WEIGHT = 0.1;
+    private static final double LONG_TERM_LATENCY_WEIGHT = 0.01;
+    // Latency samples needed before the latency is taken into account
+    private static final int WARM_UP_SAMPLES = 10;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double latencyTolerance;
+    private final long maxQueueWaitMs;
+    private final int dryRunShare;
+    private final Ticker ticker;
+
+    // Guarded by this
+    private final Deque<PendingRequest> pendingCommits = new ArrayDeque<>();
+    private final Deque<PendingRequest> pendingDryRuns = new ArrayDeque<>();
+    private double limit;
+    private int inFlightRequests;
+    private int inFlightDryRuns;
+    private long shedDryRuns;
+    private long nbSamples;
+    private double recentLatencyNanos;
+    private double longTermLatencyNanos;
+    private long lastDecreaseNanos;
+
+    public AdaptiveConcurrencyLimiter(final String name,
+                                      final int initialLimit,
+                                      final int minLimit,
+                                      final int maxLimit,
+                                      final int latencyTolerance,
+                                      final int maxQueueWaitMs,
+                                      final int dryRunShare,
+                                      final Ticker ticker) {
+        Preconditions.checkArgument(maxLimit > 0, "maxLimit must be positive: %s", maxLimit);
+        this.name = name;
+        this.maxLimit = maxLimit;
+        this.minLimit = Math.min(Math.max(minLimit, 1), maxLimit);
+        this.limit = Math.min(Math.max(initialLimit, this.minLimit), maxLimit);
+        this.latencyTolerance = Math.max(latencyTolerance, 100) / 100.0;
+        this.maxQueueWaitMs = Math.max(maxQueueWaitMs, 0);
+        this.dryRunShare = Math.min(Math.max(dryRunShare, 0), 100);
+        this.ticker = ticker;
+        this.lastDecreaseNanos = ticker.read();
+    }
+
+    public <T> CompletableFuture<T> submit(final Supplier<CompletableFuture<T>> request) {
+        return submit(Lane.COMMIT, request);
+    }
+
+    public <T> CompletableFuture<T> submit(final Lane lane, final Supplier<CompletableFuture<T>> request) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final PendingRequest pendingRequest = new PendingRequest(lane, result, inFlightAtStart -> start(lane, request, inFlightAtStart, result));
+
+        final int inFlightAtStart;
+        final List<PendingRequest> shedRequests = new ArrayList<>();
+        synchronized (this) {
+            if (lane == Lane.COMMIT) {
+                if (pendingCommits.isEmpty() && inFlightRequests < (int) limit) {
+                    inFlightAtStart = ++inFlightRequests;
+                } else {
+                    pendingCommits.add(pendingRequest);
+                    inFlightAtStart = -1;
+                    // Overloaded: queued dry runs would only be started after all commits
+                    shedRequests.addAll(pendingDryRuns);
+                    pendingDryRuns.clear();
+                }
+            } else if (!pendingCommits.isEmpty()) {
+                shedRequests.add(pendingRequest);
+                inFlightAtStart = -1;
+            } else if (pendingDryRuns.isEmpty() && canStartDryRun()) {
+                inFlightDryRuns++;
+                inFlightAtStart = ++inFlightRequests;
+            } else {
+                pendingDryRuns.add(pendingRequest);
+                inFlightAtStart = -1;
+            }
+            shedDryRuns += shedRequests.size();
+        }
+
+        for (final PendingRequest shedRequest : shedRequests) {
+            shedRequest.result.completeExceptionally(new ConcurrencyLimitExceededException("Dry run shed by concurrency limiter " + name + ": invoice commits are waiting for Vertex"));
+        }
+        if (inFlightAtStart >= 0) {
+            run(() -> pendingRequest.start.accept(inFlightAtStart));
+        } else if (!pendingRequest.result.isDone()) {
+            CompletableFuture.delayedExecutor(maxQueueWaitMs, TimeUnit.MILLISECONDS).execute(() -> expire(pendingRequest));
+        }
+        return result;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlightRequests() {
+        return inFlightRequests;
+    }
+
+    public synchronized int getQueuedRequests() {
+        return pendingCommits.size() + pendingDryRuns.size();
+    }
+
+    /**
+     * @return number of dry runs shed so far
+     */
+    public synchronized long getShedDryRuns() {
+        return shedDryRuns;
+    }
+
+    // Dry runs get at least one slot
+    private boolean canStartDryRun() {
+        return inFlightRequests < (int) limit && inFlightDryRuns < Math.max(1, (int) (limit * dryRunShare / 100));
+    }
+
+    private <T> void start(final Lane lane, final Supplier<CompletableFuture<T>> request, final int inFlightAtStart, final CompletableFuture<T> result) {
+        final long startNanos = ticker.read();
+        CompletableFuture<T> inFlight;
+        try {
+            inFlight = request.get();
+        } catch (final RuntimeException e) {
+            inFlight = CompletableFuture.failedFuture(e);
+        }
+
+        inFlight.whenComplete((value, throwable) -> {
+            final List<PendingRequest> nextRequests = onCompleted(lane, startNanos, inFlightAtStart, throwable);
+            if (throwable != null) {
+                result.completeExceptionally(throwable);
+            } else {
+                result.complete(value);
+            }
+            for (final PendingRequest nextRequest : nextRequests) {
+                run(() -> nextRequest.start.accept(nextRequest.inFlightAtStart));
+            }
+        });
+    }
+
+    private static void run(final Runnable start) {
+        final Deque<Runnable> starts = deferredStarts.get();
+        if (starts != null) {
+            // Called from a start below: unwind first
+            starts.add(start);
+            return;
+        }
+
+        final Deque<Runnable> newStarts = new ArrayDeque<>();
+        newStarts.add(start);
+        deferredStarts.set(newStarts);
+        try {
+            Runnable next;
+            while ((next = newStarts.poll()) != null) {
+                next.run();
+            }
+        } finally {
+            deferredStarts.remove();
+        }
+    }
+
+    private void expire(final PendingRequest pendingRequest) {
+        final boolean expired;
+        synchronized (this) {
+            expired = (pendingRequest.lane == Lane.COMMIT ? pendingCommits : pendingDryRuns).remove(pendingRequest);
+        }
+        if (expired) {
+            pendingRequest.result.completeExceptionally(new ConcurrencyLimitExceededException("Request queued for more than " + maxQueueWaitMs + "ms by concurrency limiter " + name));
+        }
+    }
+
+    /**
+     * @return the queued requests which can now be started
+     */
+    private synchronized List<PendingRequest> onCompleted(final Lane lane, final long startNanos, final int inFlightAtStart, final Throwable throwable) {
+        inFlightRequests--;
+        if (lane == Lane.DRY_RUN) {
+            inFlightDryRuns--;
+        }
+
+        final Boolean overloaded = isOverloaded(unwrap(throwable));
+        if (overloaded != null) {
+            final long nowNanos = ticker.read();
+            onSample(startNanos, nowNanos, nowNanos - startNanos, inFlightAtStart, overloaded);
+        }
+
+        final List<PendingRequest> nextRequests = new ArrayList<>();
+        while (inFlightRequests < (int) limit) {
+            final PendingRequest nextRequest;
+            if (!pendingCommits.isEmpty()) {
+                nextRequest = pendingCommits.poll();
+            } else if (!pendingDryRuns.isEmpty() && canStartDryRun()) {
+                nextRequest = pendingDryRuns.poll();
+                inFlightDryRuns++;
+            } else {
+                break;
+            }
+            nextRequest.inFlightAtStart = ++inFlightRequests;
+            nextRequests.add(nextRequest);
+        }
+        return nextRequests;
+    }
+
+    private void onSample(final long startNanos, final long nowNanos, final long latencyNanos, final int inFlightAtStart, final boolean overloaded) {
+        boolean congested = overloaded;
+        if (!overloaded) {
+            if (nbSamples++ == 0) {
+                recentLatencyNanos = latencyNanos;
+                longTermLatencyNanos = latencyNanos;
+            } else {
+                recentLatencyNanos += RECENT_LATENCY_WEIGHT * (latencyNanos - recentLatencyNanos);
+                longTermLatencyNanos += LONG_TERM_LATENCY_WEIGHT * (latencyNanos - longTermLatencyNanos);
+            }
+            congested = nbSamples >= WARM_UP_SAMPLES && recentLatencyNanos > latencyTolerance * longTermLatencyNanos;
+        }
+
+        if (congested) {
+            // Once per round trip
+            if (startNanos - lastDecreaseNanos >= 0) {
+                final int previousLimit = (int) limit;
+                limit = Math.max(minLimit, limit * DECREASE_RATIO);
+                lastDecreaseNanos = nowNanos;
+                logger.info("Decreasing concurrency limit {} from {} to {}: overloaded={}, recentLatencyMs={}, longTermLatencyMs={}",
+                            name, previousLimit, (int) limit, overloaded, toMillis(recentLatencyNanos), toMillis(longTermLatencyNanos));
+            }
+        } else if (2 * inFlightAtStart >= limit) {
+            // Only grow a limit which is actually used
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    /**
+     * @return null if the outcome says nothing about the load of Vertex (e.g. 400 response)
+     */
+    private static Boolean isOverloaded(final Throwable cause) {
+        if (cause == null) {
+            return false;
+        }
+        if (!(cause instanceof ApiException)) {
+            // E.g. circuit breaker open
+            return null;
+        }
+        final int code = ((ApiException) cause).getCode();
+        if (code == 0) {
+            // Timeouts and connection errors
+            return cause.getCause() instanceof IOException ? true : null;
+        }
+        return code == 408 || code == 429 || code == 503 || code == 504 ? true : null;
+    }
+
+    private static double toMillis(final double nanos) {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static Throwable unwrap(final Throwable throwable) {
+        Throwable cause = throwable;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    private static final class PendingRequest {
+
+        private final Lane lane;
+        private final CompletableFuture<?> result;
+        private final IntConsumer start;
+        // Set when dequeued (guarded by the limiter)
+        private int inFlightAtStart;
+
+        private PendingRequest(final Lane lane, final CompletableFuture<?> result, final IntConsumer start) {
+            this.lane = lane;
+            this.result = result;
+            this.start = start;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.http;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.Nullable;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.Method;
+import org.killbill.billing.plugin.vertex.gen.ApiClient;
+import org.killbill.billing.plugin.vertex.gen.ApiException;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+/**
+ * Non-blocking counterpart of the generated {@link ApiClient}: JSON requests are sent through the shared
+ * async HTTP client, and responses are deserialized on the I/O reactor threads.
+ */
+public class AsyncApiInvoker {
+
+    private static final ContentType JSON_CONTENT_TYPE = ContentType.create("application/json", "UTF-8");
+
+    // Same configuration as the generated ApiClient
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .configure(DeserializationFeature.FAIL_ON_INVALID_SUBTYPE, false)
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .enable(SerializationFeature.WRITE_ENUMS_USING_TO_STRING)
+            .enable(DeserializationFeature.READ_ENUMS_USING_TO_STRING)
+            .registerModule(new JavaTimeModule())
+            .setDateFormat(ApiClient.buildDefaultDateFormat());
+
+    private final CloseableHttpAsyncClient asyncHttpClient;
+    private final AsyncRequestLimiter asyncRequestLimiter;
+    // Requests of this tenant, fairly scheduled against the other tenants'
+    private final AsyncRequestLimiter.Flow flow;
+    // Share of the cluster-wide request rate of this node (all tenants), if any
+    private final TokenBucket clusterRateLimiter;
+    private final String basePath;
+
+    public AsyncApiInvoker(final CloseableHttpAsyncClient asyncHttpClient,
+                           final AsyncRequestLimiter asyncRequestLimiter,
+                           final AsyncRequestLimiter.Flow flow,
+                           @Nullable final TokenBucket clusterRateLimiter,
+                           final String basePath) {
+        this.asyncHttpClient = asyncHttpClient;
+        this.asyncRequestLimiter = asyncRequestLimiter;
+        this.flow = flow;
+        this.clusterRateLimiter = clusterRateLimiter;
+        this.basePath = basePath;
+    }
+
+    public AsyncRequestLimiter.Flow getFlow() {
+        return flow;
+    }
+
+    public <T> CompletableFuture<T> invoke(final Method method,
+                                           final String path,
+                                           @Nullable final Object body,
+                                           final String accessToken,
+                                           final TypeReference<T> returnType) {
+        final SimpleHttpRequest request;
+        try {
+            request = buildRequest(method, path, body, accessToken);
+        } catch (final ApiException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        if (clusterRateLimiter == null) {
+            return asyncRequestLimiter.submit(flow, () -> execute(request, returnType));
+        }
+        // No connection slot is held while waiting for a token
+        return clusterRateLimiter.execute(() -> asyncRequestLimiter.submit(flow, () -> execute(request, returnType)));
+    }
+
+    // Same encoding as ApiClient#escapeString
+    public static String escapePathSegment(final String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replaceAll("\\+", "%20");
+    }
+
+    // Deep copy, through the JSON representation sent to Vertex
+    public static <T> T copy(final T body, final Class<T> bodyClass) {
+        return objectMapper.convertValue(body, bodyClass);
+    }
+
+    private SimpleHttpRequest buildRequest(final Method method, final String path, @Nullable final Object body, final String accessToken) throws ApiException {
+        final SimpleRequestBuilder builder = SimpleRequestBuilder.create(method)
+                                                                 .setUri(basePath + path)
+                                                                 .addHeader(HttpHeaders.ACCEPT, "application/json")
+                                                                 .addHeader(HttpHeaders.AUTHORIZATION, "Bearer " + accessToken);
+        if (body != null) {
+            try {
+                builder.setBody(objectMapper.writeValueAsBytes(body), JSON_CONTENT_TYPE);
+            } catch (final JsonProcessingException e) {
+                throw new ApiException(e);
+            }
+        }
+        return builder.build();
+    }
+
+    private <T> CompletableFuture<T> execute(final SimpleHttpRequest request, final TypeReference<T> returnType) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        asyncHttpClient.execute(request, new FutureCallback<>() {
+            @Override
+            public void completed(final SimpleHttpResponse response) {
+                try {
+                    result.complete(processResponse(response, returnType));
+                } catch (final ApiException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void failed(final Exception e) {
+                result.completeExceptionally(new ApiException(e));
+            }
+
+            @Override
+            public void cancelled() {
+                result.completeExceptionally(new ApiException("Request to " + request.getRequestUri() + " was cancelled"));
+            }
+        });
+        return result;
+    }
+
+    private static <T> T processResponse(final SimpleHttpResponse response, final TypeReference<T> returnType) throws ApiException {
+        final int statusCode = response.getCode();
+        if (statusCode == HttpStatus.SC_NO_CONTENT) {
+            return null;
+        }
+
+        final String responseBody = response.getBodyText();
+        if (statusCode < 200 || statusCode >= 300) {
+            throw new ApiException(responseBody, statusCode, toHeadersMap(response.getHeaders()), responseBody);
+        }
+        if (responseBody == null || responseBody.isEmpty()) {
+            return null;
+        }
+
+        try {
+            return objectMapper.readValue(responseBody, returnType);
+        } catch (final IOException e) {
+            throw new ApiException("Unable to deserialize Vertex response", e, statusCode, toHeadersMap(response.getHeaders()), responseBody);
+        }
+    }
+
+    private static Map<String, List<String>> toHeadersMap(final Header[] headers) {
+        final Map<String, List<String>> headersMap = new HashMap<>();
+        for (final Header header : headers) {
+            headersMap.computeIfAbsent(header.getName(), k -> new ArrayList<>()).add(header.getValue());
+        }
+        return headersMap;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.http;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Bounds the number of in-flight asynchronous requests. Requests above the limit are queued without blocking the
+ * caller, and started as soon as a previous request completes.
+ * <p>
+ * Queued requests belong to a flow (e.g. a tenant), and flows are served in weighted fair order (start-time fair
+ * queuing): while the limit is reached, each flow gets a share of the freed slots proportional to its weight,
+ * regardless of the number of requests it has queued. Requests of the same flow are started in FIFO order.
+ * <p>
+ * The limit can be changed at runtime (e.g. to the share of a cluster-wide limit of this node): when lowered, requests
+ * in flight complete normally, but no queued request is started until the number of requests in flight is under it.
+ * <p>
+ * A queued request started by the completion of another one on the same thread (e.g. a request failing right away) is
+ * only started once that completion returns: requests are started one after the other, not nested in each other.
+ */
+public class AsyncRequestLimiter {
+
+    /**
+     * Requests of a flow with twice the weight of another are started twice as often when both have requests queued
+     */
+    public static final class Flow {
+
+        private final int weight;
+        // Guarded by the limiter (volatile for monitoring)
+        private double lastFinishTag;
+        private volatile int queuedRequests;
+
+        private Flow(final int weight) {
+            this.weight = weight;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public int getQueuedRequests() {
+            return queuedRequests;
+        }
+    }
+
+    private static final class PendingRequest {
+
+        private final Flow flow;
+        private final double startTag;
+        private final long sequence;
+        private final Runnable start;
+
+        private PendingRequest(final Flow flow, final double startTag, final long sequence, final Runnable start) {
+            this.flow = flow;
+            this.startTag = startTag;
+            this.sequence = sequence;
+            this.start = start;
+        }
+    }
+
+    // Requests to start once the request being started on this thread returns (null when none is being started)
+    private static final ThreadLocal<Deque<Runnable>> deferredStarts = new ThreadLocal<>();
+
+    private final Flow defaultFlow = new Flow(1);
+
+    // Guarded by this
+    private int maxInFlightRequests;
+    private final PriorityQueue<PendingRequest> pendingRequests = new PriorityQueue<>(Comparator.<PendingRequest>comparingDouble(r -> r.startTag).thenComparingLong(r -> r.sequence));
+    private int inFlightRequests;
+    private long nextSequence;
+    // Start tag of the last started request
+    private double virtualTime;
+
+    public AsyncRequestLimiter(final int maxInFlightRequests) {
+        Preconditions.checkArgument(maxInFlightRequests > 0, "maxInFlightRequests must be positive: %s", maxInFlightRequests);
+        this.maxInFlightRequests = maxInFlightRequests;
+    }
+
+    public Flow newFlow(final int weight) {
+        Preconditions.checkArgument(weight > 0, "weight must be positive: %s", weight);
+        return new Flow(weight);
+    }
+
+    public <T> CompletableFuture<T> submit(final Supplier<CompletableFuture<T>> request) {
+        return submit(defaultFlow, request);
+    }
+
+    public <T> CompletableFuture<T> submit(final Flow flow, final Supplier<CompletableFuture<T>> request) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final Runnable start = () -> {
+            CompletableFuture<T> inFlight;
+            try {
+                inFlight = request.get();
+            } catch (final RuntimeException e) {
+                inFlight = CompletableFuture.failedFuture(e);
+            }
+            inFlight.whenComplete((value, throwable) -> {
+                release();
+                if (throwable != null) {
+                    result.completeExceptionally(throwable);
+                } else {
+                    result.complete(value);
+                }
+            });
+        };
+
+        final boolean startNow;
+        synchronized (this) {
+            startNow = pendingRequests.isEmpty() && inFlightRequests < maxInFlightRequests;
+            if (startNow) {
+                inFlightRequests++;
+            } else {
+                // An idle flow doesn't accumulate credit: it starts at the current virtual time
+                final double startTag = Math.max(virtualTime, flow.lastFinishTag);
+                flow.lastFinishTag = startTag + 1.0 / flow.weight;
+                flow.queuedRequests++;
+                pendingRequests.add(new PendingRequest(flow, startTag, nextSequence++, start));
+            }
+        }
+        if (startNow) {
+            run(start);
+        }
+        return result;
+    }
+
+    public synchronized int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    public void setMaxInFlightRequests(final int maxInFlightRequests) {
+        Preconditions.checkArgument(maxInFlightRequests > 0, "maxInFlightRequests must be positive: %s", maxInFlightRequests);
+        final List<PendingRequest> startedRequests = new ArrayList<>();
+        synchronized (this) {
+            this.maxInFlightRequests = maxInFlightRequests;
+            // Start right away the queued requests fitting under a raised limit
+            while (inFlightRequests < maxInFlightRequests && !pendingRequests.isEmpty()) {
+                inFlightRequests++;
+                startedRequests.add(pollNext());
+            }
+        }
+        for (final PendingRequest startedRequest : startedRequests) {
+            run(startedRequest.start);
+        }
+    }
+
+    public synchronized int getInFlightRequests() {
+        return inFlightRequests;
+    }
+
+    public synchronized int getQueuedRequests() {
+        return pendingRequests.size();
+    }
+
+    private void release() {
+        final PendingRequest next;
+        synchronized (this) {
+            // The limit may have been lowered in the meantime
+            if (pendingRequests.isEmpty() || inFlightRequests > maxInFlightRequests) {
+                inFlightRequests--;
+                return;
+            }
+            // The slot is handed over to the next request
+            next = pollNext();
+        }
+        run(next.start);
+    }
+
+    private static void run(final Runnable start) {
+        final Deque<Runnable> starts = deferredStarts.get();
+        if (starts != null) {
+            // Called from a start below: unwind first
+            starts.add(start);
+            return;
+        }
+
+        final Deque<Runnable> newStarts = new ArrayDeque<>();
+        newStarts.add(start);
+        deferredStarts.set(newStarts);
+        try {
+            Runnable next;
+            while ((next = newStarts.poll()) != null) {
+                next.run();
+            }
+        } finally {
+            deferredStarts.remove();
+        }
+    }
+
+    // Guarded by this
+    private PendingRequest pollNext() {
+        final PendingRequest next = pendingRequests.poll();
+        virtualTime = next.startTag;
+        next.flow.queuedRequests--;
+        return next;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.http;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.killbill.billing.plugin.vertex.gen.ApiException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+/**
+ * Fails calls fast while the endpoint is failing (or slow), instead of having every caller wait for the timeout.
+ * <p>
+ * The outcome of the last windowSize calls is kept: once at least minimumCalls have been recorded, the breaker opens if
+ * the percentage of failed or slow calls reaches its threshold. Calls are then rejected (CircuitBreakerOpenException)
+ * for openDurationMs, after which a few probes are let through (half-open): the breaker closes once all of them
+ * succeed, and opens again as soon as one of them fails or is slow.
+ * <p>
+ * Client errors (4xx responses, besides 408 and 429) are the caller's problem, and are recorded as successes, like the
+ * requests rejected by the rate limit of this node (never sent to Vertex). A rate threshold of 0 disables the
+ * corresponding criterion.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private final String name;
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final long slowCallDurationNanos;
+    private final int slowCallRateThreshold;
+    private final long openDurationNanos;
+    private final int halfOpenProbes;
+    private final Ticker ticker;
+
+    // Ring buffer of the outcomes of the last calls (guarded by this)
+    private final boolean[] failedCalls;
+    private final boolean[] slowCalls;
+    private int nbCalls;
+    private int nextCall;
+    private int nbFailedCalls;
+    private int nbSlowCalls;
+
+    private volatile State state = State.CLOSED;
+    // Incremented on each transition, so that calls started in a previous state are ignored
+    private long generation;
+    private long openedAtNanos;
+    private int probesInFlight;
+    private int successfulProbes;
+
+    public CircuitBreaker(final String name,
+                          final int windowSize,
+                          final int minimumCalls,
+                          final int failureRateThreshold,
+                          final int slowCallDurationMs,
+                          final int slowCallRateThreshold,
+                          final int openDurationMs,
+                          final int halfOpenProbes,
+                          final Ticker ticker) {
+        Preconditions.checkArgument(windowSize > 0, "windowSize must be positive: %s", windowSize);
+        this.name = name;
+        this.minimumCalls = Math.min(Math.max(minimumCalls, 1), windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallDurationNanos = TimeUnit.MILLISECONDS.toNanos(slowCallDurationMs);
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMs);
+        this.halfOpenProbes = Math.max(halfOpenProbes, 1);
+        this.ticker = ticker;
+        this.failedCalls = new boolean[windowSize];
+        this.slowCalls = new boolean[windowSize];
+    }
+
+    public <T> CompletableFuture<T> execute(final Supplier<CompletableFuture<T>> call) {
+        final long permittedGeneration = tryAcquirePermission();
+        if (permittedGeneration < 0) {
+            return CompletableFuture.failedFuture(new CircuitBreakerOpenException(name));
+        }
+
+        final long startNanos = ticker.read();
+        CompletableFuture<T> result;
+        try {
+            result = call.get();
+        } catch (final RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        return result.whenComplete((response, throwable) -> onCallCompleted(permittedGeneration, isFailure(throwable), ticker.read() - startNanos >= slowCallDurationNanos));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public State getState() {
+        // Don't wait for the next call to report the transition to half-open
+        if (state == State.OPEN) {
+            synchronized (this) {
+                if (state == State.OPEN && ticker.read() - openedAtNanos >= openDurationNanos) {
+                    transitionTo(State.HALF_OPEN);
+                }
+            }
+        }
+        return state;
+    }
+
+    /**
+     * @return whether a call would currently be let through (without acquiring a permission), e.g. to reject it before
+     * it waits for a permit of the concurrency limiter
+     */
+    public synchronized boolean isCallPermitted() {
+        switch (getState()) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                return probesInFlight + successfulProbes < halfOpenProbes;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the generation the call is permitted in, -1 if rejected
+     */
+    private synchronized long tryAcquirePermission() {
+        switch (getState()) {
+            case CLOSED:
+                return generation;
+            case HALF_OPEN:
+                if (probesInFlight + successfulProbes >= halfOpenProbes) {
+                    return -1;
+                }
+                probesInFlight++;
+                return generation;
+            default:
+                return -1;
+        }
+    }
+
+    private synchronized void onCallCompleted(final long permittedGeneration, final boolean failed, final boolean slow) {
+        if (permittedGeneration != generation) {
+            // Started before the last transition
+            return;
+        }
+        switch (state) {
+            case CLOSED:
+                record(failed, slow);
+                if (nbCalls >= minimumCalls && (exceeds(nbFailedCalls, failureRateThreshold) || exceeds(nbSlowCalls, slowCallRateThreshold))) {
+                    transitionTo(State.OPEN);
+                }
+                break;
+            case HALF_OPEN:
+                probesInFlight--;
+                if (failed || slow) {
+                    transitionTo(State.OPEN);
+                } else if (++successfulProbes >= halfOpenProbes) {
+                    transitionTo(State.CLOSED);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // A threshold of 0 disables the criterion
+    private boolean exceeds(final int nbMatchingCalls, final int rateThreshold) {
+        return rateThreshold > 0 && 100 * nbMatchingCalls >= rateThreshold * nbCalls;
+    }
+
+    private void record(final boolean failed, final boolean slow) {
+        if (nbCalls == failedCalls.length) {
+            // Evict the oldest call
+            nbFailedCalls -= failedCalls[nextCall] ? 1 : 0;
+            nbSlowCalls -= slowCalls[nextCall] ? 1 : 0;
+        } else {
+            nbCalls++;
+        }
+        failedCalls[nextCall] = failed;
+        slowCalls[nextCall] = slow;
+        nbFailedCalls += failed ? 1 : 0;
+        nbSlowCalls += slow ? 1 : 0;
+        nextCall = (nextCall + 1) % failedCalls.length;
+    }
+
+    private void transitionTo(final State newState) {
+        if (newState == State.OPEN) {
+            logger.warn("Opening circuit breaker {} for {}ms: failedCalls={}, slowCalls={}, calls={}",
+                        name, TimeUnit.NANOSECONDS.toMillis(openDurationNanos), nbFailedCalls, nbSlowCalls, nbCalls);
+            openedAtNanos = ticker.read();
+        } else {
+            logger.info("Circuit breaker {} is now {}", name, newState);
+        }
+        state = newState;
+        generation++;
+        probesInFlight = 0;
+        successfulProbes = 0;
+        if (newState == State.CLOSED) {
+            // Start over with a fresh window
+            nbCalls = 0;
+            nextCall = 0;
+            nbFailedCalls = 0;
+            nbSlowCalls = 0;
+        }
+    }
+
+    private static boolean isFailure(final Throwable throwable) {
+        Throwable cause = throwable;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause == null || cause instanceof RateLimitExceededException) {
+            return false;
+        }
+        if (cause instanceof ApiException) {
+            final int code = ((ApiException) cause).getCode();
+            // 0 for I/O errors and cancellations
+            return code == 0 || code == 408 || code == 429 || code >= 500;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.http;
+
+/**
+ * Request rejected without being sent, as the request quota of the tenant wouldn't allow it to be sent in time
+ */
+public class RateLimitExceededException extends RuntimeException {
+
+    public RateLimitExceededException(final String rateLimiterName, final long maxWaitMs) {
+        // No stack trace: rejections must stay cheap under overload
+        super("No request token available within " + maxWaitMs + "ms from rate limiter " + rateLimiterName, null, false, false);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.http;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.killbill.billing.plugin.vertex.gen.ApiException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+
+/**
+ * Retries the calls failing with a transient error (connection errors and timeouts, 408, 429, 502, 503 and 504
+ * responses), with an exponential backoff and full jitter: the n-th retry waits a random delay between 0 and
+ * min(maxBackoffMs, initialBackoffMs * 2^(n-1)).
+ * <p>
+ * Only calls which are safe to send again are retried, at most maxAttempts times in total, and no retry is started
+ * if it couldn't complete its backoff before the deadline of the call.
+ */
+public class RetryPolicy {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetryPolicy.class);
+
+    private final String name;
+    private final int maxAttempts;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final long deadlineNanos;
+    private final Executor executor;
+    private final Ticker ticker;
+
+    // Number of retries, calls which succeeded after a retry, and calls which failed after exhausting their retries
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder recovered = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+
+    public RetryPolicy(final String name,
+                       final int maxAttempts,
+                       final int initialBackoffMs,
+                       final int maxBackoffMs,
+                       final int deadlineMs,
+                       final Executor executor,
+                       final Ticker ticker) {
+        this.name = name;
+        this.maxAttempts = Math.max(maxAttempts, 1);
+        this.initialBackoffMs = Math.max(initialBackoffMs, 1);
+        this.maxBackoffMs = Math.max(maxBackoffMs, this.initialBackoffMs);
+        this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+        this.executor = executor;
+        this.ticker = ticker;
+    }
+
+    /**
+     * @param retrySafe whether the call can be sent again (e.g. read-only, or idempotent)
+     */
+    public <T> CompletableFuture<T> execute(final boolean retrySafe, final Supplier<CompletableFuture<T>> call) {
+        if (!retrySafe || maxAttempts == 1) {
+            return call.get();
+        }
+
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(call, 1, ticker.read(), result);
+        return result;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getRecovered() {
+        return recovered.sum();
+    }
+
+    public long getExhausted() {
+        return exhausted.sum();
+    }
+
+    private <T> void attempt(final Supplier<CompletableFuture<T>> call, final int attempt, final long startNanos, final CompletableFuture<T> result) {
+        CompletableFuture<T> response;
+        try {
+            response = call.get();
+        } catch (final RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+
+        response.whenComplete((value, throwable) -> {
+            if (throwable == null) {
+                if (attempt > 1) {
+                    recovered.increment();
+                }
+                result.complete(value);
+                return;
+            }
+
+            final Throwable cause = unwrap(throwable);
+            if (!isTransient(cause)) {
+                result.completeExceptionally(cause);
+                return;
+            }
+
+            final long backoffMs = getBackoffMs(attempt);
+            if (attempt >= maxAttempts || ticker.read() - startNanos + TimeUnit.MILLISECONDS.toNanos(backoffMs) >= deadlineNanos) {
+                exhausted.increment();
+                result.completeExceptionally(cause);
+                return;
+            }
+
+            retries.increment();
+            logger.info("Retrying {} in {}ms, attempt {}/{}: {}", name, backoffMs, attempt + 1, maxAttempts, cause.toString());
+            final Executor retryExecutor = command -> {
+                try {
+                    executor.execute(command);
+                } catch (final RejectedExecutionException e) {
+                    // Plugin stopping
+                    result.completeExceptionally(cause);
+                }
+            };
+            CompletableFuture.delayedExecutor(backoffMs, TimeUnit.MILLISECONDS, retryExecutor)
+                             .execute(() -> attempt(call, attempt + 1, startNanos, result));
+        });
+    }
+
+    @VisibleForTesting
+    long getBackoffMs(final int attempt) {
+        // Capped exponential growth (no overflow past 2^30)
+        final long ceilingMs = Math.min(maxBackoffMs, initialBackoffMs << Math.min(attempt - 1, 30));
+        return ThreadLocalRandom.current().nextLong(ceilingMs + 1);
+    }
+
+    private static boolean isTransient(final Throwable cause) {
+        if (!(cause instanceof ApiException)) {
+            // E.g. circuit breaker open
+            return false;
+        }
+        final int code = ((ApiException) cause).getCode();
+        if (code == 0) {
+            // Connection errors and timeouts, but not request serialization errors nor cancellations
+            return cause.getCause() instanceof IOException && !(cause.getCause() instanceof JsonProcessingException);
+        }
+        return code == 408 || code == 429 || code == 502 || code == 503 || code == 504;
+    }
+
+    private static Throwable unwrap(final Throwable throwable) {
+        Throwable cause = throwable;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.http;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+/**
+ * Keeps the request rate under a quota: the bucket holds up to capacity tokens, refilled at requestsPerSecond, and
+ * each request takes one. When the bucket is empty, the request waits (without blocking the caller) for its token,
+ * unless it would wait more than maxWaitMs, in which case it is rejected (RateLimitExceededException).
+ * <p>
+ * Tokens are reserved in arrival order: the level of the bucket goes negative while requests are waiting for a token.
+ * The rate can be changed at runtime (e.g. to the share of a cluster-wide quota of this node).
+ */
+public class TokenBucket {
+
+    private final String name;
+    private final long maxWaitMs;
+    private final Executor executor;
+    private final Ticker ticker;
+
+    // Guarded by this
+    private double capacity;
+    private double tokensPerNano;
+    private double tokens;
+    private long lastRefillNanos;
+    private long rejectedRequests;
+
+    public TokenBucket(final String name,
+                       final int requestsPerSecond,
+                       final int capacity,
+                       final int maxWaitMs,
+                       final Executor executor,
+                       final Ticker ticker) {
+        Preconditions.checkArgument(requestsPerSecond > 0, "requestsPerSecond must be positive: %s", requestsPerSecond);
+        this.name = name;
+        this.capacity = Math.max(capacity, 1);
+        this.tokensPerNano = requestsPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+        this.maxWaitMs = Math.max(maxWaitMs, 0);
+        this.executor = executor;
+        this.ticker = ticker;
+        // Start full
+        this.tokens = this.capacity;
+        this.lastRefillNanos = ticker.read();
+    }
+
+    public <T> CompletableFuture<T> execute(final Supplier<CompletableFuture<T>> call) {
+        final long waitNanos = reserve();
+        if (waitNanos < 0) {
+            return CompletableFuture.failedFuture(new RateLimitExceededException(name, maxWaitMs));
+        }
+        if (waitNanos == 0) {
+            return send(call);
+        }
+
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final Executor delayedExecutor = CompletableFuture.delayedExecutor(waitNanos, TimeUnit.NANOSECONDS, command -> {
+            try {
+                executor.execute(command);
+            } catch (final RejectedExecutionException e) {
+                // Plugin stopping
+                result.completeExceptionally(e);
+            }
+        });
+        delayedExecutor.execute(() -> send(call).whenComplete((value, throwable) -> {
+            if (throwable != null) {
+                result.completeExceptionally(throwable);
+            } else {
+                result.complete(value);
+            }
+        }));
+        return result;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized int getCapacity() {
+        return (int) capacity;
+    }
+
+    /**
+     * Requests already waiting for their token keep their turn, later ones are scheduled at the new rate
+     */
+    public synchronized void setRate(final int requestsPerSecond, final int capacity) {
+        Preconditions.checkArgument(requestsPerSecond > 0, "requestsPerSecond must be positive: %s", requestsPerSecond);
+        // Tokens accumulated so far were earned at the previous rate
+        refill();
+        this.capacity = Math.max(capacity, 1);
+        this.tokensPerNano = requestsPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+        this.tokens = Math.min(this.capacity, tokens);
+    }
+
+    /**
+     * @return number of tokens available right now (0 while requests are waiting for a token)
+     */
+    public synchronized int getAvailableTokens() {
+        refill();
+        return (int) Math.max(0, tokens);
+    }
+
+    public synchronized long getRejectedRequests() {
+        return rejectedRequests;
+    }
+
+    /**
+     * @return how long to wait for the token, -1 if too long
+     */
+    private synchronized long reserve() {
+        refill();
+        final long waitNanos = tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano);
+        if (waitNanos > TimeUnit.MILLISECONDS.toNanos(maxWaitMs)) {
+            rejectedRequests++;
+            return -1;
+        }
+        tokens -= 1;
+        return waitNanos;
+    }
+
+    private void refill() {
+        final long nowNanos = ticker.read();
+        tokens = Math.min(capacity, tokens + (nowNanos - lastRefillNanos) * tokensPerNano);
+        lastRefillNanos = nowNanos;
+    }
+
+    private static <T> CompletableFuture<T> send(final Supplier<CompletableFuture<T>> call) {
+        try {
+            return call.get();
+        } catch (final RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.http;
+
+import java.io.Closeable;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nullable;
+
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_CLUSTER_REQUESTS_PER_SECOND;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_HTTP_CONNECTION_TTL_SECONDS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_HTTP_CONNECT_TIMEOUT_MS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_HTTP_IDLE_EVICTION_SECONDS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_HTTP_KEEP_ALIVE_SECONDS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_HTTP_MAX_CONNECTIONS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_HTTP_MAX_CONNECTIONS_PER_ROUTE;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_HTTP_SOCKET_TIMEOUT_MS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_RATE_LIMIT_MAX_WAIT_MS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CLUSTER_REQUESTS_PER_SECOND_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_HTTP_CONNECTION_TTL_SECONDS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_HTTP_CONNECT_TIMEOUT_MS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_HTTP_IDLE_EVICTION_SECONDS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_HTTP_KEEP_ALIVE_SECONDS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_HTTP_MAX_CONNECTIONS_PER_ROUTE_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_HTTP_MAX_CONNECTIONS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_HTTP_MAX_IN_FLIGHT_REQUESTS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_HTTP_SOCKET_TIMEOUT_MS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_RATE_LIMIT_MAX_WAIT_MS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.getIntProperty;
+
+/**
+ * Pooled, keep-alive HTTP clients shared by all tenants: the non-blocking client is used for the Vertex tax APIs,
+ * the classic one for the OAuth token endpoint. They are created once by the activator and closed when the plugin stops.
+ */
+public class VertexHttpTransport implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(VertexHttpTransport.class);
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final CloseableHttpAsyncClient asyncHttpClient;
+    private final AsyncRequestLimiter asyncRequestLimiter;
+    // Share of the cluster-wide request rate of this node, null if unlimited
+    private final TokenBucket clusterRateLimiter;
+    // Background work which shouldn't run on Kill Bill threads (e.g. OAuth token refreshes)
+    private final ExecutorService backgroundExecutor;
+
+    public VertexHttpTransport(final Properties properties) {
+        final int maxConnections = getIntProperty(properties, VERTEX_HTTP_MAX_CONNECTIONS_PROPERTY, DEFAULT_HTTP_MAX_CONNECTIONS);
+        final int maxConnectionsPerRoute = getIntProperty(properties, VERTEX_HTTP_MAX_CONNECTIONS_PER_ROUTE_PROPERTY, DEFAULT_HTTP_MAX_CONNECTIONS_PER_ROUTE);
+        final int idleEvictionSeconds = getIntProperty(properties, VERTEX_HTTP_IDLE_EVICTION_SECONDS_PROPERTY, DEFAULT_HTTP_IDLE_EVICTION_SECONDS);
+        final int keepAliveSeconds = getIntProperty(properties, VERTEX_HTTP_KEEP_ALIVE_SECONDS_PROPERTY, DEFAULT_HTTP_KEEP_ALIVE_SECONDS);
+        final int connectionTtlSeconds = getIntProperty(properties, VERTEX_HTTP_CONNECTION_TTL_SECONDS_PROPERTY, DEFAULT_HTTP_CONNECTION_TTL_SECONDS);
+        final int connectTimeoutMs = getIntProperty(properties, VERTEX_HTTP_CONNECT_TIMEOUT_MS_PROPERTY, DEFAULT_HTTP_CONNECT_TIMEOUT_MS);
+        final int socketTimeoutMs = getIntProperty(properties, VERTEX_HTTP_SOCKET_TIMEOUT_MS_PROPERTY, DEFAULT_HTTP_SOCKET_TIMEOUT_MS);
+        final int maxInFlightRequests = getIntProperty(properties, VERTEX_HTTP_MAX_IN_FLIGHT_REQUESTS_PROPERTY, maxConnections);
+        final int clusterRequestsPerSecond = getIntProperty(properties, VERTEX_CLUSTER_REQUESTS_PER_SECOND_PROPERTY, DEFAULT_CLUSTER_REQUESTS_PER_SECOND);
+        final int rateLimitMaxWaitMs = getIntProperty(properties, VERTEX_RATE_LIMIT_MAX_WAIT_MS_PROPERTY, DEFAULT_RATE_LIMIT_MAX_WAIT_MS);
+
+        final ConnectionConfig connectionConfig = ConnectionConfig.custom()
+                                                                  .setConnectTimeout(Timeout.ofMilliseconds(connectTimeoutMs))
+                                                                  .setSocketTimeout(Timeout.ofMilliseconds(socketTimeoutMs))
+                                                                  // Bound the lifetime of pooled connections, so DNS changes on the Vertex side are eventually picked up
+                                                                  .setTimeToLive(TimeValue.ofSeconds(connectionTtlSeconds))
+                                                                  .build();
+        this.connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                                                                          .setMaxConnTotal(maxConnections)
+                                                                          .setMaxConnPerRoute(maxConnectionsPerRoute)
+                                                                          .setDefaultConnectionConfig(connectionConfig)
+                                                                          .build();
+
+        // The Keep-Alive header returned by Vertex, if any, takes precedence over this default
+        final RequestConfig requestConfig = RequestConfig.custom()
+                                                         .setConnectionKeepAlive(TimeValue.ofSeconds(keepAliveSeconds))
+                                                         .setResponseTimeout(Timeout.ofMilliseconds(socketTimeoutMs))
+                                                         .build();
+        this.httpClient = HttpClients.custom()
+                                     .setConnectionManager(connectionManager)
+                                     .setDefaultRequestConfig(requestConfig)
+                                     .evictExpiredConnections()
+                                     .evictIdleConnections(TimeValue.ofSeconds(idleEvictionSeconds))
+                                     .build();
+
+        final PoolingAsyncClientConnectionManager asyncConnectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+                                                                                                                   .setMaxConnTotal(maxConnections)
+                                                                                                                   .setMaxConnPerRoute(maxConnectionsPerRoute)
+                                                                                                                   .setDefaultConnectionConfig(connectionConfig)
+                                                                                                                   .build();
+        this.asyncHttpClient = HttpAsyncClients.custom()
+                                               .setConnectionManager(asyncConnectionManager)
+                                               .setDefaultRequestConfig(requestConfig)
+                                               // Retries are decided by VertexApiClient, which knows which calls are safe to send again
+                                               .disableAutomaticRetries()
+                                               .evictExpiredConnections()
+                                               .evictIdleConnections(TimeValue.ofSeconds(idleEvictionSeconds))
+                                               .build();
+        this.asyncHttpClient.start();
+        this.asyncRequestLimiter = new AsyncRequestLimiter(maxInFlightRequests);
+
+        this.backgroundExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("vertex-background-%d")
+                                                                                          .setDaemon(true)
+                                                                                          .build());
+        // The whole quota until the other nodes are known, see VertexClusterLimits
+        this.clusterRateLimiter = clusterRequestsPerSecond > 0 ? new TokenBucket("vertex-cluster",
+                                                                                 clusterRequestsPerSecond,
+                                                                                 clusterRequestsPerSecond,
+                                                                                 rateLimitMaxWaitMs,
+                                                                                 backgroundExecutor,
+                                                                                 Ticker.systemTicker()) : null;
+
+        logger.info("Vertex HTTP connection pool initialized: maxConnections={}, maxConnectionsPerRoute={}, maxInFlightRequests={}, keepAliveSeconds={}, connectionTtlSeconds={}",
+                    maxConnections, maxConnectionsPerRoute, maxInFlightRequests, keepAliveSeconds, connectionTtlSeconds);
+    }
+
+    public CloseableHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public CloseableHttpAsyncClient getAsyncHttpClient() {
+        return asyncHttpClient;
+    }
+
+    public AsyncRequestLimiter getAsyncRequestLimiter() {
+        return asyncRequestLimiter;
+    }
+
+    @Nullable
+    public TokenBucket getClusterRateLimiter() {
+        return clusterRateLimiter;
+    }
+
+    public ExecutorService getBackgroundExecutor() {
+        return backgroundExecutor;
+    }
+
+    @VisibleForTesting
+    PoolingHttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    @Override
+    public void close() {
+        backgroundExecutor.shutdownNow();
+        // Also closes the connection managers
+        asyncHttpClient.close(CloseMode.GRACEFUL);
+        httpClient.close(CloseMode.GRACEFUL);
+    }
+}
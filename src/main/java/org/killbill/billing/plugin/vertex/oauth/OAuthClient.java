@@ -24,7 +24,6 @@ import java.util.List;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
 import org.apache.hc.client5.http.entity.UrlEncodedFormEntity;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
 import org.apache.hc.core5.http.NameValuePair;
 import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.apache.hc.core5.http.message.BasicNameValuePair;
@@ -37,14 +36,17 @@ import com.fasterxml.jackson.databind.json.JsonMapper;
 
 public class OAuthClient {
 
+    private final CloseableHttpClient httpclient;
     private final ObjectMapper objectMapper;
 
-    public OAuthClient() {
+    // The HTTP client is shared (pooled connections), it is not closed here
+    public OAuthClient(final CloseableHttpClient httpclient) {
+        this.httpclient = httpclient;
         this.objectMapper = createObjectMapper();
     }
 
     public OAuthToken getToken(String url, String clientId, String clientSecret) {
-        try (final CloseableHttpClient httpclient = HttpClients.createDefault()) {
+        try {
             HttpPost login = new HttpPost(url + "/oseries-auth/oauth/token");
             // form parameters.
             List<NameValuePair> nvps = new ArrayList<>();
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.oauth;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Caches the OAuth token of a tenant and refreshes it before it expires.
+ * <p>
+ * Once 80% of the token lifetime has elapsed, the next caller triggers a refresh in the background and keeps using
+ * the current token. Only callers finding an expired (or no) token block, and concurrent refreshes are collapsed
+ * into a single request to the token endpoint.
+ */
+public class OAuthTokenManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(OAuthTokenManager.class);
+
+    private static final double REFRESH_AFTER_LIFETIME_RATIO = 0.8;
+    // Margin for clock skew and request latency
+    private static final long EXPIRY_MARGIN_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final OAuthClient oAuthClient;
+    private final String url;
+    private final String clientId;
+    private final String clientSecret;
+    private final Executor refreshExecutor;
+    private final Ticker ticker;
+
+    private final AtomicReference<CachedToken> currentToken = new AtomicReference<>();
+    private final AtomicReference<CompletableFuture<CachedToken>> inFlightRefresh = new AtomicReference<>();
+
+    public OAuthTokenManager(final OAuthClient oAuthClient,
+                             final String url,
+                             final String clientId,
+                             final String clientSecret,
+                             final Executor refreshExecutor) {
+        this(oAuthClient, url, clientId, clientSecret, refreshExecutor, Ticker.systemTicker());
+    }
+
+    public OAuthTokenManager(final OAuthClient oAuthClient,
+                             final String url,
+                             final String clientId,
+                             final String clientSecret,
+                             final Executor refreshExecutor,
+                             final Ticker ticker) {
+        this.oAuthClient = oAuthClient;
+        this.url = url;
+        this.clientId = clientId;
+        this.clientSecret = clientSecret;
+        this.refreshExecutor = refreshExecutor;
+        this.ticker = ticker;
+    }
+
+    public String getAccessToken() {
+        final CachedToken token = currentToken.get();
+        final long now = ticker.read();
+        if (token != null && !token.isExpired(now)) {
+            if (token.shouldRefresh(now)) {
+                refresh(true);
+            }
+            return token.getAccessToken();
+        }
+        return await(refresh(false)).getAccessToken();
+    }
+
+    /**
+     * Fetch the token in the background, e.g. as soon as the tenant configuration is loaded
+     */
+    public void prefetch() {
+        refresh(true);
+    }
+
+    /**
+     * Called when Vertex rejected a token with a 401: the token is discarded, unless another thread already replaced it.
+     *
+     * @param rejectedAccessToken the token sent with the rejected request
+     * @return a token to retry with
+     */
+    public String refreshAfterUnauthorized(@Nullable final String rejectedAccessToken) {
+        final CachedToken token = currentToken.get();
+        if (token != null && !token.getAccessToken().equals(rejectedAccessToken) && !token.isExpired(ticker.read())) {
+            return token.getAccessToken();
+        }
+        currentToken.compareAndSet(token, null);
+        return await(refresh(false)).getAccessToken();
+    }
+
+    private CompletableFuture<CachedToken> refresh(final boolean inBackground) {
+        while (true) {
+            final CompletableFuture<CachedToken> existingRefresh = inFlightRefresh.get();
+            if (existingRefresh != null) {
+                return existingRefresh;
+            }
+
+            final CompletableFuture<CachedToken> refresh = new CompletableFuture<>();
+            if (inFlightRefresh.compareAndSet(null, refresh)) {
+                if (inBackground) {
+                    try {
+                        refreshExecutor.execute(() -> fetchToken(refresh));
+                    } catch (final RuntimeException e) {
+                        // Rejected (e.g. plugin is shutting down)
+                        inFlightRefresh.compareAndSet(refresh, null);
+                        refresh.completeExceptionally(e);
+                    }
+                } else {
+                    fetchToken(refresh);
+                }
+                return refresh;
+            }
+        }
+    }
+
+    private void fetchToken(final CompletableFuture<CachedToken> refresh) {
+        try {
+            final long fetchStartNanos = ticker.read();
+            final OAuthToken oAuthToken = oAuthClient.getToken(url, clientId, clientSecret);
+            final CachedToken token = new CachedToken(oAuthToken.getAccessToken(), fetchStartNanos, oAuthToken.getExpiresIn());
+            currentToken.set(token);
+            inFlightRefresh.compareAndSet(refresh, null);
+            refresh.complete(token);
+        } catch (final RuntimeException e) {
+            logger.warn("Unable to retrieve Vertex OAuth token from {}", url, e);
+            inFlightRefresh.compareAndSet(refresh, null);
+            refresh.completeExceptionally(e);
+        }
+    }
+
+    private static CachedToken await(final CompletableFuture<CachedToken> refresh) {
+        try {
+            return refresh.join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static final class CachedToken {
+
+        private final String accessToken;
+        // Unknown lifetime: rely on 401 responses to refresh it
+        private final boolean hasLifetime;
+        private final long refreshAtNanos;
+        private final long expiresAtNanos;
+
+        private CachedToken(final String accessToken, final long obtainedAtNanos, final long expiresInSeconds) {
+            this.accessToken = accessToken;
+            this.hasLifetime = expiresInSeconds > 0;
+            final long lifetimeNanos = TimeUnit.SECONDS.toNanos(Math.max(expiresInSeconds, 0));
+            this.refreshAtNanos = obtainedAtNanos + (long) (lifetimeNanos * REFRESH_AFTER_LIFETIME_RATIO);
+            this.expiresAtNanos = obtainedAtNanos + Math.max(lifetimeNanos - EXPIRY_MARGIN_NANOS, lifetimeNanos / 2);
+        }
+
+        String getAccessToken() {
+            return accessToken;
+        }
+
+        boolean shouldRefresh(final long nowNanos) {
+            return hasLifetime && nowNanos - refreshAtNanos >= 0;
+        }
+
+        boolean isExpired(final long nowNanos) {
+            return hasLifetime && nowNanos - expiresAtNanos >= 0;
+        }
+    }
+}
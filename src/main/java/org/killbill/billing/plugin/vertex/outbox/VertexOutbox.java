@@ -0,0 +1,363 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.outbox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.vertex.VertexApiConfigurationHandler;
+import org.killbill.billing.plugin.vertex.dao.VertexDao;
+import org.killbill.billing.plugin.vertex.gen.ApiClient;
+import org.killbill.billing.plugin.vertex.gen.ApiException;
+import org.killbill.billing.plugin.vertex.gen.client.model.SaleMessageTypeEnum;
+import org.killbill.billing.plugin.vertex.gen.client.model.SaleRequestType;
+import org.killbill.billing.plugin.vertex.gen.dao.model.tables.records.VertexOutboxRecord;
+import org.killbill.clock.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_OUTBOX_INITIAL_BACKOFF_SECONDS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_OUTBOX_MAX_ATTEMPTS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_OUTBOX_MAX_BACKOFF_SECONDS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_OUTBOX_POLL_INTERVAL_SECONDS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_OUTBOX_WORKERS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_OUTBOX_INITIAL_BACKOFF_SECONDS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_OUTBOX_MAX_ATTEMPTS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_OUTBOX_MAX_BACKOFF_SECONDS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_OUTBOX_POLL_INTERVAL_SECONDS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_OUTBOX_WORKERS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.getIntProperty;
+
+/**
+ * Vertex operations run after the invoice operations (e.g. deleting the transactions of a voided invoice), persisted
+ * in the vertex_outbox table so that the invoice operation doesn't wait for Vertex, nor loses them if Vertex fails.
+ * <p>
+ * In quote-then-post mode, the INVOICE documents quoted during the invoice generation are held until the invoice
+ * is committed, and then posted like the other operations.
+ * <p>
+ * New operations are run right away by a bounded pool of workers, and failed ones are retried with an exponential
+ * backoff by the periodic poll, until maxAttempts (they are then kept with the FAILED status). Each operation is
+ * claimed for LEASE_SECONDS before being run: nodes sharing the table don't run it twice, and the operations of a
+ * node which died while running them are picked up again once the lease expires.
+ */
+public class VertexOutbox implements Closeable {
+
+    public static final String POST_TRANSACTION = "POST_TRANSACTION";
+    public static final String DELETE_TRANSACTION = "DELETE_TRANSACTION";
+
+    private static final Logger logger = LoggerFactory.getLogger(VertexOutbox.class);
+
+    // Same configuration as the generated ApiClient
+    private static final ObjectMapper requestMapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .enable(SerializationFeature.WRITE_ENUMS_USING_TO_STRING)
+            .enable(DeserializationFeature.READ_ENUMS_USING_TO_STRING)
+            .registerModule(new JavaTimeModule())
+            .setDateFormat(ApiClient.buildDefaultDateFormat());
+
+    private static final int BATCH_SIZE = 100;
+    // Much longer than a Vertex request
+    private static final int LEASE_SECONDS = 600;
+
+    private final VertexApiConfigurationHandler vertexApiConfigurationHandler;
+    private final VertexDao dao;
+    private final Clock clock;
+    private final int pollIntervalSeconds;
+    private final int maxAttempts;
+    private final int initialBackoffSeconds;
+    private final int maxBackoffSeconds;
+    private final int nbWorkers;
+
+    // Created by start(): an outbox which isn't started runs the operations inline, and doesn't hold any thread
+    private volatile ScheduledExecutorService scheduler;
+    private volatile ExecutorService workers;
+
+    public VertexOutbox(final Properties properties,
+                        final VertexApiConfigurationHandler vertexApiConfigurationHandler,
+                        final VertexDao dao,
+                        final Clock clock) {
+        this(getIntProperty(properties, VERTEX_OUTBOX_WORKERS_PROPERTY, DEFAULT_OUTBOX_WORKERS),
+             getIntProperty(properties, VERTEX_OUTBOX_POLL_INTERVAL_SECONDS_PROPERTY, DEFAULT_OUTBOX_POLL_INTERVAL_SECONDS),
+             getIntProperty(properties, VERTEX_OUTBOX_MAX_ATTEMPTS_PROPERTY, DEFAULT_OUTBOX_MAX_ATTEMPTS),
+             getIntProperty(properties, VERTEX_OUTBOX_INITIAL_BACKOFF_SECONDS_PROPERTY, DEFAULT_OUTBOX_INITIAL_BACKOFF_SECONDS),
+             getIntProperty(properties, VERTEX_OUTBOX_MAX_BACKOFF_SECONDS_PROPERTY, DEFAULT_OUTBOX_MAX_BACKOFF_SECONDS),
+             vertexApiConfigurationHandler,
+             dao,
+             clock);
+    }
+
+    public VertexOutbox(final int workers,
+                        final int pollIntervalSeconds,
+                        final int maxAttempts,
+                        final int initialBackoffSeconds,
+                        final int maxBackoffSeconds,
+                        final VertexApiConfigurationHandler vertexApiConfigurationHandler,
+                        final VertexDao dao,
+                        final Clock clock) {
+        this.vertexApiConfigurationHandler = vertexApiConfigurationHandler;
+        this.dao = dao;
+        this.clock = clock;
+        this.pollIntervalSeconds = pollIntervalSeconds;
+        this.maxAttempts = Math.max(maxAttempts, 1);
+        this.initialBackoffSeconds = Math.max(initialBackoffSeconds, 0);
+        this.maxBackoffSeconds = Math.max(maxBackoffSeconds, this.initialBackoffSeconds);
+        this.nbWorkers = Math.max(workers, 1);
+    }
+
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        workers = Executors.newFixedThreadPool(nbWorkers,
+                                               new ThreadFactoryBuilder().setNameFormat("vertex-outbox-worker-%d")
+                                                                         .setDaemon(true)
+                                                                         .build());
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("vertex-outbox-poller-%d")
+                                                                                        .setDaemon(true)
+                                                                                        .build());
+        if (pollIntervalSeconds <= 0) {
+            logger.info("Vertex outbox poll disabled, failed operations won't be retried");
+            return;
+        }
+        // Also picks up the operations left over by a previous run
+        scheduler.scheduleWithFixedDelay(this::drain, 0, pollIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Delete these Vertex transactions, asynchronously. Transactions of the invoice not posted yet are not posted anymore.
+     */
+    public void deleteTransactions(final UUID kbInvoiceId, final Collection<String> docCodes, final UUID kbTenantId) throws SQLException {
+        final DateTime utcNow = clock.getUTCNow();
+
+        boolean postingInFlight = false;
+        for (final VertexOutboxRecord posting : dao.deleteOutboxEntries(kbInvoiceId, POST_TRANSACTION, kbTenantId)) {
+            // Claimed at least once: may be being posted right now
+            postingInFlight = postingInFlight || posting.getAttempts() > 0;
+        }
+
+        final Map<String, String> payloads = new HashMap<>();
+        for (final String docCode : docCodes) {
+            payloads.put(docCode, null);
+        }
+        // Don't delete a transaction before it's posted
+        add(kbInvoiceId, DELETE_TRANSACTION, payloads, postingInFlight ? utcNow.plusSeconds(LEASE_SECONDS) : utcNow, kbTenantId);
+    }
+
+    /**
+     * Keep the INVOICE documents of these quotes, to be posted once the invoice is committed (see postTransactions)
+     */
+    public void holdTransactions(final UUID kbInvoiceId, final Iterable<SaleRequestType> quotes, final UUID kbTenantId) throws IOException, SQLException {
+        final Map<String, String> payloads = new LinkedHashMap<>();
+        for (final SaleRequestType quote : quotes) {
+            final SaleMessageTypeEnum saleMessageType = quote.getSaleMessageType();
+            try {
+                quote.setSaleMessageType(SaleMessageTypeEnum.INVOICE);
+                payloads.put(quote.getDocumentNumber(), requestMapper.writeValueAsString(quote));
+            } finally {
+                quote.setSaleMessageType(saleMessageType);
+            }
+        }
+        add(kbInvoiceId, POST_TRANSACTION, payloads, null, kbTenantId);
+    }
+
+    /**
+     * Post the transactions held for this invoice, asynchronously
+     */
+    public void postTransactions(final UUID kbInvoiceId, final UUID kbTenantId) throws SQLException {
+        if (dao.releaseOutboxEntries(kbInvoiceId, POST_TRANSACTION, clock.getUTCNow(), kbTenantId) > 0) {
+            drainNow();
+        }
+    }
+
+    /**
+     * Forget the transactions held for this invoice (e.g. invoice not committed)
+     */
+    public void discardTransactions(final UUID kbInvoiceId, final UUID kbTenantId) throws SQLException {
+        dao.deleteOutboxEntries(kbInvoiceId, POST_TRANSACTION, kbTenantId);
+    }
+
+    /**
+     * @return the number of operations of the tenant, by status (HELD, PENDING or FAILED)
+     */
+    public Map<String, Integer> getBacklog(final UUID kbTenantId) throws SQLException {
+        return dao.getOutboxBacklog(kbTenantId);
+    }
+
+    private void add(final UUID kbInvoiceId,
+                     final String operation,
+                     final Map<String, String> payloads,
+                     @Nullable final DateTime nextAttemptDate,
+                     final UUID kbTenantId) throws SQLException {
+        if (payloads.isEmpty()) {
+            return;
+        }
+
+        dao.addOutboxEntries(kbInvoiceId, operation, payloads, nextAttemptDate, clock.getUTCNow(), kbTenantId);
+        if (nextAttemptDate != null) {
+            drainNow();
+        }
+    }
+
+    private void drainNow() {
+        final ScheduledExecutorService scheduler = this.scheduler;
+        if (scheduler == null) {
+            // Not started: run the operations once, without retries
+            drain();
+            return;
+        }
+        try {
+            // Don't wait for the next poll
+            scheduler.execute(this::drain);
+        } catch (final RejectedExecutionException e) {
+            logger.warn("Vertex outbox closed, operations will be run at the next start");
+        }
+    }
+
+    @VisibleForTesting
+    void drain() {
+        try {
+            // A full batch means there may be more due operations
+            while (drainBatch() == BATCH_SIZE) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+            }
+        } catch (final SQLException | RuntimeException e) {
+            // Retried at the next poll
+            logger.warn("Unable to drain the Vertex outbox", e);
+        }
+    }
+
+    private int drainBatch() throws SQLException {
+        final DateTime utcNow = clock.getUTCNow();
+        final List<VertexOutboxRecord> entries = dao.getDueOutboxEntries(utcNow, BATCH_SIZE);
+
+        final ExecutorService workers = this.workers;
+        final List<Future<?>> futures = new ArrayList<>(entries.size());
+        for (final VertexOutboxRecord entry : entries) {
+            // Claimed entries aren't due anymore, until their lease expires
+            if (!dao.claimOutboxEntry(entry.getRecordId(), entry.getAttempts(), utcNow.plusSeconds(LEASE_SECONDS), utcNow)) {
+                continue;
+            }
+            if (workers == null) {
+                run(entry);
+            } else {
+                futures.add(workers.submit(() -> run(entry)));
+            }
+        }
+
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            } catch (final ExecutionException e) {
+                logger.warn("Unexpected error in the Vertex outbox", e.getCause());
+            }
+        }
+        return entries.size();
+    }
+
+    private void run(final VertexOutboxRecord entry) {
+        final int attempts = entry.getAttempts() + 1;
+        try {
+            try {
+                execute(entry);
+                dao.deleteOutboxEntry(entry.getRecordId());
+            } catch (final ApiException | RuntimeException e) {
+                final DateTime utcNow = clock.getUTCNow();
+                final DateTime nextAttemptDate = attempts >= maxAttempts ? null : utcNow.plusSeconds(getBackoffSeconds(attempts));
+                logger.warn("Unable to run {} for docCode='{}' (attempt {}/{}), kbTenantId='{}'",
+                            entry.getOperation(), entry.getDocCode(), attempts, maxAttempts, entry.getKbTenantId(), e);
+                dao.rescheduleOutboxEntry(entry.getRecordId(), nextAttemptDate, String.valueOf(e.getMessage()), utcNow);
+            }
+        } catch (final SQLException e) {
+            // Run again once the lease expires
+            logger.warn("Unable to update the Vertex outbox entry recordId={}", entry.getRecordId(), e);
+        }
+    }
+
+    private void execute(final VertexOutboxRecord entry) throws ApiException {
+        final UUID kbTenantId = UUID.fromString(entry.getKbTenantId());
+        if (POST_TRANSACTION.equals(entry.getOperation())) {
+            final SaleRequestType taxRequest;
+            try {
+                taxRequest = requestMapper.readValue(entry.getPayload(), SaleRequestType.class);
+            } catch (final IOException e) {
+                throw new IllegalStateException("Invalid payload for docCode " + entry.getDocCode(), e);
+            }
+            logger.info("CreateTransaction req (posting): {}", taxRequest);
+            vertexApiConfigurationHandler.getConfigurable(kbTenantId).calculateTaxes(taxRequest);
+        } else if (DELETE_TRANSACTION.equals(entry.getOperation())) {
+            try {
+                vertexApiConfigurationHandler.getConfigurable(kbTenantId).deleteTransaction(entry.getDocCode());
+            } catch (final ApiException e) {
+                // Already deleted (e.g. previous attempt timed out after Vertex processed it)
+                if (e.getCode() != 404) {
+                    throw e;
+                }
+            }
+        } else {
+            throw new IllegalStateException("Unknown Vertex outbox operation " + entry.getOperation());
+        }
+    }
+
+    @VisibleForTesting
+    int getBackoffSeconds(final int attempts) {
+        final long backoffSeconds = (long) initialBackoffSeconds << Math.min(attempts - 1, 30);
+        return (int) Math.min(backoffSeconds, maxBackoffSeconds);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+}
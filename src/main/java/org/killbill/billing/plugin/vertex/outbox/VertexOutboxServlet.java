@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.outbox;
+
+import java.sql.SQLException;
+import java.util.Optional;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.jooby.MediaType;
+import org.jooby.Result;
+import org.jooby.Results;
+import org.jooby.Status;
+import org.jooby.mvc.GET;
+import org.jooby.mvc.Local;
+import org.jooby.mvc.Path;
+import org.killbill.billing.tenant.api.Tenant;
+
+import com.google.inject.Inject;
+
+/**
+ * Backlog of the Vertex outbox, for the tenant of the request
+ */
+@Singleton
+@Path("/outbox")
+public class VertexOutboxServlet {
+
+    private final VertexOutbox vertexOutbox;
+
+    @Inject
+    public VertexOutboxServlet(final VertexOutbox vertexOutbox) {
+        this.vertexOutbox = vertexOutbox;
+    }
+
+    @GET
+    public Result getBacklog(@Local @Named("killbill_tenant") final Optional<Tenant> tenant) throws SQLException {
+        if (!tenant.isPresent()) {
+            return Results.with(Status.UNAUTHORIZED);
+        }
+        return Results.with(vertexOutbox.getBacklog(tenant.get().getId()), Status.OK)
+                      .type(MediaType.json);
+    }
+}
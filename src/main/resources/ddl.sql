@@ -39,9 +39,68 @@ create table vertex_responses (
 , result_code varchar(255) default null
 , messages longtext default null
 , additional_data longtext default null
+, request_fingerprint char(64) default null
 , created_date datetime not null
 , kb_tenant_id char(36) not null
 , primary key(record_id)
 ) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
 create index vertex_responses_kb_account_id on vertex_responses(kb_account_id);
 create index vertex_responses_kb_invoice_id on vertex_responses(kb_invoice_id);
+
+drop table if exists vertex_tax_areas;
+create table vertex_tax_areas (
+  record_id serial unique
+, address_hash char(64) not null
+, address longtext not null
+, tax_area_id varchar(32) not null
+, created_date datetime not null
+, updated_date datetime not null
+, kb_tenant_id char(36) not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index vertex_tax_areas_address_hash on vertex_tax_areas(kb_tenant_id, address_hash);
+create index vertex_tax_areas_tax_area_id on vertex_tax_areas(kb_tenant_id, tax_area_id);
+
+drop table if exists vertex_tax_code_mappings;
+create table vertex_tax_code_mappings (
+  record_id serial unique
+, catalog_type varchar(32) not null
+, catalog_name varchar(255) not null
+, product_class varchar(255) default null
+, product_value varchar(255) default null
+, created_date datetime not null
+, updated_date datetime not null
+, kb_tenant_id char(36) not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index vertex_tax_code_mappings_catalog_name on vertex_tax_code_mappings(kb_tenant_id, catalog_type, catalog_name);
+
+drop table if exists vertex_outbox;
+create table vertex_outbox (
+  record_id serial unique
+, kb_invoice_id char(36) not null
+, operation varchar(32) not null
+, doc_code varchar(255) not null
+, payload longtext default null
+, status varchar(32) not null
+, attempts int not null
+, next_attempt_date datetime not null
+, last_error longtext default null
+, created_date datetime not null
+, updated_date datetime not null
+, kb_tenant_id char(36) not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index vertex_outbox_doc_code on vertex_outbox(kb_tenant_id, operation, doc_code);
+create index vertex_outbox_next_attempt_date on vertex_outbox(status, next_attempt_date);
+
+drop table if exists vertex_nodes;
+create table vertex_nodes (
+  record_id serial unique
+, node_id char(36) not null
+, lease_expiration_date datetime not null
+, created_date datetime not null
+, updated_date datetime not null
+, primary key(record_id)
+) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
+create unique index vertex_nodes_node_id on vertex_nodes(node_id);
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.plugin.api.PluginProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import static org.killbill.billing.plugin.vertex.VertexTaxCalculator.LOCATION_ADDRESS1;
+import static org.killbill.billing.plugin.vertex.VertexTaxCalculator.LOCATION_ADDRESS2;
+import static org.killbill.billing.plugin.vertex.VertexTaxCalculator.LOCATION_CITY;
+import static org.killbill.billing.plugin.vertex.VertexTaxCalculator.LOCATION_COUNTRY;
+import static org.killbill.billing.plugin.vertex.VertexTaxCalculator.LOCATION_POSTAL_CODE;
+import static org.killbill.billing.plugin.vertex.VertexTaxCalculator.LOCATION_REGION;
+import static org.killbill.billing.plugin.vertex.VertexTaxCalculator.PRODUCT_VALUE;
+import static org.killbill.billing.plugin.vertex.VertexTaxCalculator.SELLER_COUNTRY;
+import static org.killbill.billing.plugin.vertex.VertexTaxCalculator.SELLER_DIVISION;
+import static org.killbill.billing.plugin.vertex.VertexTaxCalculator.TAX_CODE;
+import static org.killbill.billing.plugin.vertex.VertexTaxCalculator.TAX_REGISTRATION_NUMBER;
+import static org.killbill.billing.plugin.vertex.VertexTaxCalculator.USAGE_CLASS;
+
+/**
+ * Plugin properties lookups done while building a tax request (3 per-item properties for each line, plus the
+ * customer and seller properties), with linear scans vs. with a {@link TaxRequestContext}.
+ * <p>
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.killbill.billing.plugin.vertex.TaxRequestContextBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class TaxRequestContextBenchmark {
+
+    private static final String[] GLOBAL_PROPERTIES = {LOCATION_ADDRESS1, LOCATION_ADDRESS2, LOCATION_CITY, LOCATION_REGION, LOCATION_POSTAL_CODE, LOCATION_COUNTRY,
+                                                       TAX_REGISTRATION_NUMBER, SELLER_DIVISION, SELLER_COUNTRY};
+
+    @Param({"1000", "10000", "50000"})
+    private int nbItems;
+
+    private List<UUID> itemIds;
+    private List<PluginProperty> pluginProperties;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        itemIds = new ArrayList<>(nbItems);
+        pluginProperties = new ArrayList<>(3 * nbItems + GLOBAL_PROPERTIES.length);
+        for (final String globalProperty : GLOBAL_PROPERTIES) {
+            pluginProperties.add(new PluginProperty(globalProperty, "value", false));
+        }
+        for (int i = 0; i < nbItems; i++) {
+            final UUID itemId = UUID.randomUUID();
+            itemIds.add(itemId);
+            pluginProperties.add(new PluginProperty(TAX_CODE + "_" + itemId, "SW054000", false));
+            pluginProperties.add(new PluginProperty(PRODUCT_VALUE + "_" + itemId, "product", false));
+            pluginProperties.add(new PluginProperty(USAGE_CLASS + "_" + itemId, "usage", false));
+        }
+    }
+
+    @Benchmark
+    public void linearScan(final Blackhole blackhole) {
+        for (final String globalProperty : GLOBAL_PROPERTIES) {
+            blackhole.consume(PluginProperties.findPluginPropertyValue(globalProperty, pluginProperties));
+        }
+        for (final UUID itemId : itemIds) {
+            blackhole.consume(PluginProperties.findPluginPropertyValue(String.format("%s_%s", USAGE_CLASS, itemId), pluginProperties));
+            blackhole.consume(PluginProperties.findPluginPropertyValue(String.format("%s_%s", TAX_CODE, itemId), pluginProperties));
+            blackhole.consume(PluginProperties.findPluginPropertyValue(String.format("%s_%s", PRODUCT_VALUE, itemId), pluginProperties));
+        }
+    }
+
+    @Benchmark
+    public void indexed(final Blackhole blackhole) {
+        // Indexing is part of each tax calculation
+        final TaxRequestContext taxRequestContext = new TaxRequestContext(pluginProperties);
+        for (final String globalProperty : GLOBAL_PROPERTIES) {
+            blackhole.consume(taxRequestContext.getPropertyValue(globalProperty));
+        }
+        for (final UUID itemId : itemIds) {
+            blackhole.consume(taxRequestContext.getUsageClass(itemId));
+            blackhole.consume(taxRequestContext.getTaxCode(itemId));
+            blackhole.consume(taxRequestContext.getProductValue(itemId));
+        }
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(TaxRequestContextBenchmark.class.getSimpleName()).build()).run();
+    }
+}
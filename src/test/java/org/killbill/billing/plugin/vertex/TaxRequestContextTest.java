@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex;
+
+import java.util.UUID;
+
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.plugin.api.PluginProperties;
+import org.killbill.billing.plugin.vertex.cache.TaxCodeMapping;
+import org.killbill.billing.plugin.vertex.cache.TaxCodeMapping.CatalogType;
+import org.killbill.billing.plugin.vertex.cache.TaxCodeMappings;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.mockito.BDDMockito.given;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class TaxRequestContextTest {
+
+    @Test(groups = "fast")
+    public void testLookups() {
+        final UUID itemId = UUID.randomUUID();
+        final UUID otherItemId = UUID.randomUUID();
+        final ImmutableList<PluginProperty> pluginProperties = ImmutableList.of(new PluginProperty(VertexTaxCalculator.LOCATION_CITY, "San Francisco", false),
+                                                                                new PluginProperty(VertexTaxCalculator.LOCATION_CITY, "Paris", false),
+                                                                                new PluginProperty(VertexTaxCalculator.LOCATION_REGION, "", false),
+                                                                                new PluginProperty(VertexTaxCalculator.LOCATION_COUNTRY, null, false),
+                                                                                new PluginProperty(VertexTaxCalculator.LOCATION_POSTAL_CODE, 94110, false),
+                                                                                new PluginProperty(VertexTaxCalculator.TAX_CODE + "_" + itemId, "SW054000", false),
+                                                                                new PluginProperty(VertexTaxCalculator.PRODUCT_VALUE + "_" + itemId, "product", false),
+                                                                                new PluginProperty(VertexTaxCalculator.USAGE_CLASS + "_" + itemId, "usage", false),
+                                                                                new PluginProperty(VertexTaxCalculator.TAX_CODE + "_" + itemId, "ignored", false),
+                                                                                new PluginProperty(VertexTaxCalculator.TAX_CODE + "_not-a-uuid", "ignored", false));
+
+        final TaxRequestContext taxRequestContext = new TaxRequestContext(pluginProperties);
+
+        // Same behavior as PluginProperties#findPluginPropertyValue
+        for (final String key : ImmutableList.of(VertexTaxCalculator.LOCATION_CITY,
+                                                 VertexTaxCalculator.LOCATION_REGION,
+                                                 VertexTaxCalculator.LOCATION_COUNTRY,
+                                                 VertexTaxCalculator.LOCATION_POSTAL_CODE,
+                                                 VertexTaxCalculator.LOCATION_ADDRESS1,
+                                                 VertexTaxCalculator.TAX_CODE + "_" + itemId,
+                                                 VertexTaxCalculator.TAX_CODE + "_not-a-uuid")) {
+            assertEquals(taxRequestContext.getPropertyValue(key), PluginProperties.findPluginPropertyValue(key, pluginProperties), key);
+        }
+        assertEquals(taxRequestContext.getPropertyValue(VertexTaxCalculator.LOCATION_POSTAL_CODE), "94110");
+
+        assertEquals(taxRequestContext.getTaxCode(itemId), "SW054000");
+        assertEquals(taxRequestContext.getProductValue(itemId), "product");
+        assertEquals(taxRequestContext.getUsageClass(itemId), "usage");
+        assertNull(taxRequestContext.getTaxCode(otherItemId));
+    }
+
+    @Test(groups = "fast")
+    public void testNoProperties() {
+        final TaxRequestContext taxRequestContext = new TaxRequestContext(null);
+
+        assertNull(taxRequestContext.getPropertyValue(VertexTaxCalculator.LOCATION_CITY));
+        assertNull(taxRequestContext.getTaxCode(UUID.randomUUID()));
+    }
+
+    @Test(groups = "fast")
+    public void testFallbackToTaxCodeMappings() {
+        final UUID itemId = UUID.randomUUID();
+        final InvoiceItem invoiceItem = Mockito.mock(InvoiceItem.class);
+        given(invoiceItem.getId()).willReturn(itemId);
+        given(invoiceItem.getProductName()).willReturn("Standard");
+        given(invoiceItem.getPlanName()).willReturn("standard-monthly");
+
+        final TaxCodeMappings taxCodeMappings = new TaxCodeMappings(ImmutableList.of(new TaxCodeMapping(CatalogType.PRODUCT, "Standard", "SW050000", "standard"),
+                                                                                     new TaxCodeMapping(CatalogType.PLAN, "standard-monthly", "SW054000", null)));
+
+        // Most specific catalog entry wins, each field falling back on its own
+        final TaxRequestContext noPropertiesContext = new TaxRequestContext(null, taxCodeMappings);
+        assertEquals(noPropertiesContext.getTaxCode(invoiceItem), "SW054000");
+        assertNull(noPropertiesContext.getProductValue(invoiceItem));
+
+        // Properties take precedence
+        final TaxRequestContext taxRequestContext = new TaxRequestContext(ImmutableList.of(new PluginProperty(VertexTaxCalculator.TAX_CODE + "_" + itemId, "SW052000", false)),
+                                                                          taxCodeMappings);
+        assertEquals(taxRequestContext.getTaxCode(invoiceItem), "SW052000");
+
+        final InvoiceItem unmappedInvoiceItem = Mockito.mock(InvoiceItem.class);
+        given(unmappedInvoiceItem.getId()).willReturn(UUID.randomUUID());
+        given(unmappedInvoiceItem.getProductName()).willReturn("Premium");
+        assertNull(taxRequestContext.getTaxCode(unmappedInvoiceItem));
+    }
+}
@@ -17,19 +17,48 @@
 
 package org.killbill.billing.plugin.vertex;
 
+import java.time.LocalDate;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
+import org.killbill.billing.plugin.vertex.base.LocalVertexServer;
+import org.killbill.billing.plugin.vertex.base.LocalVertexServer.RecordedRequest;
 import org.killbill.billing.plugin.vertex.gen.ApiException;
 import org.killbill.billing.plugin.vertex.gen.client.model.AddressLookupRequestType;
+import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessResponseTransactionResponseType;
+import org.killbill.billing.plugin.vertex.gen.client.model.SaleMessageTypeEnum;
 import org.killbill.billing.plugin.vertex.gen.client.model.SaleRequestType;
+import org.killbill.billing.plugin.vertex.http.CircuitBreaker;
+import org.killbill.billing.plugin.vertex.http.CircuitBreakerOpenException;
+import org.killbill.billing.plugin.vertex.http.VertexHttpTransport;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
-//Currently only unhappy path is covered
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CHECK_TRANSACTION_EXISTS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CIRCUIT_BREAKER_MINIMUM_CALLS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CIRCUIT_BREAKER_WINDOW_SIZE_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CONCURRENCY_INITIAL_LIMIT_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CONCURRENCY_MAX_LIMIT_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_CONCURRENCY_MIN_LIMIT_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_OSERIES_CLIENT_ID_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_OSERIES_CLIENT_SECRET_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_OSERIES_URL_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_RATE_LIMIT_BURST_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_RATE_LIMIT_MAX_WAIT_MS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_RATE_LIMIT_REQUESTS_PER_SECOND_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_RETRY_INITIAL_BACKOFF_MS_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_RETRY_MAX_ATTEMPTS_PROPERTY;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
 public class VertexApiClientTest {
 
     @Mock
@@ -38,9 +67,20 @@ public class VertexApiClientTest {
     @InjectMocks
     private VertexApiClient vertexApiClient;
 
+    private VertexHttpTransport httpTransport;
+    private LocalVertexServer server;
+
     @BeforeClass(groups = "fast")
-    public void setUp() {
+    public void setUp() throws Exception {
         MockitoAnnotations.openMocks(this);
+        httpTransport = new VertexHttpTransport(new Properties());
+        server = new LocalVertexServer();
+    }
+
+    @AfterClass(groups = "fast")
+    public void tearDown() {
+        server.close();
+        httpTransport.close();
     }
 
     @Test(expectedExceptions = IllegalStateException.class, groups = "fast")
@@ -57,4 +97,232 @@ public class VertexApiClientTest {
     public void testLookUpTaxAreaByAddress() throws ApiException {
         vertexApiClient.lookUpTaxAreaByAddress(Mockito.mock(AddressLookupRequestType.class));
     }
+
+    @Test(expectedExceptions = IllegalStateException.class, groups = "fast")
+    public void testCalculateTaxesAsync() {
+        vertexApiClient.calculateTaxesAsync(Mockito.mock(SaleRequestType.class));
+    }
+
+    @Test(groups = "fast")
+    public void testCalculateTaxesAsyncAgainstLocalServer() throws Exception {
+        server.enqueue("POST", "/v2/supplies", 200, "{\"data\":{\"transactionId\":\"kb_1\",\"totalTax\":1.5}}");
+
+        final CompletableFuture<ApiSuccessResponseTransactionResponseType> response = buildLocalClient().calculateTaxesAsync(new SaleRequestType().transactionId("kb_1"));
+
+        assertEquals(response.get().getData().getTransactionId(), "kb_1");
+        assertEquals(response.get().getData().getTotalTax(), 1.5);
+    }
+
+    @Test(groups = "fast")
+    public void testRetryOnceAfterUnauthorized() throws Exception {
+        final VertexApiClient client = buildLocalClient();
+        server.enqueue("DELETE", "/v2/transactions/kb%20401", 401, "{}");
+
+        client.deleteTransaction("kb 401");
+
+        final long nbAttempts = server.getRequests().stream().filter(r -> "/vertex-ws/v2/transactions/kb%20401".equals(r.getPath())).count();
+        assertEquals(nbAttempts, 2);
+        assertTrue(server.getNbTokens() >= 2);
+    }
+
+    @Test(groups = "fast")
+    public void testErrorResponse() throws Exception {
+        server.enqueue("DELETE", "/v2/transactions/kb_500", 500, "{\"errors\":[]}");
+
+        try {
+            buildLocalClient().deleteTransaction("kb_500");
+            fail();
+        } catch (final ApiException e) {
+            assertEquals(e.getCode(), 500);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testCircuitBreakerFailsFast() throws Exception {
+        final Properties circuitBreakerProperties = new Properties();
+        circuitBreakerProperties.put(VERTEX_CIRCUIT_BREAKER_WINDOW_SIZE_PROPERTY, "2");
+        circuitBreakerProperties.put(VERTEX_CIRCUIT_BREAKER_MINIMUM_CALLS_PROPERTY, "2");
+        final VertexApiClient client = buildLocalClient(circuitBreakerProperties);
+        server.enqueue("DELETE", "/v2/transactions/kb_cb500", 500, "{\"errors\":[]}");
+        server.enqueue("DELETE", "/v2/transactions/kb_cb500", 500, "{\"errors\":[]}");
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                client.deleteTransaction("kb_cb500");
+                fail();
+            } catch (final ApiException e) {
+                assertEquals(e.getCode(), 500);
+            }
+        }
+        assertEquals(client.getCircuitBreakerStates().get(VertexApiClient.DELETE_TRANSACTION), CircuitBreaker.State.OPEN);
+        // Other endpoints aren't affected
+        assertEquals(client.getCircuitBreakerStates().get(VertexApiClient.CALCULATE_TAXES), CircuitBreaker.State.CLOSED);
+
+        try {
+            client.deleteTransaction("kb_cb500");
+            fail();
+        } catch (final CircuitBreakerOpenException e) {
+            // Not sent
+            final long nbAttempts = server.getRequests().stream().filter(r -> "/vertex-ws/v2/transactions/kb_cb500".equals(r.getPath())).count();
+            assertEquals(nbAttempts, 2);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testOpenCircuitBreakerDoesNotWaitForConcurrencyLimiter() throws Exception {
+        final Properties limitedProperties = new Properties();
+        limitedProperties.put(VERTEX_CIRCUIT_BREAKER_WINDOW_SIZE_PROPERTY, "2");
+        limitedProperties.put(VERTEX_CIRCUIT_BREAKER_MINIMUM_CALLS_PROPERTY, "2");
+        // A single in-flight request, held while waiting for a token
+        limitedProperties.put(VERTEX_CONCURRENCY_INITIAL_LIMIT_PROPERTY, "1");
+        limitedProperties.put(VERTEX_CONCURRENCY_MIN_LIMIT_PROPERTY, "1");
+        limitedProperties.put(VERTEX_CONCURRENCY_MAX_LIMIT_PROPERTY, "1");
+        limitedProperties.put(VERTEX_RATE_LIMIT_REQUESTS_PER_SECOND_PROPERTY, "1");
+        limitedProperties.put(VERTEX_RATE_LIMIT_BURST_PROPERTY, "2");
+        limitedProperties.put(VERTEX_RATE_LIMIT_MAX_WAIT_MS_PROPERTY, "5000");
+        final VertexApiClient client = buildLocalClient(limitedProperties);
+        server.enqueue("DELETE", "/v2/transactions/kb_cbqueue", 500, "{\"errors\":[]}");
+        server.enqueue("DELETE", "/v2/transactions/kb_cbqueue", 500, "{\"errors\":[]}");
+        for (int i = 0; i < 2; i++) {
+            try {
+                client.deleteTransaction("kb_cbqueue");
+                fail();
+            } catch (final ApiException e) {
+                assertEquals(e.getCode(), 500);
+            }
+        }
+        assertEquals(client.getCircuitBreakerStates().get(VertexApiClient.DELETE_TRANSACTION), CircuitBreaker.State.OPEN);
+        final CompletableFuture<?> inFlight = client.getChangedTaxAreasAsync(LocalDate.of(2023, 1, 1));
+
+        final CompletableFuture<?> rejected = client.deleteTransactionAsync("kb_cbqueue");
+
+        // Rejected right away, without queuing behind the in-flight request
+        assertTrue(rejected.isCompletedExceptionally());
+        try {
+            rejected.join();
+            fail();
+        } catch (final CompletionException e) {
+            assertTrue(e.getCause() instanceof CircuitBreakerOpenException);
+        }
+        assertEquals(client.getConcurrencyLimiterStats().get("queued"), (Long) 0L);
+        inFlight.get();
+    }
+
+    @Test(groups = "fast")
+    public void testOpenCircuitBreakerDoesNotConsumeTokens() throws Exception {
+        final Properties limitedProperties = new Properties();
+        limitedProperties.put(VERTEX_CIRCUIT_BREAKER_WINDOW_SIZE_PROPERTY, "2");
+        limitedProperties.put(VERTEX_CIRCUIT_BREAKER_MINIMUM_CALLS_PROPERTY, "2");
+        limitedProperties.put(VERTEX_CONCURRENCY_MAX_LIMIT_PROPERTY, "0");
+        limitedProperties.put(VERTEX_RATE_LIMIT_REQUESTS_PER_SECOND_PROPERTY, "1");
+        limitedProperties.put(VERTEX_RATE_LIMIT_BURST_PROPERTY, "3");
+        final VertexApiClient client = buildLocalClient(limitedProperties);
+        server.enqueue("DELETE", "/v2/transactions/kb_cbtoken", 500, "{\"errors\":[]}");
+        server.enqueue("DELETE", "/v2/transactions/kb_cbtoken", 500, "{\"errors\":[]}");
+        for (int i = 0; i < 2; i++) {
+            try {
+                client.deleteTransaction("kb_cbtoken");
+                fail();
+            } catch (final ApiException e) {
+                assertEquals(e.getCode(), 500);
+            }
+        }
+        assertEquals(client.getCircuitBreakerStates().get(VertexApiClient.DELETE_TRANSACTION), CircuitBreaker.State.OPEN);
+        final long availableTokens = client.getRateLimiterStats().get("availableTokens");
+
+        try {
+            client.deleteTransaction("kb_cbtoken");
+            fail();
+        } catch (final CircuitBreakerOpenException e) {
+            // The token is left to the other endpoints
+            assertTrue(client.getRateLimiterStats().get("availableTokens") >= availableTokens);
+            assertEquals(client.getRateLimiterStats().get("rejected"), (Long) 0L);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testTransientFailureIsRetried() throws Exception {
+        final Properties retryProperties = new Properties();
+        retryProperties.put(VERTEX_RETRY_MAX_ATTEMPTS_PROPERTY, "3");
+        retryProperties.put(VERTEX_RETRY_INITIAL_BACKOFF_MS_PROPERTY, "10");
+        final VertexApiClient client = buildLocalClient(retryProperties);
+        server.enqueue("DELETE", "/v2/transactions/kb_retry503", 503, "{\"errors\":[]}");
+
+        client.deleteTransaction("kb_retry503");
+
+        final long nbAttempts = server.getRequests().stream().filter(r -> "/vertex-ws/v2/transactions/kb_retry503".equals(r.getPath())).count();
+        assertEquals(nbAttempts, 2);
+        assertEquals(client.getRetryCounters().get(VertexApiClient.DELETE_TRANSACTION + ".retries"), (Long) 1L);
+        assertEquals(client.getRetryCounters().get(VertexApiClient.DELETE_TRANSACTION + ".recovered"), (Long) 1L);
+        assertEquals(client.getRetryCounters().get(VertexApiClient.DELETE_TRANSACTION + ".exhausted"), (Long) 0L);
+    }
+
+    @Test(groups = "fast")
+    public void testPostedInvoiceIsQuotedOnRetry() throws Exception {
+        final Properties retryProperties = new Properties();
+        retryProperties.put(VERTEX_RETRY_MAX_ATTEMPTS_PROPERTY, "3");
+        retryProperties.put(VERTEX_RETRY_INITIAL_BACKOFF_MS_PROPERTY, "10");
+        final VertexApiClient client = buildLocalClient(retryProperties);
+        final int nbRequestsBefore = server.getRequests().size();
+        // Processed by Vertex, but answered with a transient error
+        server.enqueue("POST", "/v2/supplies", 503, "{\"errors\":[]}");
+        server.enqueue("GET", "/v2/transaction-exists/kb_post503", 200, "{\"transactionExistsIndicator\":\"true\"}");
+        server.enqueue("POST", "/v2/supplies", 200, "{\"data\":{\"transactionId\":\"kb_post503\",\"totalTax\":1.5}}");
+
+        final SaleRequestType taxRequest = new SaleRequestType().transactionId("kb_post503").saleMessageType(SaleMessageTypeEnum.INVOICE);
+        final ApiSuccessResponseTransactionResponseType response = client.calculateTaxes(taxRequest);
+
+        assertEquals(response.getData().getTotalTax(), 1.5);
+        final List<RecordedRequest> requests = server.getRequests().subList(nbRequestsBefore, server.getRequests().size());
+        assertEquals(requests.size(), 3);
+        assertEquals(requests.get(0).getPath(), "/vertex-ws/v2/supplies");
+        assertTrue(requests.get(0).getBody().contains("INVOICE"));
+        assertEquals(requests.get(1).getPath(), "/vertex-ws/v2/transaction-exists/kb_post503");
+        // Not posted twice
+        assertEquals(requests.get(2).getPath(), "/vertex-ws/v2/supplies");
+        assertTrue(requests.get(2).getBody().contains("QUOTATION"));
+        // The request of the caller isn't changed
+        assertEquals(taxRequest.getSaleMessageType(), SaleMessageTypeEnum.INVOICE);
+    }
+
+    @Test(groups = "fast")
+    public void testAlreadyPostedInvoiceIsQuoted() throws Exception {
+        final Properties checkProperties = new Properties();
+        checkProperties.put(VERTEX_CHECK_TRANSACTION_EXISTS_PROPERTY, "true");
+        final VertexApiClient client = buildLocalClient(checkProperties);
+        final int nbRequestsBefore = server.getRequests().size();
+        // Posted by a previous invoice generation attempt
+        server.enqueue("GET", "/v2/transaction-exists/kb_posted", 200, "{\"transactionExistsIndicator\":\"true\"}");
+        server.enqueue("POST", "/v2/supplies", 200, "{\"data\":{\"transactionId\":\"kb_posted\",\"totalTax\":1.5}}");
+        server.enqueue("GET", "/v2/transaction-exists/kb_new", 200, "{\"transactionExistsIndicator\":\"false\"}");
+        server.enqueue("POST", "/v2/supplies", 200, "{\"data\":{\"transactionId\":\"kb_new\",\"totalTax\":2.5}}");
+
+        final SaleRequestType postedRequest = new SaleRequestType().transactionId("kb_posted").saleMessageType(SaleMessageTypeEnum.INVOICE);
+        assertEquals(client.calculateTaxes(postedRequest).getData().getTotalTax(), 1.5);
+        final SaleRequestType newRequest = new SaleRequestType().transactionId("kb_new").saleMessageType(SaleMessageTypeEnum.INVOICE);
+        assertEquals(client.calculateTaxes(newRequest).getData().getTotalTax(), 2.5);
+
+        final List<RecordedRequest> requests = server.getRequests().subList(nbRequestsBefore, server.getRequests().size());
+        assertEquals(requests.size(), 4);
+        assertEquals(requests.get(0).getPath(), "/vertex-ws/v2/transaction-exists/kb_posted");
+        // Only quoted, from a copy of the request
+        assertTrue(requests.get(1).getBody().contains("QUOTATION"));
+        assertTrue(requests.get(1).getBody().contains("kb_posted"));
+        assertEquals(postedRequest.getSaleMessageType(), SaleMessageTypeEnum.INVOICE);
+        assertEquals(requests.get(2).getPath(), "/vertex-ws/v2/transaction-exists/kb_new");
+        assertTrue(requests.get(3).getBody().contains("INVOICE"));
+    }
+
+    private VertexApiClient buildLocalClient() {
+        return buildLocalClient(new Properties());
+    }
+
+    private VertexApiClient buildLocalClient(final Properties additionalProperties) {
+        final Properties localProperties = new Properties();
+        localProperties.putAll(additionalProperties);
+        localProperties.put(VERTEX_OSERIES_URL_PROPERTY, server.getUrl());
+        localProperties.put(VERTEX_OSERIES_CLIENT_ID_PROPERTY, LocalVertexServer.CLIENT_ID);
+        localProperties.put(VERTEX_OSERIES_CLIENT_SECRET_PROPERTY, LocalVertexServer.CLIENT_SECRET);
+        return new VertexApiClient(localProperties, httpTransport);
+    }
 }
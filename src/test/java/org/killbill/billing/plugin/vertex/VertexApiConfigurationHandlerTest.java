@@ -19,6 +19,7 @@ package org.killbill.billing.plugin.vertex;
 
 import java.util.Properties;
 
+import org.killbill.billing.plugin.vertex.http.VertexHttpTransport;
 import org.testng.annotations.Test;
 
 import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_OSERIES_COMPANY_DIVISION_PROPERTY;
@@ -29,7 +30,7 @@ import static org.testng.Assert.assertNotNull;
 public class VertexApiConfigurationHandlerTest {
 
     private final VertexApiConfigurationHandler vertexApiConfigurationHandler =
-            new VertexApiConfigurationHandler("pluginName", null);
+            new VertexApiConfigurationHandler("pluginName", null, new VertexHttpTransport(new Properties()));
 
     @Test
     public void testCreateConfigurable() {
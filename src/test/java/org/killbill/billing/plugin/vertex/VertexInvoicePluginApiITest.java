@@ -87,7 +87,7 @@ public class VertexInvoicePluginApiITest extends VertexRemoteTestBase {
     public void testItemAdjustments() {
 
         final Clock clock = new DefaultClock();
-        final VertexApiConfigurationHandler vertexApiConfigurationHandler = new VertexApiConfigurationHandler(VertexActivator.PLUGIN_NAME, osgiKillbillAPI);
+        final VertexApiConfigurationHandler vertexApiConfigurationHandler = new VertexApiConfigurationHandler(VertexActivator.PLUGIN_NAME, osgiKillbillAPI, httpTransport);
         vertexApiConfigurationHandler.setDefaultConfigurable(vertexApiClient);
         vertexTaxCalculator = new VertexTaxCalculator(vertexApiConfigurationHandler, dao, clock, osgiKillbillAPI);
         vertexInvoicePluginApi = new VertexInvoicePluginApi(vertexApiConfigurationHandler,
@@ -176,7 +176,7 @@ public class VertexInvoicePluginApiITest extends VertexRemoteTestBase {
     public void testRepair() throws Exception {
 
         final Clock clock = new DefaultClock();
-        final VertexApiConfigurationHandler vertexApiConfigurationHandler = new VertexApiConfigurationHandler(VertexActivator.PLUGIN_NAME, osgiKillbillAPI);
+        final VertexApiConfigurationHandler vertexApiConfigurationHandler = new VertexApiConfigurationHandler(VertexActivator.PLUGIN_NAME, osgiKillbillAPI, httpTransport);
         vertexApiConfigurationHandler.setDefaultConfigurable(vertexApiClient);
         vertexTaxCalculator = new VertexTaxCalculator(vertexApiConfigurationHandler, dao, clock, osgiKillbillAPI);
         vertexInvoicePluginApi = new VertexInvoicePluginApi(vertexApiConfigurationHandler,
@@ -31,13 +31,18 @@ import org.killbill.billing.invoice.api.Invoice;
 import org.killbill.billing.invoice.api.InvoiceItem;
 import org.killbill.billing.invoice.plugin.api.AdditionalItemsResult;
 import org.killbill.billing.invoice.plugin.api.InvoiceContext;
+import org.killbill.billing.invoice.plugin.api.OnFailureInvoiceResult;
 import org.killbill.billing.invoice.plugin.api.OnSuccessInvoiceResult;
 import org.killbill.billing.invoice.plugin.api.boilerplate.plugin.InvoiceContextImp;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.payment.api.PluginProperty;
+import org.killbill.billing.plugin.vertex.cache.AccountTaxContext;
+import org.killbill.billing.plugin.vertex.cache.AccountTaxContextCache;
+import org.killbill.billing.plugin.vertex.cache.TaxCodeCache;
 import org.killbill.billing.plugin.vertex.dao.VertexDao;
 import org.killbill.billing.plugin.vertex.gen.ApiException;
 import org.killbill.billing.plugin.vertex.gen.dao.model.tables.records.VertexResponsesRecord;
+import org.killbill.billing.plugin.vertex.outbox.VertexOutbox;
 import org.killbill.billing.util.api.CustomFieldUserApi;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.callcontext.TenantContext;
@@ -49,13 +54,18 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyCollection;
 import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.testng.AssertJUnit.assertEquals;
@@ -85,10 +95,18 @@ public class VertexInvoicePluginApiTest {
     private Account account;
     @Mock
     private VertexTaxCalculator vertexTaxCalculator;
+    @Mock
+    private AccountTaxContextCache accountTaxContextCache;
+    @Mock
+    private TaxCodeCache taxCodeCache;
+    @Mock
+    private VertexOutbox vertexOutbox;
 
     @InjectMocks
     private VertexInvoicePluginApi vertexInvoicePluginApi;
 
+    private AccountTaxContext accountTaxContext;
+
     @BeforeClass(groups = "fast")
     public void setUp() throws AccountApiException {
         MockitoAnnotations.openMocks(this);
@@ -106,6 +124,9 @@ public class VertexInvoicePluginApiTest {
 
         given(invoice.getAccountId()).willReturn(accountId);
 
+        accountTaxContext = AccountTaxContext.of(account);
+        given(accountTaxContextCache.getAccountTaxContext(eq(accountId), any(TenantContext.class))).willReturn(accountTaxContext);
+
         given(vertexApiConfigurationHandler.getConfigurable(tenantId)).willReturn(vertexApiClient);
 
         given(killbillAPI.getAccountUserApi()).willReturn(accountUserApi);
@@ -123,6 +144,9 @@ public class VertexInvoicePluginApiTest {
         Mockito.clearInvocations(killbillAPI);
         Mockito.clearInvocations(invoice);
         Mockito.clearInvocations(vertexTaxCalculator);
+        Mockito.clearInvocations(accountTaxContextCache);
+        Mockito.reset(taxCodeCache);
+        Mockito.reset(vertexOutbox);
     }
 
     @Test(groups = "fast")
@@ -138,7 +162,7 @@ public class VertexInvoicePluginApiTest {
     @Test(groups = "fast", expectedExceptions = {RuntimeException.class})
     public void testPreventInvoiceGenerationOnExceptionInGetAdditionalInvoiceItems() throws Exception {
         //given
-        doThrow(Exception.class).when(vertexTaxCalculator).compute(any(Account.class), any(Invoice.class), anyBoolean(), anyList(), any(CallContext.class));
+        doThrow(Exception.class).when(vertexTaxCalculator).compute(any(AccountTaxContext.class), any(Invoice.class), anyBoolean(), anyList(), any(CallContext.class));
 
         //when
         vertexInvoicePluginApi.getAdditionalInvoiceItems(invoice, false, Collections.emptyList(), new InvoiceContextImp.Builder<>().withInvoice(invoice).withIsDryRun(false).build()).getAdditionalItems();
@@ -150,23 +174,45 @@ public class VertexInvoicePluginApiTest {
         final Iterable<PluginProperty> properties = Collections.emptyList();
         final List<InvoiceItem> invoiceItems = Collections.singletonList(Mockito.mock(InvoiceItem.class));
         final InvoiceContext invContext = new InvoiceContextImp.Builder<>().withInvoice(invoice).withIsDryRun(false).build();
-        given(vertexTaxCalculator.compute(account, invoice, false, properties, invContext)).willReturn(invoiceItems);
+        given(vertexTaxCalculator.compute(accountTaxContext, invoice, false, properties, invContext)).willReturn(invoiceItems);
 
-        given(customFieldUserApi.getCustomFieldsForAccountType(invoice.getAccountId(), ObjectType.INVOICE_ITEM, callContext)).willReturn(Collections.emptyList());
+        given(taxCodeCache.getTaxCodes(eq(invoice.getAccountId()), any(TenantContext.class))).willReturn(Collections.emptyMap());
 
         //when
         List<InvoiceItem> result = vertexInvoicePluginApi.getAdditionalInvoiceItems(invoice, false, properties, invContext).getAdditionalItems();
 
         //then
         assertEquals(invoiceItems.size(), result.size());
-        verify(vertexTaxCalculator).compute(account, invoice, false, properties, invContext);
+        verify(vertexTaxCalculator).compute(accountTaxContext, invoice, false, properties, invContext);
+
+        verify(accountTaxContextCache).getAccountTaxContext(eq(invoice.getAccountId()), any(CallContext.class));
+    }
 
-        verify(killbillAPI).getAccountUserApi();
-        verify(accountUserApi).getAccountById(any(UUID.class), any(CallContext.class));
+    @Test(groups = "fast")
+    public void testGetAdditionalInvoiceItemsWithTaxCodeCustomFields() throws Exception {
+        //given
+        final InvoiceItem invoiceItem = Mockito.mock(InvoiceItem.class);
+        final UUID invoiceItemId = UUID.randomUUID();
+        given(invoiceItem.getId()).willReturn(invoiceItemId);
+        given(invoice.getInvoiceItems()).willReturn(Collections.singletonList(invoiceItem));
+        given(taxCodeCache.getTaxCodes(eq(invoice.getAccountId()), any(TenantContext.class))).willReturn(ImmutableMap.of(invoiceItemId, "SW054000",
+                                                                                                                          UUID.randomUUID(), "SW054001"));
+        final InvoiceContext invContext = new InvoiceContextImp.Builder<>().withInvoice(invoice).withIsDryRun(false).build();
+
+        //when
+        vertexInvoicePluginApi.getAdditionalInvoiceItems(invoice, false, Collections.emptyList(), invContext);
+
+        //then
+        verify(vertexTaxCalculator).compute(eq(accountTaxContext),
+                                            eq(invoice),
+                                            eq(false),
+                                            eq(Collections.singletonList(new PluginProperty(VertexTaxCalculator.TAX_CODE + "_" + invoiceItemId, "SW054000", false))),
+                                            eq(invContext));
+        verify(customFieldUserApi, never()).getCustomFieldsForAccountType(any(UUID.class), any(ObjectType.class), any(TenantContext.class));
     }
 
     @Test(groups = "fast")
-    public void testOnSuccessCallWithVoidOperationProperty() throws SQLException {
+    public void testOnSuccessCallWithVoidOperationProperty() throws SQLException, ApiException {
         //given
         Iterable<PluginProperty> properties = Collections.singletonList(new PluginProperty(VertexInvoicePluginApi.INVOICE_OPERATION, "void", false));
 
@@ -180,15 +226,12 @@ public class VertexInvoicePluginApiTest {
         OnSuccessInvoiceResult onSuccessInvoiceResult = vertexInvoicePluginApi.onSuccessCall(invoiceContext, properties);
 
         //then
-        vertexResponses.forEach(vertexResponse -> {
-            try {
-                verify(vertexApiClient).deleteTransaction(vertexResponse.getDocCode());
-            } catch (ApiException e) {
-                throw new RuntimeException(e);
-            }
-        });
+        // Deleted by the outbox, in the background
+        verify(vertexOutbox).deleteTransactions(invoice.getId(),
+                                                ImmutableSet.of(vertexResponses.get(0).getDocCode(), vertexResponses.get(1).getDocCode()),
+                                                invoiceContext.getTenantId());
+        verify(vertexApiClient, never()).deleteTransaction(anyString());
         assertNotNull(onSuccessInvoiceResult);
-        verify(vertexApiConfigurationHandler).getConfigurable(invoiceContext.getTenantId());
         verify(dao).getSuccessfulResponses(invoice.getId(), invoiceContext.getTenantId());
     }
 
@@ -203,7 +246,52 @@ public class VertexInvoicePluginApiTest {
         //then
         assertNotNull(onSuccessInvoiceResult);
         verify(dao, times(0)).getSuccessfulResponses(any(UUID.class), any(UUID.class));
-        verify(vertexApiConfigurationHandler, times(0)).getConfigurable(any(UUID.class));
+        verify(vertexOutbox, never()).postTransactions(any(UUID.class), any(UUID.class));
+    }
+
+    @Test(groups = "fast")
+    public void testOnSuccessCallQuoteThenPost() throws SQLException {
+        //given
+        given(vertexApiClient.isQuoteThenPost()).willReturn(true);
+
+        try {
+            //when
+            OnSuccessInvoiceResult onSuccessInvoiceResult = vertexInvoicePluginApi.onSuccessCall(invoiceContext, Collections.emptyList());
+
+            //then the transactions quoted during the invoice generation are posted
+            assertNotNull(onSuccessInvoiceResult);
+            verify(vertexOutbox).postTransactions(invoice.getId(), invoiceContext.getTenantId());
+        } finally {
+            given(vertexApiClient.isQuoteThenPost()).willReturn(false);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testOnFailureCallQuoteThenPost() throws SQLException {
+        //given
+        given(vertexApiClient.isQuoteThenPost()).willReturn(true);
+
+        try {
+            //when
+            OnFailureInvoiceResult onFailureInvoiceResult = vertexInvoicePluginApi.onFailureCall(invoiceContext, Collections.emptyList());
+
+            //then
+            assertNotNull(onFailureInvoiceResult);
+            verify(vertexOutbox).discardTransactions(invoice.getId(), invoiceContext.getTenantId());
+            verify(vertexOutbox, never()).postTransactions(any(UUID.class), any(UUID.class));
+        } finally {
+            given(vertexApiClient.isQuoteThenPost()).willReturn(false);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testOnFailureCall() throws SQLException {
+        //when
+        OnFailureInvoiceResult onFailureInvoiceResult = vertexInvoicePluginApi.onFailureCall(invoiceContext, Collections.emptyList());
+
+        //then
+        assertNotNull(onFailureInvoiceResult);
+        verify(vertexOutbox, never()).discardTransactions(any(UUID.class), any(UUID.class));
     }
 
     @Test(groups = "fast")
@@ -217,14 +305,14 @@ public class VertexInvoicePluginApiTest {
 
         //then
         assertNotNull(onSuccessInvoiceResult);
-        verify(vertexApiConfigurationHandler).getConfigurable(invoiceContext.getTenantId());
         verify(dao).getSuccessfulResponses(invoice.getId(), invoiceContext.getTenantId());
+        verify(vertexOutbox, never()).deleteTransactions(any(UUID.class), anyCollection(), any(UUID.class));
     }
 
     @Test(groups = "fast")
-    public void testOnSuccessCallDoesNotFailOnApiException() throws SQLException, ApiException {
+    public void testOnSuccessCallDoesNotFailOnOutboxException() throws SQLException {
         //given
-        doThrow(ApiException.class).when(vertexApiClient).deleteTransaction(anyString());
+        doThrow(SQLException.class).when(vertexOutbox).deleteTransactions(any(UUID.class), anyCollection(), any(UUID.class));
         final Iterable<PluginProperty> properties = Collections.singletonList(new PluginProperty(VertexInvoicePluginApi.INVOICE_OPERATION, "void", false));
 
         final VertexResponsesRecord vertexResponse = Mockito.mock(VertexResponsesRecord.class);
@@ -239,7 +327,9 @@ public class VertexInvoicePluginApiTest {
 
         //then
         assertNotNull(onSuccessInvoiceResult);
-        verify(vertexApiConfigurationHandler).getConfigurable(invoiceContext.getTenantId());
         verify(dao).getSuccessfulResponses(invoice.getId(), invoiceContext.getTenantId());
+        final UUID invoiceId = invoice.getId();
+        final UUID tenantId = invoiceContext.getTenantId();
+        verify(vertexOutbox).deleteTransactions(eq(invoiceId), anyCollection(), eq(tenantId));
     }
 }
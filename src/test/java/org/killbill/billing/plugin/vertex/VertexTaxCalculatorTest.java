@@ -18,10 +18,18 @@
 package org.killbill.billing.plugin.vertex;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -31,17 +39,32 @@ import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.invoice.api.Invoice;
 import org.killbill.billing.invoice.api.InvoiceItem;
 import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.killbill.billing.invoice.api.InvoiceUserApi;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.plugin.vertex.cache.QuoteCache;
+import org.killbill.billing.plugin.vertex.cache.TaxAreaCache;
+import org.killbill.billing.plugin.vertex.cache.TaxCodeMapping;
+import org.killbill.billing.plugin.vertex.cache.TaxCodeMapping.CatalogType;
+import org.killbill.billing.plugin.vertex.cache.TaxCodeMappingCache;
+import org.killbill.billing.plugin.vertex.cache.TaxCodeMappings;
 import org.killbill.billing.plugin.vertex.dao.VertexDao;
+import org.killbill.billing.plugin.vertex.gen.ApiException;
 import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessResponseTransactionResponseType;
 import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessResponseTransactionResponseTypeData;
 import org.killbill.billing.plugin.vertex.gen.client.model.Jurisdiction;
 import org.killbill.billing.plugin.vertex.gen.client.model.JurisdictionTypeEnum;
+import org.killbill.billing.plugin.vertex.gen.client.model.LocationType;
 import org.killbill.billing.plugin.vertex.gen.client.model.OwnerResponseLineItemType;
 import org.killbill.billing.plugin.vertex.gen.client.model.SaleMessageTypeEnum;
+import org.killbill.billing.plugin.vertex.gen.client.model.SaleRequestLineItemType;
 import org.killbill.billing.plugin.vertex.gen.client.model.SaleRequestType;
 import org.killbill.billing.plugin.vertex.gen.client.model.TaxesType;
+import org.killbill.billing.plugin.vertex.gen.dao.model.tables.records.VertexResponsesRecord;
+import org.killbill.billing.plugin.vertex.http.AdaptiveConcurrencyLimiter.Lane;
+import org.killbill.billing.plugin.vertex.outbox.VertexOutbox;
 import org.killbill.billing.util.callcontext.TenantContext;
 import org.killbill.clock.Clock;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -52,15 +75,29 @@ import org.testng.annotations.Test;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
 import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
 
 public class VertexTaxCalculatorTest {
 
@@ -86,6 +123,14 @@ public class VertexTaxCalculatorTest {
     @Mock
     private VertexApiConfigurationHandler vertexApiConfigurationHandler;
     @Mock
+    private QuoteCache quoteCache;
+    @Mock
+    private TaxAreaCache taxAreaCache;
+    @Mock
+    private TaxCodeMappingCache taxCodeMappingCache;
+    @Mock
+    private VertexOutbox vertexOutbox;
+    @Mock
     private ApiSuccessResponseTransactionResponseType taxResponse;
     @Mock
     private OwnerResponseLineItemType responseLineItem;
@@ -97,10 +142,16 @@ public class VertexTaxCalculatorTest {
     private InvoiceItem adjustment;
     @Mock
     private TaxesType taxesType;
+    @Mock
+    private OSGIKillbillAPI osgiKillbillAPI;
+    @Mock
+    private InvoiceUserApi invoiceUserApi;
 
     @InjectMocks
     private VertexTaxCalculator vertexTaxCalculator;
 
+    private final Map<UUID, List<VertexResponsesRecord>> originalResponses = new HashMap<>();
+
     @BeforeClass(groups = "fast")
     public void beforeClass() {
         MockitoAnnotations.openMocks(this);
@@ -111,8 +162,10 @@ public class VertexTaxCalculatorTest {
 
         Mockito.clearInvocations(vertexDao);
         Mockito.clearInvocations(vertexApiClient);
+        Mockito.clearInvocations(vertexOutbox);
 
         given(vertexApiConfigurationHandler.getConfigurable(any(UUID.class))).willReturn(vertexApiClient);
+        given(taxCodeMappingCache.getTaxCodeMappings(any(UUID.class))).willReturn(TaxCodeMappings.EMPTY);
         given(tenantContext.getTenantId()).willReturn(UUID.randomUUID());
         given(invoice.getId()).willReturn(INVOICE_ID);
         given(invoice.getInvoiceDate()).willReturn(INVOICE_DATE);
@@ -138,7 +191,18 @@ public class VertexTaxCalculatorTest {
         given(adjustment.getStartDate()).willReturn(INVOICE_DATE);
         given(adjustment.getEndDate()).willReturn(INVOICE_DATE.plusMonths(1));
 
-        given(vertexDao.getSuccessfulResponses(any(UUID.class), any(UUID.class))).willReturn(Collections.emptyList());
+        originalResponses.clear();
+        given(vertexDao.getSuccessfulResponseSummaries(anyCollection(), any(UUID.class))).willAnswer(invocation -> {
+            final Collection<UUID> invoiceIds = invocation.getArgument(0);
+            final Map<UUID, List<VertexResponsesRecord>> responses = new HashMap<>();
+            for (final UUID invoiceId : invoiceIds) {
+                if (originalResponses.containsKey(invoiceId)) {
+                    responses.put(invoiceId, originalResponses.get(invoiceId));
+                }
+            }
+            return responses;
+        });
+        given(osgiKillbillAPI.getInvoiceUserApi()).willReturn(invoiceUserApi);
 
         given(responseLineItem.getTaxes()).willReturn(Collections.singletonList(taxesType));
         given(taxesType.getCalculatedTax()).willReturn(MOCK_TAX_AMOUNT_1_01);
@@ -146,7 +210,9 @@ public class VertexTaxCalculatorTest {
         given(responseLineItem.getLineItemId()).willReturn(TAX_ITEM_ID.toString());
         given(responseLineItem.getTotalTax()).willReturn(MOCK_TAX_AMOUNT_1_01);
 
-        given(vertexApiClient.calculateTaxes(any(SaleRequestType.class))).willReturn(taxResponse);
+        given(vertexApiClient.calculateTaxesAsync(any(SaleRequestType.class), any(Lane.class))).willReturn(CompletableFuture.completedFuture(taxResponse));
+        given(vertexApiClient.getMaxConcurrentDocuments()).willReturn(4);
+        given(vertexApiClient.getTaxCalculationTimeoutMs()).willReturn(10000);
         given(taxResponse.getData()).willReturn(apiResponseData);
         given(apiResponseData.getLineItems()).willReturn(Collections.singletonList(responseLineItem));
     }
@@ -155,6 +221,7 @@ public class VertexTaxCalculatorTest {
     public void clearInvocations() {
         Mockito.clearInvocations(vertexDao);
         Mockito.clearInvocations(vertexApiClient);
+        Mockito.clearInvocations(invoiceUserApi);
     }
 
     @Test(groups = "fast")
@@ -167,7 +234,7 @@ public class VertexTaxCalculatorTest {
         List<InvoiceItem> result = vertexTaxCalculator.compute(account, invoice, isDryRun, Collections.emptyList(), tenantContext);
 
         //then
-        verify(vertexDao).addResponse(any(UUID.class), any(UUID.class), anyMap(), any(ApiSuccessResponseTransactionResponseType.class), any(DateTime.class), any(UUID.class));
+        verify(vertexDao).addResponse(any(UUID.class), any(UUID.class), anyMap(), any(ApiSuccessResponseTransactionResponseType.class), isNull(), anyString(), any(DateTime.class), any(UUID.class));
         assertEquals(0, result.size());
     }
 
@@ -180,8 +247,8 @@ public class VertexTaxCalculatorTest {
         List<InvoiceItem> result = vertexTaxCalculator.compute(account, invoice, isDryRun, Collections.emptyList(), tenantContext);
 
         //then
-        verify(vertexDao, atLeastOnce()).addResponse(any(UUID.class), any(UUID.class), anyMap(), any(ApiSuccessResponseTransactionResponseType.class), any(DateTime.class), any(UUID.class));
-        verify(vertexApiClient).calculateTaxes(argThat(arg -> SaleMessageTypeEnum.INVOICE.equals(arg.getSaleMessageType())));
+        verify(vertexDao, atLeastOnce()).addResponse(any(UUID.class), any(UUID.class), anyMap(), any(ApiSuccessResponseTransactionResponseType.class), isNull(), anyString(), any(DateTime.class), any(UUID.class));
+        verify(vertexApiClient).calculateTaxesAsync(argThat(arg -> SaleMessageTypeEnum.INVOICE.equals(arg.getSaleMessageType())), eq(Lane.COMMIT));
 
         assertEquals(1, result.size());
         assertEquals(BigDecimal.valueOf(MOCK_TAX_AMOUNT_1_01), result.get(0).getAmount());
@@ -204,8 +271,351 @@ public class VertexTaxCalculatorTest {
 
         //then
         verify(vertexDao, times(0))
-                .addResponse(any(UUID.class), any(UUID.class), anyMap(), any(ApiSuccessResponseTransactionResponseType.class), any(DateTime.class), any(UUID.class));
-        verify(vertexApiClient).calculateTaxes(argThat(arg -> SaleMessageTypeEnum.QUOTATION.equals(arg.getSaleMessageType())));
+                .addResponse(any(UUID.class), any(UUID.class), anyMap(), any(ApiSuccessResponseTransactionResponseType.class), nullable(String.class), nullable(String.class), any(DateTime.class), any(UUID.class));
+        verify(vertexApiClient).calculateTaxesAsync(argThat(arg -> SaleMessageTypeEnum.QUOTATION.equals(arg.getSaleMessageType())), eq(Lane.DRY_RUN));
+    }
+
+    @Test(groups = "fast")
+    public void testComputeQuoteThenPost() throws Exception {
+        //given
+        given(vertexApiClient.isQuoteThenPost()).willReturn(true);
+
+        try {
+            //when
+            final List<InvoiceItem> result = vertexTaxCalculator.compute(account, invoice, false, Collections.emptyList(), tenantContext);
+
+            //then the invoice is only quoted, and its transactions held until it is committed
+            assertEquals(1, result.size());
+            verify(vertexApiClient).calculateTaxesAsync(argThat(arg -> SaleMessageTypeEnum.QUOTATION.equals(arg.getSaleMessageType())), eq(Lane.COMMIT));
+            verify(vertexDao).addResponse(any(UUID.class), eq(INVOICE_ID), anyMap(), any(ApiSuccessResponseTransactionResponseType.class), anyString(), anyString(), any(DateTime.class), any(UUID.class));
+            verify(vertexOutbox).holdTransactions(eq(INVOICE_ID), argThat(quotes -> Iterables.size(quotes) == 1), any(UUID.class));
+        } finally {
+            given(vertexApiClient.isQuoteThenPost()).willReturn(false);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testComputeDryRunQuoteThenPost() throws Exception {
+        //given
+        given(vertexApiClient.isQuoteThenPost()).willReturn(true);
+
+        try {
+            //when
+            vertexTaxCalculator.compute(account, invoice, true, Collections.emptyList(), tenantContext);
+
+            //then
+            verifyNoInteractions(vertexOutbox);
+        } finally {
+            given(vertexApiClient.isQuoteThenPost()).willReturn(false);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDryRunQuotesAreCached() throws Exception {
+        //given
+        final VertexTaxCalculator cachingCalculator = new VertexTaxCalculator(vertexApiConfigurationHandler,
+                                                                              vertexDao,
+                                                                              new QuoteCache(10, 60, Ticker.systemTicker()),
+                                                                              taxAreaCache,
+                                                                              new TaxCodeMappingCache(0, null, clock, Ticker.systemTicker()),
+                                                                              vertexOutbox,
+                                                                              clock,
+                                                                              osgiKillbillAPI);
+
+        //when the same preview is computed twice
+        final List<InvoiceItem> result1 = cachingCalculator.compute(account, invoice, true, Collections.emptyList(), tenantContext);
+        final List<InvoiceItem> result2 = cachingCalculator.compute(account, invoice, true, Collections.emptyList(), tenantContext);
+
+        //then Vertex is only called once
+        verify(vertexApiClient, times(1)).calculateTaxesAsync(any(SaleRequestType.class), any(Lane.class));
+        assertEquals(1, result1.size());
+        assertEquals(1, result2.size());
+        assertEquals(result1.get(0).getAmount(), result2.get(0).getAmount());
+
+        //and invoices are never served from the cache
+        cachingCalculator.compute(account, invoice, false, Collections.emptyList(), tenantContext);
+        verify(vertexApiClient, times(2)).calculateTaxesAsync(any(SaleRequestType.class), any(Lane.class));
+    }
+
+    @Test(groups = "fast")
+    public void testDryRunQuotesAreCachedAcrossItemIds() throws Exception {
+        //given
+        final VertexTaxCalculator cachingCalculator = new VertexTaxCalculator(vertexApiConfigurationHandler,
+                                                                              vertexDao,
+                                                                              new QuoteCache(10, 60, Ticker.systemTicker()),
+                                                                              taxAreaCache,
+                                                                              new TaxCodeMappingCache(0, null, clock, Ticker.systemTicker()),
+                                                                              vertexOutbox,
+                                                                              clock,
+                                                                              osgiKillbillAPI);
+        given(vertexApiClient.calculateTaxesAsync(any(SaleRequestType.class), any(Lane.class))).willAnswer(invocation -> {
+            final SaleRequestType request = invocation.getArgument(0);
+            final List<OwnerResponseLineItemType> lineItems = new ArrayList<>();
+            for (final SaleRequestLineItemType requestLineItem : request.getLineItems()) {
+                lineItems.add(new OwnerResponseLineItemType().lineItemId(requestLineItem.getLineItemId())
+                                                             .lineItemNumber(requestLineItem.getLineItemNumber())
+                                                             .totalTax(requestLineItem.getExtendedPrice() / 10));
+            }
+            final ApiSuccessResponseTransactionResponseType response = new ApiSuccessResponseTransactionResponseType();
+            response.setData(new ApiSuccessResponseTransactionResponseTypeData().lineItems(lineItems));
+            return CompletableFuture.completedFuture(response);
+        });
+
+        //when the same preview is computed twice, with new item ids (as Kill Bill does for each dry run)
+        final List<InvoiceItem> taxableItems1 = Arrays.asList(mockTaxableItem(10), mockTaxableItem(20));
+        given(invoice.getInvoiceItems()).willReturn(taxableItems1);
+        final List<InvoiceItem> result1 = cachingCalculator.compute(account, invoice, true, Collections.emptyList(), tenantContext);
+        final List<InvoiceItem> taxableItems2 = Arrays.asList(mockTaxableItem(20), mockTaxableItem(10));
+        given(invoice.getInvoiceItems()).willReturn(taxableItems2);
+        final List<InvoiceItem> result2 = cachingCalculator.compute(account, invoice, true, Collections.emptyList(), tenantContext);
+
+        //then Vertex is only called once
+        verify(vertexApiClient, times(1)).calculateTaxesAsync(any(SaleRequestType.class), any(Lane.class));
+        //and the cached tax lines are mapped to the new items
+        assertEquals(2, result1.size());
+        assertEquals(2, result2.size());
+        for (final InvoiceItem taxItem : result2) {
+            final InvoiceItem taxableItem = taxItem.getLinkedItemId().equals(taxableItems2.get(0).getId()) ? taxableItems2.get(0) : taxableItems2.get(1);
+            assertEquals(taxableItem.getId(), taxItem.getLinkedItemId());
+            assertEquals(0, taxableItem.getAmount().divide(BigDecimal.TEN).compareTo(taxItem.getAmount()));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDryRunRebuiltFromStoredResponse() throws Exception {
+        //given a response already stored for the same request (quote cache disabled)
+        final VertexTaxCalculator storedResponsesCalculator = new VertexTaxCalculator(vertexApiConfigurationHandler,
+                                                                                      vertexDao,
+                                                                                      new QuoteCache(0, 60, 3600, Ticker.systemTicker()),
+                                                                                      taxAreaCache,
+                                                                                      new TaxCodeMappingCache(0, null, clock, Ticker.systemTicker()),
+                                                                                      vertexOutbox,
+                                                                                      clock,
+                                                                                      osgiKillbillAPI);
+        final VertexResponsesRecord storedResponse = new VertexResponsesRecord();
+        // Invoice not committed (e.g. generation failed after the tax calculation)
+        storedResponse.setKbInvoiceId(UUID.randomUUID().toString());
+        given(vertexDao.getSuccessfulResponsesByFingerprint(any(UUID.class), anyCollection(), any(DateTime.class), eq(true), any(UUID.class))).willAnswer(invocation -> {
+            final Map<String, List<VertexResponsesRecord>> responses = new HashMap<>();
+            for (final Object fingerprint : (Collection<?>) invocation.getArgument(1)) {
+                responses.put((String) fingerprint, ImmutableList.of(storedResponse));
+            }
+            return responses;
+        });
+        given(vertexDao.getTaxLines(storedResponse)).willReturn(ImmutableList.of(responseLineItem));
+
+        //when
+        final List<InvoiceItem> result = storedResponsesCalculator.compute(account, invoice, true, Collections.emptyList(), tenantContext);
+
+        //then Vertex isn't called
+        verify(vertexApiClient, times(0)).calculateTaxesAsync(any(SaleRequestType.class), any(Lane.class));
+        assertEquals(1, result.size());
+        assertEquals(BigDecimal.valueOf(MOCK_TAX_AMOUNT_1_01), result.get(0).getAmount());
+    }
+
+    @Test(groups = "fast")
+    public void testDryRunNotRebuiltFromCommittedInvoiceResponse() throws Exception {
+        //given a response already stored for the same request, for another committed invoice of the account
+        final VertexTaxCalculator storedResponsesCalculator = new VertexTaxCalculator(vertexApiConfigurationHandler,
+                                                                                      vertexDao,
+                                                                                      new QuoteCache(0, 60, 3600, Ticker.systemTicker()),
+                                                                                      taxAreaCache,
+                                                                                      new TaxCodeMappingCache(0, null, clock, Ticker.systemTicker()),
+                                                                                      vertexOutbox,
+                                                                                      clock,
+                                                                                      osgiKillbillAPI);
+        final UUID committedInvoiceId = UUID.randomUUID();
+        final VertexResponsesRecord storedResponse = new VertexResponsesRecord();
+        storedResponse.setKbInvoiceId(committedInvoiceId.toString());
+        given(vertexDao.getSuccessfulResponsesByFingerprint(any(UUID.class), anyCollection(), any(DateTime.class), eq(true), any(UUID.class))).willAnswer(invocation -> {
+            final Map<String, List<VertexResponsesRecord>> responses = new HashMap<>();
+            for (final Object fingerprint : (Collection<?>) invocation.getArgument(1)) {
+                responses.put((String) fingerprint, ImmutableList.of(storedResponse));
+            }
+            return responses;
+        });
+        given(vertexDao.getTaxLines(storedResponse)).willReturn(ImmutableList.of(responseLineItem));
+        given(invoiceUserApi.getInvoice(eq(committedInvoiceId), any(TenantContext.class))).willReturn(Mockito.mock(Invoice.class));
+
+        //when
+        final List<InvoiceItem> result = storedResponsesCalculator.compute(account, invoice, true, Collections.emptyList(), tenantContext);
+
+        //then Vertex is called
+        verify(vertexApiClient, times(1)).calculateTaxesAsync(any(SaleRequestType.class), any(Lane.class));
+        assertEquals(1, result.size());
+    }
+
+    @Test(groups = "fast")
+    public void testDryRunWithoutStoredResponse() throws Exception {
+        //given
+        final VertexTaxCalculator storedResponsesCalculator = new VertexTaxCalculator(vertexApiConfigurationHandler,
+                                                                                      vertexDao,
+                                                                                      new QuoteCache(0, 60, 3600, Ticker.systemTicker()),
+                                                                                      taxAreaCache,
+                                                                                      new TaxCodeMappingCache(0, null, clock, Ticker.systemTicker()),
+                                                                                      vertexOutbox,
+                                                                                      clock,
+                                                                                      osgiKillbillAPI);
+        given(vertexDao.getSuccessfulResponsesByFingerprint(any(UUID.class), anyCollection(), any(DateTime.class), eq(true), any(UUID.class))).willReturn(ImmutableMap.of());
+
+        //when
+        final List<InvoiceItem> result = storedResponsesCalculator.compute(account, invoice, true, Collections.emptyList(), tenantContext);
+
+        //then
+        verify(vertexApiClient, times(1)).calculateTaxesAsync(any(SaleRequestType.class), any(Lane.class));
+        assertEquals(1, result.size());
+        //and the response is stored for identical previews
+        verify(vertexDao).addPreviewResponse(any(UUID.class), eq(INVOICE_ID), anyMap(), any(ApiSuccessResponseTransactionResponseType.class), anyString(), any(DateTime.class), any(UUID.class));
+        verify(vertexDao, times(0))
+                .addResponse(any(UUID.class), any(UUID.class), anyMap(), any(ApiSuccessResponseTransactionResponseType.class), nullable(String.class), nullable(String.class), any(DateTime.class), any(UUID.class));
+    }
+
+    @Test(groups = "fast")
+    public void testDryRunRebuiltFromPreviewResponse() throws Exception {
+        //given the stored response of an identical preview
+        final VertexTaxCalculator storedResponsesCalculator = new VertexTaxCalculator(vertexApiConfigurationHandler,
+                                                                                      vertexDao,
+                                                                                      new QuoteCache(0, 60, 3600, Ticker.systemTicker()),
+                                                                                      taxAreaCache,
+                                                                                      new TaxCodeMappingCache(0, null, clock, Ticker.systemTicker()),
+                                                                                      vertexOutbox,
+                                                                                      clock,
+                                                                                      osgiKillbillAPI);
+        final VertexResponsesRecord storedResponse = new VertexResponsesRecord();
+        storedResponse.setKbInvoiceId(UUID.randomUUID().toString());
+        storedResponse.setResultCode("PREVIEW");
+        given(vertexDao.getSuccessfulResponsesByFingerprint(any(UUID.class), anyCollection(), any(DateTime.class), eq(true), any(UUID.class))).willAnswer(invocation -> {
+            final Map<String, List<VertexResponsesRecord>> responses = new HashMap<>();
+            for (final Object fingerprint : (Collection<?>) invocation.getArgument(1)) {
+                responses.put((String) fingerprint, ImmutableList.of(storedResponse));
+            }
+            return responses;
+        });
+        given(vertexDao.getTaxLines(storedResponse)).willReturn(ImmutableList.of(responseLineItem));
+
+        //when
+        final List<InvoiceItem> result = storedResponsesCalculator.compute(account, invoice, true, Collections.emptyList(), tenantContext);
+
+        //then Vertex isn't called, and the invoice of the preview isn't looked up
+        verify(vertexApiClient, times(0)).calculateTaxesAsync(any(SaleRequestType.class), any(Lane.class));
+        verify(invoiceUserApi, times(0)).getInvoice(any(UUID.class), any(TenantContext.class));
+        assertEquals(1, result.size());
+        assertEquals(BigDecimal.valueOf(MOCK_TAX_AMOUNT_1_01), result.get(0).getAmount());
+        //and it isn't stored again
+        verify(vertexDao, times(0)).addPreviewResponse(any(UUID.class), any(UUID.class), anyMap(), any(ApiSuccessResponseTransactionResponseType.class), anyString(), any(DateTime.class), any(UUID.class));
+    }
+
+    @Test(groups = "fast")
+    public void testDocumentIdsDerivedFromContent() throws Exception {
+        //when the same invoice is computed twice
+        vertexTaxCalculator.compute(account, invoice, false, Collections.emptyList(), tenantContext);
+        vertexTaxCalculator.compute(account, invoice, false, Collections.emptyList(), tenantContext);
+
+        //then the same transaction is sent
+        final ArgumentCaptor<SaleRequestType> requests = ArgumentCaptor.forClass(SaleRequestType.class);
+        verify(vertexApiClient, times(2)).calculateTaxesAsync(requests.capture(), any(Lane.class));
+        final SaleRequestType firstRequest = requests.getAllValues().get(0);
+        final SaleRequestType secondRequest = requests.getAllValues().get(1);
+        assertTrue(firstRequest.getTransactionId().startsWith(VertexTaxCalculator.KB_TRANSACTION_PREFIX));
+        assertTrue(firstRequest.getDocumentNumber().startsWith(INVOICE_ID + "_"));
+        assertEquals(firstRequest.getTransactionId(), secondRequest.getTransactionId());
+        assertEquals(firstRequest.getDocumentNumber(), secondRequest.getDocumentNumber());
+
+        //and another one once the amount changes
+        given(taxableInvoiceItem.getAmount()).willReturn(new BigDecimal(2));
+        try {
+            vertexTaxCalculator.compute(account, invoice, false, Collections.emptyList(), tenantContext);
+            verify(vertexApiClient, times(3)).calculateTaxesAsync(requests.capture(), any(Lane.class));
+            final SaleRequestType thirdRequest = requests.getAllValues().get(requests.getAllValues().size() - 1);
+            assertFalse(firstRequest.getTransactionId().equals(thirdRequest.getTransactionId()));
+            assertFalse(firstRequest.getDocumentNumber().equals(thirdRequest.getDocumentNumber()));
+        } finally {
+            given(taxableInvoiceItem.getAmount()).willReturn(new BigDecimal(1));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDocumentReplayedFromStoredResponse() throws Exception {
+        //given a response already stored for the same request, for an invoice not committed (Kill Bill tried again with new ids)
+        final VertexResponsesRecord storedResponse = new VertexResponsesRecord();
+        storedResponse.setRecordId(12);
+        storedResponse.setKbInvoiceId(UUID.randomUUID().toString());
+        storedResponse.setDocCode("doc1");
+        given(vertexDao.getSuccessfulResponsesByFingerprint(any(UUID.class), anyCollection(), isNull(), eq(false), any(UUID.class))).willAnswer(invocation -> {
+            final Map<String, List<VertexResponsesRecord>> responses = new HashMap<>();
+            for (final Object fingerprint : (Collection<?>) invocation.getArgument(1)) {
+                responses.put((String) fingerprint, ImmutableList.of(storedResponse));
+            }
+            return responses;
+        });
+        given(vertexDao.getTaxLines(storedResponse)).willReturn(ImmutableList.of(responseLineItem));
+
+        try {
+            //when
+            final List<InvoiceItem> result = vertexTaxCalculator.compute(account, invoice, false, Collections.emptyList(), tenantContext);
+
+            //then the transaction isn't posted again
+            verify(vertexApiClient, times(0)).calculateTaxesAsync(any(SaleRequestType.class), any(Lane.class));
+            assertEquals(1, result.size());
+            assertEquals(BigDecimal.valueOf(MOCK_TAX_AMOUNT_1_01), result.get(0).getAmount());
+            //and the response is stored for this invoice and its items, with the document already sent
+            verify(vertexDao, times(0))
+                    .addResponse(any(UUID.class), any(UUID.class), anyMap(), any(ApiSuccessResponseTransactionResponseType.class), nullable(String.class), nullable(String.class), any(DateTime.class), any(UUID.class));
+            verify(vertexDao).addReplayedResponse(eq(INVOICE_ID), argThat(items -> items.containsKey(TAX_ITEM_ID)), eq(12), isNull(), any(DateTime.class), any(UUID.class));
+
+            //but not once its document was replayed for a committed invoice
+            final UUID committedInvoiceId = UUID.randomUUID();
+            final VertexResponsesRecord replayedResponse = new VertexResponsesRecord();
+            replayedResponse.setKbInvoiceId(committedInvoiceId.toString());
+            replayedResponse.setDocCode("doc1");
+            given(invoiceUserApi.getInvoice(eq(committedInvoiceId), any(TenantContext.class))).willReturn(Mockito.mock(Invoice.class));
+            given(vertexDao.getSuccessfulResponsesByFingerprint(any(UUID.class), anyCollection(), isNull(), eq(false), any(UUID.class))).willAnswer(invocation -> {
+                final Map<String, List<VertexResponsesRecord>> responses = new HashMap<>();
+                for (final Object fingerprint : (Collection<?>) invocation.getArgument(1)) {
+                    responses.put((String) fingerprint, ImmutableList.of(replayedResponse, storedResponse));
+                }
+                return responses;
+            });
+            vertexTaxCalculator.compute(account, invoice, false, Collections.emptyList(), tenantContext);
+            verify(vertexApiClient, times(1)).calculateTaxesAsync(any(SaleRequestType.class), any(Lane.class));
+        } finally {
+            given(vertexDao.getSuccessfulResponsesByFingerprint(any(UUID.class), anyCollection(), isNull(), eq(false), any(UUID.class))).willReturn(ImmutableMap.of());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testResolvedTaxAreaIdIsSent() throws Exception {
+        //given
+        given(taxAreaCache.getTaxAreaId(any(UUID.class), any(LocationType.class), any(VertexApiClient.class))).willReturn("50522990");
+
+        try {
+            //when
+            vertexTaxCalculator.compute(account, invoice, false, Collections.emptyList(), tenantContext);
+
+            //then
+            verify(vertexApiClient).calculateTaxesAsync(argThat(arg -> "50522990".equals(arg.getCustomer().getDestination().getTaxAreaId())), eq(Lane.COMMIT));
+        } finally {
+            given(taxAreaCache.getTaxAreaId(any(UUID.class), any(LocationType.class), any(VertexApiClient.class))).willReturn(null);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testTaxCodeMappingIsSent() throws Exception {
+        //given
+        given(taxableInvoiceItem.getProductName()).willReturn("Standard");
+        given(taxCodeMappingCache.getTaxCodeMappings(any(UUID.class))).willReturn(new TaxCodeMappings(ImmutableList.of(new TaxCodeMapping(CatalogType.PRODUCT, "Standard", "SW054000", "standard"))));
+
+        try {
+            //when
+            vertexTaxCalculator.compute(account, invoice, false, Collections.emptyList(), tenantContext);
+
+            //then
+            verify(vertexApiClient).calculateTaxesAsync(argThat(arg -> "SW054000".equals(arg.getLineItems().get(0).getProduct().getProductClass()) &&
+                                                                       "standard".equals(arg.getLineItems().get(0).getProduct().getValue())), eq(Lane.COMMIT));
+        } finally {
+            given(taxableInvoiceItem.getProductName()).willReturn(null);
+            given(taxCodeMappingCache.getTaxCodeMappings(any(UUID.class))).willReturn(TaxCodeMappings.EMPTY);
+        }
     }
 
     @Test(groups = "fast")
@@ -295,6 +705,19 @@ public class VertexTaxCalculatorTest {
         assertEquals(invoiceItemDetails, result.get(0).getItemDetails());
     }
 
+    @Test(groups = "fast")
+    public void testTaxItemDetailsWhenTaxRateAlreadyExists() throws Exception {
+        //given
+        given(taxesType.getEffectiveRate()).willReturn(0.09975d);
+        given(taxableInvoiceItem.getItemDetails()).willReturn("{\"taxRate\":{\"old\":true},\"tiers\":[1,2],\"amount\":1.5}");
+
+        //when
+        List<InvoiceItem> result = vertexTaxCalculator.compute(account, invoice, true, Collections.emptyList(), tenantContext);
+
+        //then existing values are replaced in place, missing ones appended
+        assertEquals(String.format("{\"taxRate\":0.09975,\"tiers\":[1,2],\"amount\":1.5,\"parentItemId\":\"%s\"}", TAX_ITEM_ID), result.get(0).getItemDetails());
+    }
+
     @Test(groups = "fast")
     public void testComputeWhenTaxEffectiveRateIsNotPresentedByVertex() throws Exception {
         //given
@@ -360,8 +783,8 @@ public class VertexTaxCalculatorTest {
         List<InvoiceItem> result = vertexTaxCalculator.compute(account, invoice, isDryRun, Collections.emptyList(), tenantContext);
 
         //then
-        verify(vertexDao, atLeastOnce()).addResponse(any(UUID.class), any(UUID.class), anyMap(), any(ApiSuccessResponseTransactionResponseType.class), any(DateTime.class), any(UUID.class));
-        verify(vertexApiClient).calculateTaxes(argThat(arg -> SaleMessageTypeEnum.INVOICE.equals(arg.getSaleMessageType())));
+        verify(vertexDao, atLeastOnce()).addResponse(any(UUID.class), any(UUID.class), anyMap(), any(ApiSuccessResponseTransactionResponseType.class), isNull(), anyString(), any(DateTime.class), any(UUID.class));
+        verify(vertexApiClient).calculateTaxesAsync(argThat(arg -> SaleMessageTypeEnum.INVOICE.equals(arg.getSaleMessageType())), eq(Lane.COMMIT));
 
         assertEquals(1, result.size());
         assertEquals(BigDecimal.valueOf(MOCK_TAX_AMOUNT_1_01), result.get(0).getAmount());
@@ -373,4 +796,217 @@ public class VertexTaxCalculatorTest {
         assertEquals(INVOICE_DATE, result.get(0).getStartDate());
         assertEquals(INVOICE_DATE.plusMonths(1), result.get(0).getEndDate());
     }
+
+    @Test(groups = "fast")
+    public void testReturnDocumentsMergedInDocumentOrder() throws Exception {
+        //given two original invoices, adjusted by the new invoice
+        final InvoiceItem taxableItem1 = mockOriginalInvoiceItem(UUID.randomUUID());
+        final InvoiceItem taxableItem2 = mockOriginalInvoiceItem(UUID.randomUUID());
+        final List<InvoiceItem> adjustments = Arrays.asList(mockAdjustment(taxableItem1), mockAdjustment(taxableItem2));
+        given(invoice.getInvoiceItems()).willReturn(adjustments);
+
+        //when the first document is answered last
+        givenTaxResponses(taxableItem1, 200, taxableItem2, 0);
+        final List<InvoiceItem> result1 = vertexTaxCalculator.compute(account, invoice, true, Collections.emptyList(), tenantContext);
+        //and when it is answered first
+        givenTaxResponses(taxableItem1, 0, taxableItem2, 200);
+        final List<InvoiceItem> result2 = vertexTaxCalculator.compute(account, invoice, true, Collections.emptyList(), tenantContext);
+
+        //then
+        assertEquals(2, result1.size());
+        assertEquals(2, result2.size());
+        for (int i = 0; i < result1.size(); i++) {
+            assertEquals(result1.get(i).getAmount(), result2.get(i).getAmount());
+            assertEquals(result1.get(i).getLinkedItemId(), result2.get(i).getLinkedItemId());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testReturnDocumentFailureAbortsCompute() throws Exception {
+        //given
+        final InvoiceItem taxableItem1 = mockOriginalInvoiceItem(UUID.randomUUID());
+        final InvoiceItem taxableItem2 = mockOriginalInvoiceItem(UUID.randomUUID());
+        final List<InvoiceItem> adjustments = Arrays.asList(mockAdjustment(taxableItem1), mockAdjustment(taxableItem2));
+        given(invoice.getInvoiceItems()).willReturn(adjustments);
+        given(vertexApiClient.calculateTaxesAsync(any(SaleRequestType.class), any(Lane.class))).willAnswer(invocation -> {
+            final SaleRequestType request = invocation.getArgument(0);
+            if (request.getLineItems().get(0).getLineItemId().equals(taxableItem2.getId().toString())) {
+                return CompletableFuture.failedFuture(new ApiException("Internal error", 500, Collections.emptyMap(), "{\"errors\":[]}"));
+            }
+            return CompletableFuture.completedFuture(buildTaxResponse(taxableItem1, 1.0));
+        });
+
+        //when
+        try {
+            vertexTaxCalculator.compute(account, invoice, false, Collections.emptyList(), tenantContext);
+            fail();
+        } catch (final ApiException e) {
+            assertEquals(500, e.getCode());
+        }
+
+        //then the error is recorded for the original invoice
+        final UUID originalInvoiceId = taxableItem2.getInvoiceId();
+        verify(vertexDao).addResponse(any(UUID.class), eq(originalInvoiceId), anyMap(), eq("{\"errors\":[]}"), any(DateTime.class), any(UUID.class));
+    }
+
+    @Test(groups = "fast")
+    public void testIdenticalRefundsAreDistinctDocuments() throws Exception {
+        //given an original invoice, refunded twice by the same amount
+        final InvoiceItem taxableItem = mockOriginalInvoiceItem(UUID.randomUUID());
+        final InvoiceItem firstAdjustment = mockAdjustment(taxableItem);
+        final InvoiceItem secondAdjustment = mockAdjustment(taxableItem);
+        final ApiSuccessResponseTransactionResponseType refundResponse = buildTaxResponse(taxableItem, -0.5);
+        given(vertexApiClient.calculateTaxesAsync(any(SaleRequestType.class), any(Lane.class))).willReturn(CompletableFuture.completedFuture(refundResponse));
+        given(invoice.getInvoiceItems()).willReturn(Collections.singletonList(firstAdjustment));
+        vertexTaxCalculator.compute(account, invoice, false, Collections.emptyList(), tenantContext);
+        final UUID secondInvoiceId = UUID.randomUUID();
+        given(invoice.getId()).willReturn(secondInvoiceId);
+        given(invoice.getInvoiceItems()).willReturn(Collections.singletonList(secondAdjustment));
+        vertexTaxCalculator.compute(account, invoice, false, Collections.emptyList(), tenantContext);
+
+        //then each refund is its own document, numbered after its invoice
+        final ArgumentCaptor<SaleRequestType> requests = ArgumentCaptor.forClass(SaleRequestType.class);
+        verify(vertexApiClient, times(2)).calculateTaxesAsync(requests.capture(), any(Lane.class));
+        final SaleRequestType firstRequest = requests.getAllValues().get(0);
+        final SaleRequestType secondRequest = requests.getAllValues().get(1);
+        assertTrue(firstRequest.getDocumentNumber().startsWith(INVOICE_ID + "_"));
+        assertTrue(secondRequest.getDocumentNumber().startsWith(secondInvoiceId + "_"));
+        assertFalse(firstRequest.getTransactionId().equals(secondRequest.getTransactionId()));
+    }
+
+    @Test(groups = "fast")
+    public void testLargeInvoiceSplitIntoDocuments() throws Exception {
+        //given 5 taxable items, with at most 2 lines per document
+        final List<InvoiceItem> taxableItems = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            final InvoiceItem taxableItem = Mockito.mock(InvoiceItem.class);
+            given(taxableItem.getId()).willReturn(UUID.randomUUID());
+            given(taxableItem.getInvoiceId()).willReturn(INVOICE_ID);
+            given(taxableItem.getAmount()).willReturn(new BigDecimal(10));
+            given(taxableItem.getInvoiceItemType()).willReturn(InvoiceItemType.RECURRING);
+            given(taxableItem.getStartDate()).willReturn(INVOICE_DATE);
+            given(taxableItem.getEndDate()).willReturn(INVOICE_DATE.plusMonths(1));
+            taxableItems.add(taxableItem);
+        }
+        given(invoice.getInvoiceItems()).willReturn(taxableItems);
+        given(vertexApiClient.getMaxLinesPerDocument()).willReturn(2);
+
+        final List<SaleRequestType> requests = Collections.synchronizedList(new ArrayList<>());
+        given(vertexApiClient.calculateTaxesAsync(any(SaleRequestType.class), any(Lane.class))).willAnswer(invocation -> {
+            final SaleRequestType request = invocation.getArgument(0);
+            requests.add(request);
+            final List<OwnerResponseLineItemType> lineItems = new ArrayList<>();
+            for (final SaleRequestLineItemType requestLineItem : request.getLineItems()) {
+                lineItems.add(new OwnerResponseLineItemType().lineItemId(requestLineItem.getLineItemId()).totalTax(1.0));
+            }
+            final ApiSuccessResponseTransactionResponseType response = new ApiSuccessResponseTransactionResponseType();
+            response.setData(new ApiSuccessResponseTransactionResponseTypeData().lineItems(lineItems));
+            return CompletableFuture.completedFuture(response);
+        });
+
+        try {
+            //when
+            final List<InvoiceItem> result = vertexTaxCalculator.compute(account, invoice, false, Collections.emptyList(), tenantContext);
+
+            //then 3 documents, with distinct transactions and consecutive line numbers
+            assertEquals(3, requests.size());
+            final Set<String> transactionIds = new HashSet<>();
+            final Set<Long> lineNumbers = new HashSet<>();
+            for (final SaleRequestType request : requests) {
+                assertTrue(request.getLineItems().size() <= 2);
+                transactionIds.add(request.getTransactionId());
+                for (final SaleRequestLineItemType requestLineItem : request.getLineItems()) {
+                    lineNumbers.add(requestLineItem.getLineItemNumber());
+                }
+            }
+            assertEquals(3, transactionIds.size());
+            assertEquals(ImmutableSet.of(1L, 2L, 3L, 4L, 5L), lineNumbers);
+
+            //and one tax item per taxable item
+            assertEquals(5, result.size());
+            final Set<UUID> linkedItemIds = new HashSet<>();
+            for (final InvoiceItem taxItem : result) {
+                linkedItemIds.add(taxItem.getLinkedItemId());
+            }
+            final Set<UUID> taxableItemIds = new HashSet<>();
+            for (final InvoiceItem taxableItem : taxableItems) {
+                taxableItemIds.add(taxableItem.getId());
+            }
+            assertEquals(taxableItemIds, linkedItemIds);
+
+            //and each document response is persisted
+            verify(vertexDao, times(3)).addResponse(any(UUID.class), eq(INVOICE_ID), anyMap(), any(ApiSuccessResponseTransactionResponseType.class), isNull(), anyString(), any(DateTime.class), any(UUID.class));
+        } finally {
+            given(vertexApiClient.getMaxLinesPerDocument()).willReturn(0);
+        }
+    }
+
+    private InvoiceItem mockTaxableItem(final int amount) {
+        final InvoiceItem taxableItem = Mockito.mock(InvoiceItem.class);
+        given(taxableItem.getId()).willReturn(UUID.randomUUID());
+        given(taxableItem.getInvoiceId()).willReturn(INVOICE_ID);
+        given(taxableItem.getAmount()).willReturn(new BigDecimal(amount));
+        given(taxableItem.getInvoiceItemType()).willReturn(InvoiceItemType.RECURRING);
+        given(taxableItem.getStartDate()).willReturn(INVOICE_DATE);
+        given(taxableItem.getEndDate()).willReturn(INVOICE_DATE.plusMonths(1));
+        return taxableItem;
+    }
+
+    private InvoiceItem mockOriginalInvoiceItem(final UUID originalInvoiceId) throws Exception {
+        final InvoiceItem taxableItem = Mockito.mock(InvoiceItem.class);
+        given(taxableItem.getId()).willReturn(UUID.randomUUID());
+        given(taxableItem.getInvoiceId()).willReturn(originalInvoiceId);
+        given(taxableItem.getAmount()).willReturn(new BigDecimal(10));
+        given(taxableItem.getInvoiceItemType()).willReturn(InvoiceItemType.RECURRING);
+        given(taxableItem.getStartDate()).willReturn(INVOICE_DATE.minusMonths(1));
+        given(taxableItem.getEndDate()).willReturn(INVOICE_DATE);
+
+        final Invoice originalInvoice = Mockito.mock(Invoice.class);
+        given(originalInvoice.getId()).willReturn(originalInvoiceId);
+        given(originalInvoice.getInvoiceDate()).willReturn(INVOICE_DATE.minusMonths(1));
+        given(originalInvoice.getCurrency()).willReturn(Currency.USD);
+        given(originalInvoice.getInvoiceItems()).willReturn(Collections.singletonList(taxableItem));
+        final UUID taxableItemId = taxableItem.getId();
+        given(invoiceUserApi.getInvoiceByInvoiceItem(eq(taxableItemId), any(TenantContext.class))).willReturn(originalInvoice);
+
+        final VertexResponsesRecord originalResponse = new VertexResponsesRecord();
+        originalResponse.setKbInvoiceId(originalInvoiceId.toString());
+        originalResponses.put(originalInvoiceId, Collections.singletonList(originalResponse));
+
+        return taxableItem;
+    }
+
+    private InvoiceItem mockAdjustment(final InvoiceItem taxableItem) {
+        final UUID taxableItemId = taxableItem.getId();
+        final InvoiceItem itemAdjustment = Mockito.mock(InvoiceItem.class);
+        given(itemAdjustment.getId()).willReturn(UUID.randomUUID());
+        given(itemAdjustment.getInvoiceId()).willReturn(INVOICE_ID);
+        given(itemAdjustment.getAmount()).willReturn(new BigDecimal(-5));
+        given(itemAdjustment.getInvoiceItemType()).willReturn(InvoiceItemType.ITEM_ADJ);
+        given(itemAdjustment.getLinkedItemId()).willReturn(taxableItemId);
+        given(itemAdjustment.getStartDate()).willReturn(INVOICE_DATE);
+        given(itemAdjustment.getEndDate()).willReturn(INVOICE_DATE);
+        return itemAdjustment;
+    }
+
+    private void givenTaxResponses(final InvoiceItem taxableItem1, final long delayMs1, final InvoiceItem taxableItem2, final long delayMs2) {
+        given(vertexApiClient.calculateTaxesAsync(any(SaleRequestType.class), any(Lane.class))).willAnswer(invocation -> {
+            final SaleRequestType request = invocation.getArgument(0);
+            final boolean isFirst = request.getLineItems().get(0).getLineItemId().equals(taxableItem1.getId().toString());
+            final ApiSuccessResponseTransactionResponseType response = buildTaxResponse(isFirst ? taxableItem1 : taxableItem2, isFirst ? -0.5 : -0.25);
+            final long delayMs = isFirst ? delayMs1 : delayMs2;
+            return CompletableFuture.supplyAsync(() -> response, CompletableFuture.delayedExecutor(delayMs, TimeUnit.MILLISECONDS));
+        });
+    }
+
+    private static ApiSuccessResponseTransactionResponseType buildTaxResponse(final InvoiceItem taxableItem, final double tax) {
+        final OwnerResponseLineItemType lineItem = new OwnerResponseLineItemType();
+        lineItem.setLineItemId(taxableItem.getId().toString());
+        lineItem.setTotalTax(tax);
+        final ApiSuccessResponseTransactionResponseTypeData data = new ApiSuccessResponseTransactionResponseTypeData();
+        data.setLineItems(Collections.singletonList(lineItem));
+        final ApiSuccessResponseTransactionResponseType response = new ApiSuccessResponseTransactionResponseType();
+        response.setData(data);
+        return response;
+    }
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.base;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.impl.bootstrap.HttpServer;
+import org.apache.hc.core5.http.impl.bootstrap.ServerBootstrap;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.io.CloseMode;
+
+/**
+ * Minimal local Vertex O Series server, serving canned responses (200 with an empty body by default).
+ * OAuth tokens are numbered: token-1, token-2, ...
+ */
+public class LocalVertexServer implements Closeable {
+
+    public static final String CLIENT_ID = "clientId";
+    public static final String CLIENT_SECRET = "clientSecret";
+
+    private static final String TOKEN_PATH = "/oseries-auth/oauth/token";
+
+    private final HttpServer server;
+    private final Map<String, Deque<CannedResponse>> responses = new ConcurrentHashMap<>();
+    private final List<RecordedRequest> requests = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nbTokens = new AtomicInteger();
+
+    public LocalVertexServer() throws IOException {
+        this.server = ServerBootstrap.bootstrap()
+                                     .setListenerPort(0)
+                                     .register("*", this::handle)
+                                     .create();
+        this.server.start();
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + server.getLocalPort();
+    }
+
+    /**
+     * @param path path relative to the Vertex base path, e.g. /v2/supplies
+     */
+    public void enqueue(final String method, final String path, final int code, final String body) {
+        responses.computeIfAbsent(key(method, "/vertex-ws" + path), k -> new ConcurrentLinkedDeque<>())
+                 .add(new CannedResponse(code, body));
+    }
+
+    public List<RecordedRequest> getRequests() {
+        return requests;
+    }
+
+    public int getNbTokens() {
+        return nbTokens.get();
+    }
+
+    private void handle(final ClassicHttpRequest request, final ClassicHttpResponse response, final HttpContext context) throws HttpException, IOException {
+        final String path = request.getPath();
+        if (TOKEN_PATH.equals(path)) {
+            response.setCode(200);
+            response.setEntity(new StringEntity("{\"access_token\":\"token-" + nbTokens.incrementAndGet() + "\",\"expires_in\":3600}", ContentType.APPLICATION_JSON));
+            return;
+        }
+
+        final Header authorization = request.getFirstHeader(HttpHeaders.AUTHORIZATION);
+        requests.add(new RecordedRequest(request.getMethod(),
+                                         path,
+                                         authorization == null ? null : authorization.getValue(),
+                                         request.getEntity() == null ? null : EntityUtils.toString(request.getEntity())));
+
+        final Deque<CannedResponse> cannedResponses = responses.get(key(request.getMethod(), path));
+        final CannedResponse cannedResponse = cannedResponses == null ? null : cannedResponses.poll();
+        if (cannedResponse == null) {
+            response.setCode(200);
+            return;
+        }
+        response.setCode(cannedResponse.code);
+        if (cannedResponse.body != null) {
+            response.setEntity(new StringEntity(cannedResponse.body, ContentType.APPLICATION_JSON));
+        }
+    }
+
+    private static String key(final String method, final String path) {
+        return method + " " + path;
+    }
+
+    @Override
+    public void close() {
+        server.close(CloseMode.IMMEDIATE);
+    }
+
+    private static final class CannedResponse {
+
+        private final int code;
+        private final String body;
+
+        private CannedResponse(final int code, final String body) {
+            this.code = code;
+            this.body = body;
+        }
+    }
+
+    public static final class RecordedRequest {
+
+        private final String method;
+        private final String path;
+        private final String authorization;
+        private final String body;
+
+        private RecordedRequest(final String method, final String path, final String authorization, final String body) {
+            this.method = method;
+            this.path = path;
+            this.authorization = authorization;
+            this.body = body;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getAuthorization() {
+            return authorization;
+        }
+
+        public String getBody() {
+            return body;
+        }
+    }
+}
@@ -25,6 +25,7 @@ import org.killbill.billing.plugin.vertex.EmbeddedDbHelper;
 import org.killbill.billing.plugin.vertex.VertexApiClient;
 import org.killbill.billing.plugin.vertex.dao.VertexDao;
 import org.killbill.billing.plugin.vertex.gen.ApiClient;
+import org.killbill.billing.plugin.vertex.http.VertexHttpTransport;
 import org.killbill.billing.plugin.vertex.oauth.OAuthClient;
 import org.testng.annotations.AfterSuite;
 import org.testng.annotations.BeforeMethod;
@@ -42,6 +43,8 @@ public abstract class VertexRemoteTestBase {
     // See README.md for details on the required properties
     private static final String VERTEX_PROPERTIES = "vertex.properties";
 
+    protected static VertexHttpTransport httpTransport;
+
     protected Properties properties;
     protected VertexApiClient vertexApiClient;
     protected VertexDao dao;
@@ -49,6 +52,7 @@ public abstract class VertexRemoteTestBase {
     @BeforeSuite(groups = {"slow", "integration"})
     public void setUpBeforeSuite() throws Exception {
         EmbeddedDbHelper.instance().startDb();
+        httpTransport = new VertexHttpTransport(new Properties());
     }
 
     @BeforeMethod(groups = {"slow", "integration"})
@@ -78,6 +82,7 @@ public abstract class VertexRemoteTestBase {
     @AfterSuite(groups = {"slow", "integration"})
     public void tearDownAfterSuite() throws Exception {
         EmbeddedDbHelper.instance().stopDB();
+        httpTransport.close();
     }
 
     protected String getUrl() {
@@ -93,13 +98,13 @@ public abstract class VertexRemoteTestBase {
     }
 
     private void buildVertexApiClient(Properties properties) {
-        OAuthClient oAuthClient = new OAuthClient();
+        OAuthClient oAuthClient = new OAuthClient(httpTransport.getHttpClient());
 
-        ApiClient apiClient = new ApiClient();
+        ApiClient apiClient = new ApiClient(httpTransport.getHttpClient());
         apiClient.setBasePath(getUrl() + "/vertex-ws");
         String token = oAuthClient.getToken(getUrl(), getClientId(), getClientSecret()).getAccessToken();
         apiClient.setAccessToken(token);
 
-        this.vertexApiClient = new VertexApiClient(properties);
+        this.vertexApiClient = new VertexApiClient(properties, httpTransport);
     }
 }
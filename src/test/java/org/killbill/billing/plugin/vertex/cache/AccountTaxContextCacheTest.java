@@ -0,0 +1,155 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.cache;
+
+import java.util.UUID;
+
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountUserApi;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.plugin.vertex.VertexApiClient;
+import org.killbill.billing.plugin.vertex.VertexApiConfigurationHandler;
+import org.killbill.billing.plugin.vertex.gen.client.model.LocationType;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+
+public class AccountTaxContextCacheTest {
+
+    private static final UUID TENANT_ID = UUID.randomUUID();
+
+    @Mock
+    private OSGIKillbillAPI killbillAPI;
+    @Mock
+    private AccountUserApi accountUserApi;
+    @Mock
+    private VertexApiConfigurationHandler vertexApiConfigurationHandler;
+    @Mock
+    private VertexApiClient vertexApiClient;
+    @Mock
+    private TaxAreaCache taxAreaCache;
+    @Mock
+    private TenantContext tenantContext;
+    @Mock
+    private Account account;
+
+    private UUID accountId;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws Exception {
+        MockitoAnnotations.openMocks(this);
+
+        accountId = UUID.randomUUID();
+        given(account.getId()).willReturn(accountId);
+        given(account.getExternalKey()).willReturn("customer-1");
+        given(account.getAddress1()).willReturn("1 Main Street");
+        given(account.getCity()).willReturn("Redwood City");
+        given(account.getStateOrProvince()).willReturn("CA");
+        given(account.getPostalCode()).willReturn("94065");
+        given(account.getCountry()).willReturn("US");
+
+        given(killbillAPI.getAccountUserApi()).willReturn(accountUserApi);
+        given(accountUserApi.getAccountById(eq(accountId), any(TenantContext.class))).willReturn(account);
+        given(vertexApiConfigurationHandler.getConfigurable(TENANT_ID)).willReturn(vertexApiClient);
+        given(tenantContext.getTenantId()).willReturn(TENANT_ID);
+    }
+
+    @Test(groups = "fast")
+    public void testWarmUpOnAccountEvents() throws Exception {
+        final AccountTaxContextCache accountTaxContextCache = buildAccountTaxContextCache(10);
+        final AccountEventHandler accountEventHandler = new AccountEventHandler(accountTaxContextCache);
+
+        // Not an account event
+        accountEventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.INVOICE_CREATION));
+        assertEquals(accountTaxContextCache.size(), 0);
+
+        accountEventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.ACCOUNT_CREATION));
+        assertEquals(accountTaxContextCache.size(), 1);
+        // The tax area of the address is resolved ahead of invoicing
+        verify(taxAreaCache).getTaxAreaId(eq(TENANT_ID), argThat(address -> "1 Main Street".equals(address.getStreetAddress1())), eq(vertexApiClient));
+
+        // Invoicing doesn't retrieve the account
+        AccountTaxContext accountTaxContext = accountTaxContextCache.getAccountTaxContext(accountId, tenantContext);
+        assertEquals(accountTaxContext.getCustomerCode(), "customer-1");
+        assertEquals(accountTaxContext.buildDestination().getPostalCode(), "94065");
+        verify(accountUserApi, times(1)).getAccountById(eq(accountId), any(TenantContext.class));
+
+        // Address change
+        given(account.getAddress1()).willReturn("2 Main Street");
+        accountEventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.ACCOUNT_CHANGE));
+        accountTaxContext = accountTaxContextCache.getAccountTaxContext(accountId, tenantContext);
+        assertEquals(accountTaxContext.buildDestination().getStreetAddress1(), "2 Main Street");
+        verify(accountUserApi, times(2)).getAccountById(eq(accountId), any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void testBuiltOnFirstUse() throws Exception {
+        final AccountTaxContextCache accountTaxContextCache = buildAccountTaxContextCache(10);
+
+        final AccountTaxContext accountTaxContext = accountTaxContextCache.getAccountTaxContext(accountId, tenantContext);
+        assertEquals(accountTaxContext.getKbAccountId(), accountId);
+        assertEquals(accountTaxContextCache.getAccountTaxContext(accountId, tenantContext), accountTaxContext);
+        verify(accountUserApi, times(1)).getAccountById(eq(accountId), any(TenantContext.class));
+
+        accountTaxContextCache.invalidate(accountId);
+        accountTaxContextCache.getAccountTaxContext(accountId, tenantContext);
+        verify(accountUserApi, times(2)).getAccountById(eq(accountId), any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void testDisabled() throws Exception {
+        final AccountTaxContextCache accountTaxContextCache = buildAccountTaxContextCache(0);
+
+        accountTaxContextCache.warmUp(accountId, TENANT_ID);
+        verify(accountUserApi, times(0)).getAccountById(eq(accountId), any(TenantContext.class));
+
+        // Every invoice retrieves the account
+        accountTaxContextCache.getAccountTaxContext(accountId, tenantContext);
+        accountTaxContextCache.getAccountTaxContext(accountId, tenantContext);
+        verify(accountUserApi, times(2)).getAccountById(eq(accountId), any(TenantContext.class));
+        verify(taxAreaCache, times(2)).getTaxAreaId(eq(TENANT_ID), any(LocationType.class), eq(vertexApiClient));
+    }
+
+    private AccountTaxContextCache buildAccountTaxContextCache(final int maxSize) {
+        return new AccountTaxContextCache(maxSize, 3600, killbillAPI, vertexApiConfigurationHandler, taxAreaCache, MoreExecutors.directExecutor(), Ticker.systemTicker());
+    }
+
+    private ExtBusEvent buildEvent(final ExtBusEventType eventType) {
+        final ExtBusEvent event = Mockito.mock(ExtBusEvent.class);
+        given(event.getEventType()).willReturn(eventType);
+        given(event.getAccountId()).willReturn(accountId);
+        given(event.getTenantId()).willReturn(TENANT_ID);
+        return event;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.cache;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessResponseTransactionResponseType;
+import org.killbill.billing.plugin.vertex.gen.client.model.CustomerType;
+import org.killbill.billing.plugin.vertex.gen.client.model.LocationType;
+import org.killbill.billing.plugin.vertex.gen.client.model.SaleMessageTypeEnum;
+import org.killbill.billing.plugin.vertex.gen.client.model.SaleRequestLineItemType;
+import org.killbill.billing.plugin.vertex.gen.client.model.SaleRequestType;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+public class QuoteCacheTest {
+
+    @Test(groups = "fast")
+    public void testFingerprintIgnoresGeneratedIds() {
+        final QuoteCache quoteCache = new QuoteCache(10, 60, Ticker.systemTicker());
+        final String lineItemId = UUID.randomUUID().toString();
+
+        final String fingerprint = quoteCache.fingerprint(buildRequest(lineItemId, 10.0));
+        assertEquals(quoteCache.fingerprint(buildRequest(lineItemId, 10.0)), fingerprint);
+        assertNotEquals(quoteCache.fingerprint(buildRequest(lineItemId, 11.0)), fingerprint);
+        // Kill Bill generates new item ids for each preview
+        assertEquals(quoteCache.fingerprint(buildRequest(UUID.randomUUID().toString(), 10.0)), fingerprint);
+    }
+
+    @Test(groups = "fast")
+    public void testQuotesArePerTenantAndExpire() {
+        final AtomicLong nanos = new AtomicLong();
+        final QuoteCache quoteCache = new QuoteCache(10, 60, new Ticker() {
+            @Override
+            public long read() {
+                return nanos.get();
+            }
+        });
+        final UUID tenantId = UUID.randomUUID();
+        final UUID otherTenantId = UUID.randomUUID();
+        final String fingerprint = quoteCache.fingerprint(buildRequest(UUID.randomUUID().toString(), 10.0));
+        final ApiSuccessResponseTransactionResponseType quote = new ApiSuccessResponseTransactionResponseType();
+
+        assertNull(quoteCache.get(tenantId, fingerprint));
+        quoteCache.put(tenantId, fingerprint, quote);
+        assertSame(quoteCache.get(tenantId, fingerprint), quote);
+        assertNull(quoteCache.get(otherTenantId, fingerprint));
+
+        assertEquals(quoteCache.getStats(tenantId).get("hits"), 1L);
+        assertEquals(quoteCache.getStats(tenantId).get("misses"), 1L);
+        assertEquals(quoteCache.getStats(tenantId).get("size"), 1L);
+        assertEquals(quoteCache.getStats(otherTenantId).get("misses"), 1L);
+        assertEquals(quoteCache.getStats().get("misses"), 2L);
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(61));
+        assertNull(quoteCache.get(tenantId, fingerprint));
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidate() {
+        final QuoteCache quoteCache = new QuoteCache(10, 60, Ticker.systemTicker());
+        final UUID tenantId = UUID.randomUUID();
+        final UUID otherTenantId = UUID.randomUUID();
+        final String fingerprint = quoteCache.fingerprint(buildRequest(UUID.randomUUID().toString(), 10.0));
+        final ApiSuccessResponseTransactionResponseType quote = new ApiSuccessResponseTransactionResponseType();
+        quoteCache.put(tenantId, fingerprint, quote);
+        quoteCache.put(otherTenantId, fingerprint, quote);
+
+        quoteCache.invalidate(tenantId);
+        assertNull(quoteCache.get(tenantId, fingerprint));
+        assertSame(quoteCache.get(otherTenantId, fingerprint), quote);
+
+        quoteCache.invalidateAll();
+        assertNull(quoteCache.get(otherTenantId, fingerprint));
+    }
+
+    @Test(groups = "fast")
+    public void testFingerprintIgnoresSaleMessageType() {
+        final String lineItemId = UUID.randomUUID().toString();
+        final SaleRequestType invoiceRequest = buildRequest(lineItemId, 10.0);
+        invoiceRequest.setSaleMessageType(SaleMessageTypeEnum.INVOICE);
+
+        // Previews can be rebuilt from the responses of the invoices
+        assertEquals(QuoteCache.computeFingerprint(invoiceRequest), QuoteCache.computeFingerprint(buildRequest(lineItemId, 10.0)));
+    }
+
+    @Test(groups = "fast")
+    public void testFingerprintIgnoresTaxAreaId() {
+        final String lineItemId = UUID.randomUUID().toString();
+        final SaleRequestType rawAddressRequest = buildRequest(lineItemId, 10.0);
+        rawAddressRequest.setCustomer(new CustomerType().destination(new LocationType().postalCode("94105").country("US")));
+        final SaleRequestType resolvedAddressRequest = buildRequest(lineItemId, 10.0);
+        resolvedAddressRequest.setCustomer(new CustomerType().destination(new LocationType().postalCode("94105").country("US").taxAreaId("50522990")));
+        final SaleRequestType otherAddressRequest = buildRequest(lineItemId, 10.0);
+        otherAddressRequest.setCustomer(new CustomerType().destination(new LocationType().postalCode("10001").country("US")));
+
+        // The tax area id is resolved in the background, after the first request for the address
+        assertEquals(QuoteCache.computeFingerprint(resolvedAddressRequest), QuoteCache.computeFingerprint(rawAddressRequest));
+        assertNotEquals(QuoteCache.computeFingerprint(otherAddressRequest), QuoteCache.computeFingerprint(rawAddressRequest));
+    }
+
+    @Test(groups = "fast")
+    public void testDisabled() {
+        final QuoteCache quoteCache = new QuoteCache(0, 60, Ticker.systemTicker());
+        assertFalse(quoteCache.isEnabled());
+        assertNull(quoteCache.fingerprint(buildRequest(UUID.randomUUID().toString(), 10.0)));
+        assertEquals(quoteCache.getStoredResponsesMaxAgeSeconds(), 0);
+    }
+
+    private SaleRequestType buildRequest(final String lineItemId, final double extendedPrice) {
+        final SaleRequestType request = new SaleRequestType();
+        request.setSaleMessageType(SaleMessageTypeEnum.QUOTATION);
+        request.setTransactionId("kb_" + UUID.randomUUID());
+        request.setDocumentNumber(UUID.randomUUID().toString());
+        request.setDocumentDate(LocalDate.of(2023, 1, 1));
+        final SaleRequestLineItemType lineItem = new SaleRequestLineItemType();
+        lineItem.setLineItemId(lineItemId);
+        lineItem.setLineItemNumber(1L);
+        lineItem.setExtendedPrice(extendedPrice);
+        request.setLineItems(Collections.singletonList(lineItem));
+        return request;
+    }
+}
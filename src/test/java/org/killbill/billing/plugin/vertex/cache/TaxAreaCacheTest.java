@@ -0,0 +1,169 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.vertex.VertexApiClient;
+import org.killbill.billing.plugin.vertex.dao.VertexDao;
+import org.killbill.billing.plugin.vertex.gen.ApiException;
+import org.killbill.billing.plugin.vertex.gen.client.model.AddressLookupRequestType;
+import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessResponseTaxAreaLookupResponseType;
+import org.killbill.billing.plugin.vertex.gen.client.model.LocationType;
+import org.killbill.billing.plugin.vertex.gen.client.model.TaxAreaLookupResponseType;
+import org.killbill.billing.plugin.vertex.gen.client.model.TaxAreaLookupResultType;
+import org.killbill.billing.plugin.vertex.gen.dao.model.tables.records.VertexTaxAreasRecord;
+import org.killbill.clock.Clock;
+import org.mockito.Mockito;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class TaxAreaCacheTest {
+
+    private static final UUID TENANT_ID = UUID.randomUUID();
+
+    @Test(groups = "fast")
+    public void testTaxAreaIdResolvedOnMiss() throws Exception {
+        final VertexDao dao = Mockito.mock(VertexDao.class);
+        final List<CompletableFuture<ApiSuccessResponseTaxAreaLookupResponseType>> lookups = new ArrayList<>();
+        final VertexApiClient vertexApiClient = mockLookups(lookups);
+        final TaxAreaCache taxAreaCache = buildTaxAreaCache(dao);
+
+        // Concurrent misses trigger a single lookup
+        assertNull(taxAreaCache.getTaxAreaId(TENANT_ID, buildAddress("1 Main Street"), vertexApiClient));
+        assertNull(taxAreaCache.getTaxAreaId(TENANT_ID, buildAddress("1 Main Street"), vertexApiClient));
+        assertEquals(lookups.size(), 1);
+
+        lookups.get(0).complete(buildLookupResponse("50522990"));
+        verify(dao).addTaxArea(anyString(), eq("1 MAIN STREET||REDWOOD CITY||CA|94065|USA|"), eq("50522990"), any(DateTime.class), eq(TENANT_ID));
+
+        // Case and whitespace insensitive
+        assertEquals(taxAreaCache.getTaxAreaId(TENANT_ID, buildAddress("1  MAIN street "), vertexApiClient), "50522990");
+        assertEquals(lookups.size(), 1);
+
+        // Per tenant
+        assertNull(taxAreaCache.getTaxAreaId(UUID.randomUUID(), buildAddress("1 Main Street"), vertexApiClient));
+        assertEquals(lookups.size(), 2);
+
+        // Evicted when the tax area changes
+        taxAreaCache.invalidate(TENANT_ID, "50522990");
+        assertNull(taxAreaCache.getTaxAreaId(TENANT_ID, buildAddress("1 Main Street"), vertexApiClient));
+        assertEquals(lookups.size(), 3);
+    }
+
+    @Test(groups = "fast")
+    public void testPersistedTaxAreaId() throws Exception {
+        final VertexDao dao = Mockito.mock(VertexDao.class);
+        final VertexTaxAreasRecord record = new VertexTaxAreasRecord();
+        record.setTaxAreaId("50522990");
+        given(dao.getTaxArea(anyString(), eq(TENANT_ID))).willReturn(record);
+        final List<CompletableFuture<ApiSuccessResponseTaxAreaLookupResponseType>> lookups = new ArrayList<>();
+        final VertexApiClient vertexApiClient = mockLookups(lookups);
+        final TaxAreaCache taxAreaCache = buildTaxAreaCache(dao);
+
+        assertEquals(taxAreaCache.getTaxAreaId(TENANT_ID, buildAddress("1 Main Street"), vertexApiClient), "50522990");
+        assertEquals(taxAreaCache.getTaxAreaId(TENANT_ID, buildAddress("1 Main Street"), vertexApiClient), "50522990");
+        verify(dao, times(1)).getTaxArea(anyString(), eq(TENANT_ID));
+        assertEquals(lookups.size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testAmbiguousAndFailedLookups() throws Exception {
+        final VertexDao dao = Mockito.mock(VertexDao.class);
+        final List<CompletableFuture<ApiSuccessResponseTaxAreaLookupResponseType>> lookups = new ArrayList<>();
+        final VertexApiClient vertexApiClient = mockLookups(lookups);
+        final TaxAreaCache taxAreaCache = buildTaxAreaCache(dao);
+
+        // Ambiguous: not looked up again, nor persisted
+        assertNull(taxAreaCache.getTaxAreaId(TENANT_ID, buildAddress("1 Main Street"), vertexApiClient));
+        lookups.get(0).complete(buildLookupResponse("50522990", "50522991"));
+        assertNull(taxAreaCache.getTaxAreaId(TENANT_ID, buildAddress("1 Main Street"), vertexApiClient));
+        assertEquals(lookups.size(), 1);
+
+        // Failed: looked up again
+        assertNull(taxAreaCache.getTaxAreaId(TENANT_ID, buildAddress("2 Main Street"), vertexApiClient));
+        lookups.get(1).completeExceptionally(new ApiException(503, "Service Unavailable"));
+        assertNull(taxAreaCache.getTaxAreaId(TENANT_ID, buildAddress("2 Main Street"), vertexApiClient));
+        assertEquals(lookups.size(), 3);
+
+        verify(dao, never()).addTaxArea(anyString(), anyString(), anyString(), any(DateTime.class), any(UUID.class));
+    }
+
+    @Test(groups = "fast")
+    public void testDisabled() {
+        final VertexApiClient vertexApiClient = Mockito.mock(VertexApiClient.class);
+        final TaxAreaCache taxAreaCache = new TaxAreaCache(0, 60, null, Mockito.mock(Clock.class), MoreExecutors.directExecutor(), Ticker.systemTicker());
+        assertNull(taxAreaCache.getTaxAreaId(TENANT_ID, buildAddress("1 Main Street"), vertexApiClient));
+        verify(vertexApiClient, never()).lookUpTaxAreaByAddressAsync(any(AddressLookupRequestType.class));
+    }
+
+    private TaxAreaCache buildTaxAreaCache(final VertexDao dao) {
+        final Clock clock = Mockito.mock(Clock.class);
+        given(clock.getUTCNow()).willReturn(new DateTime(DateTimeZone.UTC));
+        return new TaxAreaCache(10, 60, dao, clock, MoreExecutors.directExecutor(), Ticker.systemTicker());
+    }
+
+    private VertexApiClient mockLookups(final List<CompletableFuture<ApiSuccessResponseTaxAreaLookupResponseType>> lookups) {
+        final VertexApiClient vertexApiClient = Mockito.mock(VertexApiClient.class);
+        given(vertexApiClient.lookUpTaxAreaByAddressAsync(any(AddressLookupRequestType.class))).willAnswer(invocation -> {
+            final AddressLookupRequestType request = invocation.getArgument(0);
+            assertEquals(request.getPostalAddress().getPostalCode(), "94065");
+            final CompletableFuture<ApiSuccessResponseTaxAreaLookupResponseType> lookup = new CompletableFuture<>();
+            lookups.add(lookup);
+            return lookup;
+        });
+        return vertexApiClient;
+    }
+
+    private LocationType buildAddress(final String streetAddress1) {
+        final LocationType address = new LocationType();
+        address.setStreetAddress1(streetAddress1);
+        address.setCity("Redwood City");
+        address.setMainDivision("CA");
+        address.setPostalCode("94065");
+        address.setCountry("USA");
+        return address;
+    }
+
+    private ApiSuccessResponseTaxAreaLookupResponseType buildLookupResponse(final String... taxAreaIds) {
+        final TaxAreaLookupResponseType data = new TaxAreaLookupResponseType();
+        for (final String taxAreaId : taxAreaIds) {
+            data.addLookupResultsItem(new TaxAreaLookupResultType().taxAreaId(taxAreaId));
+        }
+        final ApiSuccessResponseTaxAreaLookupResponseType response = new ApiSuccessResponseTaxAreaLookupResponseType();
+        response.setData(data);
+        return response;
+    }
+}
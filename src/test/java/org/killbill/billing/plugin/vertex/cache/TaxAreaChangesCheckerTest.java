@@ -0,0 +1,124 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.cache;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.vertex.VertexApiClient;
+import org.killbill.billing.plugin.vertex.VertexApiConfigurationHandler;
+import org.killbill.billing.plugin.vertex.dao.VertexDao;
+import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessChangedTaxAreasResponseType;
+import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessChangedTaxAreasResponseTypeData;
+import org.killbill.clock.Clock;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class TaxAreaChangesCheckerTest {
+
+    private static final UUID TENANT_ID = UUID.randomUUID();
+
+    @Mock
+    private VertexApiConfigurationHandler vertexApiConfigurationHandler;
+    @Mock
+    private VertexApiClient vertexApiClient;
+    @Mock
+    private VertexDao dao;
+    @Mock
+    private TaxAreaCache taxAreaCache;
+    @Mock
+    private Clock clock;
+
+    private TaxAreaChangesChecker taxAreaChangesChecker;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        MockitoAnnotations.openMocks(this);
+        given(vertexApiConfigurationHandler.getConfigurable(TENANT_ID)).willReturn(vertexApiClient);
+        given(clock.getUTCNow()).willReturn(new DateTime(DateTimeZone.UTC));
+        taxAreaChangesChecker = new TaxAreaChangesChecker(new Properties(), vertexApiConfigurationHandler, dao, taxAreaCache, clock);
+    }
+
+    @Test(groups = "fast")
+    public void testNoChanges() throws Exception {
+        given(dao.getTaxAreaIds(TENANT_ID)).willReturn(ImmutableMap.of("50522990", LocalDateTime.of(2023, 3, 2, 10, 0),
+                                                                       "50522991", LocalDateTime.of(2023, 3, 1, 10, 0)));
+        given(vertexApiClient.getChangedTaxAreas(LocalDate.of(2023, 3, 1))).willReturn(buildResponse(false));
+
+        taxAreaChangesChecker.checkForChanges(TENANT_ID);
+
+        verify(dao).touchTaxAreas(isNull(), any(DateTime.class), eq(TENANT_ID));
+        verify(vertexApiClient, never()).getChangedTaxArea(anyString(), any(LocalDate.class));
+        verify(dao, never()).deleteTaxAreas(anyString(), any(UUID.class));
+    }
+
+    @Test(groups = "fast")
+    public void testChangedTaxArea() throws Exception {
+        given(dao.getTaxAreaIds(TENANT_ID)).willReturn(ImmutableMap.of("50522990", LocalDateTime.of(2023, 3, 2, 10, 0),
+                                                                       "50522991", LocalDateTime.of(2023, 3, 1, 10, 0)));
+        given(vertexApiClient.getChangedTaxAreas(LocalDate.of(2023, 3, 1))).willReturn(buildResponse(true));
+        given(vertexApiClient.getChangedTaxArea("50522990", LocalDate.of(2023, 3, 2))).willReturn(buildResponse(false));
+        given(vertexApiClient.getChangedTaxArea("50522991", LocalDate.of(2023, 3, 1))).willReturn(buildResponse(true));
+
+        taxAreaChangesChecker.checkForChanges(TENANT_ID);
+
+        verify(dao).touchTaxAreas(eq("50522990"), any(DateTime.class), eq(TENANT_ID));
+        verify(dao).deleteTaxAreas("50522991", TENANT_ID);
+        verify(taxAreaCache).invalidate(TENANT_ID, "50522991");
+        verify(dao, never()).deleteTaxAreas("50522990", TENANT_ID);
+        verify(taxAreaCache, never()).invalidate(TENANT_ID, "50522990");
+    }
+
+    @Test(groups = "fast")
+    public void testAlreadyCheckedByAnotherNode() throws Exception {
+        final DateTime now = new DateTime(2023, 3, 2, 12, 0, DateTimeZone.UTC);
+        given(clock.getUTCNow()).willReturn(now);
+        given(dao.getTaxAreaIds(TENANT_ID)).willReturn(ImmutableMap.of("50522990", LocalDateTime.of(2023, 3, 2, 10, 0),
+                                                                       "50522991", LocalDateTime.of(2023, 3, 2, 11, 0)));
+
+        taxAreaChangesChecker.checkForChanges(TENANT_ID);
+
+        verify(vertexApiClient, never()).getChangedTaxAreas(any(LocalDate.class));
+        verify(dao, never()).touchTaxAreas(nullable(String.class), any(DateTime.class), any(UUID.class));
+    }
+
+    private ApiSuccessChangedTaxAreasResponseType buildResponse(final boolean changed) {
+        final ApiSuccessChangedTaxAreasResponseTypeData data = new ApiSuccessChangedTaxAreasResponseTypeData();
+        data.setChanged(changed);
+        final ApiSuccessChangedTaxAreasResponseType response = new ApiSuccessChangedTaxAreasResponseType();
+        response.setData(data);
+        return response;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.plugin.vertex.VertexTaxCalculator;
+import org.killbill.billing.util.api.CustomFieldUserApi;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.customfield.CustomField;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class TaxCodeCacheTest {
+
+    @Mock
+    private OSGIKillbillAPI killbillAPI;
+    @Mock
+    private CustomFieldUserApi customFieldUserApi;
+    @Mock
+    private TenantContext tenantContext;
+
+    private UUID accountId;
+    private List<CustomField> customFields;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        MockitoAnnotations.openMocks(this);
+
+        accountId = UUID.randomUUID();
+        customFields = new ArrayList<>();
+        given(killbillAPI.getCustomFieldUserApi()).willReturn(customFieldUserApi);
+        given(customFieldUserApi.getCustomFieldsForAccountType(eq(accountId), eq(ObjectType.INVOICE_ITEM), any(TenantContext.class))).willReturn(customFields);
+    }
+
+    @Test(groups = "fast")
+    public void testTaxCodesIndexedByInvoiceItem() {
+        final UUID invoiceItemId1 = UUID.randomUUID();
+        final UUID invoiceItemId2 = UUID.randomUUID();
+        customFields.add(buildCustomField(invoiceItemId1, VertexTaxCalculator.TAX_CODE, "SW054000"));
+        customFields.add(buildCustomField(invoiceItemId1, VertexTaxCalculator.TAX_CODE, "SW054001"));
+        customFields.add(buildCustomField(invoiceItemId2, "otherField", "otherValue"));
+
+        final TaxCodeCache taxCodeCache = new TaxCodeCache(100, 3600, killbillAPI, Ticker.systemTicker());
+        final Map<UUID, String> taxCodes = taxCodeCache.getTaxCodes(accountId, tenantContext);
+        assertEquals(taxCodes.size(), 1);
+        // First custom field wins
+        assertEquals(taxCodes.get(invoiceItemId1), "SW054000");
+        assertNull(taxCodes.get(invoiceItemId2));
+
+        taxCodeCache.getTaxCodes(accountId, tenantContext);
+        verify(customFieldUserApi, times(1)).getCustomFieldsForAccountType(eq(accountId), eq(ObjectType.INVOICE_ITEM), any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidatedOnCustomFieldEvents() {
+        final TaxCodeCache taxCodeCache = new TaxCodeCache(100, 3600, killbillAPI, Ticker.systemTicker());
+        final CustomFieldEventHandler customFieldEventHandler = new CustomFieldEventHandler(taxCodeCache);
+        assertEquals(taxCodeCache.getTaxCodes(accountId, tenantContext).size(), 0);
+
+        // Other account
+        customFieldEventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.CUSTOM_FIELD_CREATION, UUID.randomUUID()));
+        // Not a custom field event
+        customFieldEventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.INVOICE_CREATION, accountId));
+        assertEquals(taxCodeCache.getTaxCodes(accountId, tenantContext).size(), 0);
+        verify(customFieldUserApi, times(1)).getCustomFieldsForAccountType(eq(accountId), eq(ObjectType.INVOICE_ITEM), any(TenantContext.class));
+
+        final UUID invoiceItemId = UUID.randomUUID();
+        customFields.add(buildCustomField(invoiceItemId, VertexTaxCalculator.TAX_CODE, "SW054000"));
+        customFieldEventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.CUSTOM_FIELD_CREATION, accountId));
+        assertEquals(taxCodeCache.getTaxCodes(accountId, tenantContext).get(invoiceItemId), "SW054000");
+
+        customFields.clear();
+        customFieldEventHandler.handleKillbillEvent(buildEvent(ExtBusEventType.CUSTOM_FIELD_DELETION, accountId));
+        assertEquals(taxCodeCache.getTaxCodes(accountId, tenantContext).size(), 0);
+        verify(customFieldUserApi, times(3)).getCustomFieldsForAccountType(eq(accountId), eq(ObjectType.INVOICE_ITEM), any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void testBoundedByTaxCodes() {
+        final UUID otherAccountId = UUID.randomUUID();
+        final List<CustomField> otherCustomFields = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            otherCustomFields.add(buildCustomField(UUID.randomUUID(), VertexTaxCalculator.TAX_CODE, "SW054000"));
+        }
+        given(customFieldUserApi.getCustomFieldsForAccountType(eq(otherAccountId), eq(ObjectType.INVOICE_ITEM), any(TenantContext.class))).willReturn(otherCustomFields);
+
+        final TaxCodeCache taxCodeCache = new TaxCodeCache(5, 3600, killbillAPI, Ticker.systemTicker());
+        taxCodeCache.getTaxCodes(accountId, tenantContext);
+        assertEquals(taxCodeCache.size(), 1);
+        // Heavier than the whole cache
+        assertEquals(taxCodeCache.getTaxCodes(otherAccountId, tenantContext).size(), 10);
+        assertEquals(taxCodeCache.size(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testDisabled() {
+        final TaxCodeCache taxCodeCache = new TaxCodeCache(0, 3600, killbillAPI, Ticker.systemTicker());
+        taxCodeCache.getTaxCodes(accountId, tenantContext);
+        taxCodeCache.getTaxCodes(accountId, tenantContext);
+        verify(customFieldUserApi, times(2)).getCustomFieldsForAccountType(eq(accountId), eq(ObjectType.INVOICE_ITEM), any(TenantContext.class));
+    }
+
+    private CustomField buildCustomField(final UUID objectId, final String fieldName, final String fieldValue) {
+        final CustomField customField = Mockito.mock(CustomField.class);
+        given(customField.getObjectId()).willReturn(objectId);
+        given(customField.getFieldName()).willReturn(fieldName);
+        given(customField.getFieldValue()).willReturn(fieldValue);
+        return customField;
+    }
+
+    private ExtBusEvent buildEvent(final ExtBusEventType eventType, final UUID kbAccountId) {
+        final ExtBusEvent event = Mockito.mock(ExtBusEvent.class);
+        given(event.getEventType()).willReturn(eventType);
+        given(event.getAccountId()).willReturn(kbAccountId);
+        return event;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.cache;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.vertex.cache.TaxCodeMapping.CatalogType;
+import org.killbill.billing.plugin.vertex.dao.VertexDao;
+import org.killbill.billing.plugin.vertex.gen.dao.model.tables.records.VertexTaxCodeMappingsRecord;
+import org.killbill.clock.Clock;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TaxCodeMappingCacheTest {
+
+    @Mock
+    private VertexDao dao;
+
+    private UUID kbTenantId;
+    private List<VertexTaxCodeMappingsRecord> records;
+    private AtomicLong nanos;
+    private Ticker ticker;
+    private Clock clock;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws SQLException {
+        MockitoAnnotations.openMocks(this);
+
+        kbTenantId = UUID.randomUUID();
+        records = new ArrayList<>();
+        given(dao.getTaxCodeMappings(kbTenantId)).willAnswer(invocation -> new ArrayList<>(records));
+
+        clock = Mockito.mock(Clock.class);
+        given(clock.getUTCNow()).willReturn(new DateTime(DateTimeZone.UTC));
+        nanos = new AtomicLong();
+        ticker = new Ticker() {
+            @Override
+            public long read() {
+                return nanos.get();
+            }
+        };
+    }
+
+    @Test(groups = "fast")
+    public void testLoadedOncePerTtl() throws SQLException {
+        records.add(buildRecord("PRODUCT", "Standard", "SW050000"));
+        records.add(buildRecord("NOT_A_TYPE", "Standard", "SW054000"));
+
+        final TaxCodeMappingCache taxCodeMappingCache = new TaxCodeMappingCache(60, dao, clock, ticker);
+        final TaxCodeMappings taxCodeMappings = taxCodeMappingCache.getTaxCodeMappings(kbTenantId);
+        // Invalid catalog type ignored
+        assertEquals(taxCodeMappings.getMappings().size(), 1);
+        assertEquals(taxCodeMappings.getMappings().get(0).getProductClass(), "SW050000");
+        assertEquals(taxCodeMappingCache.getTaxCodeMappings(kbTenantId), taxCodeMappings);
+        verify(dao, times(1)).getTaxCodeMappings(kbTenantId);
+
+        // Change made on another node
+        records.clear();
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(61));
+        assertTrue(taxCodeMappingCache.getTaxCodeMappings(kbTenantId).isEmpty());
+        verify(dao, times(2)).getTaxCodeMappings(kbTenantId);
+    }
+
+    @Test(groups = "fast")
+    public void testReloadedOnChanges() throws SQLException {
+        final TaxCodeMappingCache taxCodeMappingCache = new TaxCodeMappingCache(60, dao, clock, ticker);
+        assertTrue(taxCodeMappingCache.getTaxCodeMappings(kbTenantId).isEmpty());
+
+        records.add(buildRecord("PLAN", "standard-monthly", "SW054000"));
+        taxCodeMappingCache.addTaxCodeMapping(new TaxCodeMapping(CatalogType.PLAN, "standard-monthly", "SW054000", null), kbTenantId);
+        verify(dao).addTaxCodeMapping(eq("PLAN"), eq("standard-monthly"), eq("SW054000"), eq(null), any(DateTime.class), eq(kbTenantId));
+        assertEquals(taxCodeMappingCache.getTaxCodeMappings(kbTenantId).getMappings().size(), 1);
+
+        records.clear();
+        given(dao.deleteTaxCodeMapping("PLAN", "standard-monthly", kbTenantId)).willReturn(1, 0);
+        assertTrue(taxCodeMappingCache.deleteTaxCodeMapping(CatalogType.PLAN, "standard-monthly", kbTenantId));
+        assertTrue(taxCodeMappingCache.getTaxCodeMappings(kbTenantId).isEmpty());
+        assertFalse(taxCodeMappingCache.deleteTaxCodeMapping(CatalogType.PLAN, "standard-monthly", kbTenantId));
+
+        // Initial load and one reload per change only
+        verify(dao, times(4)).getTaxCodeMappings(kbTenantId);
+    }
+
+    @Test(groups = "fast")
+    public void testFailedLoadNotCached() throws SQLException {
+        given(dao.getTaxCodeMappings(kbTenantId)).willThrow(new SQLException("boom"))
+                                                 .willAnswer(invocation -> new ArrayList<>(records));
+        records.add(buildRecord("PRODUCT", "Standard", "SW050000"));
+
+        final TaxCodeMappingCache taxCodeMappingCache = new TaxCodeMappingCache(60, dao, clock, ticker);
+        assertTrue(taxCodeMappingCache.getTaxCodeMappings(kbTenantId).isEmpty());
+        assertEquals(taxCodeMappingCache.getTaxCodeMappings(kbTenantId).getMappings().size(), 1);
+    }
+
+    private VertexTaxCodeMappingsRecord buildRecord(final String catalogType, final String catalogName, final String productClass) {
+        final VertexTaxCodeMappingsRecord record = new VertexTaxCodeMappingsRecord();
+        record.setCatalogType(catalogType);
+        record.setCatalogName(catalogName);
+        record.setProductClass(productClass);
+        record.setKbTenantId(kbTenantId.toString());
+        return record;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.killbill.billing.plugin.vertex.cluster;
+
+import java.sql.SQLException;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.vertex.dao.VertexDao;
+import org.killbill.billing.plugin.vertex.http.AsyncRequestLimiter;
+import org.killbill.billing.plugin.vertex.http.TokenBucket;
+import org.killbill.clock.Clock;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+
+public class VertexClusterLimitsTest {
+
+    private static final DateTime NOW = new DateTime(2023, 3, 1, 10, 0, DateTimeZone.UTC);
+
+    @Mock
+    private VertexDao dao;
+    @Mock
+    private Clock clock;
+
+    private AsyncRequestLimiter asyncRequestLimiter;
+    private TokenBucket rateLimiter;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        MockitoAnnotations.openMocks(this);
+
+        given(clock.getUTCNow()).willReturn(NOW);
+        // Local limit of the node
+        asyncRequestLimiter = new AsyncRequestLimiter(50);
+        rateLimiter = new TokenBucket("vertex-cluster", 100, 100, 0, MoreExecutors.directExecutor(), Ticker.systemTicker());
+    }
+
+    @Test(groups = "fast")
+    public void testLimitsAreSplitBetweenLiveNodes() throws Exception {
+        final VertexClusterLimits clusterLimits = new VertexClusterLimits(60, 100, 10, 2, asyncRequestLimiter, rateLimiter, dao, clock);
+        // Alone until the first heartbeat, within the local limit
+        assertEquals(asyncRequestLimiter.getMaxInFlightRequests(), 50);
+        assertEquals(rateLimiter.getCapacity(), 100);
+
+        given(dao.renewNodeLease(eq(clusterLimits.getNodeId()), eq(NOW.plusSeconds(30)), eq(NOW), eq(2))).willReturn(6);
+        clusterLimits.heartbeat();
+        assertEquals(clusterLimits.getLiveNodes(), 6);
+        assertEquals(asyncRequestLimiter.getMaxInFlightRequests(), 10);
+        assertEquals(rateLimiter.getCapacity(), 16);
+
+        // More nodes than permits
+        given(dao.renewNodeLease(anyString(), any(DateTime.class), any(DateTime.class), anyInt())).willReturn(200);
+        clusterLimits.heartbeat();
+        assertEquals(asyncRequestLimiter.getMaxInFlightRequests(), 1);
+        assertEquals(rateLimiter.getCapacity(), 1);
+
+        clusterLimits.close();
+        verify(dao).deleteNodeLease(clusterLimits.getNodeId());
+    }
+
+    @Test(groups = "fast")
+    public void testLastShareIsKeptWhenTheDatabaseFails() throws Exception {
+        final VertexClusterLimits clusterLimits = new VertexClusterLimits(60, 0, 10, 2, asyncRequestLimiter, rateLimiter, dao, clock);
+        given(dao.renewNodeLease(anyString(), any(DateTime.class), any(DateTime.class), anyInt())).willReturn(3);
+        clusterLimits.heartbeat();
+        assertEquals(asyncRequestLimiter.getMaxInFlightRequests(), 20);
+
+        given(dao.renewNodeLease(anyString(), any(DateTime.class), any(DateTime.class), anyInt())).willThrow(new SQLException("Query timeout"));
+        clusterLimits.heartbeat();
+        assertEquals(clusterLimits.getLiveNodes(), 3);
+        assertEquals(asyncRequestLimiter.getMaxInFlightRequests(), 20);
+        // No cluster-wide rate
+        assertEquals(rateLimiter.getCapacity(), 100);
+
+        clusterLimits.close();
+    }
+
+    @Test(groups = "fast")
+    public void testDisabled() throws Exception {
+        final VertexClusterLimits clusterLimits = new VertexClusterLimits(0, 0, 10, 2, asyncRequestLimiter, null, dao, clock);
+        clusterLimits.start();
+        clusterLimits.close();
+
+        assertEquals(asyncRequestLimiter.getMaxInFlightRequests(), 50);
+        verify(dao, never()).renewNodeLease(anyString(), any(DateTime.class), any(DateTime.class), anyInt());
+        verify(dao, never()).deleteNodeLease(anyString());
+    }
+}
@@ -19,10 +19,19 @@
 package org.killbill.billing.plugin.vertex.dao;
 
 import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -35,12 +44,16 @@ import org.killbill.billing.plugin.TestUtils;
 import org.killbill.billing.plugin.vertex.base.VertexRemoteTestBase;
 import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessResponseTransactionResponseType;
 import org.killbill.billing.plugin.vertex.gen.client.model.ApiSuccessResponseTransactionResponseTypeData;
+import org.killbill.billing.plugin.vertex.gen.client.model.OwnerResponseLineItemType;
+import org.killbill.billing.plugin.vertex.gen.dao.model.tables.records.VertexOutboxRecord;
 import org.killbill.billing.plugin.vertex.gen.dao.model.tables.records.VertexResponsesRecord;
+import org.killbill.billing.plugin.vertex.gen.dao.model.tables.records.VertexTaxCodeMappingsRecord;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
 public class VertexDaoTestDaoITest extends VertexRemoteTestBase {
 
@@ -113,4 +126,304 @@ public class VertexDaoTestDaoITest extends VertexRemoteTestBase {
         Assert.assertEquals(kbInvoiceItems.get(taxableItem2.getId()).size(), 1);
         Assert.assertTrue(kbInvoiceItems.get(taxableItem2.getId()).contains(adjustmentItem21.getId()));
     }
+
+    @Test(groups = "slow")
+    public void testReadResponsesByFingerprint() throws Exception {
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbTenantId = UUID.randomUUID();
+        final DateTime createdDate = new DateTime(2023, 3, 1, 10, 0, DateTimeZone.UTC);
+
+        final OwnerResponseLineItemType lineItem = new OwnerResponseLineItemType();
+        lineItem.setLineItemId(UUID.randomUUID().toString());
+        lineItem.setTotalTax(1.01);
+        final ApiSuccessResponseTransactionResponseType taxResult = new ApiSuccessResponseTransactionResponseType();
+        final ApiSuccessResponseTransactionResponseTypeData data = new ApiSuccessResponseTransactionResponseTypeData();
+        data.setLineItems(ImmutableList.of(lineItem));
+        taxResult.setData(data);
+
+        final UUID kbInvoiceId1 = UUID.randomUUID();
+        final UUID kbInvoiceId2 = UUID.randomUUID();
+        dao.addResponse(kbAccountId, UUID.randomUUID(), ImmutableMap.of(), taxResult, null, "fingerprint1", createdDate.minusDays(2), kbTenantId);
+        dao.addResponse(kbAccountId, kbInvoiceId1, ImmutableMap.of(), taxResult, null, "fingerprint1", createdDate, kbTenantId);
+        dao.addResponse(kbAccountId, kbInvoiceId2, ImmutableMap.of(), taxResult, null, "fingerprint1", createdDate, kbTenantId);
+        dao.addResponse(kbAccountId, UUID.randomUUID(), ImmutableMap.of(), taxResult, null, "fingerprint2", createdDate, kbTenantId);
+        // Other account
+        dao.addResponse(UUID.randomUUID(), UUID.randomUUID(), ImmutableMap.of(), taxResult, null, "fingerprint3", createdDate, kbTenantId);
+
+        final Map<String, List<VertexResponsesRecord>> responses = dao.getSuccessfulResponsesByFingerprint(kbAccountId,
+                                                                                                           ImmutableList.of("fingerprint1", "fingerprint3"),
+                                                                                                           createdDate.minusDays(1),
+                                                                                                           false,
+                                                                                                           kbTenantId);
+        Assert.assertEquals(responses.keySet(), ImmutableSet.of("fingerprint1"));
+        // Most recent first
+        Assert.assertEquals(responses.get("fingerprint1").size(), 2);
+        Assert.assertEquals(responses.get("fingerprint1").get(0).getKbInvoiceId(), kbInvoiceId2.toString());
+        Assert.assertEquals(responses.get("fingerprint1").get(1).getKbInvoiceId(), kbInvoiceId1.toString());
+        final List<OwnerResponseLineItemType> taxLines = dao.getTaxLines(responses.get("fingerprint1").get(0));
+        Assert.assertEquals(taxLines.size(), 1);
+        Assert.assertEquals(taxLines.get(0).getLineItemId(), lineItem.getLineItemId());
+        Assert.assertEquals(taxLines.get(0).getTotalTax(), 1.01);
+
+        // Too old
+        Assert.assertEquals(dao.getSuccessfulResponsesByFingerprint(kbAccountId, ImmutableList.of("fingerprint1"), createdDate.plusSeconds(1), false, kbTenantId).size(), 0);
+        // Whatever their age
+        Assert.assertEquals(dao.getSuccessfulResponsesByFingerprint(kbAccountId, ImmutableList.of("fingerprint1"), null, false, kbTenantId).get("fingerprint1").size(), 3);
+
+        // Responses of previews are only returned for previews
+        final UUID kbPreviewInvoiceId = UUID.randomUUID();
+        dao.addPreviewResponse(kbAccountId, kbPreviewInvoiceId, ImmutableMap.of(), taxResult, "fingerprint1", createdDate.plusSeconds(1), kbTenantId);
+        Assert.assertEquals(dao.getSuccessfulResponsesByFingerprint(kbAccountId, ImmutableList.of("fingerprint1"), null, false, kbTenantId).get("fingerprint1").size(), 3);
+        final List<VertexResponsesRecord> previewResponses = dao.getSuccessfulResponsesByFingerprint(kbAccountId, ImmutableList.of("fingerprint1"), null, true, kbTenantId).get("fingerprint1");
+        Assert.assertEquals(previewResponses.size(), 4);
+        Assert.assertEquals(previewResponses.get(0).getKbInvoiceId(), kbPreviewInvoiceId.toString());
+        Assert.assertTrue(VertexDao.isPreviewResponse(previewResponses.get(0)));
+        Assert.assertFalse(VertexDao.isPreviewResponse(previewResponses.get(1)));
+        Assert.assertEquals(dao.getSuccessfulResponses(kbPreviewInvoiceId, kbTenantId).size(), 0);
+    }
+
+    @Test(groups = "slow")
+    public void testAddReplayedResponse() throws Exception {
+        final UUID kbAccountId = UUID.randomUUID();
+        final UUID kbTenantId = UUID.randomUUID();
+
+        final OwnerResponseLineItemType lineItem = new OwnerResponseLineItemType();
+        lineItem.setLineItemId(UUID.randomUUID().toString());
+        lineItem.setTotalTax(1.01);
+        final ApiSuccessResponseTransactionResponseType taxResult = new ApiSuccessResponseTransactionResponseType();
+        final ApiSuccessResponseTransactionResponseTypeData data = new ApiSuccessResponseTransactionResponseTypeData();
+        data.setTotalTax(1.01);
+        data.setLineItems(ImmutableList.of(lineItem));
+        taxResult.setData(data);
+
+        dao.addResponse(kbAccountId, UUID.randomUUID(), ImmutableMap.of(), taxResult, "doc1", "fingerprint1", new DateTime(DateTimeZone.UTC), kbTenantId);
+        final VertexResponsesRecord storedResponse = dao.getSuccessfulResponsesByFingerprint(kbAccountId, ImmutableList.of("fingerprint1"), null, false, kbTenantId).get("fingerprint1").get(0);
+
+        final UUID kbInvoiceId = UUID.randomUUID();
+        final UUID kbInvoiceItemId = UUID.randomUUID();
+        dao.addReplayedResponse(kbInvoiceId, ImmutableMap.of(kbInvoiceItemId, ImmutableList.of()), storedResponse.getRecordId(), null, new DateTime(DateTimeZone.UTC), kbTenantId);
+        dao.addReplayedResponse(kbInvoiceId, ImmutableMap.of(kbInvoiceItemId, ImmutableList.of()), storedResponse.getRecordId(), "doc2", new DateTime(DateTimeZone.UTC), kbTenantId);
+
+        final List<VertexResponsesRecord> responses = dao.getSuccessfulResponses(kbInvoiceId, kbTenantId);
+        Assert.assertEquals(responses.size(), 2);
+        Assert.assertEquals(responses.get(0).getKbAccountId(), kbAccountId.toString());
+        Assert.assertEquals(responses.get(0).getDocCode(), "doc1");
+        Assert.assertEquals(responses.get(1).getDocCode(), "doc2");
+        Assert.assertEquals(responses.get(0).getRequestFingerprint(), "fingerprint1");
+        Assert.assertEquals(responses.get(0).getTotalTax().doubleValue(), 1.01, 0.001);
+        Assert.assertEquals(dao.getTaxedItemsWithAdjustments(responses).keySet(), ImmutableSet.of(kbInvoiceItemId));
+        final List<OwnerResponseLineItemType> taxLines = dao.getTaxLines(responses.get(0));
+        Assert.assertEquals(taxLines.size(), 1);
+        Assert.assertEquals(taxLines.get(0).getLineItemId(), lineItem.getLineItemId());
+    }
+
+    @Test(groups = "slow")
+    public void testReadResponsesForMultipleInvoices() throws Exception {
+        final Account account = TestUtils.buildAccount(Currency.USD, "US");
+        final Invoice invoice1 = TestUtils.buildInvoice(account);
+        final Invoice invoice2 = TestUtils.buildInvoice(account);
+        final UUID kbTenantId = UUID.randomUUID();
+
+        final InvoiceItem taxableItem1 = TestUtils.buildInvoiceItem(invoice1, InvoiceItemType.RECURRING, BigDecimal.TEN, null);
+        final InvoiceItem taxableItem2 = TestUtils.buildInvoiceItem(invoice2, InvoiceItemType.RECURRING, BigDecimal.TEN, null);
+
+        final ApiSuccessResponseTransactionResponseType taxResult = new ApiSuccessResponseTransactionResponseType();
+        final ApiSuccessResponseTransactionResponseTypeData data = new ApiSuccessResponseTransactionResponseTypeData();
+        data.setTotal(13d);
+        taxResult.setData(data);
+
+        dao.addResponse(account.getId(), invoice1.getId(), ImmutableMap.of(taxableItem1.getId(), ImmutableList.of()), taxResult, new DateTime(DateTimeZone.UTC), kbTenantId);
+        dao.addResponse(account.getId(), invoice2.getId(), ImmutableMap.of(taxableItem2.getId(), ImmutableList.of()), taxResult, new DateTime(DateTimeZone.UTC), kbTenantId);
+        dao.addResponse(account.getId(), invoice2.getId(), ImmutableMap.of(taxableItem2.getId(), ImmutableList.of()), taxResult, new DateTime(DateTimeZone.UTC), kbTenantId);
+        // Error
+        dao.addResponse(account.getId(), invoice2.getId(), ImmutableMap.of(), "VertexErrors response", new DateTime(DateTimeZone.UTC), kbTenantId);
+        // Other tenant
+        dao.addResponse(account.getId(), invoice1.getId(), ImmutableMap.of(), taxResult, new DateTime(DateTimeZone.UTC), UUID.randomUUID());
+
+        final List<UUID> invoiceIds = ImmutableList.of(invoice1.getId(), invoice2.getId(), UUID.randomUUID());
+        final Map<UUID, List<VertexResponsesRecord>> responses = dao.getSuccessfulResponses(invoiceIds, kbTenantId);
+        Assert.assertEquals(responses.size(), 2);
+        Assert.assertEquals(responses.get(invoice1.getId()).size(), 1);
+        Assert.assertEquals(responses.get(invoice2.getId()).size(), 2);
+        Assert.assertEquals(responses.get(invoice2.getId()).get(0).getTotalAmount().doubleValue(), 13d);
+
+        final Map<UUID, List<VertexResponsesRecord>> summaries = dao.getSuccessfulResponseSummaries(invoiceIds, kbTenantId);
+        Assert.assertEquals(summaries.size(), 2);
+        final VertexResponsesRecord summary = summaries.get(invoice2.getId()).get(0);
+        Assert.assertEquals(summary.getKbInvoiceId(), invoice2.getId().toString());
+        Assert.assertNull(summary.getTotalAmount());
+        Assert.assertNull(summary.getTaxLines());
+        Assert.assertTrue(dao.getTaxedItemsWithAdjustments(summaries.get(invoice2.getId())).containsKey(taxableItem2.getId()));
+
+        Assert.assertTrue(dao.getSuccessfulResponseSummaries(ImmutableList.of(), kbTenantId).isEmpty());
+    }
+
+    @Test(groups = "slow")
+    public void testCreateReadTaxAreas() throws Exception {
+        final UUID kbTenantId = UUID.randomUUID();
+        final DateTime addedDate = new DateTime(2023, 3, 1, 10, 0, DateTimeZone.UTC);
+
+        dao.addTaxArea("hash1", "1 MAIN STREET|", "50522990", addedDate, kbTenantId);
+        dao.addTaxArea("hash2", "2 MAIN STREET|", "50522990", addedDate, kbTenantId);
+        dao.addTaxArea("hash3", "3 MAIN STREET|", "50522991", addedDate, kbTenantId);
+        // Resolved again
+        dao.addTaxArea("hash3", "3 MAIN STREET|", "50522992", addedDate, kbTenantId);
+        // Other tenant
+        dao.addTaxArea("hash1", "1 MAIN STREET|", "50522993", addedDate, UUID.randomUUID());
+
+        Assert.assertEquals(dao.getTaxArea("hash1", kbTenantId).getTaxAreaId(), "50522990");
+        Assert.assertEquals(dao.getTaxArea("hash3", kbTenantId).getTaxAreaId(), "50522992");
+        Assert.assertNull(dao.getTaxArea("hash4", kbTenantId));
+        Assert.assertTrue(dao.getTaxAreaTenants().contains(kbTenantId));
+
+        dao.touchTaxAreas("50522992", addedDate.plusDays(1), kbTenantId);
+        final Map<String, LocalDateTime> taxAreaIds = dao.getTaxAreaIds(kbTenantId);
+        Assert.assertEquals(taxAreaIds.size(), 2);
+        Assert.assertEquals(taxAreaIds.get("50522990").toLocalDate(), LocalDate.of(2023, 3, 1));
+        Assert.assertEquals(taxAreaIds.get("50522992").toLocalDate(), LocalDate.of(2023, 3, 2));
+
+        Assert.assertEquals(dao.deleteTaxAreas("50522990", kbTenantId), 2);
+        Assert.assertNull(dao.getTaxArea("hash1", kbTenantId));
+        Assert.assertEquals(dao.getTaxAreaIds(kbTenantId).size(), 1);
+    }
+
+    @Test(groups = "slow")
+    public void testAddTaxAreaConcurrently() throws Exception {
+        final UUID kbTenantId = UUID.randomUUID();
+        final DateTime addedDate = new DateTime(2023, 3, 1, 10, 0, DateTimeZone.UTC);
+
+        // Same address resolved by several nodes at once: some inserts hit the unique index
+        final int nbThreads = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<?>> futures = new ArrayList<>(nbThreads);
+            for (int i = 0; i < nbThreads; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    dao.addTaxArea("hash1", "1 MAIN STREET|", "50522990", addedDate, kbTenantId);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (final Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Single row, updated when resolved again
+        dao.addTaxArea("hash1", "1 MAIN STREET|", "50522991", addedDate.plusDays(1), kbTenantId);
+
+        Assert.assertEquals(dao.getTaxArea("hash1", kbTenantId).getTaxAreaId(), "50522991");
+        Assert.assertEquals(dao.getTaxAreaIds(kbTenantId).size(), 1);
+    }
+
+    @Test(groups = "slow")
+    public void testCreateReadTaxCodeMappings() throws Exception {
+        final UUID kbTenantId = UUID.randomUUID();
+        final DateTime addedDate = new DateTime(2023, 3, 1, 10, 0, DateTimeZone.UTC);
+
+        dao.addTaxCodeMapping("PRODUCT", "Standard", "SW050000", "standard", addedDate, kbTenantId);
+        dao.addTaxCodeMapping("PLAN", "standard-monthly", "SW054000", null, addedDate, kbTenantId);
+        // Updated
+        dao.addTaxCodeMapping("PRODUCT", "Standard", "SW052000", null, addedDate.plusDays(1), kbTenantId);
+        // Other tenant
+        dao.addTaxCodeMapping("PRODUCT", "Standard", "SW050000", "standard", addedDate, UUID.randomUUID());
+
+        final List<VertexTaxCodeMappingsRecord> mappings = dao.getTaxCodeMappings(kbTenantId);
+        Assert.assertEquals(mappings.size(), 2);
+        final VertexTaxCodeMappingsRecord productMapping = mappings.stream().filter(m -> "PRODUCT".equals(m.getCatalogType())).findFirst().get();
+        Assert.assertEquals(productMapping.getProductClass(), "SW052000");
+        Assert.assertNull(productMapping.getProductValue());
+
+        Assert.assertEquals(dao.deleteTaxCodeMapping("PLAN", "standard-monthly", kbTenantId), 1);
+        Assert.assertEquals(dao.deleteTaxCodeMapping("PLAN", "standard-monthly", kbTenantId), 0);
+        Assert.assertEquals(dao.getTaxCodeMappings(kbTenantId).size(), 1);
+    }
+
+    @Test(groups = "slow")
+    public void testOutbox() throws Exception {
+        final UUID kbTenantId = UUID.randomUUID();
+        final UUID kbInvoiceId = UUID.randomUUID();
+        final DateTime addedDate = new DateTime(2023, 3, 1, 10, 0, DateTimeZone.UTC);
+
+        dao.addOutboxEntries(kbInvoiceId, "DELETE_TRANSACTION", deletions("doc1", "doc2"), addedDate, addedDate, kbTenantId);
+        Assert.assertEquals(dao.getOutboxBacklog(kbTenantId), ImmutableMap.of("HELD", 0, "PENDING", 2, "FAILED", 0));
+        Assert.assertEquals(dao.getDueOutboxEntries(addedDate.minusSeconds(1), 100).size(), 0);
+
+        final List<VertexOutboxRecord> entries = dao.getDueOutboxEntries(addedDate, 100);
+        Assert.assertEquals(entries.size(), 2);
+        final VertexOutboxRecord entry1 = entries.get(0);
+        Assert.assertEquals(entry1.getDocCode(), "doc1");
+        Assert.assertEquals((int) entry1.getAttempts(), 0);
+
+        // Only one worker can claim it
+        Assert.assertTrue(dao.claimOutboxEntry(entry1.getRecordId(), 0, addedDate.plusMinutes(10), addedDate));
+        Assert.assertFalse(dao.claimOutboxEntry(entry1.getRecordId(), 0, addedDate.plusMinutes(10), addedDate));
+        Assert.assertEquals(dao.getDueOutboxEntries(addedDate, 100).size(), 1);
+
+        dao.rescheduleOutboxEntry(entry1.getRecordId(), addedDate.plusSeconds(10), "Service Unavailable", addedDate);
+        final VertexOutboxRecord retried = dao.getDueOutboxEntries(addedDate.plusSeconds(10), 100).get(1);
+        Assert.assertEquals(retried.getDocCode(), "doc1");
+        Assert.assertEquals((int) retried.getAttempts(), 1);
+        Assert.assertEquals(retried.getLastError(), "Service Unavailable");
+
+        dao.rescheduleOutboxEntry(entry1.getRecordId(), null, "Service Unavailable", addedDate);
+        dao.deleteOutboxEntry(entries.get(1).getRecordId());
+        Assert.assertEquals(dao.getOutboxBacklog(kbTenantId), ImmutableMap.of("HELD", 0, "PENDING", 0, "FAILED", 1));
+
+        // Voided again
+        dao.addOutboxEntries(kbInvoiceId, "DELETE_TRANSACTION", deletions("doc1"), addedDate, addedDate, kbTenantId);
+        Assert.assertEquals(dao.getOutboxBacklog(kbTenantId), ImmutableMap.of("HELD", 0, "PENDING", 1, "FAILED", 0));
+    }
+
+    @Test(groups = "slow")
+    public void testNodeLeases() throws Exception {
+        final String node1 = UUID.randomUUID().toString();
+        final String node2 = UUID.randomUUID().toString();
+        final DateTime utcNow = new DateTime(2023, 3, 1, 10, 0, DateTimeZone.UTC);
+
+        Assert.assertEquals(dao.renewNodeLease(node1, utcNow.plusSeconds(30), utcNow, 2), 1);
+        Assert.assertEquals(dao.renewNodeLease(node2, utcNow.plusSeconds(30), utcNow, 2), 2);
+        // Renewed, not added again
+        Assert.assertEquals(dao.renewNodeLease(node1, utcNow.plusSeconds(40), utcNow.plusSeconds(10), 2), 2);
+
+        // Node 2 stopped renewing its lease
+        Assert.assertEquals(dao.renewNodeLease(node1, utcNow.plusSeconds(70), utcNow.plusSeconds(40), 2), 1);
+
+        Assert.assertEquals(dao.renewNodeLease(node2, utcNow.plusSeconds(80), utcNow.plusSeconds(50), 2), 2);
+        dao.deleteNodeLease(node2);
+        Assert.assertEquals(dao.renewNodeLease(node1, utcNow.plusSeconds(90), utcNow.plusSeconds(60), 2), 1);
+    }
+
+    @Test(groups = "slow")
+    public void testHeldOutboxEntries() throws Exception {
+        final UUID kbTenantId = UUID.randomUUID();
+        final UUID kbInvoiceId = UUID.randomUUID();
+        final DateTime addedDate = new DateTime(2023, 3, 1, 10, 0, DateTimeZone.UTC);
+
+        dao.addOutboxEntries(kbInvoiceId, "POST_TRANSACTION", ImmutableMap.of("doc1", "{}", "doc2", "{}"), null, addedDate, kbTenantId);
+        Assert.assertEquals(dao.getOutboxBacklog(kbTenantId), ImmutableMap.of("HELD", 2, "PENDING", 0, "FAILED", 0));
+        Assert.assertEquals(dao.getDueOutboxEntries(addedDate.plusYears(1), 100).size(), 0);
+
+        // Other operation
+        Assert.assertEquals(dao.releaseOutboxEntries(kbInvoiceId, "DELETE_TRANSACTION", addedDate, kbTenantId), 0);
+        Assert.assertEquals(dao.releaseOutboxEntries(kbInvoiceId, "POST_TRANSACTION", addedDate, kbTenantId), 2);
+        final List<VertexOutboxRecord> entries = dao.getDueOutboxEntries(addedDate, 100);
+        Assert.assertEquals(entries.size(), 2);
+        Assert.assertEquals(entries.get(0).getPayload(), "{}");
+
+        Assert.assertEquals(dao.deleteOutboxEntries(kbInvoiceId, "POST_TRANSACTION", kbTenantId).size(), 2);
+        Assert.assertEquals(dao.getOutboxBacklog(kbTenantId), ImmutableMap.of("HELD", 0, "PENDING", 0, "FAILED", 0));
+    }
+
+    private static Map<String, String> deletions(final String... docCodes) {
+        final Map<String, String> payloads = new LinkedHashMap<>();
+        for (final String docCode : docCodes) {
+            payloads.put(docCode, null);
+        }
+        return payloads;
+    }
 }
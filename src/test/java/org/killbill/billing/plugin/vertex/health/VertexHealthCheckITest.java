@@ -31,7 +31,7 @@ public class VertexHealthCheckITest extends VertexRemoteTestBase {
 
     @Test(groups = "integration")
     public void getHealthStatus_ReturnsHealthy_WhenVertexConfigured() {
-        VertexApiConfigurationHandler handler = new VertexApiConfigurationHandler(PLUGIN_NAME, null);
+        VertexApiConfigurationHandler handler = new VertexApiConfigurationHandler(PLUGIN_NAME, null, httpTransport);
         handler.setDefaultConfigurable(vertexApiClient);
 
         VertexHealthcheck vertexHealthcheck = new VertexHealthcheck(handler);
@@ -24,6 +24,7 @@ import org.killbill.billing.plugin.vertex.VertexApiClient;
 import org.killbill.billing.plugin.vertex.VertexApiConfigurationHandler;
 import org.killbill.billing.plugin.vertex.gen.ApiException;
 import org.killbill.billing.plugin.vertex.gen.client.model.AddressLookupRequestType;
+import org.killbill.billing.plugin.vertex.http.CircuitBreaker.State;
 import org.killbill.billing.tenant.api.Tenant;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
@@ -33,9 +34,12 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableMap;
+
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
@@ -108,6 +112,24 @@ public class VertexHealthcheckTest {
         verify(vertexApiConfigurationHandler).getConfigurable(any(UUID.class));
     }
 
+    @Test(groups = "fast")
+    public void testHealthCheckFailedWhenCircuitBreakerIsOpen() throws ApiException {
+        //given
+        given(vertexApiConfigurationHandler.getConfigurable(any(UUID.class))).willReturn(vertexApiClient);
+        given(vertexApiClient.getCircuitBreakerStates()).willReturn(ImmutableMap.of(VertexApiClient.CALCULATE_TAXES, State.OPEN,
+                                                                                    VertexApiClient.LOOK_UP_TAX_AREA, State.CLOSED));
+
+        //when
+        HealthStatus status = vertexHealthcheck.getHealthStatus(tenant, null);
+
+        //then Vertex isn't called
+        assertFalse(status.isHealthy());
+        assertEquals(status.getDetails().get("message"), "circuit breaker open");
+        assertEquals(status.getDetails().get("circuitBreaker." + VertexApiClient.CALCULATE_TAXES), "OPEN");
+        assertEquals(status.getDetails().get("circuitBreaker." + VertexApiClient.LOOK_UP_TAX_AREA), "CLOSED");
+        verify(vertexApiClient, never()).lookUpTaxAreaByAddress(any(AddressLookupRequestType.class));
+    }
+
     @Test(groups = "fast")
     public void testHealthStatusIsHealthyWhenTenantIsNull() {
         //when
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.plugin.vertex.gen.ApiException;
+import org.killbill.billing.plugin.vertex.http.AdaptiveConcurrencyLimiter.Lane;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+    private final AtomicLong nanos = new AtomicLong();
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+    };
+
+    private List<CompletableFuture<Integer>> inFlight;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        nanos.set(0);
+        inFlight = new ArrayList<>();
+    }
+
+    @Test(groups = "fast")
+    public void testRequestsAboveLimitAreQueued() {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("vertex", 2, 1, 2, 200, 30000, 50, ticker);
+        final List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            results.add(submit(limiter));
+        }
+        assertEquals(inFlight.size(), 2);
+        assertEquals(limiter.getInFlightRequests(), 2);
+        assertEquals(limiter.getQueuedRequests(), 1);
+
+        // Completing a request starts the queued one
+        inFlight.get(0).complete(0);
+        assertEquals(results.get(0).join(), (Integer) 0);
+        assertEquals(inFlight.size(), 3);
+        assertEquals(limiter.getQueuedRequests(), 0);
+
+        inFlight.get(1).complete(1);
+        inFlight.get(2).complete(2);
+        assertEquals(results.get(2).join(), (Integer) 2);
+        assertEquals(limiter.getInFlightRequests(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testQueuedRequestsFailingImmediatelyDontNest() {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("vertex", 1, 1, 1, 200, 30000, 50, ticker);
+        final CompletableFuture<Integer> first = submit(limiter);
+        // E.g. rejected right away by the circuit breaker
+        final List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            results.add(limiter.submit(() -> CompletableFuture.failedFuture(new CircuitBreakerOpenException("calculateTaxes"))));
+        }
+        assertEquals(limiter.getQueuedRequests(), 20000);
+
+        // Started one after the other, not from each other's completion
+        inFlight.get(0).complete(0);
+        assertEquals(first.join(), (Integer) 0);
+        for (final CompletableFuture<Integer> result : results) {
+            assertTrue(result.isCompletedExceptionally());
+        }
+        assertEquals(limiter.getInFlightRequests(), 0);
+        assertEquals(limiter.getQueuedRequests(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testLimitGrowsWhileUsed() {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("vertex", 4, 1, 5, 200, 30000, 50, ticker);
+        // Not used: doesn't grow
+        for (int i = 0; i < 20; i++) {
+            submit(limiter);
+            complete(0);
+        }
+        assertEquals(limiter.getLimit(), 4);
+
+        // Fully used: about +1 every limit calls
+        for (int i = 0; i < 2; i++) {
+            submitAndComplete(limiter, 4);
+        }
+        assertEquals(limiter.getLimit(), 5);
+
+        // Capped
+        for (int i = 0; i < 10; i++) {
+            submitAndComplete(limiter, 5);
+        }
+        assertEquals(limiter.getLimit(), 5);
+    }
+
+    @Test(groups = "fast")
+    public void testOverloadDecreasesLimitOncePerRoundTrip() {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("vertex", 10, 5, 20, 200, 30000, 50, ticker);
+        nanos.addAndGet(1);
+        for (int i = 0; i < 10; i++) {
+            submit(limiter);
+        }
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        inFlight.get(0).completeExceptionally(new ApiException(429, "Too Many Requests"));
+        inFlight.get(1).completeExceptionally(new ApiException(new IOException("Read timed out")));
+        for (int i = 2; i < 10; i++) {
+            inFlight.get(i).completeExceptionally(new ApiException(503, "Service Unavailable"));
+        }
+        assertEquals(limiter.getLimit(), 9);
+
+        // Started after the decrease
+        nanos.addAndGet(1);
+        submit(limiter);
+        inFlight.get(10).completeExceptionally(new ApiException(504, "Gateway Timeout"));
+        assertEquals(limiter.getLimit(), 8);
+
+        // Bounded by the minimum limit
+        for (int i = 0; i < 10; i++) {
+            nanos.addAndGet(1);
+            submit(limiter);
+            inFlight.get(inFlight.size() - 1).completeExceptionally(new ApiException(503, "Service Unavailable"));
+        }
+        assertEquals(limiter.getLimit(), 5);
+    }
+
+    @Test(groups = "fast")
+    public void testClientErrorsDontChangeTheLimit() {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("vertex", 2, 1, 10, 200, 30000, 50, ticker);
+        for (int i = 0; i < 10; i++) {
+            nanos.addAndGet(1);
+            submit(limiter);
+            submit(limiter);
+            inFlight.get(inFlight.size() - 2).completeExceptionally(new ApiException(400, "Bad Request"));
+            inFlight.get(inFlight.size() - 1).completeExceptionally(new CircuitBreakerOpenException("calculateTaxes"));
+        }
+        assertEquals(limiter.getLimit(), 2);
+        assertEquals(limiter.getInFlightRequests(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testLatencyIncreaseDecreasesLimit() {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("vertex", 10, 1, 10, 200, 30000, 50, ticker);
+        for (int i = 0; i < 20; i++) {
+            nanos.addAndGet(1);
+            submit(limiter);
+            nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+            complete(0);
+        }
+        assertEquals(limiter.getLimit(), 10);
+
+        // Vertex slows down: 10x the usual latency
+        for (int i = 0; i < 5; i++) {
+            nanos.addAndGet(1);
+            submit(limiter);
+            nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+            complete(0);
+        }
+        assertTrue(limiter.getLimit() < 10);
+    }
+
+    @Test(groups = "fast")
+    public void testQueuedRequestsExpire() {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("vertex", 1, 1, 1, 200, 10, 50, ticker);
+        submit(limiter);
+        final CompletableFuture<Integer> queued = submit(limiter);
+        try {
+            queued.join();
+            fail();
+        } catch (final CompletionException e) {
+            assertTrue(e.getCause() instanceof ConcurrencyLimitExceededException);
+        }
+        assertEquals(limiter.getQueuedRequests(), 0);
+
+        // Never sent
+        complete(0);
+        assertEquals(inFlight.size(), 1);
+        assertEquals(limiter.getInFlightRequests(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testDryRunsHaveTheirOwnBudget() {
+        // Dry runs may use half of the limit
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("vertex", 4, 1, 4, 200, 30000, 50, ticker);
+        for (int i = 0; i < 3; i++) {
+            submit(limiter, Lane.DRY_RUN);
+        }
+        assertEquals(inFlight.size(), 2);
+        assertEquals(limiter.getQueuedRequests(), 1);
+
+        // Commits can use the rest
+        submit(limiter, Lane.COMMIT);
+        submit(limiter, Lane.COMMIT);
+        assertEquals(inFlight.size(), 4);
+
+        // A dry run completes: the queued one starts
+        complete(0);
+        assertEquals(inFlight.size(), 5);
+        assertEquals(limiter.getQueuedRequests(), 0);
+        assertEquals(limiter.getInFlightRequests(), 4);
+    }
+
+    @Test(groups = "fast")
+    public void testDryRunsAreShedWhenCommitsWait() {
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("vertex", 1, 1, 1, 200, 30000, 100, ticker);
+        submit(limiter, Lane.COMMIT);
+        final CompletableFuture<Integer> queuedDryRun = submit(limiter, Lane.DRY_RUN);
+        assertEquals(limiter.getQueuedRequests(), 1);
+
+        // The queued dry run gives way to the commit
+        final CompletableFuture<Integer> queuedCommit = submit(limiter, Lane.COMMIT);
+        assertShed(queuedDryRun);
+        // As do new dry runs, while commits are waiting
+        assertShed(submit(limiter, Lane.DRY_RUN));
+        assertEquals(limiter.getShedDryRuns(), 2);
+        assertEquals(limiter.getQueuedRequests(), 1);
+
+        complete(0);
+        assertEquals(inFlight.size(), 2);
+        complete(1);
+        assertEquals(queuedCommit.join(), (Integer) 1);
+
+        // Back to normal
+        submit(limiter, Lane.DRY_RUN);
+        assertEquals(inFlight.size(), 3);
+    }
+
+    private static void assertShed(final CompletableFuture<Integer> result) {
+        try {
+            result.join();
+            fail();
+        } catch (final CompletionException e) {
+            assertTrue(e.getCause() instanceof ConcurrencyLimitExceededException);
+            assertTrue(e.getCause().getMessage().startsWith("Dry run shed"));
+        }
+    }
+
+    private CompletableFuture<Integer> submit(final AdaptiveConcurrencyLimiter limiter) {
+        return submit(limiter, Lane.COMMIT);
+    }
+
+    private CompletableFuture<Integer> submit(final AdaptiveConcurrencyLimiter limiter, final Lane lane) {
+        return limiter.submit(lane, () -> {
+            final CompletableFuture<Integer> request = new CompletableFuture<>();
+            inFlight.add(request);
+            return request;
+        });
+    }
+
+    private void submitAndComplete(final AdaptiveConcurrencyLimiter limiter, final int nbRequests) {
+        for (int i = 0; i < nbRequests; i++) {
+            submit(limiter);
+        }
+        for (int i = 0; i < nbRequests; i++) {
+            complete(0);
+        }
+    }
+
+    // Completes the first request still in flight
+    private void complete(final int value) {
+        for (final CompletableFuture<Integer> request : inFlight) {
+            if (!request.isDone()) {
+                request.complete(value);
+                return;
+            }
+        }
+        fail("No request in flight");
+    }
+}
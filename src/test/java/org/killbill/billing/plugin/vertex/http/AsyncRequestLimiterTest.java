@@ -0,0 +1,200 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class AsyncRequestLimiterTest {
+
+    @Test(groups = "fast")
+    public void testRequestsAboveLimitAreQueued() {
+        final AsyncRequestLimiter limiter = new AsyncRequestLimiter(2);
+        final List<CompletableFuture<Integer>> inFlight = new ArrayList<>();
+        final List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            results.add(limiter.submit(() -> {
+                final CompletableFuture<Integer> request = new CompletableFuture<>();
+                inFlight.add(request);
+                return request;
+            }));
+        }
+
+        assertEquals(inFlight.size(), 2);
+        assertEquals(limiter.getInFlightRequests(), 2);
+        assertEquals(limiter.getQueuedRequests(), 3);
+
+        // Completing a request starts the next queued one
+        inFlight.get(0).complete(0);
+        assertTrue(results.get(0).isDone());
+        assertEquals(inFlight.size(), 3);
+        assertEquals(limiter.getQueuedRequests(), 2);
+
+        inFlight.get(1).completeExceptionally(new RuntimeException("boom"));
+        assertTrue(results.get(1).isCompletedExceptionally());
+        assertEquals(inFlight.size(), 4);
+
+        inFlight.get(2).complete(2);
+        assertEquals(inFlight.size(), 5);
+        inFlight.get(3).complete(3);
+        inFlight.get(4).complete(4);
+        for (int i = 2; i < 5; i++) {
+            assertEquals(results.get(i).join(), (Integer) i);
+        }
+        assertEquals(limiter.getInFlightRequests(), 0);
+        assertEquals(limiter.getQueuedRequests(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testSupplierFailureReleasesPermit() {
+        final AsyncRequestLimiter limiter = new AsyncRequestLimiter(1);
+        final CompletableFuture<Object> result = limiter.submit(() -> {
+            throw new IllegalStateException("boom");
+        });
+
+        assertTrue(result.isCompletedExceptionally());
+        assertEquals(limiter.getInFlightRequests(), 0);
+        assertFalse(limiter.submit(() -> CompletableFuture.completedFuture(1)).isCompletedExceptionally());
+    }
+
+    @Test(groups = "fast")
+    public void testQueuedRequestsCompletingImmediatelyDontNest() {
+        final AsyncRequestLimiter limiter = new AsyncRequestLimiter(1);
+        final CompletableFuture<Integer> first = new CompletableFuture<>();
+        limiter.submit(() -> first);
+        // E.g. rejected right away by the circuit breaker
+        final List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            results.add(limiter.submit(() -> CompletableFuture.failedFuture(new IllegalStateException("boom"))));
+        }
+        assertEquals(limiter.getQueuedRequests(), 50000);
+
+        // Started one after the other, not from each other's completion
+        first.complete(0);
+        for (final CompletableFuture<Integer> result : results) {
+            assertTrue(result.isCompletedExceptionally());
+        }
+        assertEquals(limiter.getInFlightRequests(), 0);
+        assertEquals(limiter.getQueuedRequests(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testFlowsAreServedByWeight() {
+        final AsyncRequestLimiter limiter = new AsyncRequestLimiter(1);
+        final AsyncRequestLimiter.Flow bigTenant = limiter.newFlow(2);
+        final AsyncRequestLimiter.Flow smallTenant = limiter.newFlow(1);
+        final List<CompletableFuture<String>> inFlight = new ArrayList<>();
+        final List<String> started = new ArrayList<>();
+
+        // Occupies the only slot
+        submit(limiter, bigTenant, "big0", started, inFlight);
+        // Billing run of the big tenant
+        for (int i = 1; i <= 6; i++) {
+            submit(limiter, bigTenant, "big" + i, started, inFlight);
+        }
+        submit(limiter, smallTenant, "small1", started, inFlight);
+        submit(limiter, smallTenant, "small2", started, inFlight);
+        assertEquals(limiter.getQueuedRequests(), 8);
+        assertEquals(bigTenant.getQueuedRequests(), 6);
+        assertEquals(smallTenant.getQueuedRequests(), 2);
+
+        for (int i = 0; i < 9; i++) {
+            inFlight.get(i).complete(started.get(i));
+        }
+        // The small tenant doesn't wait for the whole billing run, the big tenant gets twice the slots
+        assertEquals(started, List.of("big0", "big1", "small1", "big2", "big3", "small2", "big4", "big5", "big6"));
+        assertEquals(limiter.getQueuedRequests(), 0);
+        assertEquals(smallTenant.getQueuedRequests(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testIdleFlowDoesNotAccumulateCredit() {
+        final AsyncRequestLimiter limiter = new AsyncRequestLimiter(1);
+        final AsyncRequestLimiter.Flow flow1 = limiter.newFlow(1);
+        final AsyncRequestLimiter.Flow flow2 = limiter.newFlow(1);
+        final List<CompletableFuture<String>> inFlight = new ArrayList<>();
+        final List<String> started = new ArrayList<>();
+
+        submit(limiter, flow1, "a0", started, inFlight);
+        for (int i = 1; i <= 4; i++) {
+            submit(limiter, flow1, "a" + i, started, inFlight);
+        }
+        inFlight.get(0).complete("a0");
+        inFlight.get(1).complete("a1");
+        // Flow 2 was idle until now: it is not owed the slots used by flow 1
+        submit(limiter, flow2, "b1", started, inFlight);
+        submit(limiter, flow2, "b2", started, inFlight);
+        for (int i = 2; i < 7; i++) {
+            inFlight.get(i).complete(started.get(i));
+        }
+        assertEquals(started, List.of("a0", "a1", "a2", "b1", "a3", "b2", "a4"));
+    }
+
+    @Test(groups = "fast")
+    public void testLimitCanBeChanged() {
+        final AsyncRequestLimiter limiter = new AsyncRequestLimiter(2);
+        final AsyncRequestLimiter.Flow flow = limiter.newFlow(1);
+        final List<String> started = new ArrayList<>();
+        final List<CompletableFuture<String>> inFlight = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            submit(limiter, flow, "r" + i, started, inFlight);
+        }
+        assertEquals(started.size(), 2);
+
+        // Queued requests start right away
+        limiter.setMaxInFlightRequests(3);
+        assertEquals(started.size(), 3);
+        assertEquals(limiter.getInFlightRequests(), 3);
+
+        // Requests in flight complete, but their slots aren't handed over until under the new limit
+        limiter.setMaxInFlightRequests(1);
+        inFlight.get(0).complete("r0");
+        inFlight.get(1).complete("r1");
+        assertEquals(started.size(), 3);
+        assertEquals(limiter.getInFlightRequests(), 1);
+        inFlight.get(2).complete("r2");
+        assertEquals(started, List.of("r0", "r1", "r2", "r3"));
+        assertEquals(limiter.getInFlightRequests(), 1);
+        assertEquals(limiter.getQueuedRequests(), 1);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidLimit() {
+        new AsyncRequestLimiter(0);
+    }
+
+    private static void submit(final AsyncRequestLimiter limiter,
+                               final AsyncRequestLimiter.Flow flow,
+                               final String name,
+                               final List<String> started,
+                               final List<CompletableFuture<String>> inFlight) {
+        limiter.submit(flow, () -> {
+            final CompletableFuture<String> request = new CompletableFuture<>();
+            started.add(name);
+            inFlight.add(request);
+            return request;
+        });
+    }
+}
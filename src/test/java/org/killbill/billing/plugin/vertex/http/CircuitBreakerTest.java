@@ -0,0 +1,195 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.http;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.plugin.vertex.gen.ApiException;
+import org.killbill.billing.plugin.vertex.http.CircuitBreaker.State;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class CircuitBreakerTest {
+
+    private final AtomicLong nanos = new AtomicLong();
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+    };
+
+    private AtomicInteger nbCalls;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        nanos.set(0);
+        nbCalls = new AtomicInteger();
+    }
+
+    @Test(groups = "fast")
+    public void testOpensOnFailureRate() {
+        // Window of 4 calls, 50% of failures
+        final CircuitBreaker circuitBreaker = new CircuitBreaker("calculateTaxes", 4, 4, 50, 1000, 0, 30000, 2, ticker);
+        succeed(circuitBreaker);
+        failWith(circuitBreaker, 500);
+        succeed(circuitBreaker);
+        // Not enough calls yet
+        assertEquals(circuitBreaker.getState(), State.CLOSED);
+
+        assertTrue(circuitBreaker.isCallPermitted());
+        failWith(circuitBreaker, 503);
+        assertEquals(circuitBreaker.getState(), State.OPEN);
+        assertFalse(circuitBreaker.isCallPermitted());
+
+        // Rejected without being sent
+        final CompletableFuture<Integer> rejected = call(circuitBreaker, CompletableFuture.completedFuture(1));
+        assertEquals(nbCalls.get(), 4);
+        assertOpenException(rejected);
+    }
+
+    @Test(groups = "fast")
+    public void testOldCallsLeaveTheWindow() {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker("calculateTaxes", 4, 4, 50, 1000, 0, 30000, 2, ticker);
+        failWith(circuitBreaker, 500);
+        for (int i = 0; i < 6; i++) {
+            succeed(circuitBreaker);
+        }
+        // Only 1 failure out of the last 4 calls once the first failure is evicted
+        failWith(circuitBreaker, 500);
+        assertEquals(circuitBreaker.getState(), State.CLOSED);
+    }
+
+    @Test(groups = "fast")
+    public void testClientErrorsAreNotFailures() {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker("calculateTaxes", 4, 4, 50, 1000, 0, 30000, 2, ticker);
+        for (int i = 0; i < 4; i++) {
+            failWith(circuitBreaker, 400);
+        }
+        assertEquals(circuitBreaker.getState(), State.CLOSED);
+
+        // Unlike throttling
+        for (int i = 0; i < 4; i++) {
+            failWith(circuitBreaker, 429);
+        }
+        assertEquals(circuitBreaker.getState(), State.OPEN);
+    }
+
+    @Test(groups = "fast")
+    public void testOpensOnSlowCallRate() {
+        // Calls above 1s are slow, 50% of slow calls
+        final CircuitBreaker circuitBreaker = new CircuitBreaker("calculateTaxes", 2, 2, 0, 1000, 50, 30000, 2, ticker);
+        succeed(circuitBreaker);
+        final CompletableFuture<Integer> slowCall = new CompletableFuture<>();
+        call(circuitBreaker, slowCall);
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        slowCall.complete(1);
+
+        assertEquals(circuitBreaker.getState(), State.OPEN);
+    }
+
+    @Test(groups = "fast")
+    public void testHalfOpenProbes() {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker("calculateTaxes", 2, 2, 50, 1000, 0, 30000, 2, ticker);
+        failWith(circuitBreaker, 500);
+        failWith(circuitBreaker, 500);
+        assertEquals(circuitBreaker.getState(), State.OPEN);
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        assertEquals(circuitBreaker.getState(), State.HALF_OPEN);
+
+        // Only 2 probes at a time
+        final CompletableFuture<Integer> probe1 = new CompletableFuture<>();
+        final CompletableFuture<Integer> probe2 = new CompletableFuture<>();
+        assertTrue(circuitBreaker.isCallPermitted());
+        call(circuitBreaker, probe1);
+        call(circuitBreaker, probe2);
+        assertFalse(circuitBreaker.isCallPermitted());
+        assertOpenException(call(circuitBreaker, CompletableFuture.completedFuture(1)));
+        assertEquals(nbCalls.get(), 4);
+
+        // A failed probe opens the breaker again
+        probe1.completeExceptionally(new ApiException(500, "Internal Server Error"));
+        assertEquals(circuitBreaker.getState(), State.OPEN);
+        // Ignored
+        probe2.complete(1);
+        assertEquals(circuitBreaker.getState(), State.OPEN);
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        succeed(circuitBreaker);
+        assertEquals(circuitBreaker.getState(), State.HALF_OPEN);
+        succeed(circuitBreaker);
+        assertEquals(circuitBreaker.getState(), State.CLOSED);
+
+        // With a fresh window
+        failWith(circuitBreaker, 500);
+        assertEquals(circuitBreaker.getState(), State.CLOSED);
+    }
+
+    @Test(groups = "fast")
+    public void testCallsStartedBeforeOpeningAreIgnored() {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker("calculateTaxes", 2, 2, 50, 1000, 0, 30000, 1, ticker);
+        final CompletableFuture<Integer> inFlight = new CompletableFuture<>();
+        call(circuitBreaker, inFlight);
+        failWith(circuitBreaker, 500);
+        failWith(circuitBreaker, 500);
+        assertEquals(circuitBreaker.getState(), State.OPEN);
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        assertEquals(circuitBreaker.getState(), State.HALF_OPEN);
+        // Not a probe
+        inFlight.complete(1);
+        assertEquals(circuitBreaker.getState(), State.HALF_OPEN);
+    }
+
+    private void succeed(final CircuitBreaker circuitBreaker) {
+        call(circuitBreaker, CompletableFuture.completedFuture(1)).join();
+    }
+
+    private void failWith(final CircuitBreaker circuitBreaker, final int code) {
+        final CompletableFuture<Integer> result = call(circuitBreaker, CompletableFuture.failedFuture(new ApiException(code, "Error " + code)));
+        assertTrue(result.isCompletedExceptionally());
+    }
+
+    private <T> CompletableFuture<T> call(final CircuitBreaker circuitBreaker, final CompletableFuture<T> response) {
+        return circuitBreaker.execute(() -> {
+            nbCalls.incrementAndGet();
+            return response;
+        });
+    }
+
+    private static void assertOpenException(final CompletableFuture<?> result) {
+        try {
+            result.join();
+            fail();
+        } catch (final CompletionException e) {
+            assertTrue(e.getCause() instanceof CircuitBreakerOpenException);
+        }
+    }
+}
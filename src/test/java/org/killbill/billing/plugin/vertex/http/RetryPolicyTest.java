@@ -0,0 +1,154 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.http;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.plugin.vertex.gen.ApiException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.google.common.base.Ticker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class RetryPolicyTest {
+
+    private final AtomicLong nanos = new AtomicLong();
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+    };
+
+    private AtomicInteger nbCalls;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        nanos.set(0);
+        nbCalls = new AtomicInteger();
+    }
+
+    @Test(groups = "fast")
+    public void testTransientFailuresAreRetried() {
+        final RetryPolicy retryPolicy = new RetryPolicy("calculateTaxes", 3, 1, 1, 30000, Runnable::run, ticker);
+        final CompletableFuture<Integer> result = call(retryPolicy, true,
+                                                       new ApiException(503, "Service Unavailable"),
+                                                       new ApiException(new IOException("Connection reset")),
+                                                       1);
+
+        assertEquals(result.join(), (Integer) 1);
+        assertEquals(nbCalls.get(), 3);
+        assertEquals(retryPolicy.getRetries(), 2);
+        assertEquals(retryPolicy.getRecovered(), 1);
+        assertEquals(retryPolicy.getExhausted(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testPermanentFailuresAreNotRetried() {
+        final RetryPolicy retryPolicy = new RetryPolicy("calculateTaxes", 3, 1, 1, 30000, Runnable::run, ticker);
+        assertFailedWith(call(retryPolicy, true, new ApiException(400, "Bad Request")), 400);
+        assertFailedWith(call(retryPolicy, true, new ApiException(500, "Internal Server Error")), 500);
+        // Request serialization error
+        assertFailedWith(call(retryPolicy, true, new ApiException(new JsonParseException(null, "Unexpected character"))), 0);
+        assertFailedWith(call(retryPolicy, true, new CircuitBreakerOpenException("calculateTaxes")), -1);
+
+        assertEquals(nbCalls.get(), 4);
+        assertEquals(retryPolicy.getRetries(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testUnsafeCallsAreNotRetried() {
+        final RetryPolicy retryPolicy = new RetryPolicy("calculateTaxes", 3, 1, 1, 30000, Runnable::run, ticker);
+        assertFailedWith(call(retryPolicy, false, new ApiException(503, "Service Unavailable"), 1), 503);
+
+        assertEquals(nbCalls.get(), 1);
+        assertEquals(retryPolicy.getRetries(), 0);
+        assertEquals(retryPolicy.getExhausted(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testMaxAttempts() {
+        final RetryPolicy retryPolicy = new RetryPolicy("calculateTaxes", 2, 1, 1, 30000, Runnable::run, ticker);
+        assertFailedWith(call(retryPolicy, true, new ApiException(429, "Too Many Requests"), new ApiException(429, "Too Many Requests"), 1), 429);
+
+        assertEquals(nbCalls.get(), 2);
+        assertEquals(retryPolicy.getRetries(), 1);
+        assertEquals(retryPolicy.getExhausted(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testDeadline() {
+        final RetryPolicy retryPolicy = new RetryPolicy("calculateTaxes", 5, 1, 1, 10000, Runnable::run, ticker);
+        final CompletableFuture<Integer> slowCall = new CompletableFuture<>();
+        final CompletableFuture<Integer> result = retryPolicy.execute(true, () -> {
+            nbCalls.incrementAndGet();
+            return slowCall;
+        });
+        // The call timed out after the deadline: no time left for a retry
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        slowCall.completeExceptionally(new ApiException(504, "Gateway Timeout"));
+
+        assertFailedWith(result, 504);
+        assertEquals(nbCalls.get(), 1);
+        assertEquals(retryPolicy.getExhausted(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testBackoffIsBounded() {
+        final RetryPolicy retryPolicy = new RetryPolicy("calculateTaxes", 10, 100, 1000, 30000, Runnable::run, ticker);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(retryPolicy.getBackoffMs(1) <= 100);
+            assertTrue(retryPolicy.getBackoffMs(3) <= 400);
+            assertTrue(retryPolicy.getBackoffMs(10) <= 1000);
+            assertTrue(retryPolicy.getBackoffMs(100) >= 0);
+        }
+    }
+
+    // Each outcome is either an exception, or the response
+    private CompletableFuture<Integer> call(final RetryPolicy retryPolicy, final boolean retrySafe, final Object... outcomes) {
+        final Queue<Object> remainingOutcomes = new ArrayDeque<>(Arrays.asList(outcomes));
+        return retryPolicy.execute(retrySafe, () -> {
+            nbCalls.incrementAndGet();
+            final Object outcome = remainingOutcomes.remove();
+            return outcome instanceof Throwable ? CompletableFuture.failedFuture((Throwable) outcome) : CompletableFuture.completedFuture((Integer) outcome);
+        });
+    }
+
+    // -1 for other exceptions
+    private static void assertFailedWith(final CompletableFuture<?> result, final int code) {
+        try {
+            result.join();
+            fail();
+        } catch (final CompletionException e) {
+            assertEquals(e.getCause() instanceof ApiException ? ((ApiException) e.getCause()).getCode() : -1, code);
+        }
+    }
+}
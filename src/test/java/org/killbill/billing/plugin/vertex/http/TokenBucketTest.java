@@ -0,0 +1,113 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.http;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TokenBucketTest {
+
+    private final AtomicLong nanos = new AtomicLong();
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+    };
+
+    private AtomicInteger nbCalls;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        nanos.set(0);
+        nbCalls = new AtomicInteger();
+    }
+
+    @Test(groups = "fast")
+    public void testRequestsWaitForTheirToken() {
+        final TokenBucket tokenBucket = new TokenBucket("vertex", 100, 2, 1000, Runnable::run, ticker);
+        // Burst
+        assertTrue(call(tokenBucket).isDone());
+        assertTrue(call(tokenBucket).isDone());
+        assertEquals(tokenBucket.getAvailableTokens(), 0);
+
+        // Sent once a token is available (10ms later)
+        final CompletableFuture<Integer> delayed = call(tokenBucket);
+        assertEquals(delayed.join(), (Integer) 1);
+        assertEquals(nbCalls.get(), 3);
+        assertEquals(tokenBucket.getRejectedRequests(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testRequestsAreRejectedRatherThanWaitingTooLong() {
+        final TokenBucket tokenBucket = new TokenBucket("vertex", 1, 1, 500, Runnable::run, ticker);
+        call(tokenBucket).join();
+
+        // The next token is 1s away
+        final CompletableFuture<Integer> rejected = call(tokenBucket);
+        try {
+            rejected.join();
+            fail();
+        } catch (final CompletionException e) {
+            assertTrue(e.getCause() instanceof RateLimitExceededException);
+        }
+        assertEquals(nbCalls.get(), 1);
+        assertEquals(tokenBucket.getRejectedRequests(), 1);
+
+        // Rejected requests don't take a token
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertFalse(call(tokenBucket).isCompletedExceptionally());
+    }
+
+    @Test(groups = "fast")
+    public void testRefill() {
+        final TokenBucket tokenBucket = new TokenBucket("vertex", 1, 5, 0, Runnable::run, ticker);
+        assertEquals(tokenBucket.getCapacity(), 5);
+        for (int i = 0; i < 5; i++) {
+            call(tokenBucket).join();
+        }
+        assertEquals(tokenBucket.getAvailableTokens(), 0);
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        assertEquals(tokenBucket.getAvailableTokens(), 2);
+
+        // Up to the capacity
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertEquals(tokenBucket.getAvailableTokens(), 5);
+    }
+
+    private CompletableFuture<Integer> call(final TokenBucket tokenBucket) {
+        return tokenBucket.execute(() -> {
+            nbCalls.incrementAndGet();
+            return CompletableFuture.completedFuture(1);
+        });
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.http;
+
+import java.util.Properties;
+
+import org.testng.annotations.Test;
+
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_HTTP_MAX_CONNECTIONS;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.DEFAULT_HTTP_MAX_CONNECTIONS_PER_ROUTE;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_HTTP_MAX_CONNECTIONS_PER_ROUTE_PROPERTY;
+import static org.killbill.billing.plugin.vertex.VertexConfigProperties.VERTEX_HTTP_MAX_CONNECTIONS_PROPERTY;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+
+public class VertexHttpTransportTest {
+
+    @Test(groups = "fast")
+    public void testDefaultPoolSizing() {
+        try (final VertexHttpTransport transport = new VertexHttpTransport(new Properties())) {
+            assertNotNull(transport.getHttpClient());
+            assertEquals(transport.getConnectionManager().getMaxTotal(), DEFAULT_HTTP_MAX_CONNECTIONS);
+            assertEquals(transport.getConnectionManager().getDefaultMaxPerRoute(), DEFAULT_HTTP_MAX_CONNECTIONS_PER_ROUTE);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testConfiguredPoolSizing() {
+        final Properties properties = new Properties();
+        properties.put(VERTEX_HTTP_MAX_CONNECTIONS_PROPERTY, "12");
+        properties.put(VERTEX_HTTP_MAX_CONNECTIONS_PER_ROUTE_PROPERTY, " 6 ");
+
+        try (final VertexHttpTransport transport = new VertexHttpTransport(properties)) {
+            assertEquals(transport.getConnectionManager().getMaxTotal(), 12);
+            assertEquals(transport.getConnectionManager().getDefaultMaxPerRoute(), 6);
+        }
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidPoolSizing() {
+        final Properties properties = new Properties();
+        properties.put(VERTEX_HTTP_MAX_CONNECTIONS_PROPERTY, "many");
+
+        new VertexHttpTransport(properties);
+    }
+}
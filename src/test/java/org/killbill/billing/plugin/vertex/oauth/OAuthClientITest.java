@@ -25,7 +25,7 @@ public class OAuthClientITest extends VertexRemoteTestBase {
 
     @Test(groups = "integration")
     public void test() {
-        OAuthClient client = new OAuthClient();
+        OAuthClient client = new OAuthClient(httpTransport.getHttpClient());
 
         String token = client.getToken(getUrl(), getClientId(), getClientSecret()).getAccessToken();
         Assert.assertNotNull(token);
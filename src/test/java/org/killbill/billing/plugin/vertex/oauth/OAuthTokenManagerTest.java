@@ -0,0 +1,157 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.oauth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mockito.Mockito;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Ticker;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+
+public class OAuthTokenManagerTest {
+
+    private static final String URL = "https://vertex.example.com";
+
+    private final AtomicLong nowNanos = new AtomicLong();
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nowNanos.get();
+        }
+    };
+
+    private OAuthClient oAuthClient;
+    private List<Runnable> backgroundTasks;
+    private OAuthTokenManager tokenManager;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() {
+        oAuthClient = Mockito.mock(OAuthClient.class);
+        backgroundTasks = new ArrayList<>();
+        tokenManager = new OAuthTokenManager(oAuthClient, URL, "clientId", "clientSecret", backgroundTasks::add, ticker);
+    }
+
+    @Test(groups = "fast")
+    public void testTokenIsCached() {
+        given(oAuthClient.getToken(URL, "clientId", "clientSecret")).willReturn(token("token-1", 1000));
+
+        assertEquals(tokenManager.getAccessToken(), "token-1");
+        nowNanos.addAndGet(TimeUnit.SECONDS.toNanos(100));
+        assertEquals(tokenManager.getAccessToken(), "token-1");
+
+        verify(oAuthClient, times(1)).getToken(anyString(), anyString(), anyString());
+        assertEquals(backgroundTasks.size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testProactiveRefreshInBackground() {
+        given(oAuthClient.getToken(URL, "clientId", "clientSecret")).willReturn(token("token-1", 1000), token("token-2", 1000));
+        assertEquals(tokenManager.getAccessToken(), "token-1");
+
+        // In the refresh window: the current token is still returned, a single refresh is scheduled
+        nowNanos.addAndGet(TimeUnit.SECONDS.toNanos(850));
+        assertEquals(tokenManager.getAccessToken(), "token-1");
+        assertEquals(tokenManager.getAccessToken(), "token-1");
+        assertEquals(backgroundTasks.size(), 1);
+
+        backgroundTasks.get(0).run();
+        assertEquals(tokenManager.getAccessToken(), "token-2");
+        verify(oAuthClient, times(2)).getToken(anyString(), anyString(), anyString());
+    }
+
+    @Test(groups = "fast")
+    public void testExpiredTokenIsRefreshedInline() {
+        given(oAuthClient.getToken(URL, "clientId", "clientSecret")).willReturn(token("token-1", 1000), token("token-2", 1000));
+        assertEquals(tokenManager.getAccessToken(), "token-1");
+
+        nowNanos.addAndGet(TimeUnit.SECONDS.toNanos(995));
+        assertEquals(tokenManager.getAccessToken(), "token-2");
+        assertEquals(backgroundTasks.size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testRefreshAfterUnauthorized() {
+        given(oAuthClient.getToken(URL, "clientId", "clientSecret")).willReturn(token("token-1", 1000), token("token-2", 1000));
+        assertEquals(tokenManager.getAccessToken(), "token-1");
+
+        assertEquals(tokenManager.refreshAfterUnauthorized("token-1"), "token-2");
+        // Stale rejection: token-1 was already replaced
+        assertEquals(tokenManager.refreshAfterUnauthorized("token-1"), "token-2");
+        verify(oAuthClient, times(2)).getToken(anyString(), anyString(), anyString());
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentCallersShareOneRequest() throws Exception {
+        final CountDownLatch tokenRequested = new CountDownLatch(1);
+        final CountDownLatch releaseToken = new CountDownLatch(1);
+        final AtomicInteger nbRequests = new AtomicInteger();
+        given(oAuthClient.getToken(URL, "clientId", "clientSecret")).willAnswer(invocation -> {
+            nbRequests.incrementAndGet();
+            tokenRequested.countDown();
+            releaseToken.await(10, TimeUnit.SECONDS);
+            return token("token-1", 1000);
+        });
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(tokenManager::getAccessToken));
+            }
+            tokenRequested.await(10, TimeUnit.SECONDS);
+            releaseToken.countDown();
+
+            for (final Future<String> future : futures) {
+                assertEquals(future.get(10, TimeUnit.SECONDS), "token-1");
+            }
+            assertEquals(nbRequests.get(), 1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast", expectedExceptions = RuntimeException.class, expectedExceptionsMessageRegExp = "Request failed.*")
+    public void testTokenEndpointFailure() {
+        given(oAuthClient.getToken(URL, "clientId", "clientSecret")).willThrow(new RuntimeException("Request failed with http code 500"));
+
+        tokenManager.getAccessToken();
+    }
+
+    private static OAuthToken token(final String accessToken, final long expiresIn) {
+        final OAuthToken token = new OAuthToken();
+        token.setAccessToken(accessToken);
+        token.setExpiresIn(expiresIn);
+        return token;
+    }
+}
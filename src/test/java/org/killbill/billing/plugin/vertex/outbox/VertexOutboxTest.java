@@ -0,0 +1,245 @@
+/*
+ * Copyright 2020-2023 Equinix, Inc
+ * Copyright 2020-2023 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.vertex.outbox;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.plugin.vertex.VertexApiClient;
+import org.killbill.billing.plugin.vertex.VertexApiConfigurationHandler;
+import org.killbill.billing.plugin.vertex.dao.VertexDao;
+import org.killbill.billing.plugin.vertex.gen.ApiException;
+import org.killbill.billing.plugin.vertex.gen.client.model.SaleMessageTypeEnum;
+import org.killbill.billing.plugin.vertex.gen.client.model.SaleRequestType;
+import org.killbill.billing.plugin.vertex.gen.dao.model.tables.records.VertexOutboxRecord;
+import org.killbill.clock.Clock;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+
+public class VertexOutboxTest {
+
+    private static final DateTime NOW = new DateTime(2023, 3, 1, 10, 0, DateTimeZone.UTC);
+
+    @Mock
+    private VertexDao dao;
+    @Mock
+    private VertexApiConfigurationHandler vertexApiConfigurationHandler;
+    @Mock
+    private VertexApiClient vertexApiClient;
+    @Mock
+    private Clock clock;
+
+    private UUID kbTenantId;
+    private VertexOutbox vertexOutbox;
+
+    @BeforeMethod(groups = "fast")
+    public void setUp() throws SQLException {
+        MockitoAnnotations.openMocks(this);
+
+        kbTenantId = UUID.randomUUID();
+        given(clock.getUTCNow()).willReturn(NOW);
+        given(vertexApiConfigurationHandler.getConfigurable(kbTenantId)).willReturn(vertexApiClient);
+        given(dao.claimOutboxEntry(anyInt(), anyInt(), any(DateTime.class), any(DateTime.class))).willReturn(true);
+
+        vertexOutbox = new VertexOutbox(2, 0, 3, 10, 60, vertexApiConfigurationHandler, dao, clock);
+        vertexOutbox.start();
+    }
+
+    @AfterMethod(groups = "fast")
+    public void tearDown() {
+        vertexOutbox.close();
+    }
+
+    @Test(groups = "fast")
+    public void testTransactionsDeleted() throws Exception {
+        final VertexOutboxRecord entry1 = buildEntry(1, "doc1", 0);
+        final VertexOutboxRecord entry2 = buildEntry(2, "doc2", 0);
+        given(dao.getDueOutboxEntries(NOW, 100)).willReturn(ImmutableList.of(entry1, entry2));
+
+        vertexOutbox.drain();
+
+        verify(dao).claimOutboxEntry(1, 0, NOW.plusSeconds(600), NOW);
+        verify(dao).claimOutboxEntry(2, 0, NOW.plusSeconds(600), NOW);
+        verify(vertexApiClient).deleteTransaction("doc1");
+        verify(vertexApiClient).deleteTransaction("doc2");
+        verify(dao).deleteOutboxEntry(1);
+        verify(dao).deleteOutboxEntry(2);
+    }
+
+    @Test(groups = "fast")
+    public void testClaimedByAnotherWorker() throws Exception {
+        given(dao.getDueOutboxEntries(NOW, 100)).willReturn(ImmutableList.of(buildEntry(1, "doc1", 0)));
+        given(dao.claimOutboxEntry(anyInt(), anyInt(), any(DateTime.class), any(DateTime.class))).willReturn(false);
+
+        vertexOutbox.drain();
+
+        verify(vertexApiClient, never()).deleteTransaction(anyString());
+        verify(dao, never()).deleteOutboxEntry(anyInt());
+    }
+
+    @Test(groups = "fast")
+    public void testAlreadyDeleted() throws Exception {
+        given(dao.getDueOutboxEntries(NOW, 100)).willReturn(ImmutableList.of(buildEntry(1, "doc1", 0)));
+        given(vertexApiClient.deleteTransaction("doc1")).willThrow(new ApiException(404, "Not Found"));
+
+        vertexOutbox.drain();
+
+        verify(dao).deleteOutboxEntry(1);
+    }
+
+    @Test(groups = "fast")
+    public void testRetriedWithBackoff() throws Exception {
+        given(dao.getDueOutboxEntries(NOW, 100)).willReturn(ImmutableList.of(buildEntry(1, "doc1", 0), buildEntry(2, "doc2", 1), buildEntry(3, "doc3", 2)));
+        given(vertexApiClient.deleteTransaction(anyString())).willThrow(new ApiException(503, "Service Unavailable"));
+
+        vertexOutbox.drain();
+
+        verify(dao, never()).deleteOutboxEntry(anyInt());
+        verify(dao).rescheduleOutboxEntry(1, NOW.plusSeconds(10), "Service Unavailable", NOW);
+        verify(dao).rescheduleOutboxEntry(2, NOW.plusSeconds(20), "Service Unavailable", NOW);
+        // Last attempt
+        verify(dao).rescheduleOutboxEntry(3, null, "Service Unavailable", NOW);
+    }
+
+    @Test(groups = "fast")
+    public void testBackoff() {
+        assertEquals(vertexOutbox.getBackoffSeconds(1), 10);
+        assertEquals(vertexOutbox.getBackoffSeconds(2), 20);
+        assertEquals(vertexOutbox.getBackoffSeconds(3), 40);
+        assertEquals(vertexOutbox.getBackoffSeconds(4), 60);
+        assertEquals(vertexOutbox.getBackoffSeconds(100), 60);
+    }
+
+    @Test(groups = "fast")
+    public void testNoTransactionToDelete() throws Exception {
+        final UUID kbInvoiceId = UUID.randomUUID();
+        vertexOutbox.deleteTransactions(kbInvoiceId, Collections.emptyList(), kbTenantId);
+
+        // Postings still cancelled
+        verify(dao).deleteOutboxEntries(kbInvoiceId, VertexOutbox.POST_TRANSACTION, kbTenantId);
+        verify(dao, never()).addOutboxEntries(any(UUID.class), anyString(), anyMap(), any(DateTime.class), any(DateTime.class), any(UUID.class));
+    }
+
+    @Test(groups = "fast")
+    public void testDrainedWhenAdded() throws Exception {
+        final UUID kbInvoiceId = UUID.randomUUID();
+        given(dao.getDueOutboxEntries(NOW, 100)).willReturn(ImmutableList.of(buildEntry(1, "doc1", 0)));
+
+        vertexOutbox.deleteTransactions(kbInvoiceId, ImmutableList.of("doc1"), kbTenantId);
+
+        verify(dao).addOutboxEntries(eq(kbInvoiceId), eq(VertexOutbox.DELETE_TRANSACTION), eq(Collections.singletonMap("doc1", null)), eq(NOW), eq(NOW), eq(kbTenantId));
+        // Without waiting for the poll (disabled here)
+        verify(dao, Mockito.timeout(5000)).deleteOutboxEntry(1);
+    }
+
+    @Test(groups = "fast")
+    public void testRunInlineWhenNotStarted() throws Exception {
+        final VertexOutbox notStartedOutbox = new VertexOutbox(2, 0, 3, 10, 60, vertexApiConfigurationHandler, dao, clock);
+        final UUID kbInvoiceId = UUID.randomUUID();
+        given(dao.getDueOutboxEntries(NOW, 100)).willReturn(ImmutableList.of(buildEntry(1, "doc1", 0)));
+
+        notStartedOutbox.deleteTransactions(kbInvoiceId, ImmutableList.of("doc1"), kbTenantId);
+
+        // Run by the caller: no thread to close
+        verify(vertexApiClient).deleteTransaction("doc1");
+        verify(dao).deleteOutboxEntry(1);
+        notStartedOutbox.close();
+    }
+
+    @Test(groups = "fast")
+    public void testDeleteDelayedByPostingInFlight() throws Exception {
+        final UUID kbInvoiceId = UUID.randomUUID();
+        given(dao.deleteOutboxEntries(kbInvoiceId, VertexOutbox.POST_TRANSACTION, kbTenantId)).willReturn(ImmutableList.of(buildEntry(1, "doc1", 1)));
+
+        vertexOutbox.deleteTransactions(kbInvoiceId, ImmutableList.of("doc1"), kbTenantId);
+
+        verify(dao).addOutboxEntries(eq(kbInvoiceId), eq(VertexOutbox.DELETE_TRANSACTION), eq(Collections.singletonMap("doc1", null)), eq(NOW.plusSeconds(600)), eq(NOW), eq(kbTenantId));
+    }
+
+    @Test(groups = "fast")
+    public void testTransactionsHeldThenPosted() throws Exception {
+        final UUID kbInvoiceId = UUID.randomUUID();
+        final SaleRequestType quote = new SaleRequestType();
+        quote.setSaleMessageType(SaleMessageTypeEnum.QUOTATION);
+        quote.setDocumentNumber("doc1");
+
+        vertexOutbox.holdTransactions(kbInvoiceId, ImmutableList.of(quote), kbTenantId);
+
+        final ArgumentCaptor<Map<String, String>> payloads = ArgumentCaptor.forClass(Map.class);
+        verify(dao).addOutboxEntries(eq(kbInvoiceId), eq(VertexOutbox.POST_TRANSACTION), payloads.capture(), Mockito.isNull(), eq(NOW), eq(kbTenantId));
+        assertEquals(payloads.getValue().keySet(), ImmutableSet.of("doc1"));
+        // Quote left untouched
+        assertEquals(quote.getSaleMessageType(), SaleMessageTypeEnum.QUOTATION);
+        // Held until the invoice is committed
+        verify(dao, never()).getDueOutboxEntries(any(DateTime.class), anyInt());
+
+        final VertexOutboxRecord entry = buildEntry(1, "doc1", 0);
+        entry.setOperation(VertexOutbox.POST_TRANSACTION);
+        entry.setPayload(payloads.getValue().get("doc1"));
+        given(dao.releaseOutboxEntries(kbInvoiceId, VertexOutbox.POST_TRANSACTION, NOW, kbTenantId)).willReturn(1);
+        given(dao.getDueOutboxEntries(NOW, 100)).willReturn(ImmutableList.of(entry));
+
+        vertexOutbox.postTransactions(kbInvoiceId, kbTenantId);
+
+        final ArgumentCaptor<SaleRequestType> posted = ArgumentCaptor.forClass(SaleRequestType.class);
+        verify(vertexApiClient, Mockito.timeout(5000)).calculateTaxes(posted.capture());
+        assertEquals(posted.getValue().getSaleMessageType(), SaleMessageTypeEnum.INVOICE);
+        assertEquals(posted.getValue().getDocumentNumber(), "doc1");
+        verify(dao, Mockito.timeout(5000)).deleteOutboxEntry(1);
+    }
+
+    @Test(groups = "fast")
+    public void testNothingToPost() throws Exception {
+        vertexOutbox.postTransactions(UUID.randomUUID(), kbTenantId);
+
+        verify(dao, never()).getDueOutboxEntries(any(DateTime.class), anyInt());
+    }
+
+    private VertexOutboxRecord buildEntry(final int recordId, final String docCode, final int attempts) {
+        final VertexOutboxRecord entry = new VertexOutboxRecord();
+        entry.setRecordId(recordId);
+        entry.setKbInvoiceId(UUID.randomUUID().toString());
+        entry.setOperation(VertexOutbox.DELETE_TRANSACTION);
+        entry.setDocCode(docCode);
+        entry.setAttempts(attempts);
+        entry.setKbTenantId(kbTenantId.toString());
+        return entry;
+    }
+}